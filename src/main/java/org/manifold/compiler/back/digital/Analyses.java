@@ -0,0 +1,38 @@
+package org.manifold.compiler.back.digital;
+
+// The shared analyses that come with the backend.
+
+public final class Analyses {
+
+  private Analyses() { }
+
+  // PrimitiveKind codes of every node, indexed by node id
+  // (see PrimitiveTypeTable.classifyNodes()).
+  public static final Analysis<byte[]> NODE_KINDS = new Analysis<byte[]>() {
+    @Override
+    public String getName() {
+      return "node kinds";
+    }
+
+    @Override
+    public byte[] compute(CheckContext context) {
+      return context.getTypeTable().classifyNodes(context.getNetlist());
+    }
+  };
+
+  // The graph of combinational gates.
+  public static final Analysis<GateGraph> GATE_GRAPH =
+      new Analysis<GateGraph>() {
+        @Override
+        public String getName() {
+          return "gate graph";
+        }
+
+        @Override
+        public GateGraph compute(CheckContext context) {
+          return new GateGraph(context.getNetlist(),
+              context.get(NODE_KINDS));
+        }
+      };
+
+}
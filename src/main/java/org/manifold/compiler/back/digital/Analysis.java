@@ -0,0 +1,18 @@
+package org.manifold.compiler.back.digital;
+
+// Something derived from a design that several checks need, such as a
+// classification of its nodes or its graph of gates. A CheckContext
+// computes each analysis at most once and hands the same result to every
+// check that asks for it, so results must not be modified.
+//
+// Analyses are identified by object identity; define each one as a
+// constant (see Analyses). An analysis may use other analyses through the
+// context, as long as none of them depends on itself.
+
+public interface Analysis<T> {
+
+  String getName();
+
+  T compute(CheckContext context);
+
+}
@@ -0,0 +1,452 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Finds bit-sliced structure among the gates of an entity, so that a code
+// generator can declare groups of nets as one vector signal (a bus) and
+// write one vector-wide statement for a group of gates.
+//
+// A group is a set of gates of the same kind whose outputs become the bits
+// of a new bus, and where each input port, taken across the group in bit
+// order, is either
+// * a run of consecutive bits of one bus (the whole bus or a slice), or
+// * the same net for every gate (it is broadcast to all bits).
+// Nets that are not in a bus yet can be gathered into a new one for an
+// input port; their drivers then simply assign the bit of the bus.
+//
+// Which gates to try as a group is decided by structure: gates of the same
+// kind, at the same combinational depth, that are alike after a few rounds
+// of colour refinement (as for Hierarchy), i.e. the same gate in each
+// slice. Groups are formed in order of depth, so their inputs are already
+// in buses and the bit order of a group follows that of its inputs. A
+// candidate group whose inputs do not line up is left as separate gates;
+// any set of same-kind gates whose inputs line up is a valid group, so the
+// heuristic only affects how much is bundled, never correctness.
+
+public class Buses {
+
+  // narrower groups are not worth a vector
+  public static final int MIN_BUS_WIDTH = 2;
+  private static final int REFINEMENT_ROUNDS = 3;
+
+  // An input of a group: bits low..low+width-1 of a bus, or (if the bus
+  // is -1) one net broadcast to every bit.
+  public static class Operand {
+    private final int bus;
+    private final int low;
+    private final int net;
+
+    Operand(int bus, int low, int net) {
+      this.bus = bus;
+      this.low = low;
+      this.net = net;
+    }
+
+    public boolean isBroadcast() {
+      return bus == -1;
+    }
+
+    public int getBus() {
+      return bus;
+    }
+
+    public int getLow() {
+      return low;
+    }
+
+    public int getNet() {
+      return net;
+    }
+  }
+
+  // Gates written as one vector statement: bit k of the output bus is
+  // driven by node k.
+  public static class Group {
+    private final int[] nodes;
+    private final int bus;
+    private final Map<String, Operand> operands = new HashMap<>();
+
+    Group(int[] nodes, int bus) {
+      this.nodes = nodes;
+      this.bus = bus;
+    }
+
+    public int getWidth() {
+      return nodes.length;
+    }
+
+    public int getNode(int bit) {
+      return nodes[bit];
+    }
+
+    public int getBus() {
+      return bus;
+    }
+
+    // the operand on the named input port of the gates
+    public Operand getOperand(String portName) {
+      return operands.get(portName);
+    }
+  }
+
+  private final CompactNetlist netlist;
+  private final byte[] nodeKinds;
+
+  // bus and bit of each net; -1 if it is a scalar
+  private final int[] netBus;
+  private final int[] netBit;
+  // nets of each bus, by bit
+  private final List<int[]> buses = new ArrayList<>();
+  private final List<Group> groups = new ArrayList<>();
+  // group of each node, or -1
+  private final int[] nodeGroup;
+
+  public Buses(CompactNetlist netlist, byte[] nodeKinds, BitSet nodes) {
+    this.netlist = netlist;
+    this.nodeKinds = nodeKinds;
+    netBus = new int[netlist.getNetCount()];
+    netBit = new int[netlist.getNetCount()];
+    Arrays.fill(netBus, -1);
+    nodeGroup = new int[netlist.getNodeCount()];
+    Arrays.fill(nodeGroup, -1);
+
+    BitSet gates = new BitSet();
+    for (int node = nodes.nextSetBit(0); node >= 0;
+        node = nodes.nextSetBit(node + 1)) {
+      if (GateGraph.isCombinational(kindOf(node))) {
+        gates.set(node);
+      }
+    }
+    int[] levels = levels(gates);
+    long[] colours = colours(nodes);
+    for (List<Integer> candidate : candidates(gates, levels, colours)) {
+      if (candidate.size() >= MIN_BUS_WIDTH) {
+        tryGroup(candidate);
+      }
+    }
+  }
+
+  public int getBusCount() {
+    return buses.size();
+  }
+
+  public int getBusWidth(int bus) {
+    return buses.get(bus).length;
+  }
+
+  public int getBusNet(int bus, int bit) {
+    return buses.get(bus)[bit];
+  }
+
+  // the bus a net is part of, or -1
+  public int getBus(int net) {
+    return netBus[net];
+  }
+
+  public int getBit(int net) {
+    return netBit[net];
+  }
+
+  public List<Group> getGroups() {
+    return Collections.unmodifiableList(groups);
+  }
+
+  // the group a node is written in, or null if it is written on its own
+  public Group getGroup(int node) {
+    return nodeGroup[node] == -1 ? null : groups.get(nodeGroup[node]);
+  }
+
+  private PrimitiveKind kindOf(int node) {
+    return PrimitiveKind.fromCode(nodeKinds[node]);
+  }
+
+  private int connectedNet(int node, String portName) {
+    int port = netlist.getPort(node, portName);
+    return port == -1 ? CompactNetlist.NOT_CONNECTED
+        : netlist.getPortNet(port);
+  }
+
+  // Combinational depth of each gate: 0 if none of its inputs is driven
+  // by one of `gates`, else one more than the deepest such driver. Gates
+  // on or behind a combinational loop get -1.
+  private int[] levels(BitSet gates) {
+    int[] levels = new int[netlist.getNodeCount()];
+    int[] pending = new int[netlist.getNodeCount()];
+    Arrays.fill(levels, -1);
+    int[] queue = new int[gates.cardinality()];
+    int head = 0;
+    int tail = 0;
+    for (int g = gates.nextSetBit(0); g >= 0; g = gates.nextSetBit(g + 1)) {
+      for (int k = 0; k < netlist.getNodePortCount(g); ++k) {
+        int port = netlist.getNodePort(g, k);
+        int net = netlist.getPortNet(port);
+        if (!netlist.isOutputPort(port) && net != CompactNetlist.NOT_CONNECTED
+            && netlist.getNetDriverNode(net) != -1
+            && gates.get(netlist.getNetDriverNode(net))) {
+          pending[g] += 1;
+        }
+      }
+      if (pending[g] == 0) {
+        levels[g] = 0;
+        queue[tail++] = g;
+      }
+    }
+    while (head < tail) {
+      int g = queue[head++];
+      int out = connectedNet(g, "out");
+      if (out == CompactNetlist.NOT_CONNECTED) {
+        continue;
+      }
+      for (int s = 0; s < netlist.getNetSinkCount(out); ++s) {
+        int sink = netlist.getPortNode(netlist.getNetSink(out, s));
+        if (!gates.get(sink)) {
+          continue;
+        }
+        levels[sink] = Math.max(levels[sink], levels[g] + 1);
+        if (--pending[sink] == 0) {
+          queue[tail++] = sink;
+        }
+      }
+    }
+    // gates still pending are on a loop; forget their partial depths
+    for (int g = gates.nextSetBit(0); g >= 0; g = gates.nextSetBit(g + 1)) {
+      if (pending[g] > 0) {
+        levels[g] = -1;
+      }
+    }
+    return levels;
+  }
+
+  // Colour refinement over `nodes`, starting from their kinds: each round
+  // a net takes the sum of the colours of the ports on it, and a node
+  // mixes the colours of its nets into its own, in port order.
+  private long[] colours(BitSet nodes) {
+    long[] colours = new long[netlist.getNodeCount()];
+    for (int node = nodes.nextSetBit(0); node >= 0;
+        node = nodes.nextSetBit(node + 1)) {
+      colours[node] = nodeKinds[node];
+    }
+    long[] netColours = new long[netlist.getNetCount()];
+    for (int round = 0; round < REFINEMENT_ROUNDS; ++round) {
+      Arrays.fill(netColours, 0);
+      for (int node = nodes.nextSetBit(0); node >= 0;
+          node = nodes.nextSetBit(node + 1)) {
+        for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+          int port = netlist.getNodePort(node, k);
+          int net = netlist.getPortNet(port);
+          if (net != CompactNetlist.NOT_CONNECTED) {
+            netColours[net] += Hierarchy.mix(colours[node],
+                netlist.getPortName(port).hashCode());
+          }
+        }
+      }
+      for (int node = nodes.nextSetBit(0); node >= 0;
+          node = nodes.nextSetBit(node + 1)) {
+        long h = colours[node];
+        for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+          int net = netlist.getPortNet(netlist.getNodePort(node, k));
+          h = Hierarchy.mix(h, net == CompactNetlist.NOT_CONNECTED ? -1
+              : netColours[net]);
+        }
+        colours[node] = h;
+      }
+    }
+    return colours;
+  }
+
+  // Gates of the same kind, depth and colour, each in id order; the lists
+  // are ordered by depth and then by first gate.
+  private List<List<Integer>> candidates(BitSet gates, int[] levels,
+      long[] colours) {
+    Map<List<Long>, List<Integer>> byKey = new HashMap<>();
+    List<List<Integer>> candidates = new ArrayList<>();
+    for (int g = gates.nextSetBit(0); g >= 0; g = gates.nextSetBit(g + 1)) {
+      if (levels[g] == -1) {
+        continue;
+      }
+      List<Long> key = Arrays.asList((long) nodeKinds[g], (long) levels[g],
+          colours[g]);
+      List<Integer> candidate = byKey.get(key);
+      if (candidate == null) {
+        candidate = new ArrayList<>();
+        byKey.put(key, candidate);
+        candidates.add(candidate);
+      }
+      candidate.add(g);
+    }
+    // stable, so candidates at the same depth stay in order of first gate
+    Collections.sort(candidates, (a, b) -> Integer.compare(
+        levels[a.get(0)], levels[b.get(0)]));
+    return candidates;
+  }
+
+  // The names of the input ports of a gate, in port order.
+  private List<String> inputPorts(int node) {
+    List<String> inputs = new ArrayList<>();
+    for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+      int port = netlist.getNodePort(node, k);
+      if (!netlist.isOutputPort(port)) {
+        inputs.add(netlist.getPortName(port));
+      }
+    }
+    return inputs;
+  }
+
+  // The nets on the named port of each of `members`, or null if one of
+  // them is not connected.
+  private int[] netsOn(int[] members, String portName) {
+    int[] nets = new int[members.length];
+    for (int i = 0; i < members.length; ++i) {
+      nets[i] = connectedNet(members[i], portName);
+      if (nets[i] == CompactNetlist.NOT_CONNECTED) {
+        return null;
+      }
+    }
+    return nets;
+  }
+
+  // The bus that all of `nets` are in, if they are consecutive bits of it
+  // in ascending order; otherwise -1.
+  private int sliceOf(int[] nets) {
+    int bus = netBus[nets[0]];
+    if (bus == -1) {
+      return -1;
+    }
+    for (int i = 1; i < nets.length; ++i) {
+      if (netBus[nets[i]] != bus || netBit[nets[i]] != netBit[nets[0]] + i) {
+        return -1;
+      }
+    }
+    return bus;
+  }
+
+  private static boolean allSame(int[] nets) {
+    for (int net : nets) {
+      if (net != nets[0]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Whether `nets` are distinct and none is in a bus yet.
+  private boolean allFree(int[] nets) {
+    BitSet seen = new BitSet();
+    for (int net : nets) {
+      if (netBus[net] != -1 || seen.get(net)) {
+        return false;
+      }
+      seen.set(net);
+    }
+    return true;
+  }
+
+  private int addBus(int[] nets) {
+    int bus = buses.size();
+    buses.add(nets);
+    for (int bit = 0; bit < nets.length; ++bit) {
+      netBus[nets[bit]] = bus;
+      netBit[nets[bit]] = bit;
+    }
+    return bus;
+  }
+
+  private void tryGroup(List<Integer> candidate) {
+    int width = candidate.size();
+    int[] members = new int[width];
+    for (int i = 0; i < width; ++i) {
+      members[i] = candidate.get(i);
+    }
+    List<String> inputs = inputPorts(members[0]);
+    int[] outputs = netsOn(members, "out");
+    if (outputs == null || !allFree(outputs)) {
+      return;
+    }
+
+    // if an input is already in a bus, take the bit order from it
+    for (String input : inputs) {
+      int[] nets = netsOn(members, input);
+      if (nets == null) {
+        return;
+      }
+      if (netBus[nets[0]] == -1) {
+        continue;
+      }
+      int bus = netBus[nets[0]];
+      Integer[] order = new Integer[width];
+      for (int i = 0; i < width; ++i) {
+        if (netBus[nets[i]] != bus) {
+          order = null;
+          break;
+        }
+        order[i] = i;
+      }
+      if (order != null) {
+        Arrays.sort(order, (a, b) -> Integer.compare(netBit[nets[a]],
+            netBit[nets[b]]));
+        int[] sorted = new int[width];
+        for (int i = 0; i < width; ++i) {
+          sorted[i] = members[order[i]];
+        }
+        members = sorted;
+        break;
+      }
+    }
+
+    // check that every input lines up before changing anything; inputs to
+    // gather must not share nets, unless they are the very same nets
+    List<int[]> gathered = new ArrayList<>();
+    for (String input : inputs) {
+      int[] nets = netsOn(members, input);
+      if (allSame(nets) || sliceOf(nets) != -1) {
+        continue;
+      }
+      if (!allFree(nets)) {
+        return;
+      }
+      boolean same = false;
+      for (int[] other : gathered) {
+        if (Arrays.equals(other, nets)) {
+          same = true;
+        } else {
+          for (int net : nets) {
+            for (int otherNet : other) {
+              if (net == otherNet) {
+                return;
+              }
+            }
+          }
+        }
+      }
+      if (!same) {
+        gathered.add(nets);
+      }
+    }
+
+    for (int[] nets : gathered) {
+      addBus(nets);
+    }
+    int group = groups.size();
+    Group g = new Group(members, addBus(netsOn(members, "out")));
+    for (String input : inputs) {
+      int[] nets = netsOn(members, input);
+      int bus = sliceOf(nets);
+      if (bus != -1) {
+        g.operands.put(input, new Operand(bus, netBit[nets[0]], -1));
+      } else {
+        g.operands.put(input, new Operand(-1, 0, nets[0]));
+      }
+    }
+    groups.add(g);
+    for (int node : members) {
+      nodeGroup[node] = group;
+    }
+  }
+
+}
@@ -1,5 +1,8 @@
 package org.manifold.compiler.back.digital;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.manifold.compiler.UndefinedBehaviourError;
 
 public abstract class Check {
@@ -10,6 +13,26 @@ public abstract class Check {
   public Check(String name) {
     this.name = name;
   }
+
+  // Rough cost classes; cheaper checks are run first (see CheckRunner).
+  public enum Cost {
+    // a single linear pass or less
+    CHEAP,
+    // a few linear passes, or building a graph of the design
+    MODERATE,
+    // anything superlinear
+    EXPENSIVE,
+  }
+
+  public Cost getCost() {
+    return Cost.MODERATE;
+  }
+
+  // The shared analyses this check uses (see CheckContext). They are
+  // computed before the check is timed, and only once for all checks.
+  public List<Analysis<?>> getDependencies() {
+    return Collections.emptyList();
+  }
   
   protected abstract void verify();
 
@@ -26,5 +49,62 @@ public abstract class Check {
     }
     return result;
   }
-  // TODO(murphy) get list of failures
+
+  // where violations go as they are found; null means they're only counted
+  private ViolationSink violationSink = null;
+  public void setViolationSink(ViolationSink sink) {
+    this.violationSink = sink;
+  }
+
+  // at most this many violations are passed on to the sink
+  private int maxViolations = Integer.MAX_VALUE;
+  // if set, the check may stop looking once maxViolations have been found
+  private boolean stopAtLimit = false;
+
+  public void setViolationLimit(int maxViolations, boolean stopAtLimit) {
+    this.maxViolations = maxViolations;
+    this.stopAtLimit = stopAtLimit;
+  }
+
+  private int violationCount = 0;
+
+  // Number of violations found so far.
+  public int getViolationCount() {
+    return violationCount;
+  }
+
+  // Number of violations passed on to the sink so far.
+  public int getReportedViolationCount() {
+    if (violationSink == null) {
+      return 0;
+    }
+    return Math.min(violationCount, maxViolations);
+  }
+
+  // Record a violation. Every violation is counted, but only the first
+  // maxViolations are reported.
+  protected void reportViolation(Violation violation) {
+    ++violationCount;
+    if (violationSink != null && violationCount <= maxViolations) {
+      violationSink.report(this, violation);
+    }
+  }
+
+  // Record a violation without its details; use this instead of
+  // reportViolation() when wantsViolationDetails() is false.
+  protected void countViolation() {
+    ++violationCount;
+  }
+
+  // False if a violation found now would not be reported, so checks can
+  // skip building the details of violations that would be thrown away.
+  protected boolean wantsViolationDetails() {
+    return violationSink != null && violationCount < maxViolations;
+  }
+
+  // True once the check has found as many violations as it was asked for,
+  // in first-N mode; it may stop looking (the result is already known).
+  protected boolean isSaturated() {
+    return stopAtLimit && violationCount >= maxViolations;
+  }
 }
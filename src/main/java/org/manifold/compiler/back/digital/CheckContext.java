@@ -0,0 +1,103 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// The design being checked, together with the shared analyses computed
+// for it so far.
+//
+// get() computes an analysis the first time it is asked for and returns
+// the same result from then on. It is safe to call from checks that run
+// concurrently: if a second thread asks for an analysis that is still
+// being computed, it waits for the first one to finish.
+
+public class CheckContext {
+  private static Logger log = LogManager.getLogger("CheckContext");
+
+  private final CompactNetlist netlist;
+  private final PrimitiveTypeTable typeTable;
+
+  private final Map<Analysis<?>, FutureTask<?>> analyses =
+      new IdentityHashMap<>();
+
+  public CheckContext(CompactNetlist netlist, PrimitiveTypeTable typeTable) {
+    this.netlist = netlist;
+    this.typeTable = typeTable;
+  }
+
+  // settings from the command line that the standard checks (see
+  // StandardCheckProvider) are built with
+  private int maxFanout = 0;
+  private boolean strictClockDomains = false;
+
+  // highest fanout allowed on a net; 0 means no limit
+  public int getMaxFanout() {
+    return maxFanout;
+  }
+
+  public void setMaxFanout(int maxFanout) {
+    this.maxFanout = maxFanout;
+  }
+
+  // whether clock domain crossings and mixed edges fail the design
+  public boolean isStrictClockDomains() {
+    return strictClockDomains;
+  }
+
+  public void setStrictClockDomains(boolean strictClockDomains) {
+    this.strictClockDomains = strictClockDomains;
+  }
+
+  public CompactNetlist getNetlist() {
+    return netlist;
+  }
+
+  public PrimitiveTypeTable getTypeTable() {
+    return typeTable;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T get(Analysis<T> analysis) {
+    FutureTask<T> task;
+    boolean computeHere = false;
+    synchronized (analyses) {
+      task = (FutureTask<T>) analyses.get(analysis);
+      if (task == null) {
+        task = new FutureTask<>(() -> {
+          long start = System.nanoTime();
+          T result = analysis.compute(this);
+          log.info("analysis '" + analysis.getName() + "' took "
+              + Long.toString((System.nanoTime() - start) / 1000000)
+              + " ms");
+          return result;
+        });
+        analyses.put(analysis, task);
+        computeHere = true;
+      }
+    }
+    if (computeHere) {
+      task.run();
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CodeGenerationError("interrupted while waiting for analysis '"
+          + analysis.getName() + "'");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CodeGenerationError(cause.getMessage());
+    }
+  }
+
+}
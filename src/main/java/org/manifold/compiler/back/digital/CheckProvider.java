@@ -0,0 +1,20 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.List;
+
+// Supplies design checks. Providers are discovered with
+// java.util.ServiceLoader: list the implementing class in
+// META-INF/services/org.manifold.compiler.back.digital.CheckProvider
+// and the backend runs its checks alongside the standard ones, which come
+// from StandardCheckProvider, registered the same way. All checks are
+// scheduled together by cost (see CheckRunner).
+//
+// Implementations need a public no-argument constructor.
+
+public interface CheckProvider {
+
+  // Create this provider's checks for the design in `context`.
+  // Check names must be unique across all providers.
+  List<Check> createChecks(CheckContext context);
+
+}
@@ -0,0 +1,233 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Runs a list of design checks, concurrently on a ForkJoinPool or in order
+// on the calling thread if the pool is null, and times each one.
+//
+// Checks are independent of each other, so they may run in any order;
+// cheaper checks (see Check.getCost()) are started first, so that with
+// fail-fast a cheap failure saves running the expensive checks.
+// Design rules over the same netlist are fused and evaluated together in
+// one DesignRuleEngine pass; each of them reports the time of that pass.
+// The shared analyses a check depends on are computed, through the
+// runner's CheckContext if it has one, before the check is timed.
+// With fail-fast enabled, the first failing check cancels every check that
+// has not started yet; checks that are already running are allowed to
+// finish. Results are always reported in the order the checks were given.
+
+public class CheckRunner {
+
+  // The outcome of one check.
+  public static class Result {
+    private final Check check;
+    private final Boolean passed;
+    private final long elapsedNanos;
+
+    Result(Check check, Boolean passed, long elapsedNanos) {
+      this.check = check;
+      this.passed = passed;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public Check getCheck() {
+      return check;
+    }
+
+    // false if the check was cancelled before it started
+    public boolean wasRun() {
+      return passed != null;
+    }
+
+    public boolean passed() {
+      return passed != null && passed;
+    }
+
+    // wall-clock time spent running the check; for fused design rules,
+    // the time of the whole shared pass
+    public long getElapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+  }
+
+  private final ForkJoinPool pool;
+
+  private boolean failFast = true;
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  // where shared analyses come from; null to leave them to the checks
+  private CheckContext context = null;
+  public void setContext(CheckContext context) {
+    this.context = context;
+  }
+
+  public CheckRunner(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  public List<Result> run(List<Check> checks) {
+    List<List<Check>> units = groupChecks(checks);
+    Map<Check, Result> done = new IdentityHashMap<>();
+    if (pool == null) {
+      for (List<Check> unit : units) {
+        boolean passed = true;
+        for (Result result : runUnit(unit)) {
+          done.put(result.getCheck(), result);
+          passed &= result.passed();
+        }
+        if (failFast && !passed) {
+          break;
+        }
+      }
+    } else {
+      runConcurrently(units, done);
+    }
+
+    List<Result> results = new ArrayList<>();
+    for (Check check : checks) {
+      Result result = done.get(check);
+      results.add(result != null ? result : new Result(check, null, 0));
+    }
+    return results;
+  }
+
+  private void runConcurrently(List<List<Check>> units,
+      Map<Check, Result> done) {
+    CompletionService<List<Result>> completion =
+        new ExecutorCompletionService<>(pool);
+    List<Future<List<Result>>> futures = new ArrayList<>();
+    for (List<Check> unit : units) {
+      futures.add(completion.submit(() -> runUnit(unit)));
+    }
+
+    boolean cancelled = false;
+    for (int i = 0; i < units.size(); ++i) {
+      Future<List<Result>> future;
+      try {
+        future = completion.take();
+      } catch (InterruptedException e) {
+        cancelAll(futures);
+        Thread.currentThread().interrupt();
+        throw new CodeGenerationError("interrupted while running checks");
+      }
+      List<Result> unitResults;
+      try {
+        unitResults = future.get();
+      } catch (CancellationException e) {
+        continue;
+      } catch (InterruptedException e) {
+        // take() only returns futures that are already done
+        throw new IllegalStateException(e);
+      } catch (ExecutionException e) {
+        cancelAll(futures);
+        rethrow(e.getCause());
+        return;
+      }
+      for (Result result : unitResults) {
+        done.put(result.getCheck(), result);
+        if (failFast && !result.passed() && !cancelled) {
+          cancelAll(futures);
+          cancelled = true;
+        }
+      }
+    }
+  }
+
+  // Split checks into units of work: all design rules over one netlist
+  // form a single unit, and every other check is a unit of its own.
+  // Units are ordered by cost, then by their first check.
+  private static List<List<Check>> groupChecks(List<Check> checks) {
+    List<List<Check>> units = new ArrayList<>();
+    Map<CompactNetlist, List<Check>> rulesByNetlist = new IdentityHashMap<>();
+    for (Check check : checks) {
+      if (check instanceof DesignRule) {
+        CompactNetlist netlist = ((DesignRule) check).getNetlist();
+        List<Check> rules = rulesByNetlist.get(netlist);
+        if (rules == null) {
+          rules = new ArrayList<>();
+          rulesByNetlist.put(netlist, rules);
+          units.add(rules);
+        }
+        rules.add(check);
+      } else {
+        List<Check> unit = new ArrayList<>();
+        unit.add(check);
+        units.add(unit);
+      }
+    }
+    // stable, so units of equal cost keep their order
+    Collections.sort(units, Comparator.comparing(CheckRunner::unitCost));
+    return units;
+  }
+
+  private static Check.Cost unitCost(List<Check> unit) {
+    Check.Cost cost = Check.Cost.CHEAP;
+    for (Check check : unit) {
+      if (check.getCost().compareTo(cost) > 0) {
+        cost = check.getCost();
+      }
+    }
+    return cost;
+  }
+
+  private List<Result> runUnit(List<Check> unit) {
+    if (context != null) {
+      for (Check check : unit) {
+        for (Analysis<?> analysis : check.getDependencies()) {
+          context.get(analysis);
+        }
+      }
+    }
+    long start = System.nanoTime();
+    if (unit.get(0) instanceof DesignRule) {
+      List<DesignRule> rules = new ArrayList<>();
+      for (Check check : unit) {
+        rules.add((DesignRule) check);
+      }
+      DesignRuleEngine.run(rules.get(0).getNetlist(), rules);
+    }
+    List<Boolean> passed = new ArrayList<>();
+    for (Check check : unit) {
+      // for fused rules this just picks up the result of the shared pass
+      passed.add(check.run());
+    }
+    long elapsed = System.nanoTime() - start;
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < unit.size(); ++i) {
+      results.add(new Result(unit.get(i), passed.get(i), elapsed));
+    }
+    return results;
+  }
+
+  private static void cancelAll(List<Future<List<Result>>> futures) {
+    for (Future<List<Result>> future : futures) {
+      future.cancel(false);
+    }
+  }
+
+  // Let errors thrown by a check propagate as if it had run on this thread.
+  private static void rethrow(Throwable cause) {
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    } else {
+      throw new CodeGenerationError(cause.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,422 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.BooleanValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+
+// Groups registers into clock domains and checks that they are used
+// consistently.
+//
+// The clock of a register is traced back from its clock port through any
+// chain of NOT gates to its source: an input pin, a gate that derives a
+// gated clock, or an undriven net. All registers whose clocks come from the
+// same source form one domain. Reset nets are traced the same way and
+// collected for the per-domain summary.
+//
+// Two things are flagged:
+// * a domain with registers triggered on both edges of its clock (taking
+//   inversions on the way into account), and
+// * data crossing between domains: a register samples, through
+//   combinational logic only, the output of a register in another domain.
+// Both are normal in working designs -- a DDR interface uses both edges,
+// and every two-flop synchronizer is a crossing -- so by default they are
+// only logged as warnings and the check passes. A strict check reports
+// them as violations and fails instead.
+//
+// Every step is linear in the size of the netlist: each net is traced at
+// most once, and domain labels are propagated with a worklist in which a
+// net's label can change at most twice.
+
+public class ClockDomainCheck extends Check {
+  private static Logger log = LogManager.getLogger("ClockDomainCheck");
+
+  // A clock domain: the registers clocked from one source.
+  public static class Domain {
+    private final String clockSource;
+    private int risingEdgeRegisters = 0;
+    private int fallingEdgeRegisters = 0;
+    private final Set<String> resetSources = new LinkedHashSet<>();
+
+    Domain(String clockSource) {
+      this.clockSource = clockSource;
+    }
+
+    // the name of the node (or undriven net) the clock comes from
+    public String getClockSource() {
+      return clockSource;
+    }
+
+    public int getRegisterCount() {
+      return risingEdgeRegisters + fallingEdgeRegisters;
+    }
+
+    public int getRisingEdgeRegisterCount() {
+      return risingEdgeRegisters;
+    }
+
+    public int getFallingEdgeRegisterCount() {
+      return fallingEdgeRegisters;
+    }
+
+    // where the resets of the domain's registers come from, in the same
+    // form as the clock source
+    public Set<String> getResetSources() {
+      return Collections.unmodifiableSet(resetSources);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("clock domain '").append(clockSource).append("': ")
+          .append(Integer.toString(getRegisterCount())).append(" registers (")
+          .append(Integer.toString(risingEdgeRegisters)).append(" rising, ")
+          .append(Integer.toString(fallingEdgeRegisters))
+          .append(" falling edge)");
+      if (!resetSources.isEmpty()) {
+        sb.append(", reset by ");
+        boolean first = true;
+        for (String source : resetSources) {
+          if (!first) {
+            sb.append(", ");
+          }
+          sb.append("'").append(source).append("'");
+          first = false;
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  // domain labels of nets, besides domain indices
+  private static final int NO_DOMAIN = -1;
+  private static final int SEVERAL_DOMAINS = -2;
+
+  private final CheckContext context;
+  private final CompactNetlist netlist;
+  // PrimitiveKind codes, indexed by node id
+  private byte[] nodeKinds;
+
+  // source of each net, as found by traceSource(): a node id, or -1 if the
+  // net is undriven; whether the net carries the source inverted; and the
+  // net at the start of its chain of NOT gates
+  private int[] netSource;
+  private boolean[] netInverted;
+  private int[] netRoot;
+  private byte[] netTraced;
+  private int[] tracePath;
+
+  private List<Domain> domains = new ArrayList<>();
+
+  // whether mixed edges and crossings fail the check
+  private final boolean strict;
+  // mixed edges and crossings found by a check that is not strict
+  private int warningCount = 0;
+
+  public ClockDomainCheck(CompactNetlist netlist,
+      PrimitiveTypeTable typeTable) {
+    this(new CheckContext(netlist, typeTable), false);
+  }
+
+  public ClockDomainCheck(CheckContext context) {
+    this(context, false);
+  }
+
+  /**
+   * @param strict if true, mixed clock edges and domain crossings are
+   *     violations that fail the check; otherwise they are only warned
+   *     about
+   */
+  public ClockDomainCheck(CheckContext context, boolean strict) {
+    // strictness is part of the name, so a cached result from one is not
+    // reused for the other
+    super(strict ? "consistent clock domains" : "clock domains");
+    this.context = context;
+    this.netlist = context.getNetlist();
+    this.strict = strict;
+  }
+
+  @Override
+  public List<Analysis<?>> getDependencies() {
+    return Collections.<Analysis<?>>singletonList(Analyses.NODE_KINDS);
+  }
+
+  // The clock domains found, in order of first appearance; filled in when
+  // the check runs.
+  public List<Domain> getDomains() {
+    return Collections.unmodifiableList(domains);
+  }
+
+  // Number of mixed-edge domains and crossings that were only warned
+  // about; always 0 for a strict check, which reports them as violations.
+  public int getWarningCount() {
+    return warningCount;
+  }
+
+  private PrimitiveKind kindOf(int nodeId) {
+    return PrimitiveKind.fromCode(nodeKinds[nodeId]);
+  }
+
+  private int portNet(int nodeId, String portName) {
+    int port = netlist.getPort(nodeId, portName);
+    if (port == -1) {
+      return CompactNetlist.NOT_CONNECTED;
+    }
+    return netlist.getPortNet(port);
+  }
+
+  private static boolean booleanAttribute(NodeValue node, String name) {
+    try {
+      return ((BooleanValue) node.getAttribute(name)).toBoolean();
+    } catch (UndeclaredAttributeException e) {
+      throw new CodeGenerationError(e.getMessage());
+    }
+  }
+
+  @Override
+  protected void verify() {
+    nodeKinds = context.get(Analyses.NODE_KINDS);
+    int nNodes = netlist.getNodeCount();
+    int nNets = netlist.getNetCount();
+    netSource = new int[nNets];
+    netInverted = new boolean[nNets];
+    netRoot = new int[nNets];
+    netTraced = new byte[nNets];
+    tracePath = new int[nNets];
+    domains.clear();
+    warningCount = 0;
+    boolean consistent = true;
+
+    // domain of each register (NO_DOMAIN if its clock is not connected),
+    // and the domain each clock source was assigned
+    int[] registerDomain = new int[nNodes];
+    Arrays.fill(registerDomain, NO_DOMAIN);
+    int[] nodeSourceDomain = new int[nNodes];
+    Arrays.fill(nodeSourceDomain, NO_DOMAIN);
+    int[] netSourceDomain = new int[nNets];
+    Arrays.fill(netSourceDomain, NO_DOMAIN);
+
+    for (int node = 0; node < nNodes; ++node) {
+      if (kindOf(node) != PrimitiveKind.REGISTER) {
+        continue;
+      }
+      int clockNet = portNet(node, "clock");
+      if (clockNet == CompactNetlist.NOT_CONNECTED) {
+        // reported by the unconnected inputs check
+        continue;
+      }
+      traceSource(clockNet);
+      int source = netSource[clockNet];
+      int domain;
+      if (source != -1) {
+        domain = nodeSourceDomain[source];
+        if (domain == NO_DOMAIN) {
+          domain = addDomain(netlist.getNodeName(source));
+          nodeSourceDomain[source] = domain;
+        }
+      } else {
+        int undriven = netRoot[clockNet];
+        domain = netSourceDomain[undriven];
+        if (domain == NO_DOMAIN) {
+          domain = addDomain(netlist.getNetName(undriven));
+          netSourceDomain[undriven] = domain;
+        }
+      }
+      registerDomain[node] = domain;
+
+      NodeValue register = netlist.getNode(node);
+      Domain d = domains.get(domain);
+      if (booleanAttribute(register, "clockActiveHigh")
+          != netInverted[clockNet]) {
+        d.risingEdgeRegisters += 1;
+      } else {
+        d.fallingEdgeRegisters += 1;
+      }
+      int resetNet = portNet(node, "reset");
+      if (resetNet != CompactNetlist.NOT_CONNECTED) {
+        traceSource(resetNet);
+        int resetSource = netSource[resetNet];
+        d.resetSources.add(resetSource != -1
+            ? netlist.getNodeName(resetSource)
+            : netlist.getNetName(netRoot[resetNet]));
+      }
+    }
+
+    for (Domain d : domains) {
+      log.info(d.toString());
+      if (d.risingEdgeRegisters > 0 && d.fallingEdgeRegisters > 0) {
+        consistent = false;
+        if (!strict) {
+          warn("clock domain '" + d.clockSource + "' uses both clock edges");
+        } else if (wantsViolationDetails()) {
+          reportViolation(new Violation("clock domain '" + d.clockSource
+              + "' uses both clock edges", new String[] {}, new String[] {},
+              new String[] {d.clockSource}));
+        } else {
+          countViolation();
+        }
+        if (strict && isSaturated()) {
+          this.result = false;
+          return;
+        }
+      }
+    }
+
+    consistent &= checkCrossings(registerDomain);
+    this.result = consistent || !strict;
+  }
+
+  private void warn(String message) {
+    ++warningCount;
+    log.warn(message);
+  }
+
+  private int addDomain(String clockSource) {
+    domains.add(new Domain(clockSource));
+    return domains.size() - 1;
+  }
+
+  // Find the source of `net` (see netSource), walking back through NOT
+  // gates and remembering the answer for every net on the way.
+  private void traceSource(int net) {
+    final byte untraced = 0;
+    final byte inProgress = 1;
+    final byte traced = 2;
+    int pathLength = 0;
+    int n = net;
+    while (netTraced[n] == untraced) {
+      netTraced[n] = inProgress;
+      tracePath[pathLength++] = n;
+      int driver = netlist.getNetDriverNode(n);
+      if (driver != -1 && kindOf(driver) == PrimitiveKind.NOT) {
+        int inNet = portNet(driver, "in");
+        if (inNet != CompactNetlist.NOT_CONNECTED) {
+          n = inNet;
+          continue;
+        }
+      }
+      break;
+    }
+    if (netTraced[n] != traced) {
+      // n is where the walk stopped: a real source, or a ring of NOT
+      // gates, which is treated as driven by the gate that closes it
+      netSource[n] = netlist.getNetDriverNode(n);
+      netInverted[n] = false;
+      netRoot[n] = n;
+      netTraced[n] = traced;
+    }
+    // every net on the path takes the source of the net it was led to,
+    // inverted once more by the NOT gate in between
+    for (int i = pathLength - 1; i >= 0; --i) {
+      int p = tracePath[i];
+      if (netTraced[p] == traced) {
+        continue;
+      }
+      int next = i + 1 < pathLength ? tracePath[i + 1] : n;
+      netSource[p] = netSource[next];
+      netInverted[p] = !netInverted[next];
+      netRoot[p] = netRoot[next];
+      netTraced[p] = traced;
+    }
+  }
+
+  // Propagate domain labels from register outputs through combinational
+  // gates and report every register whose data input carries a label
+  // from another domain. Returns true if there are no crossings.
+  private boolean checkCrossings(int[] registerDomain) {
+    int nNets = netlist.getNetCount();
+    int[] netDomain = new int[nNets];
+    Arrays.fill(netDomain, NO_DOMAIN);
+    ArrayDeque<Integer> worklist = new ArrayDeque<>();
+    for (int node = 0; node < registerDomain.length; ++node) {
+      if (registerDomain[node] == NO_DOMAIN) {
+        continue;
+      }
+      int outNet = portNet(node, "out");
+      if (outNet != CompactNetlist.NOT_CONNECTED
+          && merge(netDomain, outNet, registerDomain[node])) {
+        worklist.add(outNet);
+      }
+    }
+    while (!worklist.isEmpty()) {
+      int net = worklist.poll();
+      int nSinks = netlist.getNetSinkCount(net);
+      for (int s = 0; s < nSinks; ++s) {
+        int node = netlist.getPortNode(netlist.getNetSink(net, s));
+        if (!GateGraph.isCombinational(kindOf(node))) {
+          continue;
+        }
+        int outNet = portNet(node, "out");
+        if (outNet != CompactNetlist.NOT_CONNECTED
+            && merge(netDomain, outNet, netDomain[net])) {
+          worklist.add(outNet);
+        }
+      }
+    }
+
+    boolean noCrossings = true;
+    for (int node = 0; node < registerDomain.length; ++node) {
+      int domain = registerDomain[node];
+      if (domain == NO_DOMAIN) {
+        continue;
+      }
+      int inNet = portNet(node, "in");
+      if (inNet == CompactNetlist.NOT_CONNECTED) {
+        continue;
+      }
+      int from = netDomain[inNet];
+      if (from == NO_DOMAIN || from == domain) {
+        continue;
+      }
+      noCrossings = false;
+      if (!strict || wantsViolationDetails()) {
+        String nodeName = netlist.getNodeName(node);
+        String source;
+        if (from == SEVERAL_DOMAINS) {
+          source = "several clock domains";
+        } else {
+          source = "clock domain '" + domains.get(from).clockSource + "'";
+        }
+        String message = "register '" + nodeName + "' in clock domain '"
+            + domains.get(domain).clockSource + "' samples data from "
+            + source;
+        if (!strict) {
+          warn(message);
+        } else {
+          reportViolation(new Violation(message,
+              new String[] {netlist.getNetName(inNet)},
+              new String[] {nodeName + ":in"}, new String[] {nodeName}));
+        }
+      } else {
+        countViolation();
+      }
+      if (strict && isSaturated()) {
+        break;
+      }
+    }
+    return noCrossings;
+  }
+
+  // Merge `domain` into the label of `net`. Returns true if it changed.
+  private static boolean merge(int[] netDomain, int net, int domain) {
+    int old = netDomain[net];
+    int merged;
+    if (old == NO_DOMAIN || old == domain) {
+      merged = domain;
+    } else {
+      merged = SEVERAL_DOMAINS;
+    }
+    netDomain[net] = merged;
+    return merged != old;
+  }
+
+}
@@ -0,0 +1,151 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Fails if there is a cycle through combinational gates (and, or, not),
+// i.e. a path from the output of a gate back to one of its own inputs that
+// does not pass through a register. Registers, pins and nodes of unknown
+// type break cycles.
+//
+// Every loop is reported once, as the strongly connected component of the
+// gate graph (see GateGraph) that contains it. Components are found with
+// Tarjan's algorithm, run iteratively over int arrays: the recursion is
+// replaced by an explicit stack, so deep gate chains cannot overflow the
+// call stack.
+
+public class CombinationalLoopCheck extends Check {
+
+  private final CheckContext context;
+
+  public CombinationalLoopCheck(CompactNetlist netlist,
+      PrimitiveTypeTable typeTable) {
+    this(new CheckContext(netlist, typeTable));
+  }
+
+  public CombinationalLoopCheck(CheckContext context) {
+    super("no combinational loops");
+    this.context = context;
+  }
+
+  @Override
+  public List<Analysis<?>> getDependencies() {
+    return Collections.<Analysis<?>>singletonList(Analyses.GATE_GRAPH);
+  }
+
+  @Override
+  protected void verify() {
+    this.result = findLoops(context.get(Analyses.GATE_GRAPH));
+  }
+
+  // Iterative Tarjan. Returns true if no component is a loop.
+  private boolean findLoops(GateGraph graph) {
+    int nNodes = graph.getNodeCount();
+    final int unvisited = -1;
+    int[] index = new int[nNodes];
+    Arrays.fill(index, unvisited);
+    int[] lowLink = new int[nNodes];
+    boolean[] onStack = new boolean[nNodes];
+    // Tarjan's stack of visited nodes not yet assigned to a component
+    int[] stack = new int[nNodes];
+    int stackTop = 0;
+    // the simulated call stack: a node and the index of the next of its
+    // successors to look at
+    int[] callNode = new int[nNodes];
+    int[] callEdge = new int[nNodes];
+    int callTop = 0;
+    int nextIndex = 0;
+    boolean noLoops = true;
+
+    for (int root = 0; root < nNodes; ++root) {
+      // gates without successors cannot be on a loop
+      if (index[root] != unvisited || graph.getSuccessorCount(root) == 0) {
+        continue;
+      }
+      callNode[0] = root;
+      callEdge[0] = 0;
+      callTop = 1;
+      index[root] = lowLink[root] = nextIndex++;
+      stack[stackTop++] = root;
+      onStack[root] = true;
+
+      while (callTop > 0) {
+        int u = callNode[callTop - 1];
+        int e = callEdge[callTop - 1];
+        if (e < graph.getSuccessorCount(u)) {
+          callEdge[callTop - 1] = e + 1;
+          int v = graph.getSuccessor(u, e);
+          if (index[v] == unvisited) {
+            // descend into v
+            index[v] = lowLink[v] = nextIndex++;
+            stack[stackTop++] = v;
+            onStack[v] = true;
+            callNode[callTop] = v;
+            callEdge[callTop] = 0;
+            ++callTop;
+          } else if (onStack[v]) {
+            lowLink[u] = Math.min(lowLink[u], index[v]);
+          }
+          continue;
+        }
+
+        // all successors of u are done; return to the caller
+        --callTop;
+        if (callTop > 0) {
+          int caller = callNode[callTop - 1];
+          lowLink[caller] = Math.min(lowLink[caller], lowLink[u]);
+        }
+        if (lowLink[u] == index[u]) {
+          // u is the root of a component; pop it off the stack
+          int start = stackTop;
+          do {
+            --start;
+            onStack[stack[start]] = false;
+          } while (stack[start] != u);
+          if (isLoop(stack, start, stackTop, graph)) {
+            noLoops = false;
+            if (wantsViolationDetails()) {
+              reportViolation(describe(stack, start, stackTop));
+            } else {
+              countViolation();
+            }
+            if (isSaturated()) {
+              return false;
+            }
+          }
+          stackTop = start;
+        }
+      }
+    }
+    return noLoops;
+  }
+
+  // A component is a loop if it has more than one gate, or if its single
+  // gate drives one of its own inputs.
+  private static boolean isLoop(int[] members, int start, int end,
+      GateGraph graph) {
+    if (end - start > 1) {
+      return true;
+    }
+    int u = members[start];
+    for (int k = 0; k < graph.getSuccessorCount(u); ++k) {
+      if (graph.getSuccessor(u, k) == u) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Violation describe(int[] members, int start, int end) {
+    String[] nodes = new String[end - start];
+    for (int i = start; i < end; ++i) {
+      nodes[i - start] = context.getNetlist().getNodeName(members[i]);
+    }
+    Arrays.sort(nodes);
+    return new Violation("combinational loop through "
+        + Integer.toString(nodes.length) + " gates",
+        new String[] {}, new String[] {}, nodes);
+  }
+
+}
@@ -0,0 +1,580 @@
+package org.manifold.compiler.back.digital;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortTypeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.middle.Schematic;
+
+// An immutable, int-indexed form of a Netlist.
+// Nodes, ports and nets are numbered densely from zero, and all adjacency
+// is held in primitive arrays in compressed-sparse-row (CSR) form:
+// the entries belonging to item i are found at [offsets[i], offsets[i+1])
+// of the corresponding target array.
+//
+// Nodes are numbered in order of node name and nets in order of net name,
+// so iterating by id visits everything in a stable order.
+// The ports of each node are numbered contiguously, in order of port name.
+// A port that is not connected to anything has net NOT_CONNECTED.
+
+public class CompactNetlist {
+
+  public static final int NOT_CONNECTED = -1;
+
+  private final String name;
+
+  private final String[] nodeNames;
+  private final NodeValue[] nodes;
+  private final int[] nodePortOffsets;
+
+  private final int[] portNode;
+  private final String[] portNames;
+  private final boolean[] portIsOutput;
+  private final int[] portNet;
+
+  private final String[] netNames;
+  // filled in by indexNets()
+  private int[] netPortOffsets;
+  private int[] netPorts;
+  private int[] netDriverOffsets;
+  private int[] netDrivers;
+  private int[] netDriverNode;
+  private int[] netSinkOffsets;
+  private int[] netSinks;
+
+  public CompactNetlist(Schematic schematic, Netlist netlist) {
+    this.name = schematic.getName();
+    PortTypeValue digitalOutType = netlist.getDigitalOutType();
+
+    // nodes, in name order
+    Map<String, NodeValue> allNodes = schematic.getNodes();
+    int nNodes = allNodes.size();
+    nodeNames = allNodes.keySet().toArray(new String[nNodes]);
+    Arrays.sort(nodeNames);
+    nodes = new NodeValue[nNodes];
+    nodePortOffsets = new int[nNodes + 1];
+    int nPorts = 0;
+    for (int n = 0; n < nNodes; ++n) {
+      nodes[n] = allNodes.get(nodeNames[n]);
+      nodePortOffsets[n] = nPorts;
+      nPorts += nodes[n].getPorts().size();
+    }
+    nodePortOffsets[nNodes] = nPorts;
+
+    // nets, in name order
+    Map<String, Net> allNets = netlist.getNets();
+    int nNets = allNets.size();
+    netNames = allNets.keySet().toArray(new String[nNets]);
+    Arrays.sort(netNames);
+    Map<Net, Integer> netIds = new HashMap<>();
+    for (int i = 0; i < nNets; ++i) {
+      netIds.put(allNets.get(netNames[i]), i);
+    }
+
+    // ports, grouped by node and in port-name order within each node
+    portNode = new int[nPorts];
+    portNames = new String[nPorts];
+    portIsOutput = new boolean[nPorts];
+    portNet = new int[nPorts];
+    for (int n = 0; n < nNodes; ++n) {
+      Map<String, PortValue> ports = nodes[n].getPorts();
+      String[] names = ports.keySet().toArray(new String[ports.size()]);
+      Arrays.sort(names);
+      int p = nodePortOffsets[n];
+      for (String portName : names) {
+        PortValue port = ports.get(portName);
+        portNode[p] = n;
+        portNames[p] = portName;
+        Net net = netlist.findConnectedNet(port);
+        if (net == null) {
+          portIsOutput[p] = port.getType().equals(digitalOutType);
+          portNet[p] = NOT_CONNECTED;
+        } else {
+          // the net already knows which of its ports are drivers
+          portIsOutput[p] = net.isDriver(port);
+          portNet[p] = netIds.get(net);
+        }
+        ++p;
+      }
+    }
+    indexNets();
+  }
+
+  // Assemble a compact netlist from per-port arrays that are already laid
+  // out as described above; the net-to-port arrays are derived from them.
+  CompactNetlist(String name, String[] nodeNames, NodeValue[] nodes,
+      int[] nodePortOffsets, String[] portNames, boolean[] portIsOutput,
+      int[] portNet, String[] netNames) {
+    this.name = name;
+    this.nodeNames = nodeNames;
+    this.nodes = nodes;
+    this.nodePortOffsets = nodePortOffsets;
+    this.portNames = portNames;
+    this.portIsOutput = portIsOutput;
+    this.portNet = portNet;
+    this.netNames = netNames;
+    portNode = new int[portNames.length];
+    for (int n = 0; n < nodes.length; ++n) {
+      Arrays.fill(portNode, nodePortOffsets[n], nodePortOffsets[n + 1], n);
+    }
+    indexNets();
+  }
+
+  /**
+   * The compact form of `netlist` just after Netlist.applyDelta(delta),
+   * which returned `changedNets`, given that this is its compact form
+   * from before the delta. Only the ports of added nodes, and ports that
+   * were unconnected or on a changed net, are looked up in `netlist`;
+   * everything else is carried over from this netlist by id.
+   *
+   * Ids are dense, so every array is still copied: that is a few linear
+   * passes with no sorting and no hashing per element, against the sort
+   * and per-port map lookups of a rebuild. Beyond those copies, the cost
+   * grows with the size of the delta and the number of nets it affects.
+   */
+  public CompactNetlist applyDelta(Netlist netlist, SchematicDelta delta,
+      Set<String> changedNets) {
+    PortTypeValue digitalOutType = netlist.getDigitalOutType();
+    Map<String, NodeValue> addedNodes = delta.getAddedNodes();
+
+    // nodes: drop removed and replaced ones, and merge in added ones
+    BitSet droppedNodes = new BitSet();
+    for (String nodeName : delta.getRemovedNodes().keySet()) {
+      markName(nodeNames, nodeName, droppedNodes);
+    }
+    for (String nodeName : addedNodes.keySet()) {
+      markName(nodeNames, nodeName, droppedNodes);
+    }
+    String[] added = addedNodes.keySet().toArray(
+        new String[addedNodes.size()]);
+    Arrays.sort(added);
+    int[] oldNode = new int[nodeNames.length + added.length];
+    String[] newNodeNames = mergeNames(nodeNames, droppedNodes, added,
+        oldNode);
+    int nNodes = newNodeNames.length;
+
+    // nets: drop changed ones, and merge in those that still exist
+    BitSet droppedNets = new BitSet();
+    List<String> liveChanged = new ArrayList<>();
+    Map<String, Net> allNets = netlist.getNets();
+    for (String netName : changedNets) {
+      markName(netNames, netName, droppedNets);
+      if (allNets.containsKey(netName)) {
+        liveChanged.add(netName);
+      }
+    }
+    added = liveChanged.toArray(new String[liveChanged.size()]);
+    Arrays.sort(added);
+    int[] oldNet = new int[netNames.length + added.length];
+    String[] newNetNames = mergeNames(netNames, droppedNets, added, oldNet);
+    int[] newNetOf = new int[netNames.length];
+    Arrays.fill(newNetOf, NOT_CONNECTED);
+    Map<Net, Integer> changedNetIds = new HashMap<>();
+    for (int i = 0; i < newNetNames.length; ++i) {
+      if (oldNet[i] == -1) {
+        changedNetIds.put(allNets.get(newNetNames[i]), i);
+      } else {
+        newNetOf[oldNet[i]] = i;
+      }
+    }
+
+    // ports: same layout as the constructor
+    NodeValue[] newNodes = new NodeValue[nNodes];
+    int[] newNodePortOffsets = new int[nNodes + 1];
+    int nPorts = 0;
+    for (int n = 0; n < nNodes; ++n) {
+      newNodePortOffsets[n] = nPorts;
+      if (oldNode[n] == -1) {
+        newNodes[n] = addedNodes.get(newNodeNames[n]);
+        nPorts += newNodes[n].getPorts().size();
+      } else {
+        newNodes[n] = nodes[oldNode[n]];
+        nPorts += getNodePortCount(oldNode[n]);
+      }
+    }
+    newNodePortOffsets[nNodes] = nPorts;
+    String[] newPortNames = new String[nPorts];
+    boolean[] newPortIsOutput = new boolean[nPorts];
+    int[] newPortNet = new int[nPorts];
+    int p = 0;
+    for (int n = 0; n < nNodes; ++n) {
+      if (oldNode[n] == -1) {
+        Map<String, PortValue> ports = newNodes[n].getPorts();
+        String[] names = ports.keySet().toArray(new String[ports.size()]);
+        Arrays.sort(names);
+        for (String portName : names) {
+          newPortNames[p] = portName;
+          connectPort(netlist, ports.get(portName), digitalOutType,
+              changedNetIds, p, newPortIsOutput, newPortNet);
+          ++p;
+        }
+        continue;
+      }
+      int o = oldNode[n];
+      for (int q = nodePortOffsets[o]; q < nodePortOffsets[o + 1]; ++q) {
+        newPortNames[p] = portNames[q];
+        int net = portNet[q];
+        if (net != NOT_CONNECTED && newNetOf[net] != NOT_CONNECTED) {
+          newPortIsOutput[p] = portIsOutput[q];
+          newPortNet[p] = newNetOf[net];
+        } else {
+          connectPort(netlist, getPortValue(q), digitalOutType,
+              changedNetIds, p, newPortIsOutput, newPortNet);
+        }
+        ++p;
+      }
+    }
+    return new CompactNetlist(name, newNodeNames, newNodes,
+        newNodePortOffsets, newPortNames, newPortIsOutput, newPortNet,
+        newNetNames);
+  }
+
+  // Set bit i of `marks` if `name` is names[i] of the sorted `names`.
+  private static void markName(String[] names, String name, BitSet marks) {
+    int i = Arrays.binarySearch(names, name);
+    if (i >= 0) {
+      marks.set(i);
+    }
+  }
+
+  // Merge the sorted `names`, less those in `dropped`, with the sorted
+  // `added`. oldIndex[i] is set to the index in `names` of the i-th
+  // result, or -1 if it came from `added`.
+  private static String[] mergeNames(String[] names, BitSet dropped,
+      String[] added, int[] oldIndex) {
+    String[] merged = new String[names.length + added.length];
+    int n = dropped.nextClearBit(0);
+    int a = 0;
+    int m = 0;
+    while (n < names.length || a < added.length) {
+      if (a == added.length
+          || (n < names.length && names[n].compareTo(added[a]) < 0)) {
+        oldIndex[m] = n;
+        merged[m++] = names[n];
+        n = dropped.nextClearBit(n + 1);
+      } else {
+        oldIndex[m] = -1;
+        merged[m++] = added[a++];
+      }
+    }
+    return Arrays.copyOf(merged, m);
+  }
+
+  // Fill in portIsOutput[p] and portNet[p] for a port whose net is
+  // either gone or one of those in `netIds`.
+  private static void connectPort(Netlist netlist, PortValue port,
+      PortTypeValue digitalOutType, Map<Net, Integer> netIds, int p,
+      boolean[] portIsOutput, int[] portNet) {
+    Net net = netlist.findConnectedNet(port);
+    if (net == null) {
+      portIsOutput[p] = port.getType().equals(digitalOutType);
+      portNet[p] = NOT_CONNECTED;
+      return;
+    }
+    Integer id = netIds.get(net);
+    if (id == null) {
+      throw new IllegalArgumentException("net '" + net.getName()
+          + "' has changed but is not one of the changed nets");
+    }
+    portIsOutput[p] = net.isDriver(port);
+    portNet[p] = id;
+  }
+
+  // Build the net -> ports, net -> drivers and net -> sinks arrays
+  // from portNet and portIsOutput.
+  private void indexNets() {
+    int nNets = netNames.length;
+    int nPorts = portNet.length;
+    int[] netPortCount = new int[nNets];
+    int[] netDriverCount = new int[nNets];
+    for (int p = 0; p < nPorts; ++p) {
+      int net = portNet[p];
+      if (net == NOT_CONNECTED) {
+        continue;
+      }
+      netPortCount[net] += 1;
+      if (portIsOutput[p]) {
+        netDriverCount[net] += 1;
+      }
+    }
+
+    netPortOffsets = prefixSum(netPortCount);
+    netDriverOffsets = prefixSum(netDriverCount);
+    int[] netSinkCount = new int[nNets];
+    for (int i = 0; i < nNets; ++i) {
+      netSinkCount[i] = netPortCount[i] - netDriverCount[i];
+    }
+    netSinkOffsets = prefixSum(netSinkCount);
+    netPorts = new int[netPortOffsets[nNets]];
+    netDrivers = new int[netDriverOffsets[nNets]];
+    netSinks = new int[netSinkOffsets[nNets]];
+    int[] nextPort = Arrays.copyOf(netPortOffsets, nNets);
+    int[] nextDriver = Arrays.copyOf(netDriverOffsets, nNets);
+    int[] nextSink = Arrays.copyOf(netSinkOffsets, nNets);
+    netDriverNode = new int[nNets];
+    Arrays.fill(netDriverNode, -1);
+    for (int p = 0; p < nPorts; ++p) {
+      int net = portNet[p];
+      if (net == NOT_CONNECTED) {
+        continue;
+      }
+      netPorts[nextPort[net]++] = p;
+      if (portIsOutput[p]) {
+        if (netDriverNode[net] == -1) {
+          netDriverNode[net] = portNode[p];
+        }
+        netDrivers[nextDriver[net]++] = p;
+      } else {
+        netSinks[nextSink[net]++] = p;
+      }
+    }
+  }
+
+  // Reassemble a compact netlist from its stored arrays (see readFrom()).
+  private CompactNetlist(String name, String[] nodeNames, NodeValue[] nodes,
+      int[] nodePortOffsets, String[] portNames, boolean[] portIsOutput,
+      int[] portNet, String[] netNames, int[] netPortOffsets, int[] netPorts,
+      int[] netDriverOffsets, int[] netDrivers, int[] netSinkOffsets,
+      int[] netSinks) {
+    this.name = name;
+    this.nodeNames = nodeNames;
+    this.nodes = nodes;
+    this.nodePortOffsets = nodePortOffsets;
+    this.portNames = portNames;
+    this.portIsOutput = portIsOutput;
+    this.portNet = portNet;
+    this.netNames = netNames;
+    this.netPortOffsets = netPortOffsets;
+    this.netPorts = netPorts;
+    this.netDriverOffsets = netDriverOffsets;
+    this.netDrivers = netDrivers;
+    this.netSinkOffsets = netSinkOffsets;
+    this.netSinks = netSinks;
+    // the remaining arrays are cheap to derive
+    portNode = new int[portNames.length];
+    for (int n = 0; n < nodes.length; ++n) {
+      Arrays.fill(portNode, nodePortOffsets[n], nodePortOffsets[n + 1], n);
+    }
+    netDriverNode = new int[netNames.length];
+    for (int net = 0; net < netNames.length; ++net) {
+      if (netDriverOffsets[net] == netDriverOffsets[net + 1]) {
+        netDriverNode[net] = -1;
+      } else {
+        netDriverNode[net] = portNode[netDrivers[netDriverOffsets[net]]];
+      }
+    }
+  }
+
+  void writeTo(DataOutputStream out) throws IOException {
+    DesignDatabase.writeString(out, name);
+    DesignDatabase.writeStrings(out, nodeNames);
+    DesignDatabase.writeInts(out, nodePortOffsets);
+    DesignDatabase.writeStrings(out, portNames);
+    DesignDatabase.writeBooleans(out, portIsOutput);
+    DesignDatabase.writeInts(out, portNet);
+    DesignDatabase.writeStrings(out, netNames);
+    DesignDatabase.writeInts(out, netPortOffsets);
+    DesignDatabase.writeInts(out, netPorts);
+    DesignDatabase.writeInts(out, netDriverOffsets);
+    DesignDatabase.writeInts(out, netDrivers);
+    DesignDatabase.writeInts(out, netSinkOffsets);
+    DesignDatabase.writeInts(out, netSinks);
+  }
+
+  // Read back a netlist written by writeTo(), taking node values from
+  // `schematic`. Returns null if the schematic is missing any of the nodes.
+  static CompactNetlist readFrom(ByteBuffer in, Schematic schematic) {
+    String name = DesignDatabase.readString(in);
+    String[] nodeNames = DesignDatabase.readStrings(in);
+    Map<String, NodeValue> allNodes = schematic.getNodes();
+    NodeValue[] nodes = new NodeValue[nodeNames.length];
+    for (int n = 0; n < nodeNames.length; ++n) {
+      nodes[n] = allNodes.get(nodeNames[n]);
+      if (nodes[n] == null) {
+        return null;
+      }
+    }
+    int[] nodePortOffsets = DesignDatabase.readInts(in);
+    String[] portNames = DesignDatabase.readStrings(in);
+    boolean[] portIsOutput = DesignDatabase.readBooleans(in);
+    int[] portNet = DesignDatabase.readInts(in);
+    String[] netNames = DesignDatabase.readStrings(in);
+    int[] netPortOffsets = DesignDatabase.readInts(in);
+    int[] netPorts = DesignDatabase.readInts(in);
+    int[] netDriverOffsets = DesignDatabase.readInts(in);
+    int[] netDrivers = DesignDatabase.readInts(in);
+    int[] netSinkOffsets = DesignDatabase.readInts(in);
+    int[] netSinks = DesignDatabase.readInts(in);
+    // the arrays have to agree with each other before anything indexes
+    // one with values from another
+    int nPorts = portNames.length;
+    int nNets = netNames.length;
+    if (!isOffsets(nodePortOffsets, nodeNames.length, nPorts)
+        || portIsOutput.length != nPorts || portNet.length != nPorts
+        || !inRange(portNet, NOT_CONNECTED, nNets)
+        || !isOffsets(netPortOffsets, nNets, netPorts.length)
+        || !isOffsets(netDriverOffsets, nNets, netDrivers.length)
+        || !isOffsets(netSinkOffsets, nNets, netSinks.length)
+        || !inRange(netPorts, 0, nPorts) || !inRange(netDrivers, 0, nPorts)
+        || !inRange(netSinks, 0, nPorts)) {
+      throw new IllegalArgumentException("inconsistent netlist arrays");
+    }
+    return new CompactNetlist(name, nodeNames, nodes, nodePortOffsets,
+        portNames, portIsOutput, portNet, netNames, netPortOffsets, netPorts,
+        netDriverOffsets, netDrivers, netSinkOffsets, netSinks);
+  }
+
+  // Whether `offsets` are CSR offsets for `n` items into an array of
+  // `length` entries.
+  private static boolean isOffsets(int[] offsets, int n, int length) {
+    if (offsets.length != n + 1 || offsets[0] != 0
+        || offsets[n] != length) {
+      return false;
+    }
+    for (int i = 0; i < n; ++i) {
+      if (offsets[i] > offsets[i + 1]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Whether every value is in [min, limit).
+  private static boolean inRange(int[] values, int min, int limit) {
+    for (int value : values) {
+      if (value < min || value >= limit) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] prefixSum(int[] counts) {
+    int[] offsets = new int[counts.length + 1];
+    for (int i = 0; i < counts.length; ++i) {
+      offsets[i + 1] = offsets[i] + counts[i];
+    }
+    return offsets;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  public String getNodeName(int node) {
+    return nodeNames[node];
+  }
+
+  public NodeValue getNode(int node) {
+    return nodes[node];
+  }
+
+  // Returns the id of the node with the given name, or -1 if there is none.
+  public int getNodeId(String nodeName) {
+    int i = Arrays.binarySearch(nodeNames, nodeName);
+    return i < 0 ? -1 : i;
+  }
+
+  public int getNodePortCount(int node) {
+    return nodePortOffsets[node + 1] - nodePortOffsets[node];
+  }
+
+  public int getNodePort(int node, int k) {
+    return nodePortOffsets[node] + k;
+  }
+
+  // Returns the id of the named port on a node, or -1 if there is none.
+  public int getPort(int node, String portName) {
+    for (int p = nodePortOffsets[node]; p < nodePortOffsets[node + 1]; ++p) {
+      if (portNames[p].equals(portName)) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  public int getPortCount() {
+    return portNode.length;
+  }
+
+  public int getPortNode(int port) {
+    return portNode[port];
+  }
+
+  public String getPortName(int port) {
+    return portNames[port];
+  }
+
+  public PortValue getPortValue(int port) {
+    return nodes[portNode[port]].getPorts().get(portNames[port]);
+  }
+
+  public boolean isOutputPort(int port) {
+    return portIsOutput[port];
+  }
+
+  // Returns the net this port is attached to, or NOT_CONNECTED.
+  public int getPortNet(int port) {
+    return portNet[port];
+  }
+
+  public int getNetCount() {
+    return netNames.length;
+  }
+
+  public String getNetName(int net) {
+    return netNames[net];
+  }
+
+  // Returns the id of the net with the given name, or -1 if there is none.
+  public int getNetId(String netName) {
+    int i = Arrays.binarySearch(netNames, netName);
+    return i < 0 ? -1 : i;
+  }
+
+  public int getNetPortCount(int net) {
+    return netPortOffsets[net + 1] - netPortOffsets[net];
+  }
+
+  public int getNetPort(int net, int k) {
+    return netPorts[netPortOffsets[net] + k];
+  }
+
+  // Drivers are the output ports attached to a net.
+  public int getNetDriverCount(int net) {
+    return netDriverOffsets[net + 1] - netDriverOffsets[net];
+  }
+
+  public int getNetDriver(int net, int k) {
+    return netDrivers[netDriverOffsets[net] + k];
+  }
+
+  // Returns the node owning the first driver of a net, or -1 if undriven.
+  public int getNetDriverNode(int net) {
+    return netDriverNode[net];
+  }
+
+  // Sinks are the input ports attached to a net.
+  public int getNetSinkCount(int net) {
+    return netSinkOffsets[net + 1] - netSinkOffsets[net];
+  }
+
+  public int getNetSink(int net, int k) {
+    return netSinks[netSinkOffsets[net] + k];
+  }
+
+}
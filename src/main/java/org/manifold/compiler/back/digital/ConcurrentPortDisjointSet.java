@@ -0,0 +1,60 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// A lock-free disjoint-set forest over dense port indices 0..size-1,
+// safe for concurrent union() and find() calls from many threads.
+// Roots are always linked underneath the root with the smaller index,
+// which rules out cycles without any locking; finds shorten paths by
+// halving with compare-and-set, so a lost race only skips an optimization.
+
+final class ConcurrentPortDisjointSet {
+  private final AtomicIntegerArray parent;
+
+  public ConcurrentPortDisjointSet(int size) {
+    parent = new AtomicIntegerArray(size);
+    for (int i = 0; i < size; ++i) {
+      parent.set(i, i);
+    }
+  }
+
+  public int size() {
+    return parent.length();
+  }
+
+  public int find(int x) {
+    while (true) {
+      int p = parent.get(x);
+      if (p == x) {
+        return x;
+      }
+      int grandparent = parent.get(p);
+      if (grandparent != p) {
+        // path halving
+        parent.compareAndSet(x, p, grandparent);
+      }
+      x = grandparent;
+    }
+  }
+
+  // Merge the sets containing x and y.
+  public void union(int x, int y) {
+    while (true) {
+      x = find(x);
+      y = find(y);
+      if (x == y) {
+        return;
+      }
+      if (x < y) {
+        int t = x;
+        x = y;
+        y = t;
+      }
+      // x is now the root with the larger index; hang it under y.
+      // if another thread got to x first, retry from the new roots
+      if (parent.compareAndSet(x, x, y)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,334 @@
+package org.manifold.compiler.back.digital;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.BooleanValue;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeTypeValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.TypeValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+import org.manifold.compiler.Value;
+import org.manifold.compiler.middle.Schematic;
+
+import com.google.common.io.ByteStreams;
+
+// An on-disk cache of everything the backend derives from a schematic
+// before code generation: the compact netlist (dense ids, port->net
+// mapping, driver and sink lists) and the results of design checks.
+//
+// The database is tagged with a fingerprint of the schematic's content.
+// When the fingerprint of the schematic being compiled differs, the
+// database is stale and is ignored (and later overwritten).
+// Node attributes are not stored; they are read from the schematic's
+// own node values, which are reattached by name when the database loads.
+// They are part of the fingerprint, though, since check results depend
+// on them.
+//
+// A database that cannot be read back (truncated, corrupt, or from some
+// other program) is ignored too, just like a stale one.
+
+public class DesignDatabase {
+  private static Logger log = LogManager.getLogger("DesignDatabase");
+
+  private static final int MAGIC = 0x4d464442; // "MFDB"
+  // bump this whenever the file layout changes
+  private static final int VERSION = 1;
+
+  private CompactNetlist netlist;
+  private Map<String, Boolean> checkResults;
+
+  private DesignDatabase(CompactNetlist netlist,
+      Map<String, Boolean> checkResults) {
+    this.netlist = netlist;
+    this.checkResults = checkResults;
+  }
+
+  public CompactNetlist getNetlist() {
+    return netlist;
+  }
+
+  // Results of design checks that were run when the database was written,
+  // keyed by check name.
+  public Map<String, Boolean> getCheckResults() {
+    return checkResults;
+  }
+
+  /**
+   * Compute a fingerprint of everything in `schematic` that the netlist
+   * and the check results depend on: node names, types and attribute
+   * values, port names and directions, and the name and endpoints of
+   * every connection, in connection order.
+   */
+  public static byte[] fingerprint(Schematic schematic,
+      PrimitiveTypeTable typeTable) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new CodeGenerationError(e.getMessage());
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new DigestOutputStream(ByteStreams.nullOutputStream(), digest)))) {
+      out.writeInt(VERSION);
+      Map<NodeTypeValue, String> typeNameOf = new IdentityHashMap<>();
+      for (Entry<String, NodeTypeValue> typeEntry
+          : schematic.getNodeTypes().entrySet()) {
+        typeNameOf.put(typeEntry.getValue(), typeEntry.getKey());
+      }
+      Map<String, NodeValue> allNodes = schematic.getNodes();
+      String[] nodeNames = allNodes.keySet().toArray(
+          new String[allNodes.size()]);
+      Arrays.sort(nodeNames);
+      Map<NodeValue, String> nodeNameOf = new IdentityHashMap<>();
+      out.writeInt(nodeNames.length);
+      for (String nodeName : nodeNames) {
+        NodeValue node = allNodes.get(nodeName);
+        nodeNameOf.put(node, nodeName);
+        writeString(out, nodeName);
+        writeNodeType(out, node, typeNameOf);
+        Map<String, PortValue> ports = node.getPorts();
+        String[] portNames = ports.keySet().toArray(new String[ports.size()]);
+        Arrays.sort(portNames);
+        out.writeInt(portNames.length);
+        for (String portName : portNames) {
+          writeString(out, portName);
+          out.writeBoolean(ports.get(portName).getType().equals(
+              typeTable.getOutputPortType()));
+        }
+      }
+      Map<String, ConnectionValue> connections = schematic.getConnections();
+      out.writeInt(connections.size());
+      for (Entry<String, ConnectionValue> connEntry
+          : connections.entrySet()) {
+        writeString(out, connEntry.getKey());
+        writeEndpoint(out, connEntry.getValue().getFrom(), nodeNameOf);
+        writeEndpoint(out, connEntry.getValue().getTo(), nodeNameOf);
+      }
+    } catch (IOException e) {
+      throw new CodeGenerationError(e.getMessage());
+    }
+    return digest.digest();
+  }
+
+  // The node's type name, then each of its attributes and their values,
+  // in attribute name order.
+  private static void writeNodeType(DataOutputStream out, NodeValue node,
+      Map<NodeTypeValue, String> typeNameOf) throws IOException {
+    String typeName = typeNameOf.get(node.getType());
+    writeString(out, typeName == null ? "" : typeName);
+    Map<String, TypeValue> attributeTypes = node.getType().getAttributes();
+    String[] attributeNames = attributeTypes.keySet().toArray(
+        new String[attributeTypes.size()]);
+    Arrays.sort(attributeNames);
+    out.writeInt(attributeNames.length);
+    for (String attributeName : attributeNames) {
+      writeString(out, attributeName);
+      Value value;
+      try {
+        value = node.getAttribute(attributeName);
+      } catch (UndeclaredAttributeException e) {
+        value = null;
+      }
+      if (value == null) {
+        out.writeByte(0);
+      } else if (value instanceof BooleanValue) {
+        out.writeByte(1);
+        out.writeBoolean(((BooleanValue) value).toBoolean());
+      } else {
+        out.writeByte(2);
+        writeString(out, value.toString());
+      }
+    }
+  }
+
+  private static void writeEndpoint(DataOutputStream out, PortValue port,
+      Map<NodeValue, String> nodeNameOf) throws IOException {
+    NodeValue node = port.getParent();
+    String nodeName = nodeNameOf.get(node);
+    writeString(out, nodeName == null ? "" : nodeName);
+    for (Entry<String, PortValue> portEntry : node.getPorts().entrySet()) {
+      if (portEntry.getValue() == port) {
+        writeString(out, portEntry.getKey());
+        return;
+      }
+    }
+    writeString(out, "");
+  }
+
+  /**
+   * Load the database in `file`, if there is one and it was written for a
+   * schematic with the given fingerprint. Returns null otherwise.
+   */
+  public static DesignDatabase load(Path file, byte[] fingerprint,
+      Schematic schematic) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      log.info("no design database at '" + file + "'");
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        log.info("design database '" + file + "' has an unknown format");
+        return null;
+      }
+      byte[] storedFingerprint = new byte[readCount(in, 1)];
+      in.get(storedFingerprint);
+      if (!Arrays.equals(storedFingerprint, fingerprint)) {
+        log.info("design database '" + file + "' is out of date");
+        return null;
+      }
+      CompactNetlist netlist = CompactNetlist.readFrom(in, schematic);
+      if (netlist == null) {
+        log.info("design database '" + file + "' does not match schematic");
+        return null;
+      }
+      // a name length and a result for each
+      int nChecks = readCount(in, 5);
+      Map<String, Boolean> checkResults = new LinkedHashMap<>();
+      for (int i = 0; i < nChecks; ++i) {
+        String checkName = readString(in);
+        checkResults.put(checkName, in.get() != 0);
+      }
+      return new DesignDatabase(netlist, checkResults);
+    } catch (RuntimeException e) {
+      // whatever is wrong with the file, a cold run still works
+      log.warn("design database '" + file + "' is corrupt ("
+          + e.getClass().getSimpleName() + ")");
+      return null;
+    }
+  }
+
+  /**
+   * Write a database for a schematic with the given fingerprint.
+   * The file is replaced atomically, so a reader never sees a partial one.
+   */
+  public static void write(Path file, byte[] fingerprint,
+      CompactNetlist netlist, Map<String, Boolean> checkResults)
+      throws IOException {
+    Path absolute = file.toAbsolutePath();
+    Path temp = Files.createTempFile(absolute.getParent(),
+        absolute.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fingerprint.length);
+        out.write(fingerprint);
+        netlist.writeTo(out);
+        out.writeInt(checkResults.size());
+        for (Entry<String, Boolean> result : checkResults.entrySet()) {
+          writeString(out, result.getKey());
+          out.writeByte(result.getValue() ? 1 : 0);
+        }
+      }
+      Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /*
+   * Encoding helpers, shared with CompactNetlist.
+   * Arrays are stored as a length followed by the elements.
+   */
+
+  static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  // Read the length of an array, and make sure that the rest of the
+  // buffer can hold that many elements of at least `elementSize` bytes,
+  // so that a bad length fails here rather than allocating a huge array.
+  static int readCount(ByteBuffer in, int elementSize) {
+    int count = in.getInt();
+    if (count < 0 || (long) count * elementSize > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    return count;
+  }
+
+  static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[readCount(in, 1)];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeStrings(DataOutputStream out, String[] strings)
+      throws IOException {
+    out.writeInt(strings.length);
+    for (String s : strings) {
+      writeString(out, s);
+    }
+  }
+
+  static String[] readStrings(ByteBuffer in) {
+    // every string has at least its length
+    String[] strings = new String[readCount(in, 4)];
+    for (int i = 0; i < strings.length; ++i) {
+      strings[i] = readString(in);
+    }
+    return strings;
+  }
+
+  static void writeInts(DataOutputStream out, int[] ints)
+      throws IOException {
+    out.writeInt(ints.length);
+    for (int i : ints) {
+      out.writeInt(i);
+    }
+  }
+
+  static int[] readInts(ByteBuffer in) {
+    int[] ints = new int[readCount(in, 4)];
+    // bulk copy straight out of the mapped file
+    in.asIntBuffer().get(ints);
+    in.position(in.position() + 4 * ints.length);
+    return ints;
+  }
+
+  static void writeBooleans(DataOutputStream out, boolean[] booleans)
+      throws IOException {
+    out.writeInt(booleans.length);
+    for (boolean b : booleans) {
+      out.writeByte(b ? 1 : 0);
+    }
+  }
+
+  static boolean[] readBooleans(ByteBuffer in) {
+    boolean[] booleans = new boolean[readCount(in, 1)];
+    for (int i = 0; i < booleans.length; ++i) {
+      booleans[i] = in.get() != 0;
+    }
+    return booleans;
+  }
+}
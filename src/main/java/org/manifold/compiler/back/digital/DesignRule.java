@@ -0,0 +1,63 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.Collections;
+
+// A check that can be evaluated as part of a single shared traversal of
+// a CompactNetlist (see DesignRuleEngine). Instead of walking the netlist
+// itself, a rule is shown every node, port and net in turn and records
+// whatever it needs; end() then decides the result.
+//
+// Running a rule on its own (through Check.run()) performs a traversal
+// for just that rule.
+
+public abstract class DesignRule extends Check {
+
+  protected final CompactNetlist netlist;
+
+  public DesignRule(String name, CompactNetlist netlist) {
+    super(name);
+    this.netlist = netlist;
+  }
+
+  public CompactNetlist getNetlist() {
+    return netlist;
+  }
+
+  // Rules share one linear pass.
+  @Override
+  public Cost getCost() {
+    return Cost.CHEAP;
+  }
+
+  // Called once before the traversal starts.
+  protected void begin() { }
+
+  // Called for every node; the node's ports are visited right after it.
+  protected void visitNode(int node) { }
+
+  protected void visitPort(int port) { }
+
+  // Called for every net, after all nodes and ports have been visited.
+  protected void visitNet(int net) { }
+
+  // Called once the traversal is complete; must set the result.
+  protected abstract void end();
+
+  // A rule is local if whether it finds violations at a node (including
+  // its ports) depends only on that node and the nets its ports are on,
+  // and at a net only on that net and the ports attached to it.
+  // Local rules can be re-verified incrementally (see IncrementalDrc).
+  protected boolean isLocal() {
+    return false;
+  }
+
+  boolean hasResult() {
+    return result != null;
+  }
+
+  @Override
+  protected void verify() {
+    DesignRuleEngine.run(netlist, Collections.singletonList(this));
+  }
+
+}
@@ -0,0 +1,140 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.manifold.compiler.UndefinedBehaviourError;
+
+// Evaluates any number of design rules over one netlist in a single pass:
+// every node (followed by its ports) and then every net is visited once,
+// and each element is shown to all rules before moving on to the next.
+// Adding a rule therefore costs one more visitor call per element rather
+// than another full traversal.
+
+public final class DesignRuleEngine {
+
+  private DesignRuleEngine() { }
+
+  // Evaluate the rules that don't have a result yet. All of them must
+  // have been built for `netlist`.
+  public static void run(CompactNetlist netlist,
+      List<? extends DesignRule> rules) {
+    List<DesignRule> pending = new ArrayList<>();
+    for (DesignRule rule : rules) {
+      if (rule.getNetlist() != netlist) {
+        throw new IllegalArgumentException("design rule '" + rule.getName()
+            + "' belongs to a different netlist");
+      }
+      if (!rule.hasResult()) {
+        pending.add(rule);
+      }
+    }
+    if (pending.isEmpty()) {
+      return;
+    }
+    DesignRule[] active = pending.toArray(new DesignRule[pending.size()]);
+
+    for (DesignRule rule : active) {
+      rule.begin();
+    }
+    // rules that are saturated (see Check.isSaturated()) are dropped from
+    // the traversal, which ends early if none are left
+    DesignRule[] visiting = active;
+    int nNodes = netlist.getNodeCount();
+    for (int node = 0; node < nNodes && visiting.length > 0; ++node) {
+      for (DesignRule rule : visiting) {
+        rule.visitNode(node);
+      }
+      int nPorts = netlist.getNodePortCount(node);
+      for (int k = 0; k < nPorts; ++k) {
+        int port = netlist.getNodePort(node, k);
+        for (DesignRule rule : visiting) {
+          rule.visitPort(port);
+        }
+      }
+      visiting = dropSaturated(visiting);
+    }
+    int nNets = netlist.getNetCount();
+    for (int net = 0; net < nNets && visiting.length > 0; ++net) {
+      for (DesignRule rule : visiting) {
+        rule.visitNet(net);
+      }
+      visiting = dropSaturated(visiting);
+    }
+    for (DesignRule rule : active) {
+      rule.end();
+      if (!rule.hasResult()) {
+        throw new UndefinedBehaviourError("design rule '" + rule.getName()
+            + "' produced no result");
+      }
+    }
+  }
+
+  // Receives the number of violations each rule found at an element.
+  interface Tally {
+    void atNode(int rule, int node, int violations);
+    void atNet(int rule, int net, int violations);
+  }
+
+  // Visit only the given nodes (each followed by its ports) and nets,
+  // telling `tally` which rules found violations where. Violations found
+  // at a port are attributed to its node. begin() and end() are left to
+  // the caller.
+  static void visitRegion(CompactNetlist netlist, DesignRule[] rules,
+      BitSet nodes, BitSet nets, Tally tally) {
+    int[] before = new int[rules.length];
+    for (int node = nodes.nextSetBit(0); node >= 0;
+        node = nodes.nextSetBit(node + 1)) {
+      for (int r = 0; r < rules.length; ++r) {
+        before[r] = rules[r].getViolationCount();
+        rules[r].visitNode(node);
+      }
+      int nPorts = netlist.getNodePortCount(node);
+      for (int k = 0; k < nPorts; ++k) {
+        int port = netlist.getNodePort(node, k);
+        for (DesignRule rule : rules) {
+          rule.visitPort(port);
+        }
+      }
+      for (int r = 0; r < rules.length; ++r) {
+        int found = rules[r].getViolationCount() - before[r];
+        if (found > 0) {
+          tally.atNode(r, node, found);
+        }
+      }
+    }
+    for (int net = nets.nextSetBit(0); net >= 0;
+        net = nets.nextSetBit(net + 1)) {
+      for (int r = 0; r < rules.length; ++r) {
+        int count = rules[r].getViolationCount();
+        rules[r].visitNet(net);
+        int found = rules[r].getViolationCount() - count;
+        if (found > 0) {
+          tally.atNet(r, net, found);
+        }
+      }
+    }
+  }
+
+  private static DesignRule[] dropSaturated(DesignRule[] rules) {
+    int n = 0;
+    for (DesignRule rule : rules) {
+      if (!rule.isSaturated()) {
+        ++n;
+      }
+    }
+    if (n == rules.length) {
+      return rules;
+    }
+    DesignRule[] remaining = new DesignRule[n];
+    n = 0;
+    for (DesignRule rule : rules) {
+      if (!rule.isSaturated()) {
+        remaining[n++] = rule;
+      }
+    }
+    return remaining;
+  }
+
+}
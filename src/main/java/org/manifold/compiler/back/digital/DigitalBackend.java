@@ -1,15 +1,26 @@
 package org.manifold.compiler.back.digital;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
+import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.manifold.compiler.Backend;
@@ -93,27 +104,351 @@ public class DigitalBackend implements Backend {
     }
   }
 
+  // number of worker threads; 1 means do everything on the calling thread
+  int jobs = 1;
+
+  private void createOptionJobs(Options options) {
+    Option jobs = new Option("j", "jobs", true,
+        "number of worker threads to use (default 1)");
+    options.addOption(jobs);
+  }
+
+  private void collectOptionJobs(CommandLine cmd) {
+    String jobsValue = cmd.getOptionValue("jobs");
+    if (jobsValue != null) {
+      try {
+        jobs = Integer.parseInt(jobsValue);
+      } catch (NumberFormatException e) {
+        throw new OptionError("number of jobs '" + jobsValue
+            + "' is not an integer");
+      }
+      if (jobs < 1) {
+        throw new OptionError("number of jobs must be at least 1");
+      }
+    }
+  }
+
+  // design database file; null means don't use one
+  String designDatabase = null;
+
+  @SuppressWarnings("static-access")
+  private void createOptionDesignDatabase(Options options) {
+    Option designDb = OptionBuilder
+        .withLongOpt("design-db")
+        .hasArg()
+        .withDescription(
+            "cache the netlist and check results in this file, and reuse "
+                + "them while the schematic is unchanged").create();
+    options.addOption(designDb);
+  }
+
+  private void collectOptionDesignDatabase(CommandLine cmd) {
+    String designDb = cmd.getOptionValue("design-db");
+    if (designDb != null) {
+      designDatabase = designDb;
+    }
+  }
+
+  // violations recorded per check; 0 means no limit
+  int maxViolations = 1000;
+  // stop each check once it has found maxViolations violations
+  boolean firstViolationsOnly = false;
+  // file to stream violations to; null means just log them
+  String violationReport = null;
+
+  @SuppressWarnings("static-access")
+  private void createOptionViolations(Options options) {
+    Option max = OptionBuilder
+        .withLongOpt("max-violations")
+        .hasArg()
+        .withDescription("record at most this many violations per check "
+            + "(default 1000, 0 for no limit)").create();
+    options.addOption(max);
+    Option first = OptionBuilder
+        .withLongOpt("first-violations")
+        .withDescription("stop each check once it has found "
+            + "--max-violations violations").create();
+    options.addOption(first);
+    Option report = OptionBuilder
+        .withLongOpt("violation-report")
+        .hasArg()
+        .withDescription("write design check violations to this file "
+            + "as JSON lines").create();
+    options.addOption(report);
+  }
+
+  private void collectOptionViolations(CommandLine cmd) {
+    String maxValue = cmd.getOptionValue("max-violations");
+    if (maxValue != null) {
+      try {
+        maxViolations = Integer.parseInt(maxValue);
+      } catch (NumberFormatException e) {
+        throw new OptionError("maximum number of violations '" + maxValue
+            + "' is not an integer");
+      }
+      if (maxViolations < 0) {
+        throw new OptionError(
+            "maximum number of violations must not be negative");
+      }
+    }
+    if (cmd.hasOption("first-violations")) {
+      firstViolationsOnly = true;
+    }
+    String report = cmd.getOptionValue("violation-report");
+    if (report != null) {
+      violationReport = report;
+    }
+  }
+
+  // highest fanout allowed on a net; 0 means no limit
+  int maxFanout = 0;
+
+  @SuppressWarnings("static-access")
+  private void createOptionMaxFanout(Options options) {
+    Option max = OptionBuilder
+        .withLongOpt("max-fanout")
+        .hasArg()
+        .withDescription("fail if a net has a higher fanout than this "
+            + "(default 0, for no limit)").create();
+    options.addOption(max);
+  }
+
+  private void collectOptionMaxFanout(CommandLine cmd) {
+    String maxValue = cmd.getOptionValue("max-fanout");
+    if (maxValue != null) {
+      try {
+        maxFanout = Integer.parseInt(maxValue);
+      } catch (NumberFormatException e) {
+        throw new OptionError("maximum fanout '" + maxValue
+            + "' is not an integer");
+      }
+      if (maxFanout < 0) {
+        throw new OptionError("maximum fanout must not be negative");
+      }
+    }
+  }
+
+  // fail on clock domain crossings and mixed clock edges, which are
+  // otherwise only warned about
+  boolean strictClockDomains = false;
+
+  @SuppressWarnings("static-access")
+  private void createOptionStrictClockDomains(Options options) {
+    Option strict = OptionBuilder
+        .withLongOpt("strict-clock-domains")
+        .withDescription("fail if data crosses between clock domains or a "
+            + "domain uses both clock edges, instead of warning").create();
+    options.addOption(strict);
+  }
+
+  private void collectOptionStrictClockDomains(CommandLine cmd) {
+    if (cmd.hasOption("strict-clock-domains")) {
+      strictClockDomains = true;
+    }
+  }
+
+  // factor repeated subcircuits out into VHDL components of their own
+  // (see Hierarchy) instead of writing one flat entity
+  boolean hierarchicalVhdl = false;
+
+  @SuppressWarnings("static-access")
+  private void createOptionHierarchicalVhdl(Options options) {
+    Option hierarchical = OptionBuilder
+        .withLongOpt("hierarchical-vhdl")
+        .withDescription("generate a VHDL component for each subcircuit "
+            + "that is repeated between pins").create();
+    options.addOption(hierarchical);
+  }
+
+  private void collectOptionHierarchicalVhdl(CommandLine cmd) {
+    if (cmd.hasOption("hierarchical-vhdl")) {
+      hierarchicalVhdl = true;
+    }
+  }
+
+  // write parallel gates as statements on std_logic_vector signals
+  boolean vhdlBuses = false;
+
+  @SuppressWarnings("static-access")
+  private void createOptionVhdlBuses(Options options) {
+    Option buses = OptionBuilder
+        .withLongOpt("vhdl-buses")
+        .withDescription("bundle parallel nets into std_logic_vector "
+            + "signals and write one statement per group of gates").create();
+    options.addOption(buses);
+  }
+
+  private void collectOptionVhdlBuses(CommandLine cmd) {
+    if (cmd.hasOption("vhdl-buses")) {
+      vhdlBuses = true;
+    }
+  }
+
+  // simplify the logic before generating code for it; this deletes gates
+  // from the design, so it has to be asked for
+  boolean optimize = false;
+
+  @SuppressWarnings("static-access")
+  private void createOptionOptimize(Options options) {
+    Option optimize = OptionBuilder
+        .withLongOpt("optimize")
+        .withDescription("remove redundant logic before generating code, "
+            + "instead of writing every gate in the schematic").create();
+    options.addOption(optimize);
+  }
+
+  private void collectOptionOptimize(CommandLine cmd) {
+    if (cmd.hasOption("optimize")) {
+      optimize = true;
+    }
+  }
+
+  // write trees of AND or OR gates as one expression each; the nets
+  // inside a tree then have no signals, so it has to be asked for
+  boolean gateFusion = false;
+
+  @SuppressWarnings("static-access")
+  private void createOptionFuseGates(Options options) {
+    Option fuse = OptionBuilder
+        .withLongOpt("fuse-gates")
+        .withDescription("merge chains of AND or OR gates into one VHDL "
+            + "expression each, dropping the signals between them")
+        .create();
+    options.addOption(fuse);
+  }
+
+  private void collectOptionFuseGates(CommandLine cmd) {
+    if (cmd.hasOption("fuse-gates")) {
+      gateFusion = true;
+    }
+  }
+
+  // write one clocked process per clock domain instead of one per register
+  boolean vhdlClockProcesses = false;
+
+  @SuppressWarnings("static-access")
+  private void createOptionVhdlClockProcesses(Options options) {
+    Option processes = OptionBuilder
+        .withLongOpt("vhdl-clock-processes")
+        .withDescription("write registers that share a clock and reset "
+            + "as one process, instead of a process per register").create();
+    options.addOption(processes);
+  }
+
+  private void collectOptionVhdlClockProcesses(CommandLine cmd) {
+    if (cmd.hasOption("vhdl-clock-processes")) {
+      vhdlClockProcesses = true;
+    }
+  }
+
   private void createOptionDefinitions(Options options) {
     createOptionTargetHDL(options);
     createOptionOutputDirectory(options);
     createOptionNoChecks(options);
+    createOptionJobs(options);
+    createOptionDesignDatabase(options);
+    createOptionViolations(options);
+    createOptionMaxFanout(options);
+    createOptionStrictClockDomains(options);
+    createOptionHierarchicalVhdl(options);
+    createOptionVhdlBuses(options);
+    createOptionOptimize(options);
+    createOptionFuseGates(options);
+    createOptionVhdlClockProcesses(options);
   }
 
   private void collectOptions(CommandLine cmd) {
     collectOptionTargetHDL(cmd);
     collectOptionOutputDirectory(cmd);
     collectOptionNoChecks(cmd);
+    collectOptionJobs(cmd);
+    collectOptionDesignDatabase(cmd);
+    collectOptionViolations(cmd);
+    collectOptionMaxFanout(cmd);
+    collectOptionStrictClockDomains(cmd);
+    collectOptionHierarchicalVhdl(cmd);
+    collectOptionVhdlBuses(cmd);
+    collectOptionOptimize(cmd);
+    collectOptionFuseGates(cmd);
+    collectOptionVhdlClockProcesses(cmd);
   }
 
-  private List<Check> buildStandardChecks(
-      Schematic schematic, Netlist netlist) {
-    List<Check> checks = new ArrayList<Check>();
-    checks.add(new NoMultipleDriversCheck(schematic, netlist));
-    checks.add(new NoUnconnectedInputsCheck(schematic, netlist));
+  // The checks of every CheckProvider on the classpath, the backend's own
+  // included (see StandardCheckProvider).
+  private List<Check> buildChecks(CheckContext context) {
+    context.setMaxFanout(maxFanout);
+    context.setStrictClockDomains(strictClockDomains);
+    List<Check> checks = new ArrayList<>();
+    boolean foundStandard = false;
+    for (CheckProvider provider : ServiceLoader.load(CheckProvider.class)) {
+      List<Check> provided = provider.createChecks(context);
+      log.info("using " + Integer.toString(provided.size())
+          + " checks from " + provider.getClass().getName());
+      foundStandard |= provider instanceof StandardCheckProvider;
+      checks.addAll(provided);
+    }
+    if (!foundStandard) {
+      // the service entry was lost (say, when repackaging the backend),
+      // but the standard checks are never optional
+      log.warn("standard checks were not registered; adding them anyway");
+      checks.addAll(0, new StandardCheckProvider().createChecks(context));
+    }
+    // results are kept by name, so names have to be unique
+    Set<String> names = new HashSet<>();
+    for (Check check : checks) {
+      if (!names.add(check.getName())) {
+        err("more than one design check is named '" + check.getName() + "'");
+      }
+    }
     return checks;
   }
+
   
+  private ForkJoinPool createPool() {
+    if (jobs > 1) {
+      log.info("Using " + Integer.toString(jobs) + " worker threads");
+      return new ForkJoinPool(jobs);
+    }
+    return null;
+  }
+
   public void run(Schematic schematic) throws SchematicException {
+    ForkJoinPool pool = createPool();
+    try {
+      run(schematic, pool);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  // Compile a schematic file without first materializing the Schematic;
+  // the netlist is built while the file is read.
+  public void run(Path schematicFile) throws IOException, SchematicException {
+    checkOutputDirectory();
+    if (designDatabase != null) {
+      log.warn("design database is not used when streaming a schematic");
+    }
+    log.info("Streaming netlist from '" + schematicFile + "'");
+    StreamingSchematicReader reader;
+    try (Reader in = Files.newBufferedReader(schematicFile,
+        StandardCharsets.UTF_8)) {
+      reader = new StreamingSchematicReader(in);
+      reader.read();
+    }
+    ForkJoinPool pool = createPool();
+    try {
+      checkAndGenerate(pool, reader.getNetlist(), reader.getTypeTable(),
+          null, new LinkedHashMap<String, Boolean>(), false);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  private void checkOutputDirectory() {
     // check if directory exists
     Path outDir = Paths.get(outputDirectory);
     if (!Files.exists(outDir)) {
@@ -123,30 +458,135 @@ public class DigitalBackend implements Backend {
       err("output directory '" + outputDirectory + "' is not writable");
     }
     log.info("Will generate output products in '" + outputDirectory + "'");
+  }
+
+  private void run(Schematic schematic, ForkJoinPool pool)
+      throws SchematicException {
+    checkOutputDirectory();
 
-    // build netlist from schematic
-    Netlist netlist = null;
-    try {
-      log.info("Building netlist");
-      netlist = new Netlist(schematic);
-    } catch (UndeclaredIdentifierException | TypeMismatchException e) {
-      err(e.getMessage());
-    }
-    
     log.info("Building type table");
     PrimitiveTypeTable typeTable = new PrimitiveTypeTable(schematic);
-    
+
+    // if the schematic hasn't changed since the design database was
+    // written, we can skip straight to the cached netlist and check results
+    byte[] fingerprint = null;
+    DesignDatabase designDb = null;
+    if (designDatabase != null) {
+      fingerprint = DesignDatabase.fingerprint(schematic, typeTable);
+      try {
+        designDb = DesignDatabase.load(Paths.get(designDatabase),
+            fingerprint, schematic);
+      } catch (IOException e) {
+        log.warn("could not read design database: " + e.getMessage());
+      }
+    }
+
+    CompactNetlist compactNetlist = null;
+    Map<String, Boolean> checkResults = new LinkedHashMap<>();
+    boolean designDbChanged = true;
+    if (designDb != null) {
+      log.info("Loaded netlist from design database '" + designDatabase + "'");
+      compactNetlist = designDb.getNetlist();
+      checkResults.putAll(designDb.getCheckResults());
+      designDbChanged = false;
+    } else {
+      // build netlist from schematic
+      Netlist netlist = null;
+      try {
+        log.info("Building netlist");
+        netlist = new Netlist(schematic, pool);
+      } catch (UndeclaredIdentifierException | TypeMismatchException e) {
+        err(e.getMessage());
+      }
+
+      log.info("Building compact netlist");
+      compactNetlist = new CompactNetlist(schematic, netlist);
+    }
+    checkAndGenerate(pool, compactNetlist, typeTable, fingerprint,
+        checkResults, designDbChanged);
+  }
+
+  // Run design checks (reusing any results in `checkResults`), update the
+  // design database if anything changed, and generate output products.
+  private void checkAndGenerate(ForkJoinPool pool,
+      CompactNetlist compactNetlist, PrimitiveTypeTable typeTable,
+      byte[] fingerprint, Map<String, Boolean> checkResults,
+      boolean designDbChanged) {
     if (!noChecks) {
       log.info("constructing design checklist");
-      // checks we always run
-      List<Check> checks = buildStandardChecks(schematic, netlist);
+      CheckContext context = new CheckContext(compactNetlist, typeTable);
+      List<Check> checks = buildChecks(context);
       int numChecks = checks.size();
       int successes = 0;
       int failures = 0;
       log.info(Integer.toString(numChecks) + " checks to run");
+      List<Check> pending = new ArrayList<>();
+      boolean cachedFailure = false;
       for (Check check : checks) {
-        log.info("running check: " + check.getName());
-        boolean result = check.run();
+        Boolean cachedResult = checkResults.get(check.getName());
+        // a cached failure has no violation details, so if a report
+        // was asked for, the check has to run again
+        if (cachedResult != null && !cachedResult
+            && violationReport != null) {
+          checkResults.remove(check.getName());
+          cachedResult = null;
+        }
+        if (cachedResult != null) {
+          log.info("using cached result for check: " + check.getName());
+          cachedFailure |= !cachedResult;
+        } else {
+          pending.add(check);
+        }
+      }
+      // a known failure means there's no point running anything else
+      if (!cachedFailure) {
+        ViolationReport report = openViolationReport();
+        ViolationSink sink = report;
+        if (sink == null) {
+          sink = (check, violation) -> log.error(
+              "check '" + check.getName() + "': " + violation.getMessage());
+        }
+        for (Check check : pending) {
+          log.info("running check: " + check.getName());
+          check.setViolationSink(sink);
+          check.setViolationLimit(
+              maxViolations == 0 ? Integer.MAX_VALUE : maxViolations,
+              firstViolationsOnly);
+        }
+        try {
+          CheckRunner runner = new CheckRunner(pool);
+          runner.setContext(context);
+          for (CheckRunner.Result result : runner.run(pending)) {
+            Check check = result.getCheck();
+            String checkName = check.getName();
+            if (result.wasRun()) {
+              log.info("check '" + checkName + "' took "
+                  + Long.toString(result.getElapsedMillis()) + " ms");
+              int found = check.getViolationCount();
+              int reported = check.getReportedViolationCount();
+              if (found > reported) {
+                log.warn("check '" + checkName + "' found "
+                    + Integer.toString(found) + " violations; only the first "
+                    + Integer.toString(reported) + " were reported");
+              }
+              if (report != null) {
+                report.summarize(check, result.passed());
+              }
+              checkResults.put(checkName, result.passed());
+              designDbChanged = true;
+            } else {
+              log.info("check cancelled: " + checkName);
+            }
+          }
+        } finally {
+          closeViolationReport(report);
+        }
+      }
+      for (Check check : checks) {
+        Boolean result = checkResults.get(check.getName());
+        if (result == null) {
+          continue;
+        }
         if (result) {
           ++successes;
           log.info("check passed: " + check.getName());
@@ -154,36 +594,52 @@ public class DigitalBackend implements Backend {
           ++failures;
           log.error("check failed: " + check.getName());
         }
-        log.info("check summary: "
-            + Integer.toString(successes) + "/" + Integer.toString(numChecks)
-            + " checks successful, "
-            + Integer.toString(failures) + "/" + Integer.toString(numChecks)
-            + " checks failed");
-        // if there were any failures, abort
-        if (failures > 0) {
-          err("design check failed");
+      }
+      log.info("check summary: "
+          + Integer.toString(successes) + "/" + Integer.toString(numChecks)
+          + " checks successful, "
+          + Integer.toString(failures) + "/" + Integer.toString(numChecks)
+          + " checks failed");
+      // if there were any failures, abort
+      if (failures > 0) {
+        if (designDbChanged) {
+          saveDesignDatabase(fingerprint, compactNetlist, checkResults);
         }
+        err("design check failed");
       }
     } else {
       log.warn("skipping all design checks");
     }
+    if (designDbChanged) {
+      saveDesignDatabase(fingerprint, compactNetlist, checkResults);
+    }
+    // the checks (and the design database) are about the netlist as it was
+    // drawn; only the generated code sees the optimized one
+    if (optimize) {
+      compactNetlist = optimize(compactNetlist, typeTable);
+    }
     
     switch (targetHDL) {
         case VHDL: {
           VHDLCodeGenerator vhdlGen = new VHDLCodeGenerator(
-              schematic, netlist, typeTable);
+              compactNetlist, typeTable);
           if (outputDirectory != null) {
             vhdlGen.setOutputDirectory(outputDirectory);
           }
           if (noChecks) {
             vhdlGen.setRunChecks(false);
           }
+          vhdlGen.setPool(pool);
+          vhdlGen.setHierarchical(hierarchicalVhdl);
+          vhdlGen.setBusBundling(vhdlBuses);
+          vhdlGen.setGateFusion(gateFusion);
+          vhdlGen.setProcessGrouping(vhdlClockProcesses);
           vhdlGen.generateOutputProducts();
         } // end case VHDL
           break;
         case SMT2: {
           SMT2CodeGenerator smtgen = new SMT2CodeGenerator(
-              schematic, netlist, typeTable);
+              compactNetlist, typeTable);
           if (outputDirectory != null) {
             smtgen.setOutputDirectory(outputDirectory);
           }
@@ -196,6 +652,70 @@ public class DigitalBackend implements Backend {
     }
   }
 
+  private CompactNetlist optimize(CompactNetlist netlist,
+      PrimitiveTypeTable typeTable) {
+    log.info("Optimizing logic");
+    LogicOptimizer optimizer = new LogicOptimizer(netlist,
+        typeTable.classifyNodes(netlist));
+    // removing logic changes what is generated from the schematic, so say
+    // so loudly whenever anything goes
+    Level level = optimizer.getRemovedCount() > 0 ? Level.WARN : Level.INFO;
+    for (Map.Entry<String, Integer> pass
+        : optimizer.getRemovedCounts().entrySet()) {
+      if (pass.getValue() > 0) {
+        log.log(level, pass.getKey() + ": removed " + Integer.toString(
+            pass.getValue()) + " nodes");
+      }
+    }
+    CompactNetlist optimized = optimizer.getNetlist();
+    log.log(level, "optimized netlist from " + Integer.toString(
+        netlist.getNodeCount()) + " to " + Integer.toString(
+            optimized.getNodeCount()) + " nodes");
+    return optimized;
+  }
+
+  private ViolationReport openViolationReport() {
+    if (violationReport == null) {
+      return null;
+    }
+    log.info("Writing violations to '" + violationReport + "'");
+    try {
+      return new ViolationReport(Files.newBufferedWriter(
+          Paths.get(violationReport), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      err("could not open violation report: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void closeViolationReport(ViolationReport report) {
+    if (report == null) {
+      return;
+    }
+    try {
+      report.close();
+    } catch (IOException e) {
+      err("could not write violation report: " + e.getMessage());
+    }
+  }
+
+  // A null fingerprint means the schematic was streamed, and there is no
+  // Schematic to check a database against, so none is written.
+  private void saveDesignDatabase(byte[] fingerprint,
+      CompactNetlist compactNetlist, Map<String, Boolean> checkResults) {
+    if (designDatabase == null || fingerprint == null) {
+      return;
+    }
+    log.info("Writing design database '" + designDatabase + "'");
+    try {
+      DesignDatabase.write(Paths.get(designDatabase), fingerprint,
+          compactNetlist, checkResults);
+    } catch (IOException e) {
+      // the database is only a cache, so this isn't fatal
+      log.warn("could not write design database: " + e.getMessage());
+    }
+  }
+
   public DigitalBackend() { }
 
   @Override
@@ -210,9 +730,30 @@ public class DigitalBackend implements Backend {
     run(schematic);
   }
 
+  // Like invokeBackend(), but reads the schematic from a JSON file
+  // as a stream instead of taking an already-built Schematic.
+  public void invokeBackend(Path schematicFile, CommandLine cmd)
+      throws Exception {
+    collectOptions(cmd);
+    run(schematicFile);
+  }
+
   @Override
   public void registerArguments(Options options) {
     createOptionDefinitions(options);
   }
 
+  // Command-line entry point: compiles one schematic file, read as a
+  // stream, so large designs never need a full Schematic in memory.
+  public static void main(String[] args) throws Exception {
+    DigitalBackend backend = new DigitalBackend();
+    Options options = new Options();
+    backend.registerArguments(options);
+    CommandLine cmd = new BasicParser().parse(options, args);
+    if (cmd.getArgs().length != 1) {
+      throw new OptionError("expected exactly one schematic file");
+    }
+    backend.invokeBackend(Paths.get(cmd.getArgs()[0]), cmd);
+  }
+
 }
@@ -0,0 +1,71 @@
+package org.manifold.compiler.back.digital;
+
+// Measures the fanout (number of input ports) of every net, and fails if
+// any net has a fanout above a limit.
+//
+// Whether a net is over the limit depends on that net alone, so this is
+// a local rule; the fanout histogram and highest-fanout nets, which need
+// to see every net, are gathered by FanoutStatistics instead.
+
+public class FanoutCheck extends DesignRule {
+
+  private final int maxFanout;
+
+  private boolean withinLimit;
+
+  /**
+   * @param maxFanout the highest fanout allowed, or 0 for no limit
+   */
+  public FanoutCheck(CompactNetlist netlist, int maxFanout) {
+    // the limit is part of the name, so results cached under one limit
+    // are not reused for another
+    super(maxFanout > 0 ? "fanout at most " + Integer.toString(maxFanout)
+        : "fanout", netlist);
+    this.maxFanout = maxFanout;
+  }
+
+  @Override
+  protected void begin() {
+    withinLimit = true;
+  }
+
+  @Override
+  protected void visitNet(int net) {
+    int fanout = netlist.getNetSinkCount(net);
+    if (maxFanout > 0 && fanout > maxFanout) {
+      withinLimit = false;
+      if (wantsViolationDetails()) {
+        reportViolation(describe(net));
+      } else {
+        countViolation();
+      }
+    }
+  }
+
+  private Violation describe(int net) {
+    String netName = netlist.getNetName(net);
+    int nDrivers = netlist.getNetDriverCount(net);
+    String[] ports = new String[nDrivers];
+    String[] nodes = new String[nDrivers];
+    for (int k = 0; k < nDrivers; ++k) {
+      int port = netlist.getNetDriver(net, k);
+      nodes[k] = netlist.getNodeName(netlist.getPortNode(port));
+      ports[k] = nodes[k] + ":" + netlist.getPortName(port);
+    }
+    return new Violation("net '" + netName + "' has fanout "
+        + Integer.toString(netlist.getNetSinkCount(net)) + " (limit "
+        + Integer.toString(maxFanout) + ")",
+        new String[] {netName}, ports, nodes);
+  }
+
+  @Override
+  protected boolean isLocal() {
+    return true;
+  }
+
+  @Override
+  protected void end() {
+    this.result = withinLimit;
+  }
+
+}
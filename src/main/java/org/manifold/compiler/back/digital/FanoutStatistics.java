@@ -0,0 +1,130 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Builds a histogram of net fanouts, in power-of-two buckets, and keeps
+// the nets with the highest fanouts; both are logged when the traversal
+// ends, to point out clock, reset and enable nets that will be slow to
+// handle downstream. This never fails; the fanout limit is FanoutCheck.
+//
+// The statistics cover the whole netlist, so this rule is not local and
+// is always run in full.
+
+public class FanoutStatistics extends DesignRule {
+  private static Logger log = LogManager.getLogger("FanoutStatistics");
+
+  // fanout 0 goes in bucket 0, 1 in bucket 1, 2-3 in bucket 2, 4-7 in
+  // bucket 3, and so on
+  private static final int BUCKETS = 32;
+
+  private final int topCount;
+
+  private long[] histogram = new long[BUCKETS];
+  // the topCount nets with the highest fanout so far; lowest first
+  private PriorityQueue<Integer> top;
+
+  /**
+   * @param topCount how many of the highest-fanout nets to keep
+   */
+  public FanoutStatistics(CompactNetlist netlist, int topCount) {
+    super("fanout statistics", netlist);
+    this.topCount = topCount;
+    // order by fanout, then by name so that ties are broken the same way
+    // on every run
+    top = new PriorityQueue<>(Math.max(topCount, 1), (a, b) -> {
+      int byFanout = Integer.compare(fanout(a), fanout(b));
+      return byFanout != 0 ? byFanout : Integer.compare(b, a);
+    });
+  }
+
+  private static int bucket(int fanout) {
+    return 32 - Integer.numberOfLeadingZeros(fanout);
+  }
+
+  // The smallest fanout in a histogram bucket.
+  public static int getBucketLowerBound(int bucket) {
+    return bucket == 0 ? 0 : 1 << (bucket - 1);
+  }
+
+  // Number of nets per fanout bucket (see getBucketLowerBound()), as of
+  // the last run; all zero before the first.
+  public long[] getHistogram() {
+    return histogram.clone();
+  }
+
+  // The names of the nets with the highest fanouts, highest first, as of
+  // the last run; empty before the first.
+  public List<String> getTopNets() {
+    List<Integer> nets = new ArrayList<>(top);
+    Collections.sort(nets, top.comparator());
+    Collections.reverse(nets);
+    List<String> names = new ArrayList<>();
+    for (int net : nets) {
+      names.add(netlist.getNetName(net));
+    }
+    return names;
+  }
+
+  private int fanout(int net) {
+    return netlist.getNetSinkCount(net);
+  }
+
+  @Override
+  protected void begin() {
+    histogram = new long[BUCKETS];
+    top.clear();
+  }
+
+  @Override
+  protected void visitNet(int net) {
+    histogram[bucket(fanout(net))] += 1;
+    if (topCount > 0) {
+      if (top.size() < topCount) {
+        top.add(net);
+      } else if (top.comparator().compare(net, top.peek()) > 0) {
+        top.poll();
+        top.add(net);
+      }
+    }
+  }
+
+  @Override
+  protected void end() {
+    this.result = true;
+    if (log.isInfoEnabled()) {
+      logSummary();
+    }
+  }
+
+  private void logSummary() {
+    log.info("fanout histogram:");
+    for (int b = 0; b < BUCKETS; ++b) {
+      if (histogram[b] == 0) {
+        continue;
+      }
+      String range = Integer.toString(getBucketLowerBound(b));
+      if (b > 1) {
+        // the last bucket is open-ended
+        int upper = b + 1 < BUCKETS ? getBucketLowerBound(b + 1) - 1
+            : Integer.MAX_VALUE;
+        range += "-" + Integer.toString(upper);
+      }
+      log.info("  " + range + ": " + Long.toString(histogram[b]) + " nets");
+    }
+    List<String> topNets = getTopNets();
+    if (!topNets.isEmpty()) {
+      log.info("highest fanout nets:");
+      for (String netName : topNets) {
+        log.info("  " + netName + ": " + Integer.toString(
+            fanout(netlist.getNetId(netName))));
+      }
+    }
+  }
+
+}
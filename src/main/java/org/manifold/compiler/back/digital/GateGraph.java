@@ -0,0 +1,82 @@
+package org.manifold.compiler.back.digital;
+
+// The combinational gates (and, or, not) of a netlist as a directed graph
+// over node ids: there is an edge from gate u to gate v for every input
+// port of v on a net that an output of u drives. Every other kind of node
+// is in the graph but has no edges, so registers and pins break paths.
+//
+// Edges are stored in CSR form, two int arrays in total.
+
+public class GateGraph {
+
+  // the successors of node u are
+  // successors[successorOffsets[u]] .. successors[successorOffsets[u+1]-1]
+  private final int[] successorOffsets;
+  private final int[] successors;
+
+  public GateGraph(CompactNetlist netlist, byte[] nodeKinds) {
+    int nNodes = netlist.getNodeCount();
+    successorOffsets = new int[nNodes + 1];
+    for (int u = 0; u < nNodes; ++u) {
+      successorOffsets[u + 1] = successorOffsets[u]
+          + findSuccessors(netlist, nodeKinds, u, null, 0);
+    }
+    successors = new int[successorOffsets[nNodes]];
+    for (int u = 0; u < nNodes; ++u) {
+      findSuccessors(netlist, nodeKinds, u, successors, successorOffsets[u]);
+    }
+  }
+
+  public static boolean isCombinational(PrimitiveKind kind) {
+    switch (kind) {
+        case AND:
+        case OR:
+        case NOT:
+          return true;
+        default:
+          return false;
+    }
+  }
+
+  // Count the gates that the outputs of gate u drive, writing them into
+  // `out` starting at `offset` if `out` is not null.
+  private static int findSuccessors(CompactNetlist netlist, byte[] nodeKinds,
+      int u, int[] out, int offset) {
+    if (!isCombinational(PrimitiveKind.fromCode(nodeKinds[u]))) {
+      return 0;
+    }
+    int count = 0;
+    int nPorts = netlist.getNodePortCount(u);
+    for (int k = 0; k < nPorts; ++k) {
+      int port = netlist.getNodePort(u, k);
+      int net = netlist.getPortNet(port);
+      if (!netlist.isOutputPort(port) || net == CompactNetlist.NOT_CONNECTED) {
+        continue;
+      }
+      int nSinks = netlist.getNetSinkCount(net);
+      for (int s = 0; s < nSinks; ++s) {
+        int v = netlist.getPortNode(netlist.getNetSink(net, s));
+        if (isCombinational(PrimitiveKind.fromCode(nodeKinds[v]))) {
+          if (out != null) {
+            out[offset + count] = v;
+          }
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  public int getNodeCount() {
+    return successorOffsets.length - 1;
+  }
+
+  public int getSuccessorCount(int u) {
+    return successorOffsets[u + 1] - successorOffsets[u];
+  }
+
+  public int getSuccessor(int u, int k) {
+    return successors[successorOffsets[u] + k];
+  }
+
+}
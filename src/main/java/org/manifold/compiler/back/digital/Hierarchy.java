@@ -0,0 +1,436 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.manifold.compiler.BooleanValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+
+// Finds repeated subcircuits in a flat netlist, so that a code generator
+// can elaborate each of them once and instantiate it wherever it occurs.
+//
+// The netlist is first split into groups: internal nodes (anything but
+// input and output pins) that are connected to each other through nets
+// that do not touch a pin. The pin nets a group is attached to are its
+// ports. Groups with the same structure -- the same kinds of nodes with
+// the same attributes, wired to each other and to their ports in the same
+// way -- are instances of one cell.
+//
+// Deciding that two groups have the same structure is graph isomorphism in
+// general. Here the nodes of every group are put in a canonical order by a
+// few rounds of colour refinement (each node's colour is mixed with the
+// colours of the nets around it), with ties broken by node id, and then
+// the exact encoding of each group in that order is compared. Equal
+// encodings always mean equal structure; the refinement only has to make
+// identical groups come out in the same order, and in the rare symmetric
+// case where it does not, those groups are simply not merged.
+//
+// Groups are only ever cut at nets that touch a pin. Copies of a cell
+// that are wired to each other directly, through nets of their own --
+// the slices of a ripple-carry adder, the stages of a register pipeline,
+// a chain of identical gates -- all fall into one group, which matches
+// nothing else, so none of them is found; the code generated for them is
+// what flat output would give. Finding them would mean cutting groups at
+// internal nets as well, which this does not attempt. That limited scope
+// is why VHDLCodeGenerator only uses this when asked to (see
+// VHDLCodeGenerator.setHierarchical() and --hierarchical-vhdl).
+
+public class Hierarchy {
+
+  // groups smaller than this are not worth a component of their own
+  public static final int MIN_CELL_NODES = 2;
+  private static final int REFINEMENT_ROUNDS = 4;
+
+  // A subcircuit that occurs more than once.
+  public static class Cell {
+    private final boolean[] outputPorts;
+    private final List<Instance> instances = new ArrayList<>();
+
+    Cell(boolean[] outputPorts) {
+      this.outputPorts = outputPorts;
+    }
+
+    public int getPortCount() {
+      return outputPorts.length;
+    }
+
+    // whether the cell drives the net on this port
+    public boolean isOutputPort(int port) {
+      return outputPorts[port];
+    }
+
+    // in order of their first node; the first is the one the cell's
+    // entity is generated from
+    public List<Instance> getInstances() {
+      return Collections.unmodifiableList(instances);
+    }
+  }
+
+  // One occurrence of a cell. Its nodes are in canonical order, so node k
+  // of every instance plays the same part in the cell, and so does the net
+  // on port k.
+  public static class Instance {
+    private final int[] nodes;
+    private final int[] portNets;
+
+    Instance(int[] nodes, int[] portNets) {
+      this.nodes = nodes;
+      this.portNets = portNets;
+    }
+
+    public int getNodeCount() {
+      return nodes.length;
+    }
+
+    public int getNode(int k) {
+      return nodes[k];
+    }
+
+    public int getPortNet(int port) {
+      return portNets[port];
+    }
+  }
+
+  // The encoding of a group, usable as a hash key.
+  private static final class Shape {
+    private final int[] code;
+    private final int hash;
+
+    Shape(int[] code) {
+      this.code = code;
+      this.hash = Arrays.hashCode(code);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Shape
+          && Arrays.equals(code, ((Shape) other).code);
+    }
+  }
+
+  private final CompactNetlist netlist;
+  private final byte[] nodeKinds;
+
+  // nets attached to a pin
+  private final boolean[] pinNet;
+  // the nodes of group g are groupNodes[groupStart[g]..groupStart[g+1]-1],
+  // in id order; groups are numbered in order of their first node
+  private int[] groupStart;
+  private int[] groupNodes;
+  // kind and attributes of each node, and its refined colour
+  private final int[] labels;
+  private final long[] colours;
+
+  private final List<Cell> cells = new ArrayList<>();
+
+  public Hierarchy(CompactNetlist netlist, byte[] nodeKinds) {
+    this.netlist = netlist;
+    this.nodeKinds = nodeKinds;
+    int nNodes = netlist.getNodeCount();
+    pinNet = new boolean[netlist.getNetCount()];
+    for (int node = 0; node < nNodes; ++node) {
+      if (!isPin(node)) {
+        continue;
+      }
+      for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+        int net = netlist.getPortNet(netlist.getNodePort(node, k));
+        if (net != CompactNetlist.NOT_CONNECTED) {
+          pinNet[net] = true;
+        }
+      }
+    }
+    findGroups();
+    labels = new int[nNodes];
+    colours = new long[nNodes];
+    for (int node = 0; node < nNodes; ++node) {
+      labels[node] = label(node);
+      colours[node] = labels[node];
+    }
+    for (int round = 0; round < REFINEMENT_ROUNDS; ++round) {
+      refine();
+    }
+    findCells();
+  }
+
+  // The cells found, in order of their first node.
+  public List<Cell> getCells() {
+    return Collections.unmodifiableList(cells);
+  }
+
+  // All nodes that belong to an instance of some cell.
+  public BitSet getCellNodes() {
+    BitSet nodes = new BitSet();
+    for (Cell cell : cells) {
+      for (Instance instance : cell.instances) {
+        for (int node : instance.nodes) {
+          nodes.set(node);
+        }
+      }
+    }
+    return nodes;
+  }
+
+  private boolean isPin(int node) {
+    PrimitiveKind kind = PrimitiveKind.fromCode(nodeKinds[node]);
+    return kind == PrimitiveKind.INPUT_PIN
+        || kind == PrimitiveKind.OUTPUT_PIN;
+  }
+
+  private void findGroups() {
+    int nNodes = netlist.getNodeCount();
+    int[] parent = new int[nNodes];
+    for (int node = 0; node < nNodes; ++node) {
+      parent[node] = node;
+    }
+    for (int net = 0; net < pinNet.length; ++net) {
+      if (pinNet[net] || netlist.getNetPortCount(net) == 0) {
+        continue;
+      }
+      int first = find(parent,
+          netlist.getPortNode(netlist.getNetPort(net, 0)));
+      for (int k = 1; k < netlist.getNetPortCount(net); ++k) {
+        int other = find(parent,
+            netlist.getPortNode(netlist.getNetPort(net, k)));
+        parent[other] = first;
+      }
+    }
+    // number the groups by their first node, then lay them out by group
+    int[] groupOf = new int[nNodes];
+    int[] rootGroup = new int[nNodes];
+    Arrays.fill(rootGroup, -1);
+    int nGroups = 0;
+    for (int node = 0; node < nNodes; ++node) {
+      if (isPin(node)) {
+        groupOf[node] = -1;
+        continue;
+      }
+      int root = find(parent, node);
+      if (rootGroup[root] == -1) {
+        rootGroup[root] = nGroups++;
+      }
+      groupOf[node] = rootGroup[root];
+    }
+    groupStart = new int[nGroups + 1];
+    for (int node = 0; node < nNodes; ++node) {
+      if (groupOf[node] != -1) {
+        groupStart[groupOf[node] + 1] += 1;
+      }
+    }
+    for (int g = 0; g < nGroups; ++g) {
+      groupStart[g + 1] += groupStart[g];
+    }
+    groupNodes = new int[groupStart[nGroups]];
+    int[] fill = Arrays.copyOf(groupStart, nGroups);
+    for (int node = 0; node < nNodes; ++node) {
+      if (groupOf[node] != -1) {
+        groupNodes[fill[groupOf[node]]++] = node;
+      }
+    }
+  }
+
+  private static int find(int[] parent, int node) {
+    while (parent[node] != node) {
+      parent[node] = parent[parent[node]];
+      node = parent[node];
+    }
+    return node;
+  }
+
+  // The kind of a node and, for registers, the attributes that change the
+  // code generated for it.
+  private int label(int node) {
+    PrimitiveKind kind = PrimitiveKind.fromCode(nodeKinds[node]);
+    if (kind == PrimitiveKind.UNKNOWN) {
+      // nothing is known about its ports, so never merge it with another
+      return -1 - node;
+    }
+    int label = nodeKinds[node];
+    if (kind == PrimitiveKind.REGISTER) {
+      NodeValue register = netlist.getNode(node);
+      int bit = 8;
+      for (String attribute : new String[] {"initialValue", "resetActiveHigh",
+          "resetAsynchronous", "clockActiveHigh"}) {
+        if (booleanAttribute(register, attribute)) {
+          label |= bit;
+        }
+        bit <<= 1;
+      }
+    }
+    return label;
+  }
+
+  private static boolean booleanAttribute(NodeValue node, String name) {
+    try {
+      return ((BooleanValue) node.getAttribute(name)).toBoolean();
+    } catch (UndeclaredAttributeException e) {
+      throw new CodeGenerationError(e.getMessage());
+    }
+  }
+
+  // a 64-bit hash of `v` combined with `h`
+  static long mix(long h, long v) {
+    long x = h * 31 + v;
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+
+  // One round of colour refinement: every net inside a group takes the
+  // (order-independent) sum of the colours of the ports on it, and every
+  // node mixes the colours of its nets, in port order, into its own.
+  private void refine() {
+    long[] netColours = new long[pinNet.length];
+    for (int net = 0; net < pinNet.length; ++net) {
+      if (pinNet[net]) {
+        continue;
+      }
+      long sum = 0;
+      for (int k = 0; k < netlist.getNetPortCount(net); ++k) {
+        int port = netlist.getNetPort(net, k);
+        sum += mix(colours[netlist.getPortNode(port)],
+            netlist.getPortName(port).hashCode());
+      }
+      netColours[net] = sum;
+    }
+    for (int node = 0; node < colours.length; ++node) {
+      if (isPin(node)) {
+        continue;
+      }
+      long h = colours[node];
+      for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+        int net = netlist.getPortNet(netlist.getNodePort(node, k));
+        if (net == CompactNetlist.NOT_CONNECTED) {
+          h = mix(h, -1);
+        } else if (pinNet[net]) {
+          h = mix(h, 1);
+        } else {
+          h = mix(h, netColours[net]);
+        }
+      }
+      colours[node] = h;
+    }
+  }
+
+  private void findCells() {
+    int nGroups = groupStart.length - 1;
+    // only groups that share their size and colours with another group can
+    // possibly be merged, so only those are encoded
+    Map<Long, Integer> summaries = new HashMap<>();
+    long[] groupSummary = new long[nGroups];
+    for (int g = 0; g < nGroups; ++g) {
+      long sum = 0;
+      for (int i = groupStart[g]; i < groupStart[g + 1]; ++i) {
+        sum += colours[groupNodes[i]];
+      }
+      groupSummary[g] = mix(groupStart[g + 1] - groupStart[g], sum);
+      summaries.merge(groupSummary[g], 1, Integer::sum);
+    }
+
+    int[] netNumber = new int[pinNet.length];
+    Arrays.fill(netNumber, -1);
+    Map<Shape, Cell> byShape = new LinkedHashMap<>();
+    for (int g = 0; g < nGroups; ++g) {
+      if (groupStart[g + 1] - groupStart[g] < MIN_CELL_NODES
+          || summaries.get(groupSummary[g]) < 2) {
+        continue;
+      }
+      encode(g, netNumber, byShape);
+    }
+    for (Cell cell : byShape.values()) {
+      if (cell.instances.size() > 1) {
+        cells.add(cell);
+      }
+    }
+  }
+
+  // Put the nodes of group g in canonical order, encode the group, and add
+  // it as an instance of the cell with that encoding. `netNumber` is
+  // scratch space, all -1 on entry and exit.
+  private void encode(int g, int[] netNumber, Map<Shape, Cell> byShape) {
+    int nNodes = groupStart[g + 1] - groupStart[g];
+    Integer[] order = new Integer[nNodes];
+    int codeLength = 0;
+    for (int i = 0; i < nNodes; ++i) {
+      order[i] = groupNodes[groupStart[g] + i];
+      codeLength += 2 + netlist.getNodePortCount(order[i]);
+    }
+    Arrays.sort(order, (a, b) -> {
+      int byColour = Long.compare(colours[a], colours[b]);
+      return byColour != 0 ? byColour : Integer.compare(a, b);
+    });
+
+    // nets inside the group are numbered 0, 2, 4, ... and nets on its
+    // ports 1, 3, 5, ..., each in order of first appearance
+    int[] code = new int[codeLength];
+    int[] nodes = new int[nNodes];
+    List<Integer> portNets = new ArrayList<>();
+    List<Boolean> outputPorts = new ArrayList<>();
+    int nInternalNets = 0;
+    int c = 0;
+    for (int i = 0; i < nNodes; ++i) {
+      int node = order[i];
+      nodes[i] = node;
+      code[c++] = labels[node];
+      code[c++] = netlist.getNodePortCount(node);
+      for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+        int port = netlist.getNodePort(node, k);
+        int net = netlist.getPortNet(port);
+        if (net == CompactNetlist.NOT_CONNECTED) {
+          code[c++] = -1;
+          continue;
+        }
+        if (netNumber[net] == -1) {
+          if (pinNet[net]) {
+            netNumber[net] = 2 * portNets.size() + 1;
+            portNets.add(net);
+            outputPorts.add(false);
+          } else {
+            netNumber[net] = 2 * nInternalNets++;
+          }
+        }
+        if (pinNet[net] && netlist.isOutputPort(port)) {
+          outputPorts.set(netNumber[net] / 2, true);
+        }
+        code[c++] = netNumber[net];
+      }
+    }
+    for (int node : nodes) {
+      for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+        int net = netlist.getPortNet(netlist.getNodePort(node, k));
+        if (net != CompactNetlist.NOT_CONNECTED) {
+          netNumber[net] = -1;
+        }
+      }
+    }
+
+    int[] nets = new int[portNets.size()];
+    boolean[] outputs = new boolean[nets.length];
+    for (int p = 0; p < nets.length; ++p) {
+      nets[p] = portNets.get(p);
+      outputs[p] = outputPorts.get(p);
+    }
+    Shape shape = new Shape(code);
+    Cell cell = byShape.get(shape);
+    if (cell == null) {
+      cell = new Cell(outputs);
+      byShape.put(shape, cell);
+    }
+    cell.instances.add(new Instance(nodes, nets));
+  }
+
+}
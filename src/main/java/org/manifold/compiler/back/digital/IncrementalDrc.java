@@ -0,0 +1,224 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Re-runs design checks after small edits to a design, re-verifying only
+// the part of the netlist that an edit can have affected.
+//
+// For every local design rule (see DesignRule.isLocal()), the number of
+// violations found at each node and each net is cached by name, since
+// node and net ids change whenever the netlist is rebuilt. After an edit,
+// only the changed nets, the changed nodes, and the nodes attached to a
+// changed net before or after the edit are visited again; the cached
+// counts for everything else are reused. A rule passes if no element
+// has violations left.
+//
+// Checks that are not local rules are simply run again in full.
+//
+// Typical use, with `netlist` and its compact form `compact` kept up to
+// date by applying each delta to both:
+//
+//   Set<String> changedNets = netlist.applyDelta(delta);
+//   compact = compact.applyDelta(netlist, delta, changedNets);
+//   drc.verify(compact, changedNets, IncrementalDrc.changedNodes(delta));
+//
+// Building a new CompactNetlist from the schematic instead would cost a
+// full rebuild, sorting and all, on every edit.
+
+public class IncrementalDrc {
+  private static Logger log = LogManager.getLogger("IncrementalDrc");
+
+  // Builds the checks to run over a netlist. Called on every verify(),
+  // since checks keep their results and design rules are tied to the
+  // netlist they were built for.
+  public interface CheckFactory {
+    List<Check> createChecks(CompactNetlist netlist);
+  }
+
+  private final CheckFactory factory;
+
+  // netlist of the last run; null until the first full run
+  private CompactNetlist lastNetlist = null;
+
+  // check name -> name of node/net with violations -> violation count
+  private Map<String, Map<String, Integer>> nodeViolations = new HashMap<>();
+  private Map<String, Map<String, Integer>> netViolations = new HashMap<>();
+
+  public IncrementalDrc(CheckFactory factory) {
+    this.factory = factory;
+  }
+
+  // Number of violations of a local rule known after the last run.
+  public int getViolationCount(String checkName) {
+    int count = 0;
+    for (Map<String, Map<String, Integer>> cache
+        : Arrays.asList(nodeViolations, netViolations)) {
+      Map<String, Integer> counts = cache.get(checkName);
+      if (counts != null) {
+        for (int n : counts.values()) {
+          count += n;
+        }
+      }
+    }
+    return count;
+  }
+
+  // The names of nodes added or removed by a delta.
+  public static Set<String> changedNodes(SchematicDelta delta) {
+    Set<String> nodes = new HashSet<>(delta.getAddedNodes().keySet());
+    nodes.addAll(delta.getRemovedNodes().keySet());
+    return nodes;
+  }
+
+  /**
+   * Run every check over the whole netlist, discarding cached results.
+   * Returns the result of each check, keyed by check name.
+   */
+  public Map<String, Boolean> verify(CompactNetlist netlist) {
+    nodeViolations.clear();
+    netViolations.clear();
+    BitSet nodes = new BitSet();
+    nodes.set(0, netlist.getNodeCount());
+    BitSet nets = new BitSet();
+    nets.set(0, netlist.getNetCount());
+    return run(netlist, nodes, nets, false);
+  }
+
+  /**
+   * Re-verify `netlist` after an edit to the netlist of the previous run.
+   * `changedNets` are the names of nets that were added, removed, or
+   * whose connections changed (as returned by Netlist.applyDelta());
+   * `changedNodes` are the names of nodes that were added or removed.
+   * Falls back to a full run if there has been no previous run.
+   */
+  public Map<String, Boolean> verify(CompactNetlist netlist,
+      Set<String> changedNets, Set<String> changedNodes) {
+    if (lastNetlist == null) {
+      return verify(netlist);
+    }
+    BitSet nodes = new BitSet();
+    BitSet nets = new BitSet();
+    for (String netName : changedNets) {
+      addNetNodes(lastNetlist, netName, netlist, nodes);
+      addNetNodes(netlist, netName, netlist, nodes);
+      int net = netlist.getNetId(netName);
+      if (net != -1) {
+        nets.set(net);
+      }
+    }
+    for (String nodeName : changedNodes) {
+      int node = netlist.getNodeId(nodeName);
+      if (node != -1) {
+        nodes.set(node);
+      }
+    }
+
+    // forget what was found in the region; it is about to be found again
+    Set<String> staleNodes = new HashSet<>(changedNodes);
+    for (int node = nodes.nextSetBit(0); node >= 0;
+        node = nodes.nextSetBit(node + 1)) {
+      staleNodes.add(netlist.getNodeName(node));
+    }
+    for (Map<String, Integer> counts : nodeViolations.values()) {
+      counts.keySet().removeAll(staleNodes);
+    }
+    for (Map<String, Integer> counts : netViolations.values()) {
+      counts.keySet().removeAll(changedNets);
+    }
+    return run(netlist, nodes, nets, true);
+  }
+
+  // Add the nodes attached to the named net of `source` (if it has one)
+  // to `nodes`, as ids in `target`.
+  private static void addNetNodes(CompactNetlist source, String netName,
+      CompactNetlist target, BitSet nodes) {
+    int net = source.getNetId(netName);
+    if (net == -1) {
+      return;
+    }
+    int nPorts = source.getNetPortCount(net);
+    for (int k = 0; k < nPorts; ++k) {
+      int node = source.getPortNode(source.getNetPort(net, k));
+      if (source != target) {
+        node = target.getNodeId(source.getNodeName(node));
+      }
+      if (node != -1) {
+        nodes.set(node);
+      }
+    }
+  }
+
+  private Map<String, Boolean> run(CompactNetlist netlist, BitSet nodes,
+      BitSet nets, boolean incremental) {
+    List<Check> checks = factory.createChecks(netlist);
+    List<DesignRule> localRules = new ArrayList<>();
+    for (Check check : checks) {
+      if (check instanceof DesignRule && ((DesignRule) check).isLocal()) {
+        DesignRule rule = (DesignRule) check;
+        if (rule.getNetlist() != netlist) {
+          throw new IllegalArgumentException("rule '" + rule.getName()
+              + "' was built for a different netlist");
+        }
+        localRules.add(rule);
+      }
+    }
+
+    DesignRule[] rules = localRules.toArray(new DesignRule[0]);
+    for (DesignRule rule : rules) {
+      String name = rule.getName();
+      if (!incremental) {
+        nodeViolations.put(name, new HashMap<>());
+        netViolations.put(name, new HashMap<>());
+      } else if (!nodeViolations.containsKey(name)) {
+        // a rule we have no cache for must see everything
+        log.info("no cached results for rule '" + name
+            + "', re-verifying the whole netlist");
+        return verify(netlist);
+      }
+    }
+    List<Map<String, Integer>> nodeCounts = new ArrayList<>();
+    List<Map<String, Integer>> netCounts = new ArrayList<>();
+    for (DesignRule rule : rules) {
+      String name = rule.getName();
+      nodeCounts.add(nodeViolations.get(name));
+      netCounts.add(netViolations.get(name));
+      rule.begin();
+    }
+    DesignRuleEngine.visitRegion(netlist, rules, nodes, nets,
+        new DesignRuleEngine.Tally() {
+          @Override
+          public void atNode(int rule, int node, int violations) {
+            nodeCounts.get(rule).put(netlist.getNodeName(node), violations);
+          }
+          @Override
+          public void atNet(int rule, int net, int violations) {
+            netCounts.get(rule).put(netlist.getNetName(net), violations);
+          }
+        });
+
+    Map<String, Boolean> results = new LinkedHashMap<>();
+    for (Check check : checks) {
+      int r = localRules.indexOf(check);
+      if (r == -1) {
+        results.put(check.getName(), check.run());
+      } else {
+        results.put(check.getName(),
+            nodeCounts.get(r).isEmpty() && netCounts.get(r).isEmpty());
+      }
+    }
+    lastNetlist = netlist;
+    return results;
+  }
+
+}
@@ -0,0 +1,547 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.manifold.compiler.BooleanValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+
+// Simplifies the logic of a netlist before code is generated for it,
+// producing a smaller netlist that behaves the same at its pins.
+//
+// The netlist is rewritten by a pipeline of passes, each run to a fixed
+// point over a worklist of net ids:
+// * dead logic: gates and registers that no output pin depends on are
+//   removed;
+// * constant propagation: nets that always hold the same value are found,
+//   starting from registers that can only ever hold their initial value,
+//   and gates are bypassed where a constant decides their output (and
+//   where both inputs are the same net, or one is the complement of the
+//   other);
+// * double inversion: NOT(NOT(x)) is replaced by x;
+// * common subexpressions: gates of the same kind on the same inputs are
+//   merged into one.
+// Passes never delete anything themselves; they only move the sinks of a
+// net onto another net that is known to carry the same value. Whatever no
+// longer reaches an output is then swept away, and counted against the
+// pass that made it unreachable. The pipeline is repeated until a round
+// removes nothing.
+//
+// Only nets with exactly one driver are ever rewritten, so a netlist that
+// breaks the design rules is left as it is where it matters.
+
+public class LogicOptimizer {
+
+  public static final String DEAD_LOGIC = "dead logic";
+  public static final String CONSTANT_PROPAGATION = "constant propagation";
+  public static final String DOUBLE_INVERSION = "double inversion";
+  public static final String COMMON_SUBEXPRESSIONS = "common subexpressions";
+
+  private static final int UNKNOWN = -1;
+
+  // A FIFO of net ids, holding each net at most once.
+  private static class NetQueue {
+    private final int[] nets;
+    private final BitSet queued = new BitSet();
+    private int head = 0;
+    private int size = 0;
+
+    NetQueue(int nNets) {
+      nets = new int[Math.max(nNets, 1)];
+    }
+
+    void add(int net) {
+      if (!queued.get(net)) {
+        queued.set(net);
+        nets[(head + size) % nets.length] = net;
+        ++size;
+      }
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    int remove() {
+      int net = nets[head];
+      head = (head + 1) % nets.length;
+      --size;
+      queued.clear(net);
+      return net;
+    }
+  }
+
+  // Handles one net taken from the worklist.
+  private interface Pass {
+    void visit(int net);
+  }
+
+  private final CompactNetlist netlist;
+  private final byte[] nodeKinds;
+
+  // the net of every port, as rewritten so far
+  private final int[] portNet;
+  // the input ports on each net: sinks[net][0 .. sinkCount[net]-1]
+  private final int[][] sinks;
+  private final int[] sinkCount;
+  private final BitSet removed = new BitSet();
+  // value that each net always holds, or UNKNOWN
+  private final int[] value;
+  // gates by kind and inputs, for merging common subexpressions
+  private final Map<PrimitiveKind, Map<Long, Integer>> expressions =
+      new EnumMap<>(PrimitiveKind.class);
+  private NetQueue queue;
+
+  // nodes removed by each pass, in pipeline order
+  private final Map<String, Integer> removedCounts = new LinkedHashMap<>();
+  private final CompactNetlist optimized;
+
+  public LogicOptimizer(CompactNetlist netlist, byte[] nodeKinds) {
+    this.netlist = netlist;
+    this.nodeKinds = nodeKinds;
+    int nNets = netlist.getNetCount();
+    portNet = new int[netlist.getPortCount()];
+    sinks = new int[nNets][];
+    sinkCount = new int[nNets];
+    for (int net = 0; net < nNets; ++net) {
+      sinks[net] = new int[netlist.getNetSinkCount(net)];
+    }
+    for (int port = 0; port < portNet.length; ++port) {
+      portNet[port] = netlist.getPortNet(port);
+      if (!netlist.isOutputPort(port)
+          && portNet[port] != CompactNetlist.NOT_CONNECTED) {
+        addSink(portNet[port], port);
+      }
+    }
+    value = new int[nNets];
+    Arrays.fill(value, UNKNOWN);
+    for (String pass : new String[] {DEAD_LOGIC, CONSTANT_PROPAGATION,
+        DOUBLE_INVERSION, COMMON_SUBEXPRESSIONS}) {
+      removedCounts.put(pass, 0);
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = sweep(DEAD_LOGIC);
+      propagate(this::visitConstant);
+      mergeConstants();
+      changed |= sweep(CONSTANT_PROPAGATION);
+      propagate(this::visitDoubleInversion);
+      changed |= sweep(DOUBLE_INVERSION);
+      expressions.clear();
+      propagate(this::visitExpression);
+      changed |= sweep(COMMON_SUBEXPRESSIONS);
+    }
+    optimized = build();
+  }
+
+  // The optimized netlist. Nodes and nets keep their names, and so their
+  // relative order.
+  public CompactNetlist getNetlist() {
+    return optimized;
+  }
+
+  // The number of nodes removed by each pass, in pipeline order.
+  public Map<String, Integer> getRemovedCounts() {
+    return Collections.unmodifiableMap(removedCounts);
+  }
+
+  public int getRemovedCount() {
+    return removed.cardinality();
+  }
+
+  private PrimitiveKind kindOf(int node) {
+    return PrimitiveKind.fromCode(nodeKinds[node]);
+  }
+
+  private void addSink(int net, int port) {
+    if (sinkCount[net] == sinks[net].length) {
+      sinks[net] = Arrays.copyOf(sinks[net],
+          Math.max(4, 2 * sinks[net].length));
+    }
+    sinks[net][sinkCount[net]++] = port;
+  }
+
+  // The input ports on a net that belong to nodes still in the netlist.
+  private int[] liveSinks(int net) {
+    int[] live = new int[sinkCount[net]];
+    int n = 0;
+    for (int i = 0; i < sinkCount[net]; ++i) {
+      int port = sinks[net][i];
+      if (portNet[port] == net && !removed.get(netlist.getPortNode(port))) {
+        live[n++] = port;
+      }
+    }
+    return Arrays.copyOf(live, n);
+  }
+
+  // Make everything that reads `from` read `to` instead; the two nets
+  // must always carry the same value.
+  private void moveSinks(int from, int to) {
+    int[] moved = liveSinks(from);
+    if (from == to || moved.length == 0) {
+      return;
+    }
+    for (int port : moved) {
+      portNet[port] = to;
+      addSink(to, port);
+    }
+    sinkCount[from] = 0;
+    sinks[from] = new int[0];
+    // the nodes reading `to` have new inputs to look at
+    queue.add(to);
+  }
+
+  private int connectedNet(int node, String portName) {
+    int port = netlist.getPort(node, portName);
+    return port == -1 ? CompactNetlist.NOT_CONNECTED : portNet[port];
+  }
+
+  // The net a node drives on its "out" port, if it is the only driver of
+  // that net and every other port of the node is connected; otherwise
+  // NOT_CONNECTED, and the node is left alone.
+  private int rewritableOutput(int node) {
+    int out = CompactNetlist.NOT_CONNECTED;
+    for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+      int port = netlist.getNodePort(node, k);
+      if (portNet[port] == CompactNetlist.NOT_CONNECTED) {
+        return CompactNetlist.NOT_CONNECTED;
+      }
+      if (netlist.isOutputPort(port)) {
+        out = portNet[port];
+      }
+    }
+    if (out == CompactNetlist.NOT_CONNECTED
+        || netlist.getNetDriverCount(out) != 1) {
+      return CompactNetlist.NOT_CONNECTED;
+    }
+    return out;
+  }
+
+  // The node driving a net, if it is still in the netlist; otherwise -1.
+  private int liveDriver(int net) {
+    int node = netlist.getNetDriverNode(net);
+    return node == -1 || removed.get(node) ? -1 : node;
+  }
+
+  // Run a pass until its worklist, which starts out holding every net,
+  // is empty.
+  private void propagate(Pass pass) {
+    queue = new NetQueue(netlist.getNetCount());
+    for (int net = 0; net < netlist.getNetCount(); ++net) {
+      queue.add(net);
+    }
+    while (!queue.isEmpty()) {
+      pass.visit(queue.remove());
+    }
+    queue = null;
+  }
+
+  /*
+   * Dead logic.
+   */
+
+  // Remove every gate and register that no output pin (or node of unknown
+  // type, which might be one) depends on, counting them against `pass`.
+  // Returns true if anything was removed.
+  private boolean sweep(String pass) {
+    BitSet live = new BitSet();
+    BitSet reached = new BitSet();
+    NetQueue nets = new NetQueue(netlist.getNetCount());
+    for (int node = 0; node < netlist.getNodeCount(); ++node) {
+      PrimitiveKind kind = kindOf(node);
+      if (!removed.get(node) && (kind == PrimitiveKind.OUTPUT_PIN
+          || kind == PrimitiveKind.UNKNOWN)) {
+        markLive(node, live, reached, nets);
+      }
+    }
+    while (!nets.isEmpty()) {
+      int net = nets.remove();
+      for (int k = 0; k < netlist.getNetDriverCount(net); ++k) {
+        int driver = netlist.getPortNode(netlist.getNetDriver(net, k));
+        if (!removed.get(driver) && !live.get(driver)) {
+          markLive(driver, live, reached, nets);
+        }
+      }
+    }
+    int count = 0;
+    for (int node = 0; node < netlist.getNodeCount(); ++node) {
+      // input pins are part of the interface, used or not
+      if (!removed.get(node) && !live.get(node)
+          && kindOf(node) != PrimitiveKind.INPUT_PIN) {
+        removed.set(node);
+        ++count;
+      }
+    }
+    removedCounts.put(pass, removedCounts.get(pass) + count);
+    return count > 0;
+  }
+
+  private void markLive(int node, BitSet live, BitSet reached,
+      NetQueue nets) {
+    live.set(node);
+    for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+      int port = netlist.getNodePort(node, k);
+      int net = portNet[port];
+      if (!netlist.isOutputPort(port) && net != CompactNetlist.NOT_CONNECTED
+          && !reached.get(net)) {
+        reached.set(net);
+        nets.add(net);
+      }
+    }
+  }
+
+  /*
+   * Constant propagation.
+   */
+
+  private void setConstant(int net, int v) {
+    if (value[net] == UNKNOWN) {
+      value[net] = v;
+      queue.add(net);
+    }
+  }
+
+  private void visitConstant(int net) {
+    for (int port : liveSinks(net)) {
+      int node = netlist.getPortNode(port);
+      switch (kindOf(node)) {
+          case AND:
+            simplifyGate(node, 0);
+            break;
+          case OR:
+            simplifyGate(node, 1);
+            break;
+          case NOT:
+            simplifyNot(node);
+            break;
+          case REGISTER:
+            simplifyRegister(node);
+            break;
+          default:
+            break;
+      }
+    }
+  }
+
+  // Simplify a two-input gate whose output is `dominant` as soon as
+  // either input is (0 for AND, 1 for OR).
+  private void simplifyGate(int gate, int dominant) {
+    int out = rewritableOutput(gate);
+    if (out == CompactNetlist.NOT_CONNECTED) {
+      return;
+    }
+    int a = connectedNet(gate, "in0");
+    int b = connectedNet(gate, "in1");
+    if (value[a] == dominant || value[b] == dominant
+        || isComplement(a, b)) {
+      setConstant(out, dominant);
+    } else if (value[a] == 1 - dominant && value[b] == 1 - dominant) {
+      setConstant(out, 1 - dominant);
+    } else if (value[a] == 1 - dominant) {
+      moveSinks(out, b);
+    } else if (value[b] == 1 - dominant || a == b) {
+      moveSinks(out, a);
+    }
+  }
+
+  // Whether one of the nets is the other through a NOT gate.
+  private boolean isComplement(int a, int b) {
+    return invertedNet(a) == b || invertedNet(b) == a;
+  }
+
+  // If `net` is driven by a NOT gate, the input of that gate.
+  private int invertedNet(int net) {
+    int driver = liveDriver(net);
+    if (driver == -1 || kindOf(driver) != PrimitiveKind.NOT
+        || rewritableOutput(driver) != net) {
+      return CompactNetlist.NOT_CONNECTED;
+    }
+    return connectedNet(driver, "in");
+  }
+
+  private void simplifyNot(int gate) {
+    int out = rewritableOutput(gate);
+    if (out == CompactNetlist.NOT_CONNECTED) {
+      return;
+    }
+    int in = connectedNet(gate, "in");
+    if (value[in] != UNKNOWN) {
+      setConstant(out, 1 - value[in]);
+    }
+  }
+
+  // A register only ever holds its initial value if that is also what it
+  // loads every cycle: it is reset to it, starts out with it, and then
+  // either loads itself or a constant equal to it.
+  private void simplifyRegister(int register) {
+    int out = rewritableOutput(register);
+    if (out == CompactNetlist.NOT_CONNECTED) {
+      return;
+    }
+    int in = connectedNet(register, "in");
+    int initial;
+    try {
+      initial = ((BooleanValue) netlist.getNode(register)
+          .getAttribute("initialValue")).toBoolean() ? 1 : 0;
+    } catch (UndeclaredAttributeException e) {
+      return;
+    }
+    if (in == out || value[in] == initial) {
+      setConstant(out, initial);
+    }
+  }
+
+  // Constants that still have sinks are all read from one net per value,
+  // as long as that net is driven by a register (which needs no inputs of
+  // its own to hold it); the others' drivers are then unused.
+  private void mergeConstants() {
+    int[] canonical = {-1, -1};
+    for (int net = 0; net < netlist.getNetCount(); ++net) {
+      int driver = liveDriver(net);
+      if (value[net] != UNKNOWN && canonical[value[net]] == -1
+          && driver != -1 && kindOf(driver) == PrimitiveKind.REGISTER) {
+        canonical[value[net]] = net;
+      }
+    }
+    queue = new NetQueue(netlist.getNetCount());
+    for (int net = 0; net < netlist.getNetCount(); ++net) {
+      if (value[net] != UNKNOWN && canonical[value[net]] != -1
+          && liveDriver(net) != -1) {
+        moveSinks(net, canonical[value[net]]);
+      }
+    }
+    queue = null;
+  }
+
+  /*
+   * Double inversion.
+   */
+
+  private void visitDoubleInversion(int net) {
+    int inner = invertedNet(net);
+    if (inner == CompactNetlist.NOT_CONNECTED) {
+      return;
+    }
+    for (int port : liveSinks(net)) {
+      int gate = netlist.getPortNode(port);
+      if (kindOf(gate) == PrimitiveKind.NOT) {
+        int out = rewritableOutput(gate);
+        if (out != CompactNetlist.NOT_CONNECTED) {
+          moveSinks(out, inner);
+        }
+      }
+    }
+  }
+
+  /*
+   * Common subexpressions.
+   */
+
+  // Gates are keyed by their inputs, in ascending order since AND and OR
+  // are commutative.
+  private long expressionKey(int gate) {
+    int a;
+    int b;
+    if (kindOf(gate) == PrimitiveKind.NOT) {
+      a = connectedNet(gate, "in");
+      b = a;
+    } else {
+      a = connectedNet(gate, "in0");
+      b = connectedNet(gate, "in1");
+    }
+    return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+  }
+
+  private void visitExpression(int net) {
+    for (int port : liveSinks(net)) {
+      int gate = netlist.getPortNode(port);
+      PrimitiveKind kind = kindOf(gate);
+      int out = GateGraph.isCombinational(kind) ? rewritableOutput(gate)
+          : CompactNetlist.NOT_CONNECTED;
+      if (out == CompactNetlist.NOT_CONNECTED) {
+        continue;
+      }
+      Map<Long, Integer> gates = expressions.get(kind);
+      if (gates == null) {
+        gates = new HashMap<>();
+        expressions.put(kind, gates);
+      }
+      long key = expressionKey(gate);
+      Integer first = gates.get(key);
+      // the entry may be stale if the first gate's inputs have moved since
+      if (first == null || removed.get(first)
+          || expressionKey(first) != key) {
+        gates.put(key, gate);
+      } else if (first != gate) {
+        moveSinks(out, rewritableOutput(first));
+      }
+    }
+  }
+
+  /*
+   * Result.
+   */
+
+  // Assemble the nodes that are left, and the nets they are attached to.
+  private CompactNetlist build() {
+    int nNodes = netlist.getNodeCount() - removed.cardinality();
+    String[] nodeNames = new String[nNodes];
+    NodeValue[] nodes = new NodeValue[nNodes];
+    int[] nodePortOffsets = new int[nNodes + 1];
+    int nPorts = 0;
+    int n = 0;
+    for (int node = removed.nextClearBit(0); node < netlist.getNodeCount();
+        node = removed.nextClearBit(node + 1)) {
+      nodeNames[n] = netlist.getNodeName(node);
+      nodes[n] = netlist.getNode(node);
+      nodePortOffsets[n] = nPorts;
+      nPorts += netlist.getNodePortCount(node);
+      ++n;
+    }
+    nodePortOffsets[nNodes] = nPorts;
+
+    String[] portNames = new String[nPorts];
+    boolean[] portIsOutput = new boolean[nPorts];
+    int[] newPortNet = new int[nPorts];
+    BitSet usedNets = new BitSet();
+    int p = 0;
+    for (int node = removed.nextClearBit(0); node < netlist.getNodeCount();
+        node = removed.nextClearBit(node + 1)) {
+      for (int k = 0; k < netlist.getNodePortCount(node); ++k) {
+        int port = netlist.getNodePort(node, k);
+        portNames[p] = netlist.getPortName(port);
+        portIsOutput[p] = netlist.isOutputPort(port);
+        newPortNet[p] = portNet[port];
+        if (portNet[port] != CompactNetlist.NOT_CONNECTED) {
+          usedNets.set(portNet[port]);
+        }
+        ++p;
+      }
+    }
+
+    // nets are renumbered in the same order, leaving out unused ones
+    int[] newNetId = new int[netlist.getNetCount()];
+    String[] netNames = new String[usedNets.cardinality()];
+    int nNets = 0;
+    for (int net = usedNets.nextSetBit(0); net >= 0;
+        net = usedNets.nextSetBit(net + 1)) {
+      newNetId[net] = nNets;
+      netNames[nNets++] = netlist.getNetName(net);
+    }
+    for (int i = 0; i < nPorts; ++i) {
+      if (newPortNet[i] != CompactNetlist.NOT_CONNECTED) {
+        newPortNet[i] = newNetId[newPortNet[i]];
+      }
+    }
+    return new CompactNetlist(netlist.getName(), nodeNames, nodes,
+        nodePortOffsets, portNames, portIsOutput, newPortNet, netNames);
+  }
+
+}
@@ -1,13 +1,15 @@
 package org.manifold.compiler.back.digital;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.manifold.compiler.NodeValue;
 import org.manifold.compiler.PortValue;
 import org.manifold.compiler.UndefinedBehaviourError;
 
-import com.google.common.collect.ImmutableSet;
-
 // In digital design, a "net" is a wire that connects multiple ports together.
 // Because the connections supported by the compiler are
 // traditional graph edges, which connect only two ports at a time,
@@ -26,12 +28,95 @@ public class Net {
   }
 
   private Set<PortValue> connectedPorts = new HashSet<>();
+  // shared read-only view, so that callers don't get a copy on every call
+  private Set<PortValue> connectedPortsView =
+      Collections.unmodifiableSet(connectedPorts);
 
   public Set<PortValue> getConnectedPorts() {
-    return ImmutableSet.copyOf(connectedPorts);
+    return connectedPortsView;
+  }
+
+  // Drivers (digitalOut ports) and sinks (digitalIn ports) on this net,
+  // in the order they were added. Nets built by a Netlist classify every
+  // port; ports added with plain addPort() are in neither list.
+  private List<PortValue> drivers = new ArrayList<>(1);
+  private List<PortValue> driversView = Collections.unmodifiableList(drivers);
+  private List<PortValue> sinks = new ArrayList<>();
+  private List<PortValue> sinksView = Collections.unmodifiableList(sinks);
+
+  public List<PortValue> getDrivers() {
+    return driversView;
+  }
+
+  public List<PortValue> getSinks() {
+    return sinksView;
+  }
+
+  // Returns the (first) port driving this net, or null if it is undriven.
+  public PortValue getDriver() {
+    if (drivers.isEmpty()) {
+      return null;
+    }
+    return drivers.get(0);
+  }
+
+  // Returns the node whose port drives this net, or null if it is undriven.
+  public NodeValue getDriverNode() {
+    if (drivers.isEmpty()) {
+      return null;
+    }
+    return drivers.get(0).getParent();
+  }
+
+  public boolean isDriver(PortValue port) {
+    for (PortValue driver : drivers) {
+      if (driver == port) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // A frozen net belongs to a Netlist, which must be kept in step with
+  // any change to the net; such nets can only be changed by the Netlist.
+  private boolean frozen = false;
+
+  void freeze() {
+    frozen = true;
   }
 
   public void addPort(PortValue port) {
+    checkNotFrozen();
+    insertPort(port);
+  }
+
+  public void addDriver(PortValue port) {
+    checkNotFrozen();
+    insertPort(port, true);
+  }
+
+  public void addSink(PortValue port) {
+    checkNotFrozen();
+    insertPort(port, false);
+  }
+
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new UndefinedBehaviourError(
+          "net '" + name + "' belongs to a netlist and cannot be modified");
+    }
+  }
+
+  void insertPort(PortValue port, boolean isDriver) {
+    insertPort(port);
+    if (isDriver) {
+      drivers.add(port);
+    } else {
+      sinks.add(port);
+    }
+  }
+
+  private void insertPort(PortValue port) {
     if (connectedPorts.contains(port)) {
       throw new UndefinedBehaviourError(
           "port is connected to the same net twice");
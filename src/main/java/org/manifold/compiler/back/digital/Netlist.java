@@ -1,80 +1,541 @@
 package org.manifold.compiler.back.digital;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
 
 import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
 import org.manifold.compiler.PortTypeValue;
 import org.manifold.compiler.PortValue;
 import org.manifold.compiler.TypeMismatchException;
 import org.manifold.compiler.UndeclaredIdentifierException;
 import org.manifold.compiler.middle.Schematic;
 
-import com.google.common.collect.ImmutableMap;
-
 public class Netlist {
 
   private PortTypeValue digitalInType;
   private PortTypeValue digitalOutType;
 
+  PortTypeValue getDigitalOutType() {
+    return digitalOutType;
+  }
+
   private Map<String, Net> nets = new HashMap<>();
+  // shared read-only view; it reflects any later applyDelta() calls
+  private Map<String, Net> netsView = Collections.unmodifiableMap(nets);
 
   public Map<String, Net> getNets() {
-    return ImmutableMap.copyOf(nets);
+    return netsView;
   }
 
   private Map<PortValue, Net> connectedNet = new HashMap<>();
 
   public Net getConnectedNet(PortValue port) {
-    if (connectedNet.containsKey(port)) {
-      return connectedNet.get(port);
-    } else {
+    Net net = connectedNet.get(port);
+    if (net == null) {
       throw new IllegalArgumentException("port not connected to any nets");
     }
+    return net;
+  }
+
+  // Like getConnectedNet(), but returns null for an unconnected port.
+  Net findConnectedNet(PortValue port) {
+    return connectedNet.get(port);
   }
 
   public Netlist(Schematic schematic) throws UndeclaredIdentifierException,
       TypeMismatchException {
+    this(schematic, null);
+  }
+
+  // Build the netlist using the worker threads of `pool`, or on the
+  // calling thread if `pool` is null. The result (including net names)
+  // is the same regardless of how many threads are used.
+  public Netlist(Schematic schematic, ForkJoinPool pool)
+      throws UndeclaredIdentifierException, TypeMismatchException {
     digitalInType = schematic.getPortType("digitalIn");
     digitalOutType = schematic.getPortType("digitalOut");
 
-    // iterate over connections in the schematic and build nets
-    for (Entry<String, ConnectionValue> connEntry : schematic.getConnections()
-        .entrySet()) {
-      String connectionName = connEntry.getKey();
-      ConnectionValue connection = connEntry.getValue();
+    // Assign every port that appears in a connection a dense index,
+    // then group ports into nets with a disjoint-set forest. Merging
+    // is order-independent: two partial nets that are later joined
+    // by a connection end up as one net.
+    // Connections are taken in name order, so that every net is named
+    // after the connection with the smallest name, whatever order the
+    // schematic keeps them in (see also StreamingSchematicReader).
+    Map<String, ConnectionValue> connections = schematic.getConnections();
+    sourceConnections = connections;
+    int nConnections = connections.size();
+    String[] connectionNames = connections.keySet().toArray(
+        new String[nConnections]);
+    Arrays.sort(connectionNames);
+    ConnectionValue[] connectionValues = new ConnectionValue[nConnections];
+    for (int c = 0; c < nConnections; ++c) {
+      connectionValues[c] = connections.get(connectionNames[c]);
+    }
 
+    if (pool == null) {
+      buildNets(connectionNames, connectionValues);
+    } else {
+      buildNetsInParallel(pool, connectionNames, connectionValues);
+    }
+  }
+
+  private void buildNets(String[] connectionNames,
+      ConnectionValue[] connectionValues) throws TypeMismatchException {
+    int nConnections = connectionValues.length;
+    int[] fromIndex = new int[nConnections];
+    int[] toIndex = new int[nConnections];
+    Map<PortValue, Integer> portIndex = new HashMap<>();
+    List<PortValue> ports = new ArrayList<>();
+    for (int c = 0; c < nConnections; ++c) {
       // get both ports
-      PortValue portFrom = connection.getFrom();
-      PortValue portTo = connection.getTo();
+      PortValue portFrom = connectionValues[c].getFrom();
+      PortValue portTo = connectionValues[c].getTo();
 
       verifyPortIsDigitalOut(portFrom);
       verifyPortIsDigitalIn(portTo);
 
-      // now we can take both ports and attach them to a net
-      if (connectedNet.containsKey(portFrom)) {
-        Net existingNet = connectedNet.get(portFrom);
-        if (connectedNet.containsKey(portTo)) {
-          // both ports already connected to a net
-        } else {
-          connectToNet(portTo, existingNet);
+      fromIndex[c] = indexPort(portFrom, portIndex, ports);
+      toIndex[c] = indexPort(portTo, portIndex, ports);
+    }
+
+    int nPorts = ports.size();
+    PortDisjointSet forest = new PortDisjointSet(nPorts);
+    for (int c = 0; c < nConnections; ++c) {
+      forest.union(fromIndex[c], toIndex[c]);
+    }
+    int[] roots = new int[nPorts];
+    for (int p = 0; p < nPorts; ++p) {
+      roots[p] = forest.find(p);
+    }
+
+    // each net is named after the first connection that touches it
+    int[] firstConnection = new int[nPorts];
+    Arrays.fill(firstConnection, -1);
+    for (int c = 0; c < nConnections; ++c) {
+      int root = roots[fromIndex[c]];
+      if (firstConnection[root] == -1) {
+        firstConnection[root] = c;
+      }
+    }
+
+    materializeNets(connectionNames,
+        ports.toArray(new PortValue[nPorts]), roots, firstConnection,
+        fromIndex);
+  }
+
+  private void buildNetsInParallel(ForkJoinPool pool,
+      final String[] connectionNames, final ConnectionValue[] connectionValues)
+      throws TypeMismatchException {
+    final int nConnections = connectionValues.length;
+    final int[] fromIndex = new int[nConnections];
+    final int[] toIndex = new int[nConnections];
+    final ConcurrentHashMap<PortValue, Integer> portIndex =
+        new ConcurrentHashMap<>();
+    final PortValue[] ports = new PortValue[2 * nConnections];
+    final AtomicInteger nextPort = new AtomicInteger(0);
+    final Function<PortValue, Integer> newIndex = port -> {
+      int i = nextPort.getAndIncrement();
+      ports[i] = port;
+      return i;
+    };
+    // verify port types and index ports concurrently, remembering
+    // the earliest bad connection so that the error is deterministic
+    final AtomicInteger firstBadConnection = new AtomicInteger(nConnections);
+    ParallelFor.run(pool, nConnections, (from, to) -> {
+      for (int c = from; c < to; ++c) {
+        PortValue portFrom = connectionValues[c].getFrom();
+        PortValue portTo = connectionValues[c].getTo();
+        if (!portFrom.getType().equals(digitalOutType)
+            || !portTo.getType().equals(digitalInType)) {
+          firstBadConnection.accumulateAndGet(c, Math::min);
+          continue;
+        }
+        fromIndex[c] = portIndex.computeIfAbsent(portFrom, newIndex);
+        toIndex[c] = portIndex.computeIfAbsent(portTo, newIndex);
+      }
+    });
+    int bad = firstBadConnection.get();
+    if (bad < nConnections) {
+      verifyPortIsDigitalOut(connectionValues[bad].getFrom());
+      verifyPortIsDigitalIn(connectionValues[bad].getTo());
+    }
+
+    final int nPorts = nextPort.get();
+    renumberPorts(pool, ports, nPorts, fromIndex, toIndex);
+    final ConcurrentPortDisjointSet forest =
+        new ConcurrentPortDisjointSet(nPorts);
+    ParallelFor.run(pool, nConnections, (from, to) -> {
+      for (int c = from; c < to; ++c) {
+        forest.union(fromIndex[c], toIndex[c]);
+      }
+    });
+    final int[] roots = new int[nPorts];
+    ParallelFor.run(pool, nPorts, (from, to) -> {
+      for (int p = from; p < to; ++p) {
+        roots[p] = forest.find(p);
+      }
+    });
+
+    // each net is named after the first connection that touches it;
+    // taking the minimum makes this independent of scheduling
+    final AtomicIntegerArray firstConnection = new AtomicIntegerArray(nPorts);
+    ParallelFor.run(pool, nPorts, (from, to) -> {
+      for (int p = from; p < to; ++p) {
+        firstConnection.set(p, Integer.MAX_VALUE);
+      }
+    });
+    ParallelFor.run(pool, nConnections, (from, to) -> {
+      for (int c = from; c < to; ++c) {
+        firstConnection.accumulateAndGet(roots[fromIndex[c]], c, Math::min);
+      }
+    });
+    int[] first = new int[nPorts];
+    for (int p = 0; p < nPorts; ++p) {
+      first[p] = firstConnection.get(p);
+    }
+
+    materializeNets(connectionNames, Arrays.copyOf(ports, nPorts), roots,
+        first, fromIndex);
+  }
+
+  // The indices handed out above depend on how the workers were scheduled.
+  // Renumber the ports in order of first use, as buildNets() numbers them,
+  // so that every net lists its ports (and so its drivers and sinks) in the
+  // same order on every run.
+  private static void renumberPorts(ForkJoinPool pool,
+      final PortValue[] ports, final int nPorts, final int[] fromIndex,
+      final int[] toIndex) {
+    final int nConnections = fromIndex.length;
+    // uses are numbered 2c for the "from" end of connection c and 2c + 1
+    // for its "to" end
+    final AtomicIntegerArray firstUse = new AtomicIntegerArray(nPorts);
+    ParallelFor.run(pool, nPorts, (from, to) -> {
+      for (int p = from; p < to; ++p) {
+        firstUse.set(p, Integer.MAX_VALUE);
+      }
+    });
+    ParallelFor.run(pool, nConnections, (from, to) -> {
+      for (int c = from; c < to; ++c) {
+        firstUse.accumulateAndGet(fromIndex[c], 2 * c, Math::min);
+        firstUse.accumulateAndGet(toIndex[c], 2 * c + 1, Math::min);
+      }
+    });
+    // every use belongs to one port, so ordering ports by first use is a
+    // single scan over the uses
+    int[] portOfUse = new int[2 * nConnections];
+    Arrays.fill(portOfUse, -1);
+    for (int p = 0; p < nPorts; ++p) {
+      portOfUse[firstUse.get(p)] = p;
+    }
+    final int[] newIndex = new int[nPorts];
+    int next = 0;
+    for (int use = 0; use < portOfUse.length; ++use) {
+      if (portOfUse[use] != -1) {
+        newIndex[portOfUse[use]] = next++;
+      }
+    }
+    PortValue[] oldPorts = Arrays.copyOf(ports, nPorts);
+    ParallelFor.run(pool, nPorts, (from, to) -> {
+      for (int p = from; p < to; ++p) {
+        ports[newIndex[p]] = oldPorts[p];
+      }
+    });
+    ParallelFor.run(pool, nConnections, (from, to) -> {
+      for (int c = from; c < to; ++c) {
+        fromIndex[c] = newIndex[fromIndex[c]];
+        toIndex[c] = newIndex[toIndex[c]];
+      }
+    });
+  }
+
+  // Now that all unions are done, create exactly one Net per set of ports,
+  // recording which of its ports drive it as we go.
+  private void materializeNets(String[] connectionNames, PortValue[] ports,
+      int[] roots, int[] firstConnection, int[] fromIndex) {
+    // every port on the "from" end of a connection was verified
+    // to be a digitalOut, and so is a driver
+    boolean[] isDriver = new boolean[ports.length];
+    for (int port : fromIndex) {
+      isDriver[port] = true;
+    }
+    Net[] netOfRoot = new Net[ports.length];
+    for (int p = 0; p < ports.length; ++p) {
+      int root = roots[p];
+      Net net = netOfRoot[root];
+      if (net == null) {
+        String netName = "n_" + connectionNames[firstConnection[root]];
+        net = createNet(netName);
+        netOfRoot[root] = net;
+      }
+      connectToNet(ports[p], net, isDriver[p]);
+    }
+  }
+
+  private static int indexPort(PortValue port, Map<PortValue, Integer> index,
+      List<PortValue> ports) {
+    Integer i = index.get(port);
+    if (i == null) {
+      i = ports.size();
+      index.put(port, i);
+      ports.add(port);
+    }
+    return i;
+  }
+
+  /*
+   * Incremental updates.
+   *
+   * Every net is named "n_" + the smallest name of any of its
+   * connections, just as when the netlist is built from scratch. Keeping
+   * that invariant lets us find that connection from the net's name alone.
+   *
+   * The bookkeeping below is only needed for incremental updates, so it is
+   * built from `sourceConnections` on the first call to applyDelta().
+   */
+  private Map<String, ConnectionValue> sourceConnections;
+  private Map<String, ConnectionValue> liveConnections = null;
+  private Map<PortValue, List<String>> portConnections;
+
+  private void buildIncrementalIndex() {
+    liveConnections = new HashMap<>();
+    portConnections = new HashMap<>();
+    for (Entry<String, ConnectionValue> connEntry
+        : sourceConnections.entrySet()) {
+      recordConnection(connEntry.getKey(), connEntry.getValue());
+    }
+    sourceConnections = null;
+  }
+
+  private void recordConnection(String name, ConnectionValue connection) {
+    liveConnections.put(name, connection);
+    attachConnection(connection.getFrom(), name);
+    attachConnection(connection.getTo(), name);
+  }
+
+  private void attachConnection(PortValue port, String connectionName) {
+    List<String> attached = portConnections.get(port);
+    if (attached == null) {
+      attached = new ArrayList<>(1);
+      portConnections.put(port, attached);
+    }
+    attached.add(connectionName);
+  }
+
+  private void detachConnection(PortValue port, String connectionName) {
+    List<String> attached = portConnections.get(port);
+    attached.remove(connectionName);
+    if (attached.isEmpty()) {
+      portConnections.remove(port);
+    }
+  }
+
+  /**
+   * Apply a set of schematic edits to this netlist in time proportional
+   * to the size of the nets they touch, rather than rebuilding it.
+   * Returns the names of every net that was created, changed or removed;
+   * a returned name that is no longer in getNets() was removed.
+   */
+  public Set<String> applyDelta(SchematicDelta delta)
+      throws TypeMismatchException {
+    if (liveConnections == null) {
+      buildIncrementalIndex();
+    }
+    // check everything up front so that a bad delta changes nothing
+    for (ConnectionValue connection : delta.getAddedConnections().values()) {
+      verifyPortIsDigitalOut(connection.getFrom());
+      verifyPortIsDigitalIn(connection.getTo());
+    }
+    for (String name : delta.getRemovedConnections()) {
+      if (!liveConnections.containsKey(name)) {
+        throw new IllegalArgumentException("connection '" + name
+            + "' is not in the netlist");
+      }
+    }
+    for (String name : delta.getAddedConnections().keySet()) {
+      if (liveConnections.containsKey(name)
+          && !delta.getRemovedConnections().contains(name)) {
+        throw new IllegalArgumentException("connection '" + name
+            + "' is already in the netlist");
+      }
+    }
+
+    Set<String> touched = new HashSet<>();
+    for (String name : delta.getRemovedConnections()) {
+      removeConnection(name, touched);
+    }
+    for (NodeValue node : delta.getRemovedNodes().values()) {
+      for (PortValue port : node.getPorts().values()) {
+        List<String> attached = portConnections.get(port);
+        if (attached != null) {
+          for (String name : new ArrayList<>(attached)) {
+            removeConnection(name, touched);
+          }
         }
-      } else {
-        // portFrom not connected to a net
-        if (connectedNet.containsKey(portTo)) {
-          Net existingNet = connectedNet.get(portTo);
-          connectToNet(portFrom, existingNet);
-        } else {
-          // neither port is connected to a net, so create a new one
-          String netName = "n_" + connectionName;
-          Net newNet = new Net(netName);
-          nets.put(netName, newNet);
-          connectToNet(portFrom, newNet);
-          connectToNet(portTo, newNet);
+      }
+    }
+    // added nodes start out with all of their ports unconnected,
+    // so they do not affect any nets until connections are added
+    for (Entry<String, ConnectionValue> connEntry
+        : delta.getAddedConnections().entrySet()) {
+      addConnection(connEntry.getKey(), connEntry.getValue(), touched);
+    }
+    return touched;
+  }
+
+  private void addConnection(String name, ConnectionValue connection,
+      Set<String> touched) {
+    recordConnection(name, connection);
+    PortValue portFrom = connection.getFrom();
+    PortValue portTo = connection.getTo();
+    Net fromNet = connectedNet.get(portFrom);
+    Net toNet = connectedNet.get(portTo);
+    if (fromNet == null && toNet == null) {
+      String netName = "n_" + name;
+      Net newNet = createNet(netName);
+      connectToNet(portFrom, newNet, true);
+      connectToNet(portTo, newNet, false);
+      touched.add(netName);
+      return;
+    }
+    Net net;
+    if (fromNet == null) {
+      connectToNet(portFrom, toNet, true);
+      net = toNet;
+    } else if (toNet == null) {
+      connectToNet(portTo, fromNet, false);
+      net = fromNet;
+    } else if (fromNet != toNet) {
+      // merge into whichever net has the smaller name, so that it keeps it
+      Net keep = fromNet;
+      Net absorb = toNet;
+      if (toNet.getName().compareTo(fromNet.getName()) < 0) {
+        keep = toNet;
+        absorb = fromNet;
+      }
+      moveNet(absorb, keep);
+      touched.add(absorb.getName());
+      net = keep;
+    } else {
+      net = fromNet;
+    }
+    touched.add(net.getName());
+    // the new connection may now be the one the net is named after
+    String netName = "n_" + name;
+    if (netName.compareTo(net.getName()) < 0) {
+      moveNet(net, createNet(netName));
+      touched.add(netName);
+    }
+  }
+
+  // Move every port of `from` onto `to`, and drop `from`.
+  private void moveNet(Net from, Net to) {
+    nets.remove(from.getName());
+    for (PortValue port : from.getDrivers()) {
+      connectToNet(port, to, true);
+    }
+    for (PortValue port : from.getSinks()) {
+      connectToNet(port, to, false);
+    }
+  }
+
+  private void removeConnection(String name, Set<String> touched) {
+    ConnectionValue connection = liveConnections.remove(name);
+    PortValue portFrom = connection.getFrom();
+    PortValue portTo = connection.getTo();
+    detachConnection(portFrom, name);
+    detachConnection(portTo, name);
+
+    Net net = connectedNet.get(portFrom);
+    touched.add(net.getName());
+    // the net stays in one piece if its two ends can still reach each other
+    // (or if the connection was the name-giver, it may still need renaming)
+    Set<PortValue> fromSide = reachablePorts(portFrom);
+    if (fromSide.contains(portTo) && !net.getName().equals("n_" + name)) {
+      return;
+    }
+    // otherwise rebuild the net as at most two smaller nets;
+    // a port with no remaining connections becomes unconnected
+    Set<PortValue> toSide;
+    if (fromSide.contains(portTo)) {
+      toSide = new HashSet<>();
+    } else {
+      toSide = new HashSet<>(net.getConnectedPorts());
+      toSide.removeAll(fromSide);
+    }
+    nets.remove(net.getName());
+    for (PortValue port : net.getConnectedPorts()) {
+      connectedNet.remove(port);
+    }
+    rebuildNet(fromSide, net, touched);
+    rebuildNet(toSide, net, touched);
+  }
+
+  // All ports reachable from `start` through live connections.
+  private Set<PortValue> reachablePorts(PortValue start) {
+    Set<PortValue> visited = new HashSet<>();
+    Deque<PortValue> queue = new ArrayDeque<>();
+    visited.add(start);
+    queue.add(start);
+    while (!queue.isEmpty()) {
+      PortValue port = queue.remove();
+      List<String> attached = portConnections.get(port);
+      if (attached == null) {
+        continue;
+      }
+      for (String name : attached) {
+        ConnectionValue connection = liveConnections.get(name);
+        PortValue other = connection.getFrom();
+        if (other == port) {
+          other = connection.getTo();
+        }
+        if (visited.add(other)) {
+          queue.add(other);
         }
       }
     }
+    return visited;
+  }
+
+  private void rebuildNet(Set<PortValue> ports, Net oldNet,
+      Set<String> touched) {
+    String firstName = null;
+    for (PortValue port : ports) {
+      List<String> attached = portConnections.get(port);
+      if (attached == null) {
+        continue;
+      }
+      for (String name : attached) {
+        if (firstName == null || name.compareTo(firstName) < 0) {
+          firstName = name;
+        }
+      }
+    }
+    if (firstName == null) {
+      // no connections left, so these ports are no longer on any net
+      return;
+    }
+    String netName = "n_" + firstName;
+    Net newNet = createNet(netName);
+    for (PortValue port : ports) {
+      connectToNet(port, newNet, oldNet.isDriver(port));
+    }
+    touched.add(netName);
   }
 
   private void verifyPortIsDigitalOut(PortValue port)
@@ -91,8 +552,16 @@ public class Netlist {
     }
   }
 
-  private void connectToNet(PortValue port, Net net) {
-    net.addPort(port);
+  private Net createNet(String netName) {
+    Net net = new Net(netName);
+    // from here on, ports can only be added through this netlist
+    net.freeze();
+    nets.put(netName, net);
+    return net;
+  }
+
+  private void connectToNet(PortValue port, Net net, boolean isDriver) {
+    net.insertPort(port, isDriver);
     connectedNet.put(port, net);
   }
 }
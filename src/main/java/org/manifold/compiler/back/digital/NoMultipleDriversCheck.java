@@ -1,60 +1,65 @@
 package org.manifold.compiler.back.digital;
 
-import java.util.Map;
-
-import org.manifold.compiler.PortTypeValue;
-import org.manifold.compiler.PortValue;
-import org.manifold.compiler.UndeclaredIdentifierException;
-import org.manifold.compiler.UndefinedBehaviourError;
 import org.manifold.compiler.middle.Schematic;
 
 
-public class NoMultipleDriversCheck extends Check {
+public class NoMultipleDriversCheck extends DesignRule {
 
-  private Schematic schematic;
-  private Netlist netlist;
-  private PortTypeValue digitalOutType;
+  private boolean noMultipleDrivers;
 
   public NoMultipleDriversCheck(Schematic schematic, Netlist netlist) {
-    super("no multiple drivers");
-    this.schematic = schematic;
-    this.netlist = netlist;
-    try {
-      this.digitalOutType = schematic.getPortType("digitalOut");
-    } catch (UndeclaredIdentifierException e) {
-      throw new UndefinedBehaviourError(
-          "schematic does not define digitalOut port type");
-    }
+    this(new CompactNetlist(schematic, netlist));
+  }
+
+  public NoMultipleDriversCheck(CompactNetlist netlist) {
+    super("no multiple drivers", netlist);
   }
 
   @Override
-  protected void verify() {
-    Map<String, Net> allNets = netlist.getNets();
-    boolean noMultipleDrivers = true;
-    for (Net net : allNets.values()) {
-      int nDrivers = 0;
-      // a driver is any Port of type `digitalOutType`
-      for (PortValue port : net.getConnectedPorts()) {
-        if (port.getType() == digitalOutType) {
-          nDrivers += 1;
-        }
-      }
-      /*
-       * after checking all ports on this net, if there are at least 2 drivers
-       * then this net is multiply-driven and DRC fails
-       */
-      if (nDrivers >= 2) {
-        noMultipleDrivers = false;
+  protected void begin() {
+    noMultipleDrivers = true;
+  }
+
+  @Override
+  protected void visitNet(int net) {
+    // a driver is any port of type digitalOut
+    int nDrivers = netlist.getNetDriverCount(net);
+    /*
+     * if there are at least 2 drivers then this net is multiply-driven and
+     * DRC fails
+     */
+    if (nDrivers >= 2) {
+      noMultipleDrivers = false;
+      if (wantsViolationDetails()) {
+        reportViolation(describe(net));
+      } else {
+        countViolation();
       }
-      /*
-       * TODO(murphy) If all we care about is the decision, we can break here.
-       * However, we should keep processing in order to collect a list of which
-       * nets are multiply driven, and the ports that are driving them. This
-       * will be useful when showing the user the results of DRC so they can
-       * correct the design.
-       * This is described in Issue #131.
-       */
     }
+  }
+
+  private Violation describe(int net) {
+    String netName = netlist.getNetName(net);
+    int nDrivers = netlist.getNetDriverCount(net);
+    String[] ports = new String[nDrivers];
+    String[] nodes = new String[nDrivers];
+    for (int k = 0; k < nDrivers; ++k) {
+      int port = netlist.getNetDriver(net, k);
+      nodes[k] = netlist.getNodeName(netlist.getPortNode(port));
+      ports[k] = nodes[k] + ":" + netlist.getPortName(port);
+    }
+    return new Violation("net '" + netName + "' has "
+        + Integer.toString(nDrivers) + " drivers",
+        new String[] {netName}, ports, nodes);
+  }
+
+  @Override
+  protected boolean isLocal() {
+    return true;
+  }
+
+  @Override
+  protected void end() {
     this.result = noMultipleDrivers;
   }
 
@@ -0,0 +1,218 @@
+package org.manifold.compiler.back.digital;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+// A directory of generated files that are only rewritten when their
+// content changes, so that downstream tools watching their timestamps do
+// not redo work for nothing.
+//
+// A file is first rendered into a hashing sink. If the file on disk has
+// the same size and SHA-256 digest, it is left alone; otherwise it is
+// rendered again, this time into the file itself. The digest, size and
+// modification time of every file written are kept in a manifest in the
+// directory, so that an unchanged file does not even have to be read back:
+// its size and modification time are enough to show that it still has the
+// recorded digest. The manifest itself is only rewritten if an entry
+// changed, so an unchanged build writes nothing.
+
+public class OutputDirectory {
+  private static Logger log = LogManager.getLogger("OutputDirectory");
+
+  public static final String MANIFEST_NAME = ".manifold-outputs";
+  // first line of the manifest; bump the number whenever the layout changes
+  private static final String MANIFEST_HEADER = "manifold-outputs 1";
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // Writes the content of one file.
+  public interface Content {
+    void writeTo(Writer out) throws IOException;
+  }
+
+  // What is known about a file: its digest (in hex), size and the
+  // modification time it had when the digest was taken.
+  private static class Entry {
+    private final String digest;
+    private final long size;
+    private final long lastModified;
+
+    Entry(String digest, long size, long lastModified) {
+      this.digest = digest;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private final Path directory;
+  // by file name; sorted, so the manifest is always written the same way
+  private final Map<String, Entry> manifest = new TreeMap<>();
+  private boolean manifestChanged = false;
+  private int filesWritten = 0;
+
+  public OutputDirectory(Path directory) throws IOException {
+    this.directory = directory;
+    loadManifest();
+  }
+
+  // Number of files that write() actually wrote.
+  public int getFilesWritten() {
+    return filesWritten;
+  }
+
+  private void loadManifest() throws IOException {
+    Path file = directory.resolve(MANIFEST_NAME);
+    if (!Files.isRegularFile(file)) {
+      return;
+    }
+    try (BufferedReader in = Files.newBufferedReader(file,
+        StandardCharsets.UTF_8)) {
+      if (!MANIFEST_HEADER.equals(in.readLine())) {
+        log.info("output manifest '" + file + "' has an unknown format");
+        return;
+      }
+      // "<digest> <size> <last modified> <file name>"
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split(" ", 4);
+        if (fields.length != 4) {
+          throw new NumberFormatException(line);
+        }
+        manifest.put(fields[3], new Entry(fields[0],
+            Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+      }
+    } catch (NumberFormatException e) {
+      // only a cache; every file will simply be checked by reading it
+      log.warn("output manifest '" + file + "' is corrupt");
+      manifest.clear();
+    }
+  }
+
+  /**
+   * Make `filename` hold `content`, encoded with `charset`, writing it only
+   * if it does not already. Returns true if the file was written.
+   */
+  public boolean write(String filename, Charset charset, Content content)
+      throws IOException {
+    Path file = directory.resolve(filename);
+    MessageDigest digest = newDigest();
+    CountingOutputStream counter = new CountingOutputStream(
+        new DigestOutputStream(ByteStreams.nullOutputStream(), digest));
+    render(counter, charset, content);
+    String rendered = hex(digest);
+    if (isUnchanged(filename, file, rendered, counter.getCount())) {
+      log.info(filename + " is unchanged");
+      return false;
+    }
+
+    // take the digest of what is actually written; if writing fails
+    // half-way, the file no longer matches its manifest entry, so it will
+    // be checked and written again next time
+    digest = newDigest();
+    counter = new CountingOutputStream(
+        new DigestOutputStream(Files.newOutputStream(file), digest));
+    render(counter, charset, content);
+    manifest.put(filename, new Entry(hex(digest), counter.getCount(),
+        Files.getLastModifiedTime(file).toMillis()));
+    manifestChanged = true;
+    filesWritten += 1;
+    return true;
+  }
+
+  private static void render(OutputStream sink, Charset charset,
+      Content content) throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(sink,
+        charset), BUFFER_SIZE)) {
+      content.writeTo(out);
+    }
+  }
+
+  // Whether `file` exists and has the given digest and size. The manifest
+  // entry is trusted if the file has not been touched since it was made;
+  // otherwise the file is read and, if it matches, the entry refreshed.
+  private boolean isUnchanged(String filename, Path file, String digest,
+      long size) throws IOException {
+    if (!Files.isRegularFile(file) || Files.size(file) != size) {
+      return false;
+    }
+    long lastModified = Files.getLastModifiedTime(file).toMillis();
+    Entry known = manifest.get(filename);
+    if (known != null && known.size == size
+        && known.lastModified == lastModified) {
+      return known.digest.equals(digest);
+    }
+    MessageDigest existing = newDigest();
+    try (InputStream in = new DigestInputStream(Files.newInputStream(file),
+        existing)) {
+      ByteStreams.copy(in, ByteStreams.nullOutputStream());
+    }
+    if (!hex(existing).equals(digest)) {
+      return false;
+    }
+    manifest.put(filename, new Entry(digest, size, lastModified));
+    manifestChanged = true;
+    return true;
+  }
+
+  // Write the manifest, if anything in it changed.
+  public void saveManifest() throws IOException {
+    if (!manifestChanged) {
+      return;
+    }
+    Path file = directory.resolve(MANIFEST_NAME);
+    Path temp = Files.createTempFile(directory, MANIFEST_NAME, ".tmp");
+    try {
+      try (Writer out = Files.newBufferedWriter(temp,
+          StandardCharsets.UTF_8)) {
+        out.write(MANIFEST_HEADER);
+        out.write('\n');
+        for (Map.Entry<String, Entry> named : manifest.entrySet()) {
+          Entry entry = named.getValue();
+          out.write(entry.digest + " " + Long.toString(entry.size) + " "
+              + Long.toString(entry.lastModified) + " " + named.getKey());
+          out.write('\n');
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    manifestChanged = false;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new CodeGenerationError(e.getMessage());
+    }
+  }
+
+  private static String hex(MessageDigest digest) {
+    return BaseEncoding.base16().lowerCase().encode(digest.digest());
+  }
+
+}
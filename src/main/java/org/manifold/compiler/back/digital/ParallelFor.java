@@ -0,0 +1,57 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs a loop body over the index range [0, n) on a ForkJoinPool,
+// splitting the range into contiguous chunks. With a null pool
+// the whole range is run on the calling thread.
+
+final class ParallelFor {
+
+  public interface Body {
+    void apply(int from, int to);
+  }
+
+  // below this many iterations a chunk is not split any further
+  private static final int MIN_CHUNK = 1024;
+
+  private ParallelFor() { }
+
+  public static void run(ForkJoinPool pool, int n, Body body) {
+    if (pool == null || n <= MIN_CHUNK) {
+      body.apply(0, n);
+      return;
+    }
+    // aim for a few chunks per worker so that uneven chunks balance out
+    int chunk = Math.max(MIN_CHUNK, n / (4 * pool.getParallelism()));
+    pool.invoke(new RangeTask(body, 0, n, chunk));
+  }
+
+  private static final class RangeTask extends RecursiveAction {
+    private static final long serialVersionUID = -2651738425960471237L;
+
+    private final Body body;
+    private final int from;
+    private final int to;
+    private final int chunk;
+
+    RangeTask(Body body, int from, int to, int chunk) {
+      this.body = body;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= chunk) {
+        body.apply(from, to);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new RangeTask(body, from, mid, chunk),
+            new RangeTask(body, mid, to, chunk));
+      }
+    }
+  }
+}
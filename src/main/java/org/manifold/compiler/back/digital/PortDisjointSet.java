@@ -0,0 +1,56 @@
+package org.manifold.compiler.back.digital;
+
+// A disjoint-set forest over dense port indices 0..size-1, used to group
+// ports into nets. Uses union by rank together with path compression,
+// so any sequence of unions and finds runs in near-linear time.
+
+final class PortDisjointSet {
+  private final int[] parent;
+  private final byte[] rank;
+
+  public PortDisjointSet(int size) {
+    parent = new int[size];
+    rank = new byte[size];
+    for (int i = 0; i < size; ++i) {
+      parent[i] = i;
+    }
+  }
+
+  public int size() {
+    return parent.length;
+  }
+
+  public int find(int x) {
+    int root = x;
+    while (parent[root] != root) {
+      root = parent[root];
+    }
+    // path compression: point everything we walked over directly at the root
+    while (parent[x] != root) {
+      int next = parent[x];
+      parent[x] = root;
+      x = next;
+    }
+    return root;
+  }
+
+  // Merge the sets containing x and y; returns the root of the merged set.
+  public int union(int x, int y) {
+    int rootX = find(x);
+    int rootY = find(y);
+    if (rootX == rootY) {
+      return rootX;
+    }
+    if (rank[rootX] < rank[rootY]) {
+      parent[rootX] = rootY;
+      return rootY;
+    } else if (rank[rootX] > rank[rootY]) {
+      parent[rootY] = rootX;
+      return rootX;
+    } else {
+      parent[rootY] = rootX;
+      rank[rootX] += 1;
+      return rootX;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package org.manifold.compiler.back.digital;
+
+// The kinds of primitive node understood by the digital backend.
+// PrimitiveTypeTable classifies nodes into these once, so that later
+// passes can dispatch on a small integer instead of comparing types.
+
+public enum PrimitiveKind {
+  INPUT_PIN,
+  OUTPUT_PIN,
+  REGISTER,
+  AND,
+  OR,
+  NOT,
+  // any node type that is not one of the above
+  UNKNOWN;
+
+  private static final PrimitiveKind[] byCode = values();
+
+  public byte getCode() {
+    return (byte) ordinal();
+  }
+
+  public static PrimitiveKind fromCode(byte code) {
+    return byCode[code];
+  }
+}
@@ -1,5 +1,8 @@
 package org.manifold.compiler.back.digital;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import org.manifold.compiler.NodeTypeValue;
 import org.manifold.compiler.PortTypeValue;
 import org.manifold.compiler.UndeclaredIdentifierException;
@@ -17,6 +20,11 @@ public class PrimitiveTypeTable {
   private NodeTypeValue andType = null;
   private NodeTypeValue orType = null;
   private NodeTypeValue notType = null;
+
+  // node types seen so far; a design has few distinct types, so after the
+  // first node of each type, classification is a single identity lookup.
+  // Guarded by `this`, since checks running concurrently share the table.
+  private Map<NodeTypeValue, PrimitiveKind> kinds = new IdentityHashMap<>();
   
   public PortTypeValue getInputPortType() {
     return inputPortType;
@@ -50,6 +58,39 @@ public class PrimitiveTypeTable {
     return notType;
   }
   
+  public synchronized PrimitiveKind getKind(NodeTypeValue type) {
+    PrimitiveKind kind = kinds.get(type);
+    if (kind == null) {
+      if (type.equals(inputPinType)) {
+        kind = PrimitiveKind.INPUT_PIN;
+      } else if (type.equals(outputPinType)) {
+        kind = PrimitiveKind.OUTPUT_PIN;
+      } else if (type.equals(registerType)) {
+        kind = PrimitiveKind.REGISTER;
+      } else if (type.equals(andType)) {
+        kind = PrimitiveKind.AND;
+      } else if (type.equals(orType)) {
+        kind = PrimitiveKind.OR;
+      } else if (type.equals(notType)) {
+        kind = PrimitiveKind.NOT;
+      } else {
+        kind = PrimitiveKind.UNKNOWN;
+      }
+      kinds.put(type, kind);
+    }
+    return kind;
+  }
+
+  // Classify every node of a netlist. The result is indexed by node id
+  // and holds PrimitiveKind codes.
+  public synchronized byte[] classifyNodes(CompactNetlist netlist) {
+    byte[] nodeKinds = new byte[netlist.getNodeCount()];
+    for (int n = 0; n < nodeKinds.length; ++n) {
+      nodeKinds[n] = getKind(netlist.getNode(n).getType()).getCode();
+    }
+    return nodeKinds;
+  }
+
   public PrimitiveTypeTable(Schematic schematic) {
     // get information from the schematic about which node types to use
     try {
@@ -62,11 +103,37 @@ public class PrimitiveTypeTable {
       orType = schematic.getNodeType("or");
       notType = schematic.getNodeType("not");
     } catch (UndeclaredIdentifierException e) {
-      throw new CodeGenerationError(
-          "could not find required digital design type '"
-          + e.getIdentifier() + "'; schematic version mismatch or "
-          + " not a digital schematic");
+      throw missingType(e.getIdentifier());
     }
   }
+
+  // Build the table from type definitions that are not (yet) part of a
+  // Schematic, e.g. while a schematic file is being streamed in.
+  PrimitiveTypeTable(Map<String, PortTypeValue> portTypes,
+      Map<String, NodeTypeValue> nodeTypes) {
+    inputPortType = lookup(portTypes, "digitalIn");
+    outputPortType = lookup(portTypes, "digitalOut");
+    inputPinType = lookup(nodeTypes, "inputPin");
+    outputPinType = lookup(nodeTypes, "outputPin");
+    registerType = lookup(nodeTypes, "register");
+    andType = lookup(nodeTypes, "and");
+    orType = lookup(nodeTypes, "or");
+    notType = lookup(nodeTypes, "not");
+  }
+
+  private static <T> T lookup(Map<String, T> types, String typeName) {
+    T type = types.get(typeName);
+    if (type == null) {
+      throw missingType(typeName);
+    }
+    return type;
+  }
+
+  private static CodeGenerationError missingType(String typeName) {
+    return new CodeGenerationError(
+        "could not find required digital design type '"
+        + typeName + "'; schematic version mismatch or "
+        + " not a digital schematic");
+  }
   
 }
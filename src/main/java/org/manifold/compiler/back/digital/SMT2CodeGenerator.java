@@ -1,23 +1,19 @@
 package org.manifold.compiler.back.digital;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Path;
+import java.nio.charset.Charset;
 import java.nio.file.Paths;
+import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.manifold.compiler.BooleanValue;
 import org.manifold.compiler.NodeValue;
-import org.manifold.compiler.PortValue;
 import org.manifold.compiler.UndeclaredAttributeException;
-import org.manifold.compiler.UndeclaredIdentifierException;
 import org.manifold.compiler.back.digital.smt2.Bitstring;
 import org.manifold.compiler.back.digital.smt2.QFABV;
 import org.manifold.compiler.back.digital.smt2.SExpression;
@@ -27,9 +23,16 @@ import org.manifold.compiler.middle.Schematic;
 public class SMT2CodeGenerator {
   private static Logger log = LogManager.getLogger("SMT2CodeGenerator");
 
-  private Schematic schematic;
-  private Netlist netlist;
+  private CompactNetlist netlist;
   private PrimitiveTypeTable typeTable;
+
+  // Generates the declarations and assertions that model one node.
+  private interface NodeEmitter {
+    void emit(int nodeId) throws UndeclaredAttributeException;
+  }
+
+  private Map<PrimitiveKind, NodeEmitter> nodeEmitters =
+      new EnumMap<>(PrimitiveKind.class);
   
   private String outputDirectory;
   public void setOutputDirectory(String dir) {
@@ -52,7 +55,11 @@ public class SMT2CodeGenerator {
   
   public SMT2CodeGenerator(Schematic schematic, Netlist netlist,
       PrimitiveTypeTable typeTable) {
-    this.schematic = schematic;
+    this(new CompactNetlist(schematic, netlist), typeTable);
+  }
+
+  public SMT2CodeGenerator(CompactNetlist netlist,
+      PrimitiveTypeTable typeTable) {
     this.netlist = netlist;
     this.typeTable = typeTable;
     // by default, output to current working directory
@@ -60,18 +67,38 @@ public class SMT2CodeGenerator {
     
     this.declarations = new LinkedList<SExpression>();
     this.assertions = new LinkedList<SExpression>();
+
+    nodeEmitters.put(PrimitiveKind.INPUT_PIN, this::generateInputPin);
+    nodeEmitters.put(PrimitiveKind.OUTPUT_PIN, this::generateOutputPin);
+    nodeEmitters.put(PrimitiveKind.AND, this::generateAndGate);
+    nodeEmitters.put(PrimitiveKind.OR, this::generateOrGate);
+    nodeEmitters.put(PrimitiveKind.NOT, this::generateNotGate);
+    nodeEmitters.put(PrimitiveKind.REGISTER, this::generateRegister);
   }
   
   private void err(String message) {
     throw new CodeGenerationError(message);
   }
+
+  // Returns the name of the net attached to the named port of a node.
+  private String getConnectedNetName(int nodeId, String portName) {
+    int port = netlist.getPort(nodeId, portName);
+    if (port == -1) {
+      err("node '" + netlist.getNodeName(nodeId) + "' has no port '"
+          + portName + "'");
+    }
+    int net = netlist.getPortNet(port);
+    if (net == CompactNetlist.NOT_CONNECTED) {
+      err("port '" + portName + "' of node '" + netlist.getNodeName(nodeId)
+          + "' is not connected to any nets");
+    }
+    return netlist.getNetName(net);
+  }
   
-  private void generateInputPin(String nodeName, NodeValue node) 
-      throws UndeclaredIdentifierException {
+  private void generateInputPin(int nodeId) {
     // find out what net we drive
-    PortValue inputPort = node.getPort("out");
-    Net inputNet = netlist.getConnectedNet(inputPort);
-    String netName = inputNet.getName();
+    String nodeName = netlist.getNodeName(nodeId);
+    String netName = getConnectedNetName(nodeId, "out");
     for (int i = 0; i <= numberOfStates; ++i) {
       Symbol symInput = QFABV.getStateVariable(nodeName, i);
       Symbol symNet = QFABV.getStateVariable(netName, i);
@@ -83,12 +110,10 @@ public class SMT2CodeGenerator {
     }
   }
   
-  private void generateOutputPin(String nodeName, NodeValue node) 
-      throws UndeclaredIdentifierException {
+  private void generateOutputPin(int nodeId) {
     // find out what net drives the input
-    PortValue outputPort = node.getPort("in");
-    Net outputNet = netlist.getConnectedNet(outputPort);
-    String netName = outputNet.getName();
+    String nodeName = netlist.getNodeName(nodeId);
+    String netName = getConnectedNetName(nodeId, "in");
     for (int i = 0; i <= numberOfStates; ++i) {
       Symbol symOutput = QFABV.getStateVariable(nodeName, i);
       Symbol symNet = QFABV.getStateVariable(netName, i);
@@ -99,20 +124,11 @@ public class SMT2CodeGenerator {
     }
   }
   
-  private void generateAndGate(String nodeName, NodeValue node) 
-      throws UndeclaredIdentifierException {
+  private void generateAndGate(int nodeId) {
     // out = in0 AND in1
-    PortValue in0Port = node.getPort("in0");
-    PortValue in1Port = node.getPort("in1");
-    PortValue outPort = node.getPort("out");
-    
-    Net in0Net = netlist.getConnectedNet(in0Port);
-    Net in1Net = netlist.getConnectedNet(in1Port);
-    Net outNet = netlist.getConnectedNet(outPort);
-    
-    String in0NetName = in0Net.getName();
-    String in1NetName = in1Net.getName();
-    String outNetName = outNet.getName();
+    String in0NetName = getConnectedNetName(nodeId, "in0");
+    String in1NetName = getConnectedNetName(nodeId, "in1");
+    String outNetName = getConnectedNetName(nodeId, "out");
     
     for (int i = 0; i <= numberOfStates; ++i) {
       Symbol symIn0 = QFABV.getStateVariable(in0NetName, i);
@@ -125,20 +141,11 @@ public class SMT2CodeGenerator {
     }
   }
   
-  private void generateOrGate(String nodeName, NodeValue node) 
-      throws UndeclaredIdentifierException {
+  private void generateOrGate(int nodeId) {
     // out = in0 OR in1
-    PortValue in0Port = node.getPort("in0");
-    PortValue in1Port = node.getPort("in1");
-    PortValue outPort = node.getPort("out");
-    
-    Net in0Net = netlist.getConnectedNet(in0Port);
-    Net in1Net = netlist.getConnectedNet(in1Port);
-    Net outNet = netlist.getConnectedNet(outPort);
-    
-    String in0NetName = in0Net.getName();
-    String in1NetName = in1Net.getName();
-    String outNetName = outNet.getName();
+    String in0NetName = getConnectedNetName(nodeId, "in0");
+    String in1NetName = getConnectedNetName(nodeId, "in1");
+    String outNetName = getConnectedNetName(nodeId, "out");
     
     for (int i = 0; i <= numberOfStates; ++i) {
       Symbol symIn0 = QFABV.getStateVariable(in0NetName, i);
@@ -151,17 +158,10 @@ public class SMT2CodeGenerator {
     }
   }
   
-  private void generateNotGate(String nodeName, NodeValue node) 
-      throws UndeclaredIdentifierException {
+  private void generateNotGate(int nodeId) {
     // out = NOT in
-    PortValue inPort = node.getPort("in");
-    PortValue outPort = node.getPort("out");
-    
-    Net inNet = netlist.getConnectedNet(inPort);
-    Net outNet = netlist.getConnectedNet(outPort);
-    
-    String inNetName = inNet.getName();
-    String outNetName = outNet.getName();
+    String inNetName = getConnectedNetName(nodeId, "in");
+    String outNetName = getConnectedNetName(nodeId, "out");
     
     for (int i = 0; i <= numberOfStates; ++i) {
       Symbol symIn = QFABV.getStateVariable(inNetName, i);
@@ -173,22 +173,15 @@ public class SMT2CodeGenerator {
     }
   }
   
-  private void generateRegister(String nodeName, NodeValue node) 
-      throws UndeclaredIdentifierException, UndeclaredAttributeException {
+  private void generateRegister(int nodeId)
+      throws UndeclaredAttributeException {
     // ports: in, out, reset
     // attributes: initialValue, resetActiveHigh
-    PortValue inPort = node.getPort("in");
-    PortValue outPort = node.getPort("out");
-    PortValue resetPort = node.getPort("reset");
-    
-    Net inNet = netlist.getConnectedNet(inPort);
-    Net outNet = netlist.getConnectedNet(outPort);
-    Net resetNet = netlist.getConnectedNet(resetPort);
-    
-    String inNetName = inNet.getName();
-    String outNetName = outNet.getName();
-    String resetNetName = resetNet.getName();
+    String inNetName = getConnectedNetName(nodeId, "in");
+    String outNetName = getConnectedNetName(nodeId, "out");
+    String resetNetName = getConnectedNetName(nodeId, "reset");
     
+    NodeValue node = netlist.getNode(nodeId);
     boolean initialValue = ((BooleanValue) node
         .getAttribute("initialValue")).toBoolean();
     boolean resetActiveHigh = ((BooleanValue) node
@@ -236,62 +229,60 @@ public class SMT2CodeGenerator {
       err("invalid number of states specified; must be non-negative");
     }
     
-    String entityName = schematic.getName();
+    String entityName = netlist.getName();
     String filename = entityName + ".smt2";
-    Path outpath = Paths.get(outputDirectory + File.separator + filename);
-    File outfile = new File(outpath.toString());
     log.info("Generating " + filename);
     
-    try (PrintWriter writer = new PrintWriter(new BufferedWriter(
-        new FileWriter(outfile)));) {
-      // SMT2 logic header: QF_ABV
-      // TODO if no component is modelled as an array, emit QF_BV
-      // TODO check to make sure all nets are driven
-      // TODO check that all resets are synchronous
-      // TODO check that all registers clock on the same edge
-      // TODO check that all registers are in the same clock domain
-      writer.println("(set-logic QF_ABV)");
-      writer.println("(set-info :smt-lib-version 2.0)");
-      // for each node, populate two sets:
-      // * declarations: all outputs declared by this node
-      // * assertions: all equations that model this node
-      // note that we end up with 'numberOfStates'+1 copies of
-      // each declaration (which each generator creates on its own)
-      try {
-        for (Entry<String, NodeValue> entry : schematic.getNodes().entrySet()) {
-          String nodeName = entry.getKey();
-          NodeValue node = entry.getValue();
-          if (node.getType().equals(typeTable.getInputPinType())) {
-            generateInputPin(nodeName, node);
-          } else if (node.getType().equals(typeTable.getOutputPinType())) {
-            generateOutputPin(nodeName, node);
-          } else if (node.getType().equals(typeTable.getAndType())) {
-            generateAndGate(nodeName, node);
-          } else if (node.getType().equals(typeTable.getOrType())) {
-            generateOrGate(nodeName, node);
-          } else if (node.getType().equals(typeTable.getNotType())) {
-            generateNotGate(nodeName, node);
-          } else if (node.getType().equals(typeTable.getRegisterType())) {
-            generateRegister(nodeName, node);
-          } else {
-            err("node " + nodeName + " has unknown node type");
-          }
+    // for each node, populate two sets:
+    // * declarations: all outputs declared by this node
+    // * assertions: all equations that model this node
+    // note that we end up with 'numberOfStates'+1 copies of
+    // each declaration (which each generator creates on its own)
+    byte[] nodeKinds = typeTable.classifyNodes(netlist);
+    try {
+      for (int nodeId = 0; nodeId < netlist.getNodeCount(); ++nodeId) {
+        NodeEmitter emitter = nodeEmitters.get(
+            PrimitiveKind.fromCode(nodeKinds[nodeId]));
+        if (emitter == null) {
+          err("node " + netlist.getNodeName(nodeId)
+              + " has unknown node type");
         }
-      } catch (UndeclaredIdentifierException | UndeclaredAttributeException e) {
-        err(e.getMessage());
-      }
-      
-      // then write out all generated expressions, starting with declarations
-      // followed by assertions
-      for (SExpression expr : declarations) {
-        expr.write(writer);
-        writer.println();
-      }
-      for (SExpression expr : assertions) {
-        expr.write(writer);
-        writer.println();
+        emitter.emit(nodeId);
       }
-      
+    } catch (UndeclaredAttributeException e) {
+      err(e.getMessage());
+    }
+
+    // the file is only rewritten if its content changed
+    try {
+      OutputDirectory output = new OutputDirectory(
+          Paths.get(outputDirectory));
+      output.write(filename, Charset.defaultCharset(), out -> {
+        PrintWriter writer = new PrintWriter(out);
+        // SMT2 logic header: QF_ABV
+        // TODO if no component is modelled as an array, emit QF_BV
+        // TODO check to make sure all nets are driven
+        // TODO check that all resets are synchronous
+        // TODO check that all registers clock on the same edge
+        // TODO check that all registers are in the same clock domain
+        writer.println("(set-logic QF_ABV)");
+        writer.println("(set-info :smt-lib-version 2.0)");
+        // then write out all generated expressions, starting with
+        // declarations followed by assertions
+        for (SExpression expr : declarations) {
+          expr.write(writer);
+          writer.println();
+        }
+        for (SExpression expr : assertions) {
+          expr.write(writer);
+          writer.println();
+        }
+        // PrintWriter swallows errors from the underlying writer
+        if (writer.checkError()) {
+          throw new IOException("could not write " + filename);
+        }
+      });
+      output.saveManifest();
     } catch (IOException e) {
       err(e.getMessage());
     }
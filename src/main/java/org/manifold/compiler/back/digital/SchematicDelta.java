@@ -0,0 +1,60 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+
+// A set of edits to a schematic, to be applied to an existing Netlist
+// with Netlist.applyDelta(). Removals are applied before additions,
+// so a connection can be replaced by removing and re-adding its name.
+
+public class SchematicDelta {
+
+  private Map<String, NodeValue> addedNodes = new LinkedHashMap<>();
+  private Map<String, NodeValue> removedNodes = new LinkedHashMap<>();
+  private Map<String, ConnectionValue> addedConnections =
+      new LinkedHashMap<>();
+  private Set<String> removedConnections = new LinkedHashSet<>();
+
+  public void addNode(String name, NodeValue node) {
+    addedNodes.put(name, node);
+  }
+
+  // Removing a node also removes every connection attached to its ports.
+  public void removeNode(String name, NodeValue node) {
+    removedNodes.put(name, node);
+  }
+
+  public void addConnection(String name, ConnectionValue connection) {
+    addedConnections.put(name, connection);
+  }
+
+  public void removeConnection(String name) {
+    removedConnections.add(name);
+  }
+
+  public Map<String, NodeValue> getAddedNodes() {
+    return addedNodes;
+  }
+
+  public Map<String, NodeValue> getRemovedNodes() {
+    return removedNodes;
+  }
+
+  public Map<String, ConnectionValue> getAddedConnections() {
+    return addedConnections;
+  }
+
+  public Set<String> getRemovedConnections() {
+    return removedConnections;
+  }
+
+  public boolean isEmpty() {
+    return addedNodes.isEmpty() && removedNodes.isEmpty()
+        && addedConnections.isEmpty() && removedConnections.isEmpty();
+  }
+}
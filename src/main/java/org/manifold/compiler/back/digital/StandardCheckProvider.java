@@ -0,0 +1,29 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The backend's own design checks. They are registered as a CheckProvider
+// like any other, so every check the backend runs is found the same way.
+
+public class StandardCheckProvider implements CheckProvider {
+
+  // number of highest-fanout nets to log
+  private static final int FANOUT_REPORT_SIZE = 10;
+
+  @Override
+  public List<Check> createChecks(CheckContext context) {
+    CompactNetlist netlist = context.getNetlist();
+    List<Check> checks = new ArrayList<Check>();
+    checks.add(new NoMultipleDriversCheck(netlist));
+    checks.add(new NoUnconnectedInputsCheck(netlist,
+        context.getTypeTable().getInputPortType()));
+    checks.add(new CombinationalLoopCheck(context));
+    checks.add(new ClockDomainCheck(context,
+        context.isStrictClockDomains()));
+    checks.add(new FanoutCheck(netlist, context.getMaxFanout()));
+    checks.add(new FanoutStatistics(netlist, FANOUT_REPORT_SIZE));
+    return checks;
+  }
+
+}
@@ -0,0 +1,454 @@
+package org.manifold.compiler.back.digital;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.manifold.compiler.BooleanTypeValue;
+import org.manifold.compiler.BooleanValue;
+import org.manifold.compiler.NodeTypeValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortTypeValue;
+import org.manifold.compiler.TypeMismatchException;
+import org.manifold.compiler.TypeValue;
+import org.manifold.compiler.UndeclaredIdentifierException;
+import org.manifold.compiler.Value;
+import org.manifold.compiler.middle.SchematicException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+// Reads a schematic in the usual JSON form token by token and builds a
+// CompactNetlist directly, without materializing a Schematic or a Netlist.
+//
+// Only what the backend needs is kept while reading: the type definitions,
+// one NodeValue per node (for its attributes), and two port indices per
+// connection. Ports are grouped into nets with a disjoint-set forest once
+// all connections have been seen.
+//
+// Type definitions must appear before "nodes", and "nodes" before
+// "connections", as they do in files written by the frontend.
+// Port and connection attributes are not used by the backend and are
+// skipped; the only attribute type understood is Bool.
+
+public class StreamingSchematicReader {
+
+  private final JsonReader reader;
+
+  private String name = null;
+  private Map<String, PortTypeValue> portTypes = null;
+  private Map<String, NodeTypeValue> nodeTypes = null;
+  private PrimitiveTypeTable typeTable = null;
+
+  // port names of each node type, sorted, and which of them are outputs
+  private Map<NodeTypeValue, String[]> typePortNames = new HashMap<>();
+  private Map<NodeTypeValue, boolean[]> typePortIsOutput = new HashMap<>();
+
+  // nodes, in file order, with their ports numbered contiguously
+  private boolean nodesRead = false;
+  private List<String> nodeNames = new ArrayList<>();
+  private List<NodeValue> nodeValues = new ArrayList<>();
+  private Map<String, Integer> nodeIndex = new HashMap<>();
+  private int[] nodePortBase = new int[16];
+  private int nPorts = 0;
+
+  // connections, in file order, as (from, to) port indices
+  private List<String> connectionNames = new ArrayList<>();
+  private int[] connectionFrom = new int[16];
+  private int[] connectionTo = new int[16];
+
+  private CompactNetlist netlist = null;
+
+  public StreamingSchematicReader(Reader in) {
+    this.reader = new JsonReader(in);
+  }
+
+  public CompactNetlist getNetlist() {
+    return netlist;
+  }
+
+  public PrimitiveTypeTable getTypeTable() {
+    return typeTable;
+  }
+
+  public void read() throws IOException, SchematicException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String section = reader.nextName();
+      switch (section) {
+          case "name":
+            name = reader.nextString();
+            break;
+          case "portTypes":
+            readPortTypes();
+            break;
+          case "nodeTypes":
+            readNodeTypes();
+            break;
+          case "nodes":
+            readNodes();
+            break;
+          case "connections":
+            readConnections();
+            break;
+          default:
+            reader.skipValue();
+            break;
+      }
+    }
+    reader.endObject();
+    if (name == null) {
+      throw new IOException("schematic has no name");
+    }
+    if (!nodesRead) {
+      // an empty design
+      requireSection(nodeTypes != null, "nodes", "nodeTypes");
+      nodesRead = true;
+    }
+    netlist = buildNetlist();
+    // only the netlist is needed from here on
+    nodeNames = null;
+    nodeIndex = null;
+    nodeValues = null;
+    connectionNames = null;
+    connectionFrom = null;
+    connectionTo = null;
+  }
+
+  private void requireSection(boolean present, String section,
+      String previous) throws IOException {
+    if (!present) {
+      throw new IOException("schematic section '" + section
+          + "' must come after '" + previous + "'");
+    }
+  }
+
+  private TypeValue readTypeName() throws IOException,
+      UndeclaredIdentifierException {
+    String typeName = reader.nextString();
+    if (typeName.equals("Bool")) {
+      return BooleanTypeValue.getInstance();
+    }
+    throw new UndeclaredIdentifierException(typeName);
+  }
+
+  private Map<String, TypeValue> readTypeAttributes() throws IOException,
+      UndeclaredIdentifierException {
+    Map<String, TypeValue> attributes = new HashMap<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      attributes.put(reader.nextName(), readTypeName());
+    }
+    reader.endObject();
+    return attributes;
+  }
+
+  private void readPortTypes() throws IOException,
+      UndeclaredIdentifierException {
+    portTypes = new HashMap<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String typeName = reader.nextName();
+      TypeValue signalType = null;
+      Map<String, TypeValue> attributes = new HashMap<>();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String key = reader.nextName();
+        if (key.equals("signalType")) {
+          signalType = readTypeName();
+        } else if (key.equals("attributes")) {
+          attributes = readTypeAttributes();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (signalType == null) {
+        throw new IOException("port type '" + typeName
+            + "' has no signal type");
+      }
+      portTypes.put(typeName, new PortTypeValue(signalType, attributes));
+    }
+    reader.endObject();
+  }
+
+  private void readNodeTypes() throws IOException,
+      UndeclaredIdentifierException {
+    requireSection(portTypes != null, "nodeTypes", "portTypes");
+    nodeTypes = new HashMap<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String typeName = reader.nextName();
+      Map<String, TypeValue> attributes = new HashMap<>();
+      Map<String, PortTypeValue> ports = new HashMap<>();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String key = reader.nextName();
+        if (key.equals("attributes")) {
+          attributes = readTypeAttributes();
+        } else if (key.equals("ports")) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String portName = reader.nextName();
+            String portTypeName = reader.nextString();
+            PortTypeValue portType = portTypes.get(portTypeName);
+            if (portType == null) {
+              throw new UndeclaredIdentifierException(portTypeName);
+            }
+            ports.put(portName, portType);
+          }
+          reader.endObject();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      nodeTypes.put(typeName, new NodeTypeValue(attributes, ports));
+    }
+    reader.endObject();
+
+    typeTable = new PrimitiveTypeTable(portTypes, nodeTypes);
+    PortTypeValue outputPortType = typeTable.getOutputPortType();
+    for (NodeTypeValue nodeType : nodeTypes.values()) {
+      Map<String, PortTypeValue> ports = nodeType.getPorts();
+      String[] portNames = ports.keySet().toArray(new String[ports.size()]);
+      Arrays.sort(portNames);
+      boolean[] isOutput = new boolean[portNames.length];
+      for (int k = 0; k < portNames.length; ++k) {
+        isOutput[k] = ports.get(portNames[k]).equals(outputPortType);
+      }
+      typePortNames.put(nodeType, portNames);
+      typePortIsOutput.put(nodeType, isOutput);
+    }
+  }
+
+  private void readNodes() throws IOException, SchematicException {
+    requireSection(nodeTypes != null, "nodes", "nodeTypes");
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String nodeName = reader.nextName();
+      String typeName = null;
+      Map<String, String> attributeText = new HashMap<>();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String key = reader.nextName();
+        if (key.equals("type")) {
+          typeName = reader.nextString();
+        } else if (key.equals("attributes")) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String attrName = reader.nextName();
+            if (reader.peek() == JsonToken.BOOLEAN) {
+              attributeText.put(attrName,
+                  Boolean.toString(reader.nextBoolean()));
+            } else {
+              attributeText.put(attrName, reader.nextString());
+            }
+          }
+          reader.endObject();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (typeName == null) {
+        throw new IOException("node '" + nodeName + "' has no type");
+      }
+      NodeTypeValue nodeType = nodeTypes.get(typeName);
+      if (nodeType == null) {
+        throw new UndeclaredIdentifierException(typeName);
+      }
+      addNode(nodeName, nodeType, attributeText);
+    }
+    reader.endObject();
+    nodesRead = true;
+  }
+
+  private void addNode(String nodeName, NodeTypeValue nodeType,
+      Map<String, String> attributeText)
+      throws IOException, SchematicException {
+    if (nodeIndex.containsKey(nodeName)) {
+      throw new IOException("node '" + nodeName + "' is defined twice");
+    }
+    Map<String, Value> attributes = new HashMap<>();
+    for (Map.Entry<String, String> attr : attributeText.entrySet()) {
+      TypeValue attrType = nodeType.getAttributes().get(attr.getKey());
+      if (attrType == null) {
+        throw new UndeclaredIdentifierException(attr.getKey());
+      }
+      String text = attr.getValue();
+      if (!text.equals("true") && !text.equals("false")) {
+        throw new IOException("attribute '" + attr.getKey() + "' of node '"
+            + nodeName + "' is not a Bool");
+      }
+      attributes.put(attr.getKey(),
+          BooleanValue.getInstance(Boolean.parseBoolean(text)));
+    }
+    Map<String, Map<String, Value>> portAttributes = new HashMap<>();
+    for (String portName : typePortNames.get(nodeType)) {
+      portAttributes.put(portName, new HashMap<String, Value>());
+    }
+
+    int node = nodeNames.size();
+    nodeIndex.put(nodeName, node);
+    nodeNames.add(nodeName);
+    nodeValues.add(new NodeValue(nodeType, attributes, portAttributes));
+    if (node == nodePortBase.length) {
+      nodePortBase = Arrays.copyOf(nodePortBase, 2 * node);
+    }
+    nodePortBase[node] = nPorts;
+    nPorts += typePortNames.get(nodeType).length;
+  }
+
+  private void readConnections() throws IOException, SchematicException {
+    requireSection(nodesRead, "connections", "nodes");
+    Set<String> seen = new HashSet<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String connectionName = reader.nextName();
+      String from = null;
+      String to = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String key = reader.nextName();
+        if (key.equals("from")) {
+          from = reader.nextString();
+        } else if (key.equals("to")) {
+          to = reader.nextString();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (from == null || to == null) {
+        throw new IOException("connection '" + connectionName
+            + "' is missing an endpoint");
+      }
+      if (!seen.add(connectionName)) {
+        throw new IOException("connection '" + connectionName
+            + "' is defined twice");
+      }
+      int c = connectionNames.size();
+      if (c == connectionFrom.length) {
+        connectionFrom = Arrays.copyOf(connectionFrom, 2 * c);
+        connectionTo = Arrays.copyOf(connectionTo, 2 * c);
+      }
+      connectionFrom[c] = resolvePort(from, true);
+      connectionTo[c] = resolvePort(to, false);
+      connectionNames.add(connectionName);
+    }
+    reader.endObject();
+  }
+
+  // Map "node:port" to a port index, checking the port's direction
+  // the same way Netlist does.
+  private int resolvePort(String endpoint, boolean mustBeOutput)
+      throws IOException, SchematicException {
+    int colon = endpoint.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IOException("malformed connection endpoint '"
+          + endpoint + "'");
+    }
+    String nodeName = endpoint.substring(0, colon);
+    String portName = endpoint.substring(colon + 1);
+    Integer node = nodeIndex.get(nodeName);
+    if (node == null) {
+      throw new UndeclaredIdentifierException(nodeName);
+    }
+    NodeTypeValue nodeType = nodeValues.get(node).getType();
+    int k = Arrays.binarySearch(typePortNames.get(nodeType), portName);
+    if (k < 0) {
+      throw new UndeclaredIdentifierException(portName);
+    }
+    PortTypeValue expected = mustBeOutput ? typeTable.getOutputPortType()
+        : typeTable.getInputPortType();
+    PortTypeValue portType = nodeType.getPorts().get(portName);
+    if (!portType.equals(expected)) {
+      throw new TypeMismatchException(expected, portType);
+    }
+    return nodePortBase[node] + k;
+  }
+
+  private CompactNetlist buildNetlist() {
+    // renumber nodes in name order; ports keep their order within a node
+    int nNodes = nodeNames.size();
+    String[] sortedNodeNames = nodeNames.toArray(new String[nNodes]);
+    Arrays.sort(sortedNodeNames);
+    NodeValue[] nodes = new NodeValue[nNodes];
+    int[] nodePortOffsets = new int[nNodes + 1];
+    String[] portNames = new String[nPorts];
+    boolean[] portIsOutput = new boolean[nPorts];
+    int[] newPort = new int[nPorts];
+    int p = 0;
+    for (int n = 0; n < nNodes; ++n) {
+      int oldNode = nodeIndex.get(sortedNodeNames[n]);
+      nodes[n] = nodeValues.get(oldNode);
+      nodePortOffsets[n] = p;
+      NodeTypeValue nodeType = nodes[n].getType();
+      String[] names = typePortNames.get(nodeType);
+      boolean[] isOutput = typePortIsOutput.get(nodeType);
+      for (int k = 0; k < names.length; ++k) {
+        newPort[nodePortBase[oldNode] + k] = p;
+        portNames[p] = names[k];
+        portIsOutput[p] = isOutput[k];
+        ++p;
+      }
+    }
+    nodePortOffsets[nNodes] = nPorts;
+
+    // group connected ports into nets
+    int nConnections = connectionNames.size();
+    PortDisjointSet forest = new PortDisjointSet(nPorts);
+    boolean[] connected = new boolean[nPorts];
+    for (int c = 0; c < nConnections; ++c) {
+      int from = newPort[connectionFrom[c]];
+      int to = newPort[connectionTo[c]];
+      connected[from] = true;
+      connected[to] = true;
+      forest.union(from, to);
+    }
+
+    // each net is named after its connection with the smallest name, as
+    // Netlist names it, whatever order the file lists connections in
+    String[] rootNetName = new String[nPorts];
+    int nNets = 0;
+    for (int c = 0; c < nConnections; ++c) {
+      int root = forest.find(newPort[connectionFrom[c]]);
+      String netName = "n_" + connectionNames.get(c);
+      if (rootNetName[root] == null) {
+        ++nNets;
+        rootNetName[root] = netName;
+      } else if (netName.compareTo(rootNetName[root]) < 0) {
+        rootNetName[root] = netName;
+      }
+    }
+    String[] netNames = new String[nNets];
+    int net = 0;
+    for (String netName : rootNetName) {
+      if (netName != null) {
+        netNames[net++] = netName;
+      }
+    }
+    Arrays.sort(netNames);
+
+    int[] portNet = new int[nPorts];
+    for (p = 0; p < nPorts; ++p) {
+      if (connected[p]) {
+        portNet[p] = Arrays.binarySearch(netNames,
+            rootNetName[forest.find(p)]);
+      } else {
+        portNet[p] = CompactNetlist.NOT_CONNECTED;
+      }
+    }
+
+    return new CompactNetlist(name, sortedNodeNames, nodes,
+        nodePortOffsets, portNames, portIsOutput, portNet, netNames);
+  }
+
+}
@@ -1,23 +1,29 @@
 package org.manifold.compiler.back.digital;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Path;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.manifold.compiler.BooleanValue;
 import org.manifold.compiler.NodeValue;
-import org.manifold.compiler.PortValue;
 import org.manifold.compiler.UndeclaredAttributeException;
-import org.manifold.compiler.UndeclaredIdentifierException;
 import org.manifold.compiler.UndefinedBehaviourError;
 import org.manifold.compiler.middle.Schematic;
 
@@ -25,9 +31,18 @@ public class VHDLCodeGenerator {
   private static Logger log = LogManager.getLogger("VHDLCodeGenerator");
   private static String newline = System.getProperty("line.separator");
 
-  private Schematic schematic;
-  private Netlist netlist;
+  private CompactNetlist netlist;
   private PrimitiveTypeTable typeTable;
+  // PrimitiveKind code of each node, by node id
+  private byte[] nodeKinds;
+
+  // Writes the concurrent statements that implement one node.
+  private interface NodeEmitter {
+    void emit(int nodeId, Writer stmts) throws IOException;
+  }
+
+  private Map<PrimitiveKind, NodeEmitter> nodeEmitters =
+      new EnumMap<>(PrimitiveKind.class);
 
   private String outputDirectory;
   public void setOutputDirectory(String dir) {
@@ -39,23 +54,142 @@ public class VHDLCodeGenerator {
     this.runChecks = run;
   }
 
+  // workers for rendering signals and nodes; null means do it serially
+  private ForkJoinPool pool = null;
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  // number of consecutive node or net ids rendered by one worker task
+  private int chunkSize = 4096;
+  public void setChunkSize(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunk size must be positive");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  // whether repeated subcircuits are elaborated as components of their own
+  // instead of all being written into the top-level entity; only those
+  // bounded by pin nets are found (see Hierarchy)
+  private boolean hierarchical = false;
+  public void setHierarchical(boolean hierarchical) {
+    this.hierarchical = hierarchical;
+  }
+
+  // whether groups of parallel gates are written as one statement on
+  // std_logic_vector signals (see Buses)
+  private boolean busBundling = false;
+  public void setBusBundling(boolean busBundling) {
+    this.busBundling = busBundling;
+  }
+  // the buses of the entity being generated, or null
+  private Buses buses = null;
+
+  // whether trees of AND (or OR) gates that only feed each other are
+  // written as one n-ary expression, without signals for the nets inside;
+  // off by default, since those nets then can't be probed by name
+  private boolean gateFusion = false;
+  public void setGateFusion(boolean gateFusion) {
+    this.gateFusion = gateFusion;
+  }
+  // the gates of the entity being generated that are written as part of
+  // the expression of the gate they feed
+  private BitSet fusedGates = new BitSet();
+
+  // whether registers with the same clock and reset are written as one
+  // clocked process, instead of a process each
+  private boolean processGrouping = false;
+  public void setProcessGrouping(boolean processGrouping) {
+    this.processGrouping = processGrouping;
+  }
+  // the registers of the entity being generated that share a process,
+  // in node id order, by register
+  private Map<Integer, int[]> registerProcesses = new HashMap<>();
+
+  // What a register's process depends on besides the registers in it:
+  // the clock net and edge, and the reset net, level and style.
+  private static class ClockDomain {
+    private final int clock;
+    private final int reset;
+    private final boolean clockActiveHigh;
+    private final boolean resetActiveHigh;
+    private final boolean resetAsynchronous;
+
+    ClockDomain(int clock, int reset, boolean clockActiveHigh,
+        boolean resetActiveHigh, boolean resetAsynchronous) {
+      this.clock = clock;
+      this.reset = reset;
+      this.clockActiveHigh = clockActiveHigh;
+      this.resetActiveHigh = resetActiveHigh;
+      this.resetAsynchronous = resetAsynchronous;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ClockDomain)) {
+        return false;
+      }
+      ClockDomain other = (ClockDomain) o;
+      return clock == other.clock && reset == other.reset
+          && clockActiveHigh == other.clockActiveHigh
+          && resetActiveHigh == other.resetActiveHigh
+          && resetAsynchronous == other.resetAsynchronous;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 31 * clock + reset;
+      hash = 2 * hash + (clockActiveHigh ? 1 : 0);
+      hash = 2 * hash + (resetActiveHigh ? 1 : 0);
+      return 2 * hash + (resetAsynchronous ? 1 : 0);
+    }
+  }
+
+  // An I/O port of an entity, and the net it connects to inside it.
+  private static class EntityPort {
+    private final String name;
+    private final int net;
+    private final boolean output;
+
+    EntityPort(String name, int net, boolean output) {
+      this.name = name;
+      this.net = net;
+      this.output = output;
+    }
+  }
+
   // name of VHDL architecture corresponding to generated entities
   private String architecture = "MANIFOLD";
 
   public VHDLCodeGenerator(Schematic schematic, Netlist netlist,
       PrimitiveTypeTable typeTable) {
-    this.schematic = schematic;
+    this(new CompactNetlist(schematic, netlist), typeTable);
+  }
+
+  public VHDLCodeGenerator(CompactNetlist netlist,
+      PrimitiveTypeTable typeTable) {
     this.netlist = netlist;
     this.typeTable = typeTable;
     // by default, output to current working directory
     this.outputDirectory = Paths.get("").toAbsolutePath().toString();
+
+    nodeEmitters.put(PrimitiveKind.REGISTER, this::generateRegister);
+    nodeEmitters.put(PrimitiveKind.AND, this::generateAndGate);
+    nodeEmitters.put(PrimitiveKind.OR, this::generateOrGate);
+    nodeEmitters.put(PrimitiveKind.NOT, this::generateNotGate);
+  }
+
+  private PrimitiveKind kindOf(int nodeId) {
+    return PrimitiveKind.fromCode(nodeKinds[nodeId]);
   }
 
   private void err(String message) {
     throw new CodeGenerationError(message);
   }
 
-  private String escapeIdentifier(String id) {
+  private static void writeIdentifier(Writer out, String id)
+      throws IOException {
     // VHDL-93 extended identifiers are delimited by backslashes,
     // and can contain ANY printing character from the VHDL-93 character set.
     // This allows reserved words to be used as identifiers,
@@ -64,17 +198,35 @@ public class VHDLCodeGenerator {
     if (!id.isEmpty() && id.charAt(0) == '\\'
         && id.charAt(id.length() - 1) == '\\') {
       // already escaped, nothing to do
-      return id;
+      out.write(id);
     } else {
-      return "\\" + id + "\\";
+      out.write('\\');
+      out.write(id);
+      out.write('\\');
     }
   }
+
+  private void writeSignal(Writer out, int net) throws IOException {
+    int bus = buses == null ? -1 : buses.getBus(net);
+    if (bus == -1) {
+      writeIdentifier(out, netlist.getNetName(net));
+    } else {
+      writeBus(out, bus);
+      out.write('(');
+      out.write(Integer.toString(buses.getBit(net)));
+      out.write(')');
+    }
+  }
+
+  // "\bus_<net>\", named after the net on bit 0
+  private void writeBus(Writer out, int bus) throws IOException {
+    out.write('\\');
+    out.write("bus_");
+    out.write(netlist.getNetName(buses.getBusNet(bus, 0)));
+    out.write('\\');
+  }
   
   public void generateOutputProducts() {
-    // we don't support multiple output files yet, but we set up
-    // the "hierarchical elaboration" method now so that when we do,
-    // this will work with minimal effort
-
     // at each level we need to know this much:
     // * the name of this entity
     // * which nets are I/O pins (i.e. connections from a higher level)
@@ -82,119 +234,141 @@ public class VHDLCodeGenerator {
     // * which groups of nodes are components (i.e. elaborated
     // at a lower level)
 
-    String entityName = schematic.getName();
+    String entityName = netlist.getName();
     log.info("generating HDL for schematic '" + entityName + "'");
-    Set<Net> inputNets = new HashSet<>();
-    Set<Net> outputNets = new HashSet<>();
-    Map<String, NodeValue> currentNodes = new HashMap<>();
+    nodeKinds = typeTable.classifyNodes(netlist);
+    BitSet inputNets = new BitSet();
+    BitSet outputNets = new BitSet();
+    BitSet currentNodes = new BitSet();
     // our current nodes will be everything in the Schematic
     // that is not a digitalIn or digitalOut; our input nets
     // are nets driven by a digitalIn; and output nets
     // are nets that go to any digitalOut
 
     // iterate over all nodes
-    try {
-      for (Entry<String, NodeValue> entry : schematic.getNodes().entrySet()) {
-        String nodeName = entry.getKey();
-        NodeValue node = entry.getValue();
-        if (node.getType().equals(typeTable.getInputPinType())) {
-          // this is a top-level input
-          log.debug("Identified top-level input " + nodeName);
-          PortValue inputPort = node.getPort("out");
-          Net inputNet = netlist.getConnectedNet(inputPort);
-          inputNets.add(inputNet);
-        } else if (node.getType().equals(typeTable.getOutputPinType())) {
-          // this is a top-level output
-          log.debug("Identified top-level output " + nodeName);
-          PortValue outputPort = node.getPort("in");
-          Net outputNet = netlist.getConnectedNet(outputPort);
-          outputNets.add(outputNet);
-        } else {
-          // this is an internal node
-          currentNodes.put(nodeName, node);
+    for (int nodeId = 0; nodeId < netlist.getNodeCount(); ++nodeId) {
+      String nodeName = netlist.getNodeName(nodeId);
+      PrimitiveKind kind = kindOf(nodeId);
+      if (kind == PrimitiveKind.INPUT_PIN) {
+        // this is a top-level input
+        log.debug("Identified top-level input " + nodeName);
+        inputNets.set(getConnectedNet(nodeId, "out"));
+      } else if (kind == PrimitiveKind.OUTPUT_PIN) {
+        // this is a top-level output
+        log.debug("Identified top-level output " + nodeName);
+        outputNets.set(getConnectedNet(nodeId, "in"));
+      } else {
+        // this is an internal node
+        currentNodes.set(nodeId);
+      }
+    }
+
+    List<EntityPort> ports = new ArrayList<>();
+    for (int inNet = inputNets.nextSetBit(0); inNet >= 0;
+        inNet = inputNets.nextSetBit(inNet + 1)) {
+      ports.add(new EntityPort(netlist.getNodeName(getDriver(inNet)), inNet,
+          false));
+    }
+    for (int outNet = outputNets.nextSetBit(0); outNet >= 0;
+        outNet = outputNets.nextSetBit(outNet + 1)) {
+      // there may be more than one outputPin on the same net
+      for (int k = 0; k < netlist.getNetSinkCount(outNet); ++k) {
+        int nodeId = netlist.getPortNode(netlist.getNetSink(outNet, k));
+        if (kindOf(nodeId) == PrimitiveKind.OUTPUT_PIN) {
+          ports.add(new EntityPort(netlist.getNodeName(nodeId), outNet,
+              true));
         }
       }
-    } catch (UndeclaredIdentifierException e) {
-      err(e.getMessage());
     }
-    // for now, we have no components, so this stays empty
-    Map<String, Map<String, NodeValue>> components = new HashMap<>();
 
-    generateEntity(entityName, inputNets, outputNets, currentNodes, components);
+    // each repeated subcircuit becomes an entity of its own, generated
+    // from its first instance, and is left out of the top level
+    OutputDirectory output = openOutputDirectory();
+    List<Hierarchy.Cell> components = Collections.emptyList();
+    List<String> componentNames = new ArrayList<>();
+    if (hierarchical) {
+      Hierarchy hierarchy = new Hierarchy(netlist, nodeKinds);
+      components = hierarchy.getCells();
+      currentNodes.andNot(hierarchy.getCellNodes());
+      for (int c = 0; c < components.size(); ++c) {
+        Hierarchy.Cell cell = components.get(c);
+        String cellName = entityName + "_cell" + Integer.toString(c);
+        componentNames.add(cellName);
+        log.info("elaborating " + Integer.toString(
+            cell.getInstances().size()) + " instances of " + cellName);
+        Hierarchy.Instance first = cell.getInstances().get(0);
+        BitSet cellNodes = new BitSet();
+        for (int k = 0; k < first.getNodeCount(); ++k) {
+          cellNodes.set(first.getNode(k));
+        }
+        generateEntity(output, cellName, cellPorts(cell, first), cellNodes,
+            Collections.<Hierarchy.Cell>emptyList(),
+            Collections.<String>emptyList());
+      }
+    }
+
+    generateEntity(output, entityName, ports, currentNodes, components,
+        componentNames);
+    try {
+      output.saveManifest();
+    } catch (IOException e) {
+      err(e.getMessage());
+    }
     
     log.info("Finished generating top-level entity " + entityName);
   }
 
-  private void generateEntity(String entityName, Set<Net> inputNets,
-      Set<Net> outputNets, Map<String, NodeValue> currentNodes,
-      Map<String, Map<String, NodeValue>> components) {
+  private OutputDirectory openOutputDirectory() {
+    try {
+      return new OutputDirectory(Paths.get(outputDirectory));
+    } catch (IOException e) {
+      err(e.getMessage());
+      return null;
+    }
+  }
+
+  // The ports of a cell's entity: "in0", "in1", ... and "out0", "out1", ...
+  // in port order, connected to the nets of the given instance.
+  private static List<EntityPort> cellPorts(Hierarchy.Cell cell,
+      Hierarchy.Instance instance) {
+    List<EntityPort> ports = new ArrayList<>();
+    int nInputs = 0;
+    int nOutputs = 0;
+    for (int p = 0; p < cell.getPortCount(); ++p) {
+      String name;
+      if (cell.isOutputPort(p)) {
+        name = "out" + Integer.toString(nOutputs++);
+      } else {
+        name = "in" + Integer.toString(nInputs++);
+      }
+      ports.add(new EntityPort(name, instance.getPortNet(p),
+          cell.isOutputPort(p)));
+    }
+    return ports;
+  }
+
+  private void generateEntity(OutputDirectory output, String entityName,
+      List<EntityPort> ports, BitSet currentNodes,
+      List<Hierarchy.Cell> components, List<String> componentNames) {
     String filename = entityName + ".vhd";
-    Path outpath = Paths.get(outputDirectory + File.separator + filename);
-    File outfile = new File(outpath.toString());
     log.info("Generating " + filename);
-    try (PrintWriter writer = new PrintWriter(outfile, "US-ASCII");) {
-      // VHDL preamble
-      writer.println("library IEEE;");
-      writer.println("use IEEE.std_logic_1164.ALL;");
-      writer.println();
-      // entity declaration
-      writer.print("entity ");
-      writer.print(escapeIdentifier(entityName));
-      writer.println(" is");
-      // I/O ports come from I/O nets
-      writer.println(generatePortDeclarations(inputNets, outputNets));
-      writer.print("end entity ");
-      writer.print(escapeIdentifier(entityName));
-      writer.println(";");
-      writer.print("architecture ");
-      writer.print(architecture);
-      writer.print(" of ");
-      writer.print(escapeIdentifier(entityName));
-      writer.println(" is");
-      // component and signal declarations
-      // TODO(murphy) components
-      // each signal corresponds to a net attached to some node at this level
-      Set<Net> signals = new HashSet<>();
-      for (NodeValue node : currentNodes.values()) {
-        for (PortValue port : node.getPorts().values()) {
-          signals.add(netlist.getConnectedNet(port));
-        }
-      }
-      // additionally add nets from top-level inputs
-      signals.addAll(inputNets);
-      for (Net net : signals) {
-        String netName = net.getName();
-        log.debug("found net " + netName);
-        writer.print("signal ");
-        writer.print(escapeIdentifier(netName));
-        writer.print(" : std_logic");
-        // we need to check whether this is a register, and if so,
-        // assign the signal an initial value
-        NodeValue node = getDriver(net);
-        if (node.getType().equals(typeTable.getRegisterType())) {
-          try {
-            boolean initialValue = ((BooleanValue) node
-                .getAttribute("initialValue")).toBoolean();
-            writer.print(" := ");
-            writer.print(booleanToBit(initialValue));
-          } catch (UndeclaredAttributeException e) {
-            err(e.getMessage());
-          }
-        }
-        writer.println(";");
-      }
-      writer.println("begin");
-      // concurrent statements
-      writer.println(generateInputAssignments(inputNets));
-      writer.println(generateOutputAssignments(outputNets));
-      for (Entry<String, NodeValue> entry : currentNodes.entrySet()) {
-        String nodeName = entry.getKey();
-        NodeValue node = entry.getValue();
-        writer.println(generateNode(nodeName, node));
-      }
-      writer.print("end ");
-      writer.print(architecture);
-      writer.println(";");
+    if (busBundling) {
+      buses = new Buses(netlist, nodeKinds, currentNodes);
+      log.info("bundled " + Integer.toString(buses.getGroups().size())
+          + " groups of gates, using " + Integer.toString(
+              buses.getBusCount()) + " buses");
+    } else {
+      buses = null;
+    }
+    fusedGates = gateFusion ? fuseGates(ports, currentNodes) : new BitSet();
+    registerProcesses = processGrouping ? groupRegisters(currentNodes)
+        : new HashMap<Integer, int[]>();
+    // everything is written straight into the output's buffer, so the text
+    // of the entity is never held in memory all at once
+    try {
+      output.write(filename, StandardCharsets.US_ASCII,
+          writer -> writeEntity(writer, entityName, ports, currentNodes,
+              components, componentNames));
     } catch (IOException e) {
       err(e.getMessage());
     }
@@ -202,219 +376,786 @@ public class VHDLCodeGenerator {
     log.info("Finished generating entity " + entityName);
   }
 
-  private String generatePortDeclarations(Set<Net> inputNets,
-      Set<Net> outputNets) {
-    // TODO this code assumes that the nodes driving I/O ports
-    // are inputPin(s)/outputPin(s). make this more general
-    // so that any node (i.e. one from a higher-level entity)
-    // can be used to instantiate a uniquely-named I/O pin
-    StringBuilder decl = new StringBuilder();
-    if (inputNets.size() > 0 || outputNets.size() > 0) {
-      decl.append("port (");
-      decl.append(newline);
+  private void writeEntity(Writer writer, String entityName,
+      List<EntityPort> ports, BitSet currentNodes,
+      List<Hierarchy.Cell> components, List<String> componentNames)
+      throws IOException {
+    // VHDL preamble
+    writer.write("library IEEE;");
+    writer.write(newline);
+    writer.write("use IEEE.std_logic_1164.ALL;");
+    writer.write(newline);
+    writer.write(newline);
+    // entity declaration
+    writer.write("entity ");
+    writeIdentifier(writer, entityName);
+    writer.write(" is");
+    writer.write(newline);
+    // I/O ports come from I/O nets
+    generatePortDeclarations(ports, writer);
+    writer.write(newline);
+    writer.write("end entity ");
+    writeIdentifier(writer, entityName);
+    writer.write(";");
+    writer.write(newline);
+    writer.write("architecture ");
+    writer.write(architecture);
+    writer.write(" of ");
+    writeIdentifier(writer, entityName);
+    writer.write(" is");
+    writer.write(newline);
+    // component and signal declarations
+    List<Hierarchy.Instance> instances = new ArrayList<>();
+    List<Integer> instanceComponents = new ArrayList<>();
+    for (int c = 0; c < components.size(); ++c) {
+      Hierarchy.Cell cell = components.get(c);
+      generateComponentDeclaration(componentNames.get(c), cell, writer);
+      for (Hierarchy.Instance instance : cell.getInstances()) {
+        instances.add(instance);
+        instanceComponents.add(c);
+      }
+    }
+    // each signal corresponds to a net attached to some node at this level
+    BitSet signals = new BitSet();
+    for (int nodeId = currentNodes.nextSetBit(0); nodeId >= 0;
+        nodeId = currentNodes.nextSetBit(nodeId + 1)) {
+      for (int k = 0; k < netlist.getNodePortCount(nodeId); ++k) {
+        int net = netlist.getPortNet(netlist.getNodePort(nodeId, k));
+        if (net != CompactNetlist.NOT_CONNECTED) {
+          signals.set(net);
+        }
+      }
+    }
+    // or to a port of a component instance
+    for (int i = 0; i < instances.size(); ++i) {
+      Hierarchy.Cell cell = components.get(instanceComponents.get(i));
+      for (int p = 0; p < cell.getPortCount(); ++p) {
+        signals.set(instances.get(i).getPortNet(p));
+      }
+    }
+    // additionally add nets from inputs
+    for (EntityPort port : ports) {
+      if (!port.output) {
+        signals.set(port.net);
+      }
+    }
+    // nets inside a fused expression are never seen
+    for (int gate = fusedGates.nextSetBit(0); gate >= 0;
+        gate = fusedGates.nextSetBit(gate + 1)) {
+      signals.clear(getConnectedNet(gate, "out"));
+    }
+    if (buses != null) {
+      for (int bus = 0; bus < buses.getBusCount(); ++bus) {
+        generateBusDeclaration(bus, writer);
+        for (int bit = 0; bit < buses.getBusWidth(bus); ++bit) {
+          signals.clear(buses.getBusNet(bus, bit));
+        }
+      }
+    }
+    writeAll(signals, this::generateSignalDeclaration, writer);
+    writer.write("begin");
+    writer.write(newline);
+    // concurrent statements; each section is followed by a blank line
+    generateInputAssignments(ports, writer);
+    writer.write(newline);
+    generateOutputAssignments(ports, writer);
+    writer.write(newline);
+    if (!instances.isEmpty()) {
+      BitSet instanceIds = new BitSet();
+      instanceIds.set(0, instances.size());
+      writeAll(instanceIds, (i, out) -> {
+        int c = instanceComponents.get(i);
+        generateInstance(instances.get(i), componentNames.get(c),
+            components.get(c), out);
+      }, writer);
+      writer.write(newline);
+    }
+    writeAll(currentNodes, (nodeId, out) -> {
+      Buses.Group group = buses == null ? null : buses.getGroup(nodeId);
+      int[] registers = registerProcesses.get(nodeId);
+      if (fusedGates.get(nodeId)) {
+        // written as part of the gate it feeds
+        return;
+      } else if (registers != null) {
+        // the whole process is written in place of its first register
+        if (registers[0] == nodeId) {
+          generateRegisterProcess(registers, out);
+          out.write(newline);
+        }
+      } else if (group == null) {
+        generateNode(nodeId, out);
+        out.write(newline);
+      } else if (group.getNode(0) == nodeId) {
+        // the whole group is written in place of its first bit
+        generateGroup(group, out);
+        out.write(newline);
+      }
+    }, writer);
+    writer.write("end ");
+    writer.write(architecture);
+    writer.write(";");
+    writer.write(newline);
+  }
+
+  private void generateComponentDeclaration(String componentName,
+      Hierarchy.Cell cell, Writer decl) throws IOException {
+    decl.write("component ");
+    writeIdentifier(decl, componentName);
+    decl.write(" is");
+    decl.write(newline);
+    generatePortDeclarations(
+        cellPorts(cell, cell.getInstances().get(0)), decl);
+    decl.write("end component;");
+    decl.write(newline);
+  }
+
+  // "\cell_<node>\ : \<component>\ port map (in0 => <net>, ...);"
+  // named after the instance's first node, which is unique to it
+  private void generateInstance(Hierarchy.Instance instance,
+      String componentName, Hierarchy.Cell cell, Writer stmts)
+      throws IOException {
+    stmts.write('\\');
+    stmts.write("cell_");
+    stmts.write(netlist.getNodeName(instance.getNode(0)));
+    stmts.write('\\');
+    stmts.write(" : ");
+    writeIdentifier(stmts, componentName);
+    stmts.write(" port map (");
+    List<EntityPort> ports = cellPorts(cell, instance);
+    for (int p = 0; p < ports.size(); ++p) {
+      if (p > 0) {
+        stmts.write(", ");
+      }
+      stmts.write(ports.get(p).name);
+      stmts.write(" => ");
+      writeSignal(stmts, ports.get(p).net);
+    }
+    stmts.write(");");
+    stmts.write(newline);
+  }
+
+  private void generateSignalDeclaration(int net, Writer decl)
+      throws IOException {
+    if (log.isDebugEnabled()) {
+      log.debug("found net " + netlist.getNetName(net));
+    }
+    decl.write("signal ");
+    writeSignal(decl, net);
+    decl.write(" : std_logic");
+    // we need to check whether this is a register, and if so,
+    // assign the signal an initial value
+    int driver = getDriver(net);
+    if (kindOf(driver) == PrimitiveKind.REGISTER) {
+      decl.write(" := ");
+      decl.write(booleanToBit(initialValue(driver)));
+    }
+    decl.write(";");
+    decl.write(newline);
+  }
+
+  // "signal \bus_<net>\ : std_logic_vector(<width - 1> downto 0)", with
+  // the initial values of the bits driven by registers, if there are any
+  private void generateBusDeclaration(int bus, Writer decl)
+      throws IOException {
+    int width = buses.getBusWidth(bus);
+    decl.write("signal ");
+    writeBus(decl, bus);
+    decl.write(" : std_logic_vector(");
+    decl.write(Integer.toString(width - 1));
+    decl.write(" downto 0)");
+    StringBuilder initialValues = new StringBuilder();
+    boolean anyRegisters = false;
+    for (int bit = width - 1; bit >= 0; --bit) {
+      int driver = getDriver(buses.getBusNet(bus, bit));
+      if (kindOf(driver) == PrimitiveKind.REGISTER) {
+        initialValues.append(initialValue(driver) ? '1' : '0');
+        anyRegisters = true;
+      } else {
+        initialValues.append('U');
+      }
+    }
+    if (anyRegisters) {
+      decl.write(" := \"");
+      decl.write(initialValues.toString());
+      decl.write('"');
+    }
+    decl.write(";");
+    decl.write(newline);
+  }
+
+  private boolean initialValue(int register) {
+    return booleanAttribute(register, "initialValue");
+  }
+
+  private boolean booleanAttribute(int nodeId, String attribute) {
+    NodeValue node = netlist.getNode(nodeId);
+    try {
+      return ((BooleanValue) node.getAttribute(attribute)).toBoolean();
+    } catch (UndeclaredAttributeException e) {
+      err(e.getMessage());
+      return false;
+    }
+  }
+
+  // Writes the text for one signal or node.
+  private interface ElementWriter {
+    void write(int id, Writer out) throws IOException;
+  }
+
+  // Write the text of every element in `ids`, in id order. With a pool,
+  // the ids are split into fixed ranges that are rendered concurrently
+  // into separate buffers and then written out in range order, so the
+  // output is the same as when writing serially. At most a few ranges
+  // per worker are buffered at a time.
+  private void writeAll(BitSet ids, ElementWriter element, Writer out)
+      throws IOException {
+    if (pool == null) {
+      for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+        element.write(id, out);
+      }
+      return;
+    }
+    int limit = ids.length();
+    int maxInFlight = 4 * pool.getParallelism();
+    Deque<Future<String>> inFlight = new ArrayDeque<>();
+    int next = 0;
+    try {
+      while (next < limit || !inFlight.isEmpty()) {
+        while (next < limit && inFlight.size() < maxInFlight) {
+          int from = next;
+          int to = (int) Math.min((long) next + chunkSize, limit);
+          inFlight.add(pool.submit(() -> {
+            Writer chunk = new StringWriter();
+            for (int id = ids.nextSetBit(from); id >= 0 && id < to;
+                id = ids.nextSetBit(id + 1)) {
+              element.write(id, chunk);
+            }
+            return chunk.toString();
+          }));
+          next = to;
+        }
+        out.write(getChunk(inFlight.poll()));
+      }
+    } finally {
+      for (Future<String> future : inFlight) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  private String getChunk(Future<String> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CodeGenerationError("interrupted while generating VHDL");
+    } catch (ExecutionException e) {
+      // let errors from the workers propagate as if thrown here
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CodeGenerationError(cause.getMessage());
+    }
+  }
+
+  private void generatePortDeclarations(List<EntityPort> ports,
+      Writer decl) throws IOException {
+    if (!ports.isEmpty()) {
+      decl.write("port (");
+      decl.write(newline);
       // all ports except the last one need to end with a semicolon,
       // so we make adding this semicolon the responsibility of
       // the NEXT port to be emitted; then the first one
       // we emit doesn't do this
       boolean first = true;
-      for (Net inNet : inputNets) {
-        if (!first) {
-          // terminate previous port
-          decl.append(";").append(newline);
-        }
-        first = false;
-        NodeValue node = getDriver(inNet);
-        String inputName = schematic.getNodeName(node);
-        decl.append(inputName).append(" : in STD_LOGIC");
-      }
-      for (Net outNet : outputNets) {
+      for (EntityPort port : ports) {
         if (!first) {
           // terminate previous port
-          decl.append(";").append(newline);
+          decl.write(";");
+          decl.write(newline);
         }
         first = false;
-        // look for the outputPin(s) driven by this net
-        for (PortValue p : outNet.getConnectedPorts()) {
-          NodeValue node = p.getParent();
-          if (node.getType().equals(typeTable.getOutputPinType())) {
-            String outputName = schematic.getNodeName(node);
-            decl.append(outputName);
-            decl.append(" : out STD_LOGIC");
-            // do not break; it is possible that there is more than one
-          }
+        decl.write(port.name);
+        if (port.output) {
+          decl.write(" : out STD_LOGIC");
+        } else {
+          decl.write(" : in STD_LOGIC");
         }
       }
-      decl.append(newline);
-      decl.append(");");
-      decl.append(newline);
+      decl.write(newline);
+      decl.write(");");
+      decl.write(newline);
     }
-    return decl.toString();
   }
 
   // Generate assignment statements from input ports to net signals.
-  private String generateInputAssignments(Set<Net> inputNets) {
-    StringBuilder stmts = new StringBuilder();
-    for (Net inNet : inputNets) {
-      NodeValue node = getDriver(inNet);
-      String inputName = schematic.getNodeName(node);
-      String netName = escapeIdentifier(inNet.getName());
-      log.debug("input '" + inputName + "' maps to net '" + netName + "'");
-      stmts.append(netName).append(" <= ").append(inputName).append(";")
-          .append(newline);
+  private void generateInputAssignments(List<EntityPort> ports,
+      Writer stmts) throws IOException {
+    for (EntityPort port : ports) {
+      if (port.output) {
+        continue;
+      }
+      if (log.isDebugEnabled()) {
+        log.debug("input '" + port.name + "' maps to net '"
+            + netlist.getNetName(port.net) + "'");
+      }
+      writeSignal(stmts, port.net);
+      stmts.write(" <= ");
+      stmts.write(port.name);
+      stmts.write(";");
+      stmts.write(newline);
     }
-    return stmts.toString();
   }
 
   // Generate assignment statements from net signals to output ports.
-  private String generateOutputAssignments(Set<Net> outputNets) {
-    StringBuilder stmts = new StringBuilder();
-    for (Net outNet : outputNets) {
-      String netName = escapeIdentifier(outNet.getName());
-      for (PortValue p : outNet.getConnectedPorts()) {
-        NodeValue node = p.getParent();
-        if (node.getType().equals(typeTable.getOutputPinType())) {
-          String outputName = schematic.getNodeName(node);
-          log.debug("net '" + netName + "' maps to output '" 
-              + outputName + "'");
-          stmts.append(outputName).append(" <= ").append(netName).append(";")
-              .append(newline);
-        }
+  private void generateOutputAssignments(List<EntityPort> ports,
+      Writer stmts) throws IOException {
+    for (EntityPort port : ports) {
+      if (!port.output) {
+        continue;
       }
+      if (log.isDebugEnabled()) {
+        log.debug("net '" + netlist.getNetName(port.net)
+            + "' maps to output '" + port.name + "'");
+      }
+      stmts.write(port.name);
+      stmts.write(" <= ");
+      writeSignal(stmts, port.net);
+      stmts.write(";");
+      stmts.write(newline);
     }
-    return stmts.toString();
-  }
-
-  private String generateNode(String nodeName, NodeValue node) {
-    StringBuilder stmts = new StringBuilder();
-    if (node.getType().equals(typeTable.getRegisterType())) {
-      /*
-       * Registers have a number of attributes that we care about for codegen:
-       * initialValue (boolean), resetActiveHigh (boolean), resetAsynchronous
-       * (boolean), clockActiveHigh (boolean).
-       * 
-       * They are connected to the following ports: in (digitalIn), out
-       * (digitalOut), clock (digitalIn), reset (digitalIn)
-       */
-      try {
-        // Start by getting the names of all signals connected to the register.
-        String sigIn = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("in")).getName());
-        String sigOut = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("out")).getName());
-        String sigClock = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("clock")).getName());
-        String sigReset = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("reset")).getName());
-
-        // Now get the values of all important attributes.
-        boolean initialValue = ((BooleanValue) node
-            .getAttribute("initialValue")).toBoolean();
-        boolean resetActiveHigh = ((BooleanValue) node
-            .getAttribute("resetActiveHigh")).toBoolean();
-        boolean resetAsynchronous = ((BooleanValue) node
-            .getAttribute("resetAsynchronous")).toBoolean();
-        boolean clockActiveHigh = ((BooleanValue) node
-            .getAttribute("clockActiveHigh")).toBoolean();
-
-        String processName = escapeIdentifier("register_" + nodeName);
-        stmts.append(processName);
-        stmts.append(": process (");
-        // sensitivity list
-        stmts.append(sigClock).append(",").append(sigReset).append(",")
-            .append(sigIn).append(")").append(newline);
-        stmts.append("begin").append(newline);
-        // sequential statements
-        // the structure is a bit different depending on whether
-        // the reset signal is synchronous or asynchronous.
-        if (resetAsynchronous) {
-          // asynchronous reset
-          stmts.append("if (").append(sigReset).append(" = ")
-              .append(booleanToBit(resetActiveHigh)).append(") then")
-              .append(newline);
-          stmts.append(sigOut).append(" <= ")
-              .append(booleanToBit(initialValue)).append(";").append(newline);
-          // clocked logic
-          stmts.append("elsif ");
-          if (clockActiveHigh) {
-            stmts.append("rising_edge(");
-          } else {
-            stmts.append("falling_edge(");
-          }
-          stmts.append(sigClock).append(") then").append(newline);
-          stmts.append(sigOut).append(" <= ").append(sigIn).append(";")
-              .append(newline);
-          stmts.append("end if;").append(newline);
-        } else {
-          // clocked logic
-          stmts.append("if ");
-          if (clockActiveHigh) {
-            stmts.append("rising_edge(");
-          } else {
-            stmts.append("falling_edge(");
-          }
-          stmts.append(sigClock).append(") then").append(newline);
-          // synchronous reset
-          stmts.append("if (").append(sigReset).append(" = ")
-              .append(booleanToBit(resetActiveHigh)).append(") then")
-              .append(newline);
-          stmts.append(sigOut).append(" <= ")
-              .append(booleanToBit(initialValue)).append(";").append(newline);
-          stmts.append("else").append(newline);
-          stmts.append(sigOut).append(" <= ").append(sigIn).append(";")
-              .append(newline);
-          stmts.append("end if;").append(newline);
-        }
-        stmts.append("end if;").append(newline);
-        stmts.append("end process ").append(processName).append(";")
-            .append(newline);
-      } catch (UndeclaredIdentifierException | UndeclaredAttributeException e) {
-        err(e.getMessage());
-      }
-    } else if (node.getType().equals(typeTable.getAndType())) {
-      // out <= (in0 AND in1);
-      try {
-        String sigIn0 = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("in0")).getName());
-        String sigIn1 = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("in1")).getName());
-        String sigOut = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("out")).getName());
-        stmts.append(sigOut).append(" <= ").append(sigIn0).append(" AND ")
-            .append(sigIn1).append(";").append(newline);
-      } catch (UndeclaredIdentifierException e) {
-        err(e.getMessage());
-      }
-    } else if (node.getType().equals(typeTable.getOrType())) {
-      // out <= (in0 OR in1);
-      try {
-        String sigIn0 = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("in0")).getName());
-        String sigIn1 = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("in1")).getName());
-        String sigOut = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("out")).getName());
-        stmts.append(sigOut).append(" <= (").append(sigIn0).append(" OR ")
-            .append(sigIn1).append(");").append(newline);
-      } catch (UndeclaredIdentifierException e) {
-        err(e.getMessage());
-      }
-    } else if (node.getType().equals(typeTable.getNotType())) {
-      // out <= (NOT in);
-      try {
-        String sigIn = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("in")).getName());
-        String sigOut = escapeIdentifier(netlist.getConnectedNet(
-            node.getPort("out")).getName());
-        stmts.append(sigOut).append(" <= (NOT ").append(sigIn)
-            .append(");").append(newline);
-      } catch (UndeclaredIdentifierException e) {
-        err(e.getMessage());
+  }
+
+  private void generateNode(int nodeId, Writer stmts) throws IOException {
+    NodeEmitter emitter = nodeEmitters.get(kindOf(nodeId));
+    if (emitter == null) {
+      err("could not generate code for node '" + netlist.getNodeName(nodeId)
+          + "' of unknown type");
+    }
+    emitter.emit(nodeId, stmts);
+  }
+
+  private void generateRegister(int nodeId, Writer stmts)
+      throws IOException {
+    String nodeName = netlist.getNodeName(nodeId);
+    NodeValue node = netlist.getNode(nodeId);
+    /*
+     * Registers have a number of attributes that we care about for codegen:
+     * initialValue (boolean), resetActiveHigh (boolean), resetAsynchronous
+     * (boolean), clockActiveHigh (boolean).
+     * 
+     * They are connected to the following ports: in (digitalIn), out
+     * (digitalOut), clock (digitalIn), reset (digitalIn)
+     */
+    try {
+      // Start by getting all nets connected to the register.
+      int netIn = getConnectedNet(nodeId, "in");
+      int netOut = getConnectedNet(nodeId, "out");
+      int netClock = getConnectedNet(nodeId, "clock");
+      int netReset = getConnectedNet(nodeId, "reset");
+
+      // Now get the values of all important attributes.
+      boolean initialValue = ((BooleanValue) node
+          .getAttribute("initialValue")).toBoolean();
+      boolean resetActiveHigh = ((BooleanValue) node
+          .getAttribute("resetActiveHigh")).toBoolean();
+      boolean resetAsynchronous = ((BooleanValue) node
+          .getAttribute("resetAsynchronous")).toBoolean();
+      boolean clockActiveHigh = ((BooleanValue) node
+          .getAttribute("clockActiveHigh")).toBoolean();
+
+      writeProcessName(stmts, nodeName);
+      stmts.write(": process (");
+      // sensitivity list
+      writeSignal(stmts, netClock);
+      stmts.write(",");
+      writeSignal(stmts, netReset);
+      stmts.write(",");
+      writeSignal(stmts, netIn);
+      stmts.write(")");
+      stmts.write(newline);
+      stmts.write("begin");
+      stmts.write(newline);
+      // sequential statements
+      // the structure is a bit different depending on whether
+      // the reset signal is synchronous or asynchronous.
+      if (resetAsynchronous) {
+        // asynchronous reset
+        writeResetCondition(stmts, netReset, resetActiveHigh);
+        writeAssignment(stmts, netOut, booleanToBit(initialValue));
+        // clocked logic
+        stmts.write("elsif ");
+        writeClockCondition(stmts, netClock, clockActiveHigh);
+        writeAssignment(stmts, netOut, netIn);
+        stmts.write("end if;");
+        stmts.write(newline);
+      } else {
+        // clocked logic
+        stmts.write("if ");
+        writeClockCondition(stmts, netClock, clockActiveHigh);
+        // synchronous reset
+        writeResetCondition(stmts, netReset, resetActiveHigh);
+        writeAssignment(stmts, netOut, booleanToBit(initialValue));
+        stmts.write("else");
+        stmts.write(newline);
+        writeAssignment(stmts, netOut, netIn);
+        stmts.write("end if;");
+        stmts.write(newline);
       }
+      stmts.write("end if;");
+      stmts.write(newline);
+      stmts.write("end process ");
+      writeProcessName(stmts, nodeName);
+      stmts.write(";");
+      stmts.write(newline);
+    } catch (UndeclaredAttributeException e) {
+      err(e.getMessage());
+    }
+  }
+
+  // Groups the registers in `nodes` by clock domain. A register that is
+  // alone in its domain is left out, and gets a process of its own.
+  private Map<Integer, int[]> groupRegisters(BitSet nodes) {
+    Map<ClockDomain, List<Integer>> domains = new LinkedHashMap<>();
+    for (int nodeId = nodes.nextSetBit(0); nodeId >= 0;
+        nodeId = nodes.nextSetBit(nodeId + 1)) {
+      if (kindOf(nodeId) != PrimitiveKind.REGISTER) {
+        continue;
+      }
+      ClockDomain domain = new ClockDomain(
+          getConnectedNet(nodeId, "clock"), getConnectedNet(nodeId, "reset"),
+          booleanAttribute(nodeId, "clockActiveHigh"),
+          booleanAttribute(nodeId, "resetActiveHigh"),
+          booleanAttribute(nodeId, "resetAsynchronous"));
+      domains.computeIfAbsent(domain, d -> new ArrayList<>()).add(nodeId);
+    }
+    Map<Integer, int[]> processes = new HashMap<>();
+    int nProcesses = 0;
+    for (List<Integer> members : domains.values()) {
+      if (members.size() < 2) {
+        continue;
+      }
+      int[] registers = new int[members.size()];
+      for (int i = 0; i < registers.length; ++i) {
+        registers[i] = members.get(i);
+        processes.put(registers[i], registers);
+      }
+      ++nProcesses;
+    }
+    if (nProcesses > 0) {
+      log.info("grouped " + Integer.toString(processes.size())
+          + " registers into " + Integer.toString(nProcesses)
+          + " clocked processes");
+    }
+    return processes;
+  }
+
+  // One process for registers in the same clock domain, named after the
+  // first of them, that assigns all of them in a single reset branch and a
+  // single clock edge branch. The inputs of the registers are left out of
+  // the sensitivity list; only the clock and reset can wake the process.
+  private void generateRegisterProcess(int[] registers, Writer stmts)
+      throws IOException {
+    int first = registers[0];
+    String processName = netlist.getNodeName(first);
+    int netClock = getConnectedNet(first, "clock");
+    int netReset = getConnectedNet(first, "reset");
+    boolean resetActiveHigh = booleanAttribute(first, "resetActiveHigh");
+    boolean resetAsynchronous = booleanAttribute(first, "resetAsynchronous");
+    boolean clockActiveHigh = booleanAttribute(first, "clockActiveHigh");
+
+    writeProcessName(stmts, processName);
+    stmts.write(": process (");
+    writeSignal(stmts, netClock);
+    stmts.write(",");
+    writeSignal(stmts, netReset);
+    stmts.write(")");
+    stmts.write(newline);
+    stmts.write("begin");
+    stmts.write(newline);
+    if (resetAsynchronous) {
+      writeResetCondition(stmts, netReset, resetActiveHigh);
+      writeResetAssignments(stmts, registers);
+      stmts.write("elsif ");
+      writeClockCondition(stmts, netClock, clockActiveHigh);
+      writeLoadAssignments(stmts, registers);
+      stmts.write("end if;");
+      stmts.write(newline);
     } else {
-      err("could not generate code for node '" + nodeName 
-            + "' of unknown type");
+      stmts.write("if ");
+      writeClockCondition(stmts, netClock, clockActiveHigh);
+      writeResetCondition(stmts, netReset, resetActiveHigh);
+      writeResetAssignments(stmts, registers);
+      stmts.write("else");
+      stmts.write(newline);
+      writeLoadAssignments(stmts, registers);
+      stmts.write("end if;");
+      stmts.write(newline);
+    }
+    stmts.write("end if;");
+    stmts.write(newline);
+    stmts.write("end process ");
+    writeProcessName(stmts, processName);
+    stmts.write(";");
+    stmts.write(newline);
+  }
+
+  // "<out> <= <initial value>;" for each register
+  private void writeResetAssignments(Writer out, int[] registers)
+      throws IOException {
+    for (int register : registers) {
+      writeAssignment(out, getConnectedNet(register, "out"),
+          booleanToBit(initialValue(register)));
     }
-    return stmts.toString();
+  }
+
+  // "<out> <= <in>;" for each register
+  private void writeLoadAssignments(Writer out, int[] registers)
+      throws IOException {
+    for (int register : registers) {
+      writeAssignment(out, getConnectedNet(register, "out"),
+          getConnectedNet(register, "in"));
+    }
+  }
+
+  // "\register_<node>\"; the prefix means it never starts with a
+  // backslash, so it is always escaped (see writeIdentifier())
+  private static void writeProcessName(Writer out, String nodeName)
+      throws IOException {
+    out.write('\\');
+    out.write("register_");
+    out.write(nodeName);
+    out.write('\\');
+  }
+
+  // "if (<reset> = <level>) then"
+  private void writeResetCondition(Writer out, int netReset,
+      boolean resetActiveHigh) throws IOException {
+    out.write("if (");
+    writeSignal(out, netReset);
+    out.write(" = ");
+    out.write(booleanToBit(resetActiveHigh));
+    out.write(") then");
+    out.write(newline);
+  }
+
+  // "rising_edge(<clock>) then" or "falling_edge(<clock>) then"
+  private void writeClockCondition(Writer out, int netClock,
+      boolean clockActiveHigh) throws IOException {
+    if (clockActiveHigh) {
+      out.write("rising_edge(");
+    } else {
+      out.write("falling_edge(");
+    }
+    writeSignal(out, netClock);
+    out.write(") then");
+    out.write(newline);
+  }
+
+  // "<target> <= <value>;"
+  private void writeAssignment(Writer out, int target, String value)
+      throws IOException {
+    writeSignal(out, target);
+    out.write(" <= ");
+    out.write(value);
+    out.write(";");
+    out.write(newline);
+  }
+
+  private void writeAssignment(Writer out, int target, int source)
+      throws IOException {
+    writeSignal(out, target);
+    out.write(" <= ");
+    writeSignal(out, source);
+    out.write(";");
+    out.write(newline);
+  }
+
+  private void generateAndGate(int nodeId, Writer stmts)
+      throws IOException {
+    // out <= in0 AND in1;
+    writeBinaryGate(stmts, nodeId, "", " AND ", "");
+  }
+
+  private void generateOrGate(int nodeId, Writer stmts) throws IOException {
+    // out <= (in0 OR in1);
+    writeBinaryGate(stmts, nodeId, "(", " OR ", ")");
+  }
+
+  // "<out> <= <open><in0><operator><in1><close>;", where an input driven
+  // by a fused gate is replaced by that gate's inputs, and so on, e.g.
+  // "<out> <= <a> AND <b> AND <c>;"
+  private void writeBinaryGate(Writer stmts, int nodeId, String open,
+      String operator, String close) throws IOException {
+    int netOut = getConnectedNet(nodeId, "out");
+    writeSignal(stmts, netOut);
+    stmts.write(" <= ");
+    stmts.write(open);
+    // expand the tree left to right, without recursing, since a chain of
+    // fused gates can be arbitrarily long
+    Deque<Integer> pending = new ArrayDeque<>();
+    pending.push(getConnectedNet(nodeId, "in1"));
+    pending.push(getConnectedNet(nodeId, "in0"));
+    boolean first = true;
+    while (!pending.isEmpty()) {
+      int net = pending.pop();
+      int driver = netlist.getNetDriverNode(net);
+      if (driver != -1 && fusedGates.get(driver)) {
+        pending.push(getConnectedNet(driver, "in1"));
+        pending.push(getConnectedNet(driver, "in0"));
+        continue;
+      }
+      if (!first) {
+        stmts.write(operator);
+      }
+      first = false;
+      writeSignal(stmts, net);
+    }
+    stmts.write(close);
+    stmts.write(";");
+    stmts.write(newline);
+  }
+
+  // Find the AND and OR gates among `nodes` that can be written as part
+  // of the expression of the gate they feed: gates whose output goes to
+  // nothing but one input of another gate of the same kind in the entity,
+  // and is neither a port of the entity nor part of a bus.
+  private BitSet fuseGates(List<EntityPort> ports, BitSet nodes) {
+    BitSet portNets = new BitSet();
+    for (EntityPort port : ports) {
+      portNets.set(port.net);
+    }
+    BitSet fused = new BitSet();
+    for (int gate = nodes.nextSetBit(0); gate >= 0;
+        gate = nodes.nextSetBit(gate + 1)) {
+      PrimitiveKind kind = kindOf(gate);
+      if ((kind != PrimitiveKind.AND && kind != PrimitiveKind.OR)
+          || isBundled(gate)) {
+        continue;
+      }
+      int port = netlist.getPort(gate, "out");
+      int out = port == -1 ? CompactNetlist.NOT_CONNECTED
+          : netlist.getPortNet(port);
+      if (out == CompactNetlist.NOT_CONNECTED || portNets.get(out)
+          || netlist.getNetDriverCount(out) != 1
+          || netlist.getNetSinkCount(out) != 1
+          || (buses != null && buses.getBus(out) != -1)) {
+        continue;
+      }
+      int sink = netlist.getPortNode(netlist.getNetSink(out, 0));
+      if (sink != gate && nodes.get(sink) && kindOf(sink) == kind
+          && !isBundled(sink)) {
+        fused.set(gate);
+      }
+    }
+    // only keep gates that some written gate actually expands into; on a
+    // combinational loop of fused gates, none of them would be written
+    BitSet reached = new BitSet();
+    Deque<Integer> pending = new ArrayDeque<>();
+    for (int gate = nodes.nextSetBit(0); gate >= 0;
+        gate = nodes.nextSetBit(gate + 1)) {
+      if (!fused.get(gate)) {
+        pending.push(gate);
+      }
+    }
+    while (!pending.isEmpty()) {
+      int gate = pending.pop();
+      for (int k = 0; k < netlist.getNodePortCount(gate); ++k) {
+        int port = netlist.getNodePort(gate, k);
+        int net = netlist.getPortNet(port);
+        if (netlist.isOutputPort(port) || net == CompactNetlist.NOT_CONNECTED) {
+          continue;
+        }
+        int driver = netlist.getNetDriverNode(net);
+        if (driver != -1 && fused.get(driver) && !reached.get(driver)) {
+          reached.set(driver);
+          pending.push(driver);
+        }
+      }
+    }
+    fused.and(reached);
+    if (!fused.isEmpty()) {
+      log.info("fused " + Integer.toString(fused.cardinality())
+          + " gates into the expressions of the gates they feed");
+    }
+    return fused;
+  }
+
+  private boolean isBundled(int node) {
+    return buses != null && buses.getGroup(node) != null;
+  }
+
+  // One statement for a group of gates, on their buses:
+  // "<out> <= <in0> AND <in1>;", "<out> <= (<in0> OR <in1>);" or
+  // "<out> <= (NOT <in>);", as for a single gate.
+  private void generateGroup(Buses.Group group, Writer stmts)
+      throws IOException {
+    writeBus(stmts, group.getBus());
+    stmts.write(" <= ");
+    switch (kindOf(group.getNode(0))) {
+        case AND:
+          writeOperand(stmts, group, "in0");
+          stmts.write(" AND ");
+          writeOperand(stmts, group, "in1");
+          break;
+        case OR:
+          stmts.write("(");
+          writeOperand(stmts, group, "in0");
+          stmts.write(" OR ");
+          writeOperand(stmts, group, "in1");
+          stmts.write(")");
+          break;
+        case NOT:
+          stmts.write("(NOT ");
+          writeOperand(stmts, group, "in");
+          stmts.write(")");
+          break;
+        default:
+          err("cannot bundle node '" + netlist.getNodeName(group.getNode(0))
+              + "'");
+    }
+    stmts.write(";");
+    stmts.write(newline);
+  }
+
+  // A bus, a slice "<bus>(<high> downto <low>)" of one, or a broadcast net
+  // "std_logic_vector'(<width - 1> downto 0 => <net>)".
+  private void writeOperand(Writer out, Buses.Group group, String portName)
+      throws IOException {
+    Buses.Operand operand = group.getOperand(portName);
+    int width = group.getWidth();
+    if (operand.isBroadcast()) {
+      out.write("std_logic_vector'(");
+      out.write(Integer.toString(width - 1));
+      out.write(" downto 0 => ");
+      writeSignal(out, operand.getNet());
+      out.write(")");
+      return;
+    }
+    writeBus(out, operand.getBus());
+    if (operand.getLow() != 0
+        || buses.getBusWidth(operand.getBus()) != width) {
+      out.write("(");
+      out.write(Integer.toString(operand.getLow() + width - 1));
+      out.write(" downto ");
+      out.write(Integer.toString(operand.getLow()));
+      out.write(")");
+    }
+  }
+
+  private void generateNotGate(int nodeId, Writer stmts)
+      throws IOException {
+    // out <= (NOT in);
+    int netIn = getConnectedNet(nodeId, "in");
+    int netOut = getConnectedNet(nodeId, "out");
+    writeSignal(stmts, netOut);
+    stmts.write(" <= (NOT ");
+    writeSignal(stmts, netIn);
+    stmts.write(");");
+    stmts.write(newline);
   }
 
   private String booleanToBit(boolean b) {
@@ -425,14 +1166,30 @@ public class VHDLCodeGenerator {
     }
   }
 
-  private NodeValue getDriver(Net net) {
+  // Returns the id of the node driving a net.
+  private int getDriver(int net) {
     // PRECONDITION: DRC has verified that exactly one digitalOut is connected
-    for (PortValue port : net.getConnectedPorts()) {
-      if (port.getType().equals(typeTable.getOutputPortType())) {
-        return port.getParent();
-      }
+    int driver = netlist.getNetDriverNode(net);
+    if (driver == -1) {
+      throw new UndefinedBehaviourError("undriven net '"
+          + netlist.getNetName(net) + "'");
+    }
+    return driver;
+  }
+
+  // Returns the id of the net attached to the named port of a node.
+  private int getConnectedNet(int nodeId, String portName) {
+    int port = netlist.getPort(nodeId, portName);
+    if (port == -1) {
+      err("node '" + netlist.getNodeName(nodeId) + "' has no port '"
+          + portName + "'");
+    }
+    int net = netlist.getPortNet(port);
+    if (net == CompactNetlist.NOT_CONNECTED) {
+      err("port '" + portName + "' of node '" + netlist.getNodeName(nodeId)
+          + "' is not connected to any nets");
     }
-    throw new UndefinedBehaviourError("undriven net '" + net.getName() + "'");
+    return net;
   }
 
 }
@@ -0,0 +1,44 @@
+package org.manifold.compiler.back.digital;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// One design rule violation: a human-readable message together with the
+// nets, ports ("node:port") and nodes involved.
+
+public class Violation {
+  private final String message;
+  private final List<String> nets;
+  private final List<String> ports;
+  private final List<String> nodes;
+
+  public Violation(String message, String[] nets, String[] ports,
+      String[] nodes) {
+    this.message = message;
+    this.nets = Collections.unmodifiableList(Arrays.asList(nets));
+    this.ports = Collections.unmodifiableList(Arrays.asList(ports));
+    this.nodes = Collections.unmodifiableList(Arrays.asList(nodes));
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public List<String> getNets() {
+    return nets;
+  }
+
+  public List<String> getPorts() {
+    return ports;
+  }
+
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  @Override
+  public String toString() {
+    return message;
+  }
+}
@@ -0,0 +1,94 @@
+package org.manifold.compiler.back.digital;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+// Streams violations to a machine-readable report as they are found,
+// so that the full list never has to be held in memory.
+//
+// The report is in JSON Lines form: one JSON object per line. Each
+// violation is written as
+//   {"check": ..., "message": ..., "nets": [...], "ports": [...],
+//    "nodes": [...]}
+// and, once a check has finished, a summary line
+//   {"check": ..., "passed": ..., "violations": ..., "reported": ...}
+// where "violations" counts everything found and "reported" counts the
+// violation lines written for the check (it is lower if a limit applied).
+
+public class ViolationReport implements ViolationSink, Closeable {
+
+  private final Writer out;
+  private IOException error = null;
+
+  public ViolationReport(Writer out) {
+    this.out = out;
+  }
+
+  @Override
+  public synchronized void report(Check check, Violation violation) {
+    try {
+      JsonWriter json = beginLine();
+      json.name("check").value(check.getName());
+      json.name("message").value(violation.getMessage());
+      writeList(json, "nets", violation.getNets());
+      writeList(json, "ports", violation.getPorts());
+      writeList(json, "nodes", violation.getNodes());
+      endLine(json);
+    } catch (IOException e) {
+      // keep checking; the error is raised from close()
+      if (error == null) {
+        error = e;
+      }
+    }
+  }
+
+  public synchronized void summarize(Check check, boolean passed) {
+    try {
+      JsonWriter json = beginLine();
+      json.name("check").value(check.getName());
+      json.name("passed").value(passed);
+      json.name("violations").value(check.getViolationCount());
+      json.name("reported").value(check.getReportedViolationCount());
+      endLine(json);
+    } catch (IOException e) {
+      if (error == null) {
+        error = e;
+      }
+    }
+  }
+
+  private JsonWriter beginLine() throws IOException {
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject();
+    return json;
+  }
+
+  private void endLine(JsonWriter json) throws IOException {
+    json.endObject();
+    // not json.close(), which would close the underlying writer
+    json.flush();
+    out.write('\n');
+  }
+
+  private static void writeList(JsonWriter json, String name,
+      List<String> values) throws IOException {
+    json.name(name).beginArray();
+    for (String value : values) {
+      json.value(value);
+    }
+    json.endArray();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+    if (error != null) {
+      throw error;
+    }
+  }
+
+}
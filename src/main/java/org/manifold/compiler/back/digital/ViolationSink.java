@@ -0,0 +1,8 @@
+package org.manifold.compiler.back.digital;
+
+// Receives violations as checks find them. Checks may run concurrently,
+// so implementations must be thread-safe.
+
+public interface ViolationSink {
+  void report(Check check, Violation violation);
+}
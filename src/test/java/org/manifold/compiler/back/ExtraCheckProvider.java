@@ -0,0 +1,62 @@
+package org.manifold.compiler.back;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.back.digital.Check;
+import org.manifold.compiler.back.digital.CheckContext;
+import org.manifold.compiler.back.digital.CheckProvider;
+
+// A check provider registered for the tests through
+// META-INF/services, as a third-party provider would be. Its checks always
+// pass, and log when they run so tests can see the order they ran in.
+
+public class ExtraCheckProvider implements CheckProvider {
+  private static Logger log = LogManager.getLogger("ExtraCheckProvider");
+
+  // if set, also provide a check with the same name as a standard one
+  static volatile boolean provideDuplicate = false;
+
+  // names of the checks run so far, in order
+  static final List<String> ran =
+      Collections.synchronizedList(new ArrayList<>());
+
+  private static class LoggingCheck extends Check {
+    private final Check.Cost cost;
+
+    LoggingCheck(String name, Check.Cost cost) {
+      super(name);
+      this.cost = cost;
+    }
+
+    @Override
+    public Check.Cost getCost() {
+      return cost;
+    }
+
+    @Override
+    protected void verify() {
+      ran.add(getName());
+      log.info("running extra check: " + getName());
+      this.result = true;
+    }
+  }
+
+  @Override
+  public List<Check> createChecks(CheckContext context) {
+    // listed most expensive first, so that running them in this order
+    // would be wrong
+    List<Check> checks = new ArrayList<>(Arrays.<Check>asList(
+        new LoggingCheck("extra expensive check", Check.Cost.EXPENSIVE),
+        new LoggingCheck("extra cheap check", Check.Cost.CHEAP)));
+    if (provideDuplicate) {
+      checks.add(new LoggingCheck("no multiple drivers", Check.Cost.CHEAP));
+    }
+    return checks;
+  }
+
+}
@@ -0,0 +1,131 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.Buses;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestBuses {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  private Schematic sch;
+  private NodeValue en;
+  private CompactNetlist netlist;
+
+  @Before
+  public void setup() throws SchematicException {
+    sch = UtilSchematicConstruction.instantiateSchematic("buses");
+    en = UtilSchematicConstruction.addInputPin(sch, "en");
+  }
+
+  // |a> -+- [and] --- [or] --- [not] --- <q|
+  // |b> -+             |
+  // |en> --------------+
+  private void addSlice(String suffix) throws SchematicException {
+    NodeValue a = UtilSchematicConstruction.addInputPin(sch, "a" + suffix);
+    NodeValue b = UtilSchematicConstruction.addInputPin(sch, "b" + suffix);
+    NodeValue and = UtilSchematicConstruction.addNode(sch, "and" + suffix,
+        UtilSchematicConstruction.instantiateAnd());
+    NodeValue or = UtilSchematicConstruction.addNode(sch, "or" + suffix,
+        UtilSchematicConstruction.instantiateOr());
+    NodeValue not = UtilSchematicConstruction.addNode(sch, "not" + suffix,
+        UtilSchematicConstruction.instantiateNot());
+    UtilSchematicConstruction.connect(sch, a.getPort("out"),
+        and.getPort("in0"));
+    UtilSchematicConstruction.connect(sch, b.getPort("out"),
+        and.getPort("in1"));
+    UtilSchematicConstruction.connect(sch, and.getPort("out"),
+        or.getPort("in0"));
+    UtilSchematicConstruction.connect(sch, en.getPort("out"),
+        or.getPort("in1"));
+    UtilSchematicConstruction.connect(sch, or.getPort("out"),
+        not.getPort("in"));
+    UtilSchematicConstruction.addOutputPin(sch, "q" + suffix,
+        not.getPort("out"));
+  }
+
+  private Buses build() throws SchematicException {
+    netlist = new CompactNetlist(sch, new Netlist(sch));
+    BitSet all = new BitSet();
+    all.set(0, netlist.getNodeCount());
+    return new Buses(netlist,
+        new PrimitiveTypeTable(sch).classifyNodes(netlist), all);
+  }
+
+  private int node(String name) {
+    return netlist.getNodeId(name);
+  }
+
+  private int net(String nodeName, String portName) {
+    return netlist.getPortNet(netlist.getPort(node(nodeName), portName));
+  }
+
+  @Test
+  public void testParallelGatesAreGrouped() throws SchematicException {
+    addSlice("0");
+    addSlice("1");
+    addSlice("2");
+    Buses buses = build();
+    assertEquals(3, buses.getGroups().size());
+    Buses.Group and = buses.getGroup(node("and0"));
+    Buses.Group or = buses.getGroup(node("or0"));
+    Buses.Group not = buses.getGroup(node("not0"));
+    assertEquals(3, and.getWidth());
+    // the inputs of the AND gates are gathered into buses, and the other
+    // groups take their bit order from them
+    Buses.Operand in0 = and.getOperand("in0");
+    assertFalse(in0.isBroadcast());
+    assertEquals(0, in0.getLow());
+    for (int bit = 0; bit < 3; ++bit) {
+      int a = net(netlist.getNodeName(and.getNode(bit)), "in0");
+      assertEquals(in0.getBus(), buses.getBus(a));
+      assertEquals(bit, buses.getBit(a));
+      assertEquals(and.getNode(bit), netlist.getNetDriverNode(
+          netlist.getPortNet(netlist.getPort(or.getNode(bit), "in0"))));
+      assertEquals(or.getNode(bit), netlist.getNetDriverNode(
+          netlist.getPortNet(netlist.getPort(not.getNode(bit), "in"))));
+    }
+    assertEquals(and.getBus(), or.getOperand("in0").getBus());
+    assertEquals(or.getBus(), not.getOperand("in").getBus());
+    // a, b and the outputs of the three groups
+    assertEquals(5, buses.getBusCount());
+  }
+
+  @Test
+  public void testSharedInputIsBroadcast() throws SchematicException {
+    addSlice("0");
+    addSlice("1");
+    Buses buses = build();
+    Buses.Operand enable = buses.getGroup(node("or1")).getOperand("in1");
+    assertTrue(enable.isBroadcast());
+    assertEquals(net("en", "out"), enable.getNet());
+    assertEquals(-1, buses.getBus(net("en", "out")));
+  }
+
+  @Test
+  public void testSingleSliceIsNotBundled() throws SchematicException {
+    addSlice("0");
+    Buses buses = build();
+    assertTrue(buses.getGroups().isEmpty());
+    assertEquals(0, buses.getBusCount());
+    assertNull(buses.getGroup(node("and0")));
+  }
+
+}
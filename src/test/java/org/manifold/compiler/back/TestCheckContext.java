@@ -0,0 +1,127 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.Analyses;
+import org.manifold.compiler.back.digital.Analysis;
+import org.manifold.compiler.back.digital.CheckContext;
+import org.manifold.compiler.back.digital.CodeGenerationError;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.GateGraph;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestCheckContext {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  // |in0> --- [not0] --- [not1] --- <out0|
+  private CheckContext buildContext() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue not1 = UtilSchematicConstruction.instantiateNot();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode("not1", not1);
+    sch.addNode("out0", out0);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), not0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        not0.getPort("out"), not1.getPort("in")));
+    sch.addConnection("c", UtilSchematicConstruction.instantiateWire(
+        not1.getPort("out"), out0.getPort("in")));
+    return new CheckContext(new CompactNetlist(sch, new Netlist(sch)),
+        new PrimitiveTypeTable(sch));
+  }
+
+  // Counts how often it is computed.
+  private static class CountingAnalysis implements Analysis<Object> {
+    private final AtomicInteger computed = new AtomicInteger();
+
+    @Override
+    public String getName() {
+      return "counting";
+    }
+
+    @Override
+    public Object compute(CheckContext context) {
+      computed.incrementAndGet();
+      try {
+        // long enough for the other callers to find it in progress
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new Object();
+    }
+  }
+
+  @Test
+  public void testGet_computedOnceAcrossThreads() throws Exception {
+    CheckContext context = buildContext();
+    CountingAnalysis analysis = new CountingAnalysis();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      List<Future<Object>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        futures.add(pool.submit(() -> context.get(analysis)));
+      }
+      Object first = futures.get(0).get(10, TimeUnit.SECONDS);
+      for (Future<Object> future : futures) {
+        assertSame(first, future.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(1, analysis.computed.get());
+  }
+
+  @Test
+  public void testGateGraph() throws SchematicException {
+    CheckContext context = buildContext();
+    CompactNetlist netlist = context.getNetlist();
+    GateGraph graph = context.get(Analyses.GATE_GRAPH);
+    assertSame(graph, context.get(Analyses.GATE_GRAPH));
+    int not0 = netlist.getNodeId("not0");
+    int not1 = netlist.getNodeId("not1");
+    assertEquals(1, graph.getSuccessorCount(not0));
+    assertEquals(not1, graph.getSuccessor(not0, 0));
+    // pins are not part of any path
+    assertEquals(0, graph.getSuccessorCount(netlist.getNodeId("in0")));
+    assertEquals(0, graph.getSuccessorCount(not1));
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testGet_failurePropagates() throws SchematicException {
+    buildContext().get(new Analysis<Object>() {
+      @Override
+      public String getName() {
+        return "failing";
+      }
+
+      @Override
+      public Object compute(CheckContext context) {
+        throw new CodeGenerationError("analysis failed");
+      }
+    });
+  }
+
+}
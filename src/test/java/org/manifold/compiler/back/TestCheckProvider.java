@@ -0,0 +1,103 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.manifold.compiler.back.digital.CodeGenerationError;
+import org.manifold.compiler.back.digital.DigitalBackend;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.serialization.SchematicDeserializer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.gson.JsonParser;
+
+public class TestCheckProvider {
+
+  private CaptureAppender logCapture;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() {
+    logCapture = new CaptureAppender();
+    LogManager.getRootLogger().addAppender(logCapture);
+    ExtraCheckProvider.ran.clear();
+  }
+
+  @After
+  public void teardown() {
+    LogManager.getRootLogger().removeAppender(logCapture);
+    ExtraCheckProvider.provideDuplicate = false;
+  }
+
+  private void compile() throws Exception {
+    String json = Resources.toString(Resources.getResource(
+        "org/manifold/compiler/back/data/schematic-InToOut.json"),
+        Charsets.UTF_8);
+    Schematic schematic = new SchematicDeserializer().deserialize(
+        new JsonParser().parse(json).getAsJsonObject());
+    Options options = new Options();
+    new DigitalBackend().registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    new DigitalBackend().invokeBackend(schematic, parser.parse(options,
+        new String[] {"--hdl", "vhdl", "--output",
+            folder.getRoot().getAbsolutePath()}));
+  }
+
+  // The position of the first logged message starting with `prefix`.
+  private int firstLogged(String prefix) {
+    List<LoggingEvent> events = logCapture.getEvents();
+    for (int i = 0; i < events.size(); ++i) {
+      if (events.get(i).getMessage().toString().startsWith(prefix)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void testProvidedChecksRunByCost() throws Exception {
+    compile();
+    // both providers were discovered
+    assertTrue(firstLogged("using 6 checks from "
+        + "org.manifold.compiler.back.digital.StandardCheckProvider") >= 0);
+    assertTrue(firstLogged("using 2 checks from "
+        + ExtraCheckProvider.class.getName()) >= 0);
+    assertEquals(Arrays.asList("extra cheap check", "extra expensive check"),
+        new ArrayList<>(ExtraCheckProvider.ran));
+    // cheap: the standard design rules, then the extra cheap check;
+    // moderate: the standard checks that need the gate graph;
+    // expensive: the extra expensive check
+    int rules = firstLogged("fanout histogram:");
+    int cheap = firstLogged("running extra check: extra cheap check");
+    int moderate = firstLogged("analysis 'gate graph' took");
+    int expensive = firstLogged("running extra check: extra expensive check");
+    assertTrue(rules >= 0);
+    assertTrue(rules < cheap);
+    assertTrue(cheap < moderate);
+    assertTrue(moderate < expensive);
+    assertTrue(firstLogged("check passed: extra expensive check") >= 0);
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testDuplicateCheckNameIsRejected() throws Exception {
+    ExtraCheckProvider.provideDuplicate = true;
+    compile();
+  }
+
+}
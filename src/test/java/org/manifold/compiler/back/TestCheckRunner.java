@@ -0,0 +1,205 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.manifold.compiler.back.digital.Check;
+import org.manifold.compiler.back.digital.CheckRunner;
+import org.manifold.compiler.back.digital.CodeGenerationError;
+
+public class TestCheckRunner {
+
+  private static class FixedCheck extends Check {
+    private final boolean passes;
+    private boolean wasVerified = false;
+
+    public FixedCheck(String name, boolean passes) {
+      super(name);
+      this.passes = passes;
+    }
+
+    @Override
+    protected void verify() {
+      wasVerified = true;
+      this.result = passes;
+    }
+  }
+
+  private static class CostedCheck extends FixedCheck {
+    private final Check.Cost cost;
+
+    public CostedCheck(String name, boolean passes, Check.Cost cost) {
+      super(name, passes);
+      this.cost = cost;
+    }
+
+    @Override
+    public Check.Cost getCost() {
+      return cost;
+    }
+  }
+
+  private static class ThrowingCheck extends Check {
+    public ThrowingCheck() {
+      super("throws");
+    }
+
+    @Override
+    protected void verify() {
+      throw new CodeGenerationError("check blew up");
+    }
+  }
+
+  // Passes, but only once `latch` is released.
+  private static class WaitingCheck extends Check {
+    private final CountDownLatch latch;
+
+    public WaitingCheck(String name, CountDownLatch latch) {
+      super(name);
+      this.latch = latch;
+    }
+
+    @Override
+    protected void verify() {
+      try {
+        latch.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.result = true;
+    }
+  }
+
+  @Test
+  public void testRunSerially_cheapChecksFirst() {
+    FixedCheck expensive = new CostedCheck("expensive", true,
+        Check.Cost.EXPENSIVE);
+    FixedCheck moderate = new CostedCheck("moderate", true,
+        Check.Cost.MODERATE);
+    CostedCheck cheap = new CostedCheck("cheap", false, Check.Cost.CHEAP);
+    List<CheckRunner.Result> results = new CheckRunner(null).run(
+        Arrays.<Check>asList(expensive, moderate, cheap));
+    // the cheap failure stops the others from running, but results are
+    // still in the order the checks were given
+    assertEquals(cheap, results.get(2).getCheck());
+    assertFalse(results.get(2).passed());
+    assertFalse(expensive.wasVerified);
+    assertFalse(moderate.wasVerified);
+  }
+
+  @Test
+  public void testRunSerially_failFast() {
+    FixedCheck a = new FixedCheck("a", true);
+    FixedCheck b = new FixedCheck("b", false);
+    FixedCheck c = new FixedCheck("c", true);
+    List<CheckRunner.Result> results = new CheckRunner(null).run(
+        Arrays.<Check>asList(a, b, c));
+    assertEquals(3, results.size());
+    assertTrue(results.get(0).passed());
+    assertTrue(results.get(1).wasRun());
+    assertFalse(results.get(1).passed());
+    assertFalse(results.get(2).wasRun());
+    assertFalse(c.wasVerified);
+  }
+
+  @Test
+  public void testRunSerially_keepGoing() {
+    CheckRunner runner = new CheckRunner(null);
+    runner.setFailFast(false);
+    List<CheckRunner.Result> results = runner.run(Arrays.<Check>asList(
+        new FixedCheck("a", false), new FixedCheck("b", true)));
+    assertTrue(results.get(1).wasRun());
+    assertTrue(results.get(1).passed());
+  }
+
+  @Test
+  public void testRunConcurrently_resultsInOrder() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      List<Check> checks = new ArrayList<>();
+      for (int i = 0; i < 20; ++i) {
+        checks.add(new FixedCheck("check" + i, i != 7));
+      }
+      CheckRunner runner = new CheckRunner(pool);
+      runner.setFailFast(false);
+      List<CheckRunner.Result> results = runner.run(checks);
+      assertEquals(20, results.size());
+      for (int i = 0; i < 20; ++i) {
+        assertTrue(results.get(i).getCheck() == checks.get(i));
+        assertTrue(results.get(i).wasRun());
+        assertEquals(i != 7, results.get(i).passed());
+        assertTrue(results.get(i).getElapsedMillis() >= 0);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testRunConcurrently_failFastCancelsPending() {
+    // one worker: the failing check runs first and the rest are still
+    // queued behind it when it fails
+    ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      FixedCheck fails = new FixedCheck("fails", false);
+      FixedCheck pending = new FixedCheck("pending", true);
+      List<CheckRunner.Result> results = new CheckRunner(pool).run(
+          Arrays.<Check>asList(fails, pending));
+      assertFalse(results.get(0).passed());
+      assertEquals(pending.wasVerified, results.get(1).wasRun());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testRunConcurrently_checksOverlap() {
+    // two checks that can only finish if they run at the same time
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final CountDownLatch started = new CountDownLatch(2);
+      Check first = new WaitingCheck("first", started) {
+        @Override
+        protected void verify() {
+          started.countDown();
+          super.verify();
+        }
+      };
+      Check second = new WaitingCheck("second", started) {
+        @Override
+        protected void verify() {
+          started.countDown();
+          super.verify();
+        }
+      };
+      List<CheckRunner.Result> results = new CheckRunner(pool).run(
+          Arrays.asList(first, second));
+      assertTrue(results.get(0).passed());
+      assertTrue(results.get(1).passed());
+      assertEquals(0, started.getCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testRunConcurrently_errorPropagates() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      new CheckRunner(pool).run(Arrays.<Check>asList(
+          new FixedCheck("a", true), new ThrowingCheck()));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+}
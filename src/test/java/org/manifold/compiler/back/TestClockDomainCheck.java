@@ -0,0 +1,160 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.CheckContext;
+import org.manifold.compiler.back.digital.ClockDomainCheck;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.back.digital.Violation;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestClockDomainCheck {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  private Schematic sch;
+  private NodeValue clk, rst;
+  private List<Violation> violations = new ArrayList<>();
+
+  // every case has a clock pin 'clk' and a reset pin 'rst'
+  @Before
+  public void setup() throws SchematicException {
+    sch = UtilSchematicConstruction.instantiateSchematic("domains");
+    clk = UtilSchematicConstruction.addInputPin(sch, "clk");
+    rst = UtilSchematicConstruction.addInputPin(sch, "rst");
+  }
+
+  // Add a register clocked (on the given edge) by `clock` and reset by 'rst'.
+  private NodeValue register(String name, NodeValue clock,
+      boolean clockActiveHigh) throws SchematicException {
+    return UtilSchematicConstruction.addRegister(sch, name, false,
+        clockActiveHigh, clock.getPort("out"), rst.getPort("out"));
+  }
+
+  private ClockDomainCheck check() throws SchematicException {
+    return check(false);
+  }
+
+  private ClockDomainCheck check(boolean strict) throws SchematicException {
+    CompactNetlist netlist = new CompactNetlist(sch, new Netlist(sch));
+    ClockDomainCheck check = new ClockDomainCheck(new CheckContext(netlist,
+        new PrimitiveTypeTable(sch)), strict);
+    check.setViolationSink((c, violation) -> violations.add(violation));
+    return check;
+  }
+
+  @Test
+  public void testSingleDomain() throws SchematicException {
+    // reg0 feeds reg1, both on the rising edge of clk
+    NodeValue reg0 = register("reg0", clk, true);
+    NodeValue reg1 = register("reg1", clk, true);
+    UtilSchematicConstruction.connect(sch, reg0.getPort("out"),
+        reg1.getPort("in"));
+    ClockDomainCheck check = check();
+    assertTrue(check.run());
+    assertEquals(1, check.getDomains().size());
+    ClockDomainCheck.Domain domain = check.getDomains().get(0);
+    assertEquals("clk", domain.getClockSource());
+    assertEquals(2, domain.getRisingEdgeRegisterCount());
+    assertEquals(0, domain.getFallingEdgeRegisterCount());
+    assertEquals(Collections.singleton("rst"), domain.getResetSources());
+  }
+
+  @Test
+  public void testMixedEdges() throws SchematicException {
+    // reg1 is clocked by an inverted clk, i.e. on its falling edge
+    register("reg0", clk, true);
+    NodeValue not0 = UtilSchematicConstruction.addNode(sch, "not0",
+        UtilSchematicConstruction.instantiateNot());
+    UtilSchematicConstruction.connect(sch, clk.getPort("out"),
+        not0.getPort("in"));
+    register("reg1", not0, true);
+    // only a warning by default; a DDR design uses both edges on purpose
+    ClockDomainCheck check = check();
+    assertTrue(check.run());
+    assertEquals(1, check.getWarningCount());
+    assertTrue(violations.isEmpty());
+
+    check = check(true);
+    assertFalse(check.run());
+    assertEquals(1, check.getDomains().size());
+    assertEquals(1, check.getDomains().get(0).getFallingEdgeRegisterCount());
+    assertEquals(0, check.getWarningCount());
+    assertEquals(1, violations.size());
+    assertEquals(Arrays.asList("clk"), violations.get(0).getNodes());
+  }
+
+  @Test
+  public void testInvertedClockOnFallingEdge() throws SchematicException {
+    // triggering on the falling edge of an inverted clock is the rising
+    // edge of the clock itself
+    register("reg0", clk, true);
+    NodeValue not0 = UtilSchematicConstruction.addNode(sch, "not0",
+        UtilSchematicConstruction.instantiateNot());
+    UtilSchematicConstruction.connect(sch, clk.getPort("out"),
+        not0.getPort("in"));
+    register("reg1", not0, false);
+    ClockDomainCheck check = check();
+    assertTrue(check.run());
+    assertEquals(2, check.getDomains().get(0).getRisingEdgeRegisterCount());
+  }
+
+  @Test
+  public void testDomainCrossing() throws SchematicException {
+    // reg0 (clk) --- [not0] --- reg1 (clk2)
+    NodeValue clk2 = UtilSchematicConstruction.addInputPin(sch, "clk2");
+    NodeValue reg0 = register("reg0", clk, true);
+    NodeValue reg1 = register("reg1", clk2, true);
+    NodeValue not0 = UtilSchematicConstruction.addNode(sch, "not0",
+        UtilSchematicConstruction.instantiateNot());
+    UtilSchematicConstruction.connect(sch, reg0.getPort("out"),
+        not0.getPort("in"));
+    UtilSchematicConstruction.connect(sch, not0.getPort("out"),
+        reg1.getPort("in"));
+    ClockDomainCheck check = check(true);
+    assertFalse(check.run());
+    assertEquals(2, check.getDomains().size());
+    assertEquals(1, violations.size());
+    Violation crossing = violations.get(0);
+    assertEquals(Arrays.asList("reg1"), crossing.getNodes());
+    assertEquals("register 'reg1' in clock domain 'clk2' samples data from "
+        + "clock domain 'clk'", crossing.getMessage());
+  }
+
+  @Test
+  public void testSynchronizerPassesByDefault() throws SchematicException {
+    // reg0 (clk) --- sync0 (clk2) --- sync1 (clk2): a two-flop synchronizer
+    NodeValue clk2 = UtilSchematicConstruction.addInputPin(sch, "clk2");
+    NodeValue reg0 = register("reg0", clk, true);
+    NodeValue sync0 = register("sync0", clk2, true);
+    NodeValue sync1 = register("sync1", clk2, true);
+    UtilSchematicConstruction.connect(sch, reg0.getPort("out"),
+        sync0.getPort("in"));
+    UtilSchematicConstruction.connect(sch, sync0.getPort("out"),
+        sync1.getPort("in"));
+    ClockDomainCheck check = check();
+    assertTrue(check.run());
+    // the crossing into sync0 is still flagged
+    assertEquals(1, check.getWarningCount());
+    assertTrue(violations.isEmpty());
+    assertEquals(2, check.getDomains().size());
+  }
+
+}
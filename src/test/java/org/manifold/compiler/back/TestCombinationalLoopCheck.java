@@ -0,0 +1,157 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.digital.CombinationalLoopCheck;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.back.digital.Violation;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestCombinationalLoopCheck {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  private int nConnections = 0;
+
+  private void connect(Schematic sch, PortValue from, PortValue to)
+      throws SchematicException {
+    sch.addConnection("c" + Integer.toString(nConnections++),
+        UtilSchematicConstruction.instantiateWire(from, to));
+  }
+
+  // Run the check on `sch`, collecting the violations it reports.
+  private boolean check(Schematic sch, List<Violation> violations)
+      throws SchematicException {
+    CompactNetlist netlist = new CompactNetlist(sch, new Netlist(sch));
+    CombinationalLoopCheck check = new CombinationalLoopCheck(netlist,
+        new PrimitiveTypeTable(sch));
+    check.setViolationSink((c, violation) -> violations.add(violation));
+    return check.run();
+  }
+
+  @Test
+  public void testNoLoop() throws SchematicException {
+    // |in0> --- [not0] --- [not1] --- <out0|
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue not1 = UtilSchematicConstruction.instantiateNot();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode("not1", not1);
+    sch.addNode("out0", out0);
+    connect(sch, in0.getPort("out"), not0.getPort("in"));
+    connect(sch, not0.getPort("out"), not1.getPort("in"));
+    connect(sch, not1.getPort("out"), out0.getPort("in"));
+    List<Violation> violations = new ArrayList<>();
+    assertTrue(check(sch, violations));
+    assertTrue(violations.isEmpty());
+  }
+
+  @Test
+  public void testSelfLoop() throws SchematicException {
+    // [not0] drives its own input
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case1");
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    sch.addNode("not0", not0);
+    connect(sch, not0.getPort("out"), not0.getPort("in"));
+    List<Violation> violations = new ArrayList<>();
+    assertFalse(check(sch, violations));
+    assertEquals(1, violations.size());
+    assertEquals(Arrays.asList("not0"), violations.get(0).getNodes());
+  }
+
+  @Test
+  public void testLoopsReportedSeparately() throws SchematicException {
+    // |in0> --- [and0] --- [not0] -+- <out0|
+    //             ^----------------+
+    // and, separately, [or0] <--> [not1]
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case2");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue and0 = UtilSchematicConstruction.instantiateAnd();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    NodeValue or0 = UtilSchematicConstruction.instantiateOr();
+    NodeValue not1 = UtilSchematicConstruction.instantiateNot();
+    sch.addNode("in0", in0);
+    sch.addNode("and0", and0);
+    sch.addNode("not0", not0);
+    sch.addNode("out0", out0);
+    sch.addNode("or0", or0);
+    sch.addNode("not1", not1);
+    connect(sch, in0.getPort("out"), and0.getPort("in1"));
+    connect(sch, and0.getPort("out"), not0.getPort("in"));
+    connect(sch, not0.getPort("out"), out0.getPort("in"));
+    connect(sch, not0.getPort("out"), and0.getPort("in0"));
+    connect(sch, in0.getPort("out"), or0.getPort("in0"));
+    connect(sch, or0.getPort("out"), not1.getPort("in"));
+    connect(sch, not1.getPort("out"), or0.getPort("in1"));
+    List<Violation> violations = new ArrayList<>();
+    assertFalse(check(sch, violations));
+    assertEquals(2, violations.size());
+    List<List<String>> loops = new ArrayList<>();
+    for (Violation violation : violations) {
+      loops.add(violation.getNodes());
+    }
+    assertTrue(loops.contains(Arrays.asList("and0", "not0")));
+    assertTrue(loops.contains(Arrays.asList("not1", "or0")));
+  }
+
+  @Test
+  public void testRegisterBreaksLoop() throws SchematicException {
+    // [reg0] --- [not0] --- [reg0]
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case3");
+    NodeValue clk = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue rst = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue reg0 = UtilSchematicConstruction.instantiateRegister(
+        false, true, false, true);
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    sch.addNode("clk", clk);
+    sch.addNode("rst", rst);
+    sch.addNode("reg0", reg0);
+    sch.addNode("not0", not0);
+    connect(sch, clk.getPort("out"), reg0.getPort("clock"));
+    connect(sch, rst.getPort("out"), reg0.getPort("reset"));
+    connect(sch, reg0.getPort("out"), not0.getPort("in"));
+    connect(sch, not0.getPort("out"), reg0.getPort("in"));
+    assertTrue(check(sch, new ArrayList<>()));
+  }
+
+  @Test
+  public void testLongLoopDoesNotOverflowStack() throws SchematicException {
+    // a ring of NOT gates far deeper than a recursive search could go
+    int nGates = 100000;
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case4");
+    NodeValue[] gates = new NodeValue[nGates];
+    for (int i = 0; i < nGates; ++i) {
+      gates[i] = UtilSchematicConstruction.instantiateNot();
+      sch.addNode("not" + Integer.toString(i), gates[i]);
+    }
+    for (int i = 0; i < nGates; ++i) {
+      connect(sch, gates[i].getPort("out"),
+          gates[(i + 1) % nGates].getPort("in"));
+    }
+    List<Violation> violations = new ArrayList<>();
+    assertFalse(check(sch, violations));
+    assertEquals(1, violations.size());
+    assertEquals(nGates, violations.get(0).getNodes().size());
+  }
+
+}
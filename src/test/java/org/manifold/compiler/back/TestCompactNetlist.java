@@ -0,0 +1,212 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.SchematicDelta;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestCompactNetlist {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  // |in0> -+- [not0] --- <out0|
+  //        +------------ <out1|
+  // plus an unconnected AND gate
+  private Schematic buildSchematic() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue and0 = UtilSchematicConstruction.instantiateAnd();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    NodeValue out1 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode("and0", and0);
+    sch.addNode("out0", out0);
+    sch.addNode("out1", out1);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), not0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out1.getPort("in")));
+    sch.addConnection("c", UtilSchematicConstruction.instantiateWire(
+        not0.getPort("out"), out0.getPort("in")));
+    return sch;
+  }
+
+  @Test
+  public void testNodesAndPorts() throws SchematicException {
+    Schematic sch = buildSchematic();
+    CompactNetlist compact = new CompactNetlist(sch, new Netlist(sch));
+
+    assertEquals("case0", compact.getName());
+    assertEquals(5, compact.getNodeCount());
+    // nodes are numbered in name order
+    assertEquals("and0", compact.getNodeName(0));
+    assertEquals("out1", compact.getNodeName(4));
+    int not0 = compact.getNodeId("not0");
+    assertEquals(sch.getNodes().get("not0"), compact.getNode(not0));
+    assertEquals(-1, compact.getNodeId("nonexistent"));
+    // 3 (and) + 1 (in) + 1 (not) + 1 + 1 (out)
+    assertEquals(8, compact.getPortCount());
+    assertEquals(2, compact.getNodePortCount(not0));
+    int notIn = compact.getPort(not0, "in");
+    int notOut = compact.getPort(not0, "out");
+    assertEquals(-1, compact.getPort(not0, "in0"));
+    assertEquals(not0, compact.getPortNode(notIn));
+    assertFalse(compact.isOutputPort(notIn));
+    assertTrue(compact.isOutputPort(notOut));
+    assertEquals(sch.getNodes().get("not0").getPort("out"),
+        compact.getPortValue(notOut));
+  }
+
+  @Test
+  public void testNets() throws SchematicException {
+    Schematic sch = buildSchematic();
+    CompactNetlist compact = new CompactNetlist(sch, new Netlist(sch));
+
+    assertEquals(2, compact.getNetCount());
+    int inNet = compact.getPortNet(
+        compact.getPort(compact.getNodeId("in0"), "out"));
+    int notNet = compact.getPortNet(
+        compact.getPort(compact.getNodeId("not0"), "out"));
+    assertTrue(inNet != notNet);
+    assertEquals(inNet, compact.getNetId(compact.getNetName(inNet)));
+
+    // in0 drives not0 and out1
+    assertEquals(3, compact.getNetPortCount(inNet));
+    assertEquals(1, compact.getNetDriverCount(inNet));
+    assertEquals(compact.getNodeId("in0"),
+        compact.getPortNode(compact.getNetDriver(inNet, 0)));
+    assertEquals(compact.getNodeId("in0"), compact.getNetDriverNode(inNet));
+    assertEquals(2, compact.getNetSinkCount(inNet));
+    for (int k = 0; k < compact.getNetSinkCount(inNet); ++k) {
+      assertFalse(compact.isOutputPort(compact.getNetSink(inNet, k)));
+    }
+
+    // the AND gate is attached to nothing
+    int and0 = compact.getNodeId("and0");
+    for (int k = 0; k < compact.getNodePortCount(and0); ++k) {
+      assertEquals(CompactNetlist.NOT_CONNECTED,
+          compact.getPortNet(compact.getNodePort(and0, k)));
+    }
+  }
+
+  // Every id, name and adjacency of the two netlists must agree.
+  private static void assertSameNetlist(CompactNetlist expected,
+      CompactNetlist actual) {
+    assertEquals(expected.getNodeCount(), actual.getNodeCount());
+    for (int n = 0; n < expected.getNodeCount(); ++n) {
+      assertEquals(expected.getNodeName(n), actual.getNodeName(n));
+      assertSame(expected.getNode(n), actual.getNode(n));
+      assertEquals(expected.getNodePortCount(n), actual.getNodePortCount(n));
+    }
+    assertEquals(expected.getPortCount(), actual.getPortCount());
+    for (int p = 0; p < expected.getPortCount(); ++p) {
+      assertEquals(expected.getPortName(p), actual.getPortName(p));
+      assertEquals(expected.getPortNode(p), actual.getPortNode(p));
+      assertEquals(expected.isOutputPort(p), actual.isOutputPort(p));
+      assertEquals(expected.getPortNet(p), actual.getPortNet(p));
+    }
+    assertEquals(expected.getNetCount(), actual.getNetCount());
+    for (int net = 0; net < expected.getNetCount(); ++net) {
+      assertEquals(expected.getNetName(net), actual.getNetName(net));
+      assertEquals(expected.getNetDriverNode(net),
+          actual.getNetDriverNode(net));
+      assertEquals(expected.getNetDriverCount(net),
+          actual.getNetDriverCount(net));
+      assertEquals(expected.getNetPortCount(net),
+          actual.getNetPortCount(net));
+      for (int k = 0; k < expected.getNetPortCount(net); ++k) {
+        assertEquals(expected.getNetPort(net, k), actual.getNetPort(net, k));
+      }
+    }
+  }
+
+  @Test
+  public void testApplyDelta() throws SchematicException {
+    Map<String, NodeValue> nodes = new LinkedHashMap<>();
+    nodes.put("in0", UtilSchematicConstruction.instantiateInputPin());
+    nodes.put("not0", UtilSchematicConstruction.instantiateNot());
+    nodes.put("and0", UtilSchematicConstruction.instantiateAnd());
+    nodes.put("out0", UtilSchematicConstruction.instantiateOutputPin());
+    Map<String, ConnectionValue> connections = new LinkedHashMap<>();
+    connections.put("a", UtilSchematicConstruction.instantiateWire(
+        nodes.get("in0").getPort("out"), nodes.get("not0").getPort("in")));
+    connections.put("c", UtilSchematicConstruction.instantiateWire(
+        nodes.get("not0").getPort("out"), nodes.get("out0").getPort("in")));
+    Schematic sch = buildSchematic(nodes, connections);
+    Netlist netlist = new Netlist(sch);
+    CompactNetlist compact = new CompactNetlist(sch, netlist);
+
+    // add a gate between not0 and out0, and tie and0 to in0
+    NodeValue not1 = UtilSchematicConstruction.instantiateNot();
+    SchematicDelta insert = new SchematicDelta();
+    insert.addNode("not1", not1);
+    insert.removeConnection("c");
+    insert.addConnection("d", UtilSchematicConstruction.instantiateWire(
+        nodes.get("not0").getPort("out"), not1.getPort("in")));
+    insert.addConnection("e", UtilSchematicConstruction.instantiateWire(
+        not1.getPort("out"), nodes.get("out0").getPort("in")));
+    insert.addConnection("f", UtilSchematicConstruction.instantiateWire(
+        nodes.get("in0").getPort("out"), nodes.get("and0").getPort("in0")));
+    compact = applyDelta(compact, netlist, insert, nodes, connections);
+
+    // remove a node with connections, renaming the net it was named after
+    SchematicDelta remove = new SchematicDelta();
+    remove.removeNode("not0", nodes.get("not0"));
+    remove.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        nodes.get("in0").getPort("out"), not1.getPort("in")));
+    compact = applyDelta(compact, netlist, remove, nodes, connections);
+  }
+
+  // Apply `delta` to both `netlist` and `compact`, and check that the
+  // result is what a rebuild of the edited schematic would give.
+  private CompactNetlist applyDelta(CompactNetlist compact, Netlist netlist,
+      SchematicDelta delta, Map<String, NodeValue> nodes,
+      Map<String, ConnectionValue> connections) throws SchematicException {
+    for (String nodeName : delta.getRemovedNodes().keySet()) {
+      NodeValue node = nodes.remove(nodeName);
+      connections.values().removeIf((connection) ->
+          node.getPorts().containsValue(connection.getFrom())
+          || node.getPorts().containsValue(connection.getTo()));
+    }
+    connections.keySet().removeAll(delta.getRemovedConnections());
+    nodes.putAll(delta.getAddedNodes());
+    connections.putAll(delta.getAddedConnections());
+    Set<String> changedNets = netlist.applyDelta(delta);
+    CompactNetlist patched = compact.applyDelta(netlist, delta, changedNets);
+    assertSameNetlist(new CompactNetlist(
+        buildSchematic(nodes, connections), netlist), patched);
+    return patched;
+  }
+
+  private static Schematic buildSchematic(Map<String, NodeValue> nodes,
+      Map<String, ConnectionValue> connections) throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case1");
+    for (Map.Entry<String, NodeValue> node : nodes.entrySet()) {
+      sch.addNode(node.getKey(), node.getValue());
+    }
+    for (Map.Entry<String, ConnectionValue> conn : connections.entrySet()) {
+      sch.addConnection(conn.getKey(), conn.getValue());
+    }
+    return sch;
+  }
+
+}
@@ -0,0 +1,216 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.DesignDatabase;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestDesignDatabase {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  // |in0> --- [not0] --- <out0|
+  private Schematic buildSchematic(String outputPinName)
+      throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode(outputPinName, out0);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), not0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        not0.getPort("out"), out0.getPort("in")));
+    return sch;
+  }
+
+  private byte[] fingerprint(Schematic sch) throws SchematicException {
+    return DesignDatabase.fingerprint(sch, new PrimitiveTypeTable(sch));
+  }
+
+  @Test
+  public void testFingerprint() throws SchematicException {
+    assertArrayEquals(fingerprint(buildSchematic("out0")),
+        fingerprint(buildSchematic("out0")));
+    assertFalse(Arrays.equals(fingerprint(buildSchematic("out0")),
+        fingerprint(buildSchematic("out1"))));
+  }
+
+  @Test
+  public void testRoundTrip() throws SchematicException, IOException {
+    Schematic sch = buildSchematic("out0");
+    CompactNetlist original = new CompactNetlist(sch, new Netlist(sch));
+    Map<String, Boolean> checkResults = new LinkedHashMap<>();
+    checkResults.put("no multiple drivers", true);
+    checkResults.put("no unconnected inputs", false);
+    Path file = folder.getRoot().toPath().resolve("case0.db");
+    byte[] fingerprint = fingerprint(sch);
+    DesignDatabase.write(file, fingerprint, original, checkResults);
+
+    DesignDatabase db = DesignDatabase.load(file, fingerprint, sch);
+    assertNotNull(db);
+    assertEquals(checkResults, db.getCheckResults());
+    CompactNetlist loaded = db.getNetlist();
+    assertEquals(original.getName(), loaded.getName());
+    assertEquals(original.getNodeCount(), loaded.getNodeCount());
+    for (int n = 0; n < original.getNodeCount(); ++n) {
+      assertEquals(original.getNodeName(n), loaded.getNodeName(n));
+      // node values come from the schematic, not the file
+      assertTrue(original.getNode(n) == loaded.getNode(n));
+    }
+    assertEquals(original.getPortCount(), loaded.getPortCount());
+    for (int p = 0; p < original.getPortCount(); ++p) {
+      assertEquals(original.getPortNode(p), loaded.getPortNode(p));
+      assertEquals(original.getPortName(p), loaded.getPortName(p));
+      assertEquals(original.isOutputPort(p), loaded.isOutputPort(p));
+      assertEquals(original.getPortNet(p), loaded.getPortNet(p));
+    }
+    assertEquals(original.getNetCount(), loaded.getNetCount());
+    for (int net = 0; net < original.getNetCount(); ++net) {
+      assertEquals(original.getNetName(net), loaded.getNetName(net));
+      assertEquals(original.getNetPortCount(net),
+          loaded.getNetPortCount(net));
+      assertEquals(original.getNetDriverNode(net),
+          loaded.getNetDriverNode(net));
+      assertEquals(original.getNetSinkCount(net),
+          loaded.getNetSinkCount(net));
+    }
+  }
+
+  @Test
+  public void testLoad_staleFingerprint()
+      throws SchematicException, IOException {
+    Schematic sch = buildSchematic("out0");
+    CompactNetlist compact = new CompactNetlist(sch, new Netlist(sch));
+    Path file = folder.getRoot().toPath().resolve("case0.db");
+    DesignDatabase.write(file, fingerprint(sch), compact,
+        new LinkedHashMap<String, Boolean>());
+
+    Schematic changed = buildSchematic("out1");
+    assertNull(DesignDatabase.load(file, fingerprint(changed), changed));
+  }
+
+  // |d> --- [reg0] --- <q|, clocked by |clk> and reset by |rst>
+  private Schematic buildRegister(boolean clockActiveHigh)
+      throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case1");
+    NodeValue d = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue clk = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue rst = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue reg0 = UtilSchematicConstruction.instantiateRegister(
+        false, true, false, clockActiveHigh);
+    NodeValue q = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("d", d);
+    sch.addNode("clk", clk);
+    sch.addNode("rst", rst);
+    sch.addNode("reg0", reg0);
+    sch.addNode("q", q);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        d.getPort("out"), reg0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        clk.getPort("out"), reg0.getPort("clock")));
+    sch.addConnection("c", UtilSchematicConstruction.instantiateWire(
+        rst.getPort("out"), reg0.getPort("reset")));
+    sch.addConnection("e", UtilSchematicConstruction.instantiateWire(
+        reg0.getPort("out"), q.getPort("in")));
+    return sch;
+  }
+
+  @Test
+  public void testLoad_changedAttribute()
+      throws SchematicException, IOException {
+    Schematic sch = buildRegister(true);
+    CompactNetlist compact = new CompactNetlist(sch, new Netlist(sch));
+    Path file = folder.getRoot().toPath().resolve("case1.db");
+    Map<String, Boolean> checkResults = new LinkedHashMap<>();
+    checkResults.put("clock domains", true);
+    DesignDatabase.write(file, fingerprint(sch), compact, checkResults);
+    assertNotNull(DesignDatabase.load(file, fingerprint(sch), sch));
+
+    // the same netlist, but the register now uses the other clock edge
+    Schematic changed = buildRegister(false);
+    assertFalse(Arrays.equals(fingerprint(sch), fingerprint(changed)));
+    assertNull(DesignDatabase.load(file, fingerprint(changed), changed));
+  }
+
+  @Test
+  public void testLoad_truncated() throws SchematicException, IOException {
+    Schematic sch = buildSchematic("out0");
+    CompactNetlist compact = new CompactNetlist(sch, new Netlist(sch));
+    Path file = folder.getRoot().toPath().resolve("case0.db");
+    byte[] fingerprint = fingerprint(sch);
+    DesignDatabase.write(file, fingerprint, compact,
+        new LinkedHashMap<String, Boolean>());
+    byte[] whole = Files.readAllBytes(file);
+    // cut the file short at every point after the fingerprint
+    for (int length = 12 + fingerprint.length; length < whole.length;
+        ++length) {
+      Files.write(file, Arrays.copyOf(whole, length));
+      assertNull(DesignDatabase.load(file, fingerprint, sch));
+    }
+  }
+
+  @Test
+  public void testLoad_corruptCounts() throws SchematicException, IOException {
+    Schematic sch = buildSchematic("out0");
+    CompactNetlist compact = new CompactNetlist(sch, new Netlist(sch));
+    Path file = folder.getRoot().toPath().resolve("case0.db");
+    byte[] fingerprint = fingerprint(sch);
+    DesignDatabase.write(file, fingerprint, compact,
+        new LinkedHashMap<String, Boolean>());
+    byte[] whole = Files.readAllBytes(file);
+    // overwrite each int after the fingerprint with a huge or a negative
+    // value; none of these may crash the load
+    for (int at = 12 + fingerprint.length; at + 4 <= whole.length; ++at) {
+      for (int value : new int[] {Integer.MAX_VALUE, -2, 1}) {
+        byte[] corrupt = whole.clone();
+        corrupt[at] = (byte) (value >>> 24);
+        corrupt[at + 1] = (byte) (value >>> 16);
+        corrupt[at + 2] = (byte) (value >>> 8);
+        corrupt[at + 3] = (byte) value;
+        Files.write(file, corrupt);
+        DesignDatabase.load(file, fingerprint, sch);
+      }
+    }
+  }
+
+  @Test
+  public void testLoad_missingOrCorrupt()
+      throws SchematicException, IOException {
+    Schematic sch = buildSchematic("out0");
+    Path file = folder.getRoot().toPath().resolve("case0.db");
+    assertNull(DesignDatabase.load(file, fingerprint(sch), sch));
+    Files.write(file, new byte[] {1, 2, 3});
+    assertNull(DesignDatabase.load(file, fingerprint(sch), sch));
+  }
+
+}
@@ -0,0 +1,128 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.DesignRule;
+import org.manifold.compiler.back.digital.DesignRuleEngine;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.NoMultipleDriversCheck;
+import org.manifold.compiler.back.digital.NoUnconnectedInputsCheck;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestDesignRuleEngine {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  // Counts how often each kind of element is visited.
+  private static class CountingRule extends DesignRule {
+    private int begins = 0;
+    private int nodes = 0;
+    private int ports = 0;
+    private int nets = 0;
+
+    public CountingRule(CompactNetlist netlist) {
+      super("counting", netlist);
+    }
+
+    @Override
+    protected void begin() {
+      ++begins;
+    }
+
+    @Override
+    protected void visitNode(int node) {
+      ++nodes;
+    }
+
+    @Override
+    protected void visitPort(int port) {
+      ++ports;
+    }
+
+    @Override
+    protected void visitNet(int net) {
+      ++nets;
+    }
+
+    @Override
+    protected void end() {
+      this.result = true;
+    }
+  }
+
+  // |in0> -+- [not0] --- <out0|
+  //        +------------ <out1|
+  // plus an AND gate with unconnected inputs
+  private CompactNetlist buildNetlist() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue and0 = UtilSchematicConstruction.instantiateAnd();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    NodeValue out1 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode("and0", and0);
+    sch.addNode("out0", out0);
+    sch.addNode("out1", out1);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), not0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out1.getPort("in")));
+    sch.addConnection("c", UtilSchematicConstruction.instantiateWire(
+        not0.getPort("out"), out0.getPort("in")));
+    return new CompactNetlist(sch, new Netlist(sch));
+  }
+
+  @Test
+  public void testRun_singlePassForAllRules() throws SchematicException {
+    CompactNetlist netlist = buildNetlist();
+    CountingRule first = new CountingRule(netlist);
+    CountingRule second = new CountingRule(netlist);
+    DesignRuleEngine.run(netlist, Arrays.asList(first, second));
+    for (CountingRule rule : Arrays.asList(first, second)) {
+      assertEquals(1, rule.begins);
+      assertEquals(netlist.getNodeCount(), rule.nodes);
+      assertEquals(netlist.getPortCount(), rule.ports);
+      assertEquals(netlist.getNetCount(), rule.nets);
+      assertTrue(rule.run());
+    }
+    // rules with a result are not evaluated again
+    DesignRuleEngine.run(netlist, Arrays.asList(first));
+    assertEquals(1, first.begins);
+  }
+
+  @Test
+  public void testRun_fusedMatchesStandalone() throws SchematicException {
+    CompactNetlist netlist = buildNetlist();
+    NoMultipleDriversCheck drivers = new NoMultipleDriversCheck(netlist);
+    NoUnconnectedInputsCheck inputs = new NoUnconnectedInputsCheck(netlist,
+        UtilSchematicConstruction.digitalInPortType);
+    DesignRuleEngine.run(netlist, Arrays.asList(drivers, inputs));
+    assertEquals(new NoMultipleDriversCheck(netlist).run(), drivers.run());
+    assertEquals(new NoUnconnectedInputsCheck(netlist,
+        UtilSchematicConstruction.digitalInPortType).run(), inputs.run());
+    assertTrue(drivers.run());
+    assertFalse(inputs.run());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRun_ruleForAnotherNetlist() throws SchematicException {
+    CompactNetlist netlist = buildNetlist();
+    DesignRuleEngine.run(netlist,
+        Arrays.asList(new CountingRule(buildNetlist())));
+  }
+
+}
@@ -1,5 +1,7 @@
 package org.manifold.compiler.back;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -31,6 +33,9 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.OptionError;
+import org.manifold.compiler.back.digital.CodeGenerationError;
 import org.manifold.compiler.back.digital.DigitalBackend;
 import org.manifold.compiler.middle.Schematic;
 import org.manifold.compiler.middle.serialization.SchematicDeserializer;
@@ -161,4 +166,238 @@ public class TestDigitalBackend {
     assertTrue("output product not found", found);
   }
 
+  @Test
+  public void testIntegration_DesignDatabaseReused() throws Exception {
+    // Run the backend twice on the same schematic with a design database;
+    // the second run should take the netlist and check results from it.
+    String temppath = folder.getRoot().getAbsolutePath();
+    String dbPath = folder.getRoot().toPath().resolve("InToOut.db")
+        .toString();
+    String[] args = {
+        "--hdl", "vhdl",
+        "--output", temppath,
+        "--design-db", dbPath
+    };
+    URL url = Resources
+        .getResource("org/manifold/compiler/back/data/"
+            + "schematic-InToOut.json");
+    String schematicSerial = Resources.toString(url, Charsets.UTF_8);
+
+    for (int run = 0; run < 2; ++run) {
+      logCapture.clear();
+      JsonObject inputJson = new JsonParser().parse(schematicSerial)
+          .getAsJsonObject();
+      Schematic schematic = new SchematicDeserializer()
+          .deserialize(inputJson);
+      DigitalBackend backend = new DigitalBackend();
+      Options options = new Options();
+      backend.registerArguments(options);
+      CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+      CommandLine cmd = parser.parse(options, args);
+      backend.invokeBackend(schematic, cmd);
+    }
+    assertTrue("design database not written",
+        Files.isRegularFile(Paths.get(dbPath)));
+    boolean loaded = false;
+    for (LoggingEvent ev : logCapture.getEvents()) {
+      String message = ev.getMessage().toString();
+      if (message.startsWith("Loaded netlist from design database")) {
+        loaded = true;
+      }
+      if (message.startsWith("running check")) {
+        fail("check was re-run: '" + message + "'");
+      }
+    }
+    assertTrue("design database not reused", loaded);
+  }
+
+  @Test
+  public void testIntegration_StreamingMatchesSchematic() throws Exception {
+    // Compiling the schematic file directly should produce the same VHDL
+    // as compiling the deserialized Schematic.
+    URL url = Resources
+        .getResource("org/manifold/compiler/back/data/"
+            + "schematic-InToOut.json");
+    String schematicSerial = Resources.toString(url, Charsets.UTF_8);
+    Path schematicFile = folder.newFile("test.schematic").toPath();
+    Files.write(schematicFile, schematicSerial.getBytes(Charsets.UTF_8));
+    File fromSchematic = folder.newFolder("schematic");
+    File fromStream = folder.newFolder("stream");
+
+    JsonObject inputJson = new JsonParser().parse(schematicSerial)
+        .getAsJsonObject();
+    Schematic schematic = new SchematicDeserializer().deserialize(inputJson);
+    Options options = new Options();
+    new DigitalBackend().registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    new DigitalBackend().invokeBackend(schematic, parser.parse(options,
+        new String[] {"--hdl", "vhdl", "--output",
+            fromSchematic.getAbsolutePath()}));
+    new DigitalBackend().invokeBackend(schematicFile, parser.parse(options,
+        new String[] {"--hdl", "vhdl", "--output",
+            fromStream.getAbsolutePath()}));
+
+    for (LoggingEvent ev : logCapture.getEvents()) {
+      if (ev.getLevel().isGreaterOrEqual(Level.ERROR)) {
+        fail("errors logged during execution: first is '"
+            + ev.getMessage().toString() + "'");
+      }
+    }
+    assertArrayEquals(
+        Files.readAllBytes(fromSchematic.toPath().resolve("InToOut.vhd")),
+        Files.readAllBytes(fromStream.toPath().resolve("InToOut.vhd")));
+  }
+
+  @Test
+  public void testIntegration_StreamingIgnoresDesignDatabase()
+      throws Exception {
+    // A streamed schematic can't be checked against a design database,
+    // so asking for one must neither fail nor write one.
+    URL url = Resources
+        .getResource("org/manifold/compiler/back/data/"
+            + "schematic-InToOut.json");
+    Path schematicFile = folder.newFile("test.schematic").toPath();
+    Files.write(schematicFile, Resources.toByteArray(url));
+    String temppath = folder.getRoot().getAbsolutePath();
+    Path dbPath = folder.getRoot().toPath().resolve("InToOut.db");
+    Options options = new Options();
+    new DigitalBackend().registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    new DigitalBackend().invokeBackend(schematicFile, parser.parse(options,
+        new String[] {"--hdl", "vhdl", "--output", temppath,
+            "--design-db", dbPath.toString()}));
+
+    assertTrue("output product not found",
+        Files.isRegularFile(Paths.get(temppath, "InToOut.vhd")));
+    assertFalse("design database written for a streamed schematic",
+        Files.exists(dbPath));
+  }
+
+  // |in0> --- [not0] --- [not1] --- <out0|
+  private Schematic buildDoubleInversion() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("inv");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue not0 = UtilSchematicConstruction.instantiateNot();
+    NodeValue not1 = UtilSchematicConstruction.instantiateNot();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode("not1", not1);
+    sch.addNode("out0", out0);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), not0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        not0.getPort("out"), not1.getPort("in")));
+    sch.addConnection("c", UtilSchematicConstruction.instantiateWire(
+        not1.getPort("out"), out0.getPort("in")));
+    return sch;
+  }
+
+  private boolean loggedRemoval(Level level) {
+    for (LoggingEvent ev : logCapture.getEvents()) {
+      if (ev.getLevel().equals(level)
+          && ev.getMessage().toString().contains("removed")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testOptimizationIsOptIn() throws Exception {
+    Options options = new Options();
+    new DigitalBackend().registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    String temppath = folder.getRoot().getAbsolutePath();
+    new DigitalBackend().invokeBackend(buildDoubleInversion(), parser.parse(
+        options, new String[] {"--hdl", "vhdl", "--output", temppath}));
+    assertFalse(loggedRemoval(Level.INFO) || loggedRemoval(Level.WARN));
+
+    // removing logic is always reported as a warning
+    new DigitalBackend().invokeBackend(buildDoubleInversion(), parser.parse(
+        options, new String[] {"--hdl", "vhdl", "--output", temppath,
+            "--optimize"}));
+    assertTrue(loggedRemoval(Level.WARN));
+  }
+
+  // |clk0> -- reg0 --- sync0 --- sync1 --- <out0|
+  // |clk1> ----------+---------+
+  // with |d0> on reg0's input and |rst> on every reset
+  private Schematic buildSynchronizer() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("sync");
+    String[] pins = {"clk0", "clk1", "rst", "d0"};
+    for (String pin : pins) {
+      sch.addNode(pin, UtilSchematicConstruction.instantiateInputPin());
+    }
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("out0", out0);
+    String[] registers = {"reg0", "sync0", "sync1"};
+    NodeValue previous = sch.getNodes().get("d0");
+    for (String name : registers) {
+      NodeValue reg = UtilSchematicConstruction.instantiateRegister(
+          false, true, false, true);
+      sch.addNode(name, reg);
+      String clock = name.equals("reg0") ? "clk0" : "clk1";
+      sch.addConnection(name + "_clk", UtilSchematicConstruction
+          .instantiateWire(sch.getNodes().get(clock).getPort("out"),
+              reg.getPort("clock")));
+      sch.addConnection(name + "_rst", UtilSchematicConstruction
+          .instantiateWire(sch.getNodes().get("rst").getPort("out"),
+              reg.getPort("reset")));
+      sch.addConnection(name + "_in", UtilSchematicConstruction
+          .instantiateWire(previous.getPort("out"), reg.getPort("in")));
+      previous = reg;
+    }
+    sch.addConnection("q", UtilSchematicConstruction.instantiateWire(
+        previous.getPort("out"), out0.getPort("in")));
+    return sch;
+  }
+
+  @Test
+  public void testSynchronizerCompilesByDefault() throws Exception {
+    Options options = new Options();
+    new DigitalBackend().registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    String temppath = folder.getRoot().getAbsolutePath();
+    new DigitalBackend().invokeBackend(buildSynchronizer(), parser.parse(
+        options, new String[] {"--hdl", "vhdl", "--output", temppath}));
+    assertTrue("output product not found",
+        Files.isRegularFile(Paths.get(temppath, "sync.vhd")));
+    for (LoggingEvent ev : logCapture.getEvents()) {
+      if (ev.getLevel().isGreaterOrEqual(Level.ERROR)) {
+        fail("errors logged during execution: first is '"
+            + ev.getMessage().toString() + "'");
+      }
+    }
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testSynchronizerFailsStrictClockDomains() throws Exception {
+    Options options = new Options();
+    new DigitalBackend().registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    new DigitalBackend().invokeBackend(buildSynchronizer(), parser.parse(
+        options, new String[] {"--hdl", "vhdl", "--output",
+            folder.getRoot().getAbsolutePath(), "--strict-clock-domains"}));
+  }
+
+  @Test
+  public void testMain_StreamsSchematicFile() throws Exception {
+    URL url = Resources
+        .getResource("org/manifold/compiler/back/data/"
+            + "schematic-InToOut.json");
+    Path schematicFile = folder.newFile("test.schematic").toPath();
+    Files.write(schematicFile, Resources.toByteArray(url));
+    String temppath = folder.getRoot().getAbsolutePath();
+    DigitalBackend.main(new String[] {"--hdl", "vhdl", "--output", temppath,
+        schematicFile.toString()});
+    assertTrue("output product not found",
+        Files.isRegularFile(Paths.get(temppath, "InToOut.vhd")));
+  }
+
+  @Test(expected = OptionError.class)
+  public void testMain_NoSchematicFile() throws Exception {
+    DigitalBackend.main(new String[] {"--hdl", "vhdl"});
+  }
+
 }
@@ -0,0 +1,71 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.FanoutCheck;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.Violation;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestFanoutCheck {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  // |in0> -+- <out0|    |in1> --- <out3|
+  //        +- <out1|
+  //        +- <out2|
+  private CompactNetlist buildNetlist() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue in1 = UtilSchematicConstruction.instantiateInputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("in1", in1);
+    for (int i = 0; i < 4; ++i) {
+      NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+      String name = "out" + Integer.toString(i);
+      sch.addNode(name, out);
+      NodeValue in = i < 3 ? in0 : in1;
+      sch.addConnection("c_" + name, UtilSchematicConstruction.instantiateWire(
+          in.getPort("out"), out.getPort("in")));
+    }
+    return new CompactNetlist(sch, new Netlist(sch));
+  }
+
+  @Test
+  public void testWithinLimit() throws SchematicException {
+    FanoutCheck check = new FanoutCheck(buildNetlist(), 3);
+    assertTrue(check.run());
+  }
+
+  @Test
+  public void testNoLimit() throws SchematicException {
+    assertTrue(new FanoutCheck(buildNetlist(), 0).run());
+  }
+
+  @Test
+  public void testOverLimit() throws SchematicException {
+    FanoutCheck check = new FanoutCheck(buildNetlist(), 2);
+    List<Violation> violations = new ArrayList<>();
+    check.setViolationSink((c, violation) -> violations.add(violation));
+    assertFalse(check.run());
+    assertEquals(1, violations.size());
+    assertEquals("net 'n_c_out0' has fanout 3 (limit 2)",
+        violations.get(0).getMessage());
+    assertEquals(Arrays.asList("in0"), violations.get(0).getNodes());
+  }
+
+}
@@ -0,0 +1,104 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.Check;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.FanoutCheck;
+import org.manifold.compiler.back.digital.FanoutStatistics;
+import org.manifold.compiler.back.digital.IncrementalDrc;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestFanoutStatistics {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  // |in0> -+- <out0|    |in1> --- <out3|
+  //        +- <out1|
+  //        +- <out2|
+  private CompactNetlist buildNetlist() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue in1 = UtilSchematicConstruction.instantiateInputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("in1", in1);
+    for (int i = 0; i < 4; ++i) {
+      NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+      String name = "out" + Integer.toString(i);
+      sch.addNode(name, out);
+      NodeValue in = i < 3 ? in0 : in1;
+      sch.addConnection("c_" + name, UtilSchematicConstruction.instantiateWire(
+          in.getPort("out"), out.getPort("in")));
+    }
+    return new CompactNetlist(sch, new Netlist(sch));
+  }
+
+  @Test
+  public void testTopNets() throws SchematicException {
+    FanoutStatistics stats = new FanoutStatistics(buildNetlist(), 10);
+    assertTrue(stats.run());
+    assertEquals(Arrays.asList("n_c_out0", "n_c_out3"), stats.getTopNets());
+
+    stats = new FanoutStatistics(buildNetlist(), 1);
+    assertTrue(stats.run());
+    assertEquals(Arrays.asList("n_c_out0"), stats.getTopNets());
+  }
+
+  @Test
+  public void testHistogram() throws SchematicException {
+    FanoutStatistics stats = new FanoutStatistics(buildNetlist(), 0);
+    assertTrue(stats.run());
+    long[] histogram = stats.getHistogram();
+    // one net with fanout 1, one with fanout 2-3
+    assertArrayEquals(new long[] {0, 1, 1},
+        Arrays.copyOf(histogram, 3));
+    assertEquals(2, FanoutStatistics.getBucketLowerBound(2));
+    assertTrue(stats.getTopNets().isEmpty());
+  }
+
+  @Test
+  public void testEmptyBeforeRun() throws SchematicException {
+    FanoutStatistics stats = new FanoutStatistics(buildNetlist(), 10);
+    for (long count : stats.getHistogram()) {
+      assertEquals(0, count);
+    }
+    assertTrue(stats.getTopNets().isEmpty());
+  }
+
+  @Test
+  public void testCoversWholeNetlistIncrementally()
+      throws SchematicException {
+    // the fanout limit is re-verified only where the netlist changed, but
+    // the statistics must still describe every net
+    List<FanoutStatistics> built = new ArrayList<>();
+    IncrementalDrc drc = new IncrementalDrc((netlist) -> {
+      FanoutStatistics stats = new FanoutStatistics(netlist, 10);
+      built.add(stats);
+      return Arrays.<Check>asList(new FanoutCheck(netlist, 2), stats);
+    });
+    drc.verify(buildNetlist());
+    Set<String> none = Collections.emptySet();
+    drc.verify(buildNetlist(), none, none);
+    FanoutStatistics stats = built.get(built.size() - 1);
+    assertArrayEquals(new long[] {0, 1, 1},
+        Arrays.copyOf(stats.getHistogram(), 3));
+    assertEquals(Arrays.asList("n_c_out0", "n_c_out3"), stats.getTopNets());
+  }
+
+}
@@ -0,0 +1,171 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Hierarchy;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestHierarchy {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  private Schematic sch;
+  private NodeValue clk, rst;
+
+  @Before
+  public void setup() throws SchematicException {
+    sch = UtilSchematicConstruction.instantiateSchematic("cells");
+    clk = UtilSchematicConstruction.addInputPin(sch, "clk");
+    rst = UtilSchematicConstruction.addInputPin(sch, "rst");
+  }
+
+  private NodeValue register(String name, boolean initialValue)
+      throws SchematicException {
+    return UtilSchematicConstruction.addRegister(sch, name, initialValue,
+        true, clk.getPort("out"), rst.getPort("out"));
+  }
+
+  // |a> -+- [and] --- [reg] --- <q|
+  // |b> -+
+  // with every node named after `suffix`
+  private void addSlice(String suffix, boolean initialValue)
+      throws SchematicException {
+    NodeValue a = UtilSchematicConstruction.addInputPin(sch, "a" + suffix);
+    NodeValue b = UtilSchematicConstruction.addInputPin(sch, "b" + suffix);
+    NodeValue and = UtilSchematicConstruction.addNode(sch, "and" + suffix,
+        UtilSchematicConstruction.instantiateAnd());
+    NodeValue reg = register("reg" + suffix, initialValue);
+    UtilSchematicConstruction.addOutputPin(sch, "q" + suffix,
+        reg.getPort("out"));
+    UtilSchematicConstruction.connect(sch, a.getPort("out"),
+        and.getPort("in0"));
+    UtilSchematicConstruction.connect(sch, b.getPort("out"),
+        and.getPort("in1"));
+    UtilSchematicConstruction.connect(sch, and.getPort("out"),
+        reg.getPort("in"));
+  }
+
+  private CompactNetlist netlist;
+
+  private Hierarchy build() throws SchematicException {
+    netlist = new CompactNetlist(sch, new Netlist(sch));
+    return new Hierarchy(netlist,
+        new PrimitiveTypeTable(sch).classifyNodes(netlist));
+  }
+
+  @Test
+  public void testIdenticalSlicesShareOneCell() throws SchematicException {
+    addSlice("0", false);
+    addSlice("1", false);
+    addSlice("2", false);
+    Hierarchy hierarchy = build();
+    List<Hierarchy.Cell> cells = hierarchy.getCells();
+    assertEquals(1, cells.size());
+    Hierarchy.Cell cell = cells.get(0);
+    assertEquals(3, cell.getInstances().size());
+    // a, b, clk, rst in; q out
+    assertEquals(5, cell.getPortCount());
+    int outputs = 0;
+    for (int p = 0; p < cell.getPortCount(); ++p) {
+      if (cell.isOutputPort(p)) {
+        ++outputs;
+      }
+    }
+    assertEquals(1, outputs);
+    // corresponding nodes play the same part in every instance
+    for (Hierarchy.Instance instance : cell.getInstances()) {
+      assertEquals(2, instance.getNodeCount());
+      assertTrue(netlist.getNodeName(instance.getNode(0))
+          .startsWith("and"));
+      assertTrue(netlist.getNodeName(instance.getNode(1))
+          .startsWith("reg"));
+    }
+    // the clock is on the same port of every instance
+    Hierarchy.Instance first = cell.getInstances().get(0);
+    Hierarchy.Instance last = cell.getInstances().get(2);
+    int clkNet = netlist.getPortNet(netlist.getPort(
+        netlist.getNodeId("clk"), "out"));
+    boolean found = false;
+    for (int p = 0; p < cell.getPortCount(); ++p) {
+      if (first.getPortNet(p) == clkNet) {
+        assertEquals(clkNet, last.getPortNet(p));
+        found = true;
+      }
+    }
+    assertTrue(found);
+    BitSet cellNodes = hierarchy.getCellNodes();
+    assertEquals(6, cellNodes.cardinality());
+    assertFalse(cellNodes.get(netlist.getNodeId("clk")));
+  }
+
+  @Test
+  public void testDifferentAttributesAreDifferentCells()
+      throws SchematicException {
+    addSlice("0", false);
+    addSlice("1", true);
+    addSlice("2", false);
+    addSlice("3", true);
+    addSlice("4", true);
+    List<Hierarchy.Cell> cells = build().getCells();
+    assertEquals(2, cells.size());
+    // in order of first node
+    assertEquals(2, cells.get(0).getInstances().size());
+    assertEquals(3, cells.get(1).getInstances().size());
+  }
+
+  @Test
+  public void testUniqueSubcircuitIsNotACell() throws SchematicException {
+    addSlice("0", false);
+    addSlice("1", true);
+    Hierarchy hierarchy = build();
+    assertTrue(hierarchy.getCells().isEmpty());
+    assertTrue(hierarchy.getCellNodes().isEmpty());
+  }
+
+  @Test
+  public void testChainedSlicesAreNotSplit() throws SchematicException {
+    // |a0> - [and0] - [reg0] - [and1] - [reg1] - [and2] - [reg2] - <q|
+    // |b0> -+ |a1> ----------+ |a2> ----------+
+    // Three identical stages, but joined by nets that touch no pin, so
+    // they are one group; groups are only cut at pin nets.
+    PortValue previous = null;
+    for (int i = 0; i < 3; ++i) {
+      String suffix = Integer.toString(i);
+      NodeValue a = UtilSchematicConstruction.addInputPin(sch, "a" + suffix);
+      NodeValue and = UtilSchematicConstruction.addNode(sch, "and" + suffix,
+          UtilSchematicConstruction.instantiateAnd());
+      NodeValue reg = register("reg" + suffix, false);
+      UtilSchematicConstruction.connect(sch, a.getPort("out"),
+          and.getPort("in0"));
+      if (previous == null) {
+        previous = UtilSchematicConstruction.addInputPin(sch, "b0")
+            .getPort("out");
+      }
+      UtilSchematicConstruction.connect(sch, previous, and.getPort("in1"));
+      UtilSchematicConstruction.connect(sch, and.getPort("out"),
+          reg.getPort("in"));
+      previous = reg.getPort("out");
+    }
+    UtilSchematicConstruction.addOutputPin(sch, "q", previous);
+    Hierarchy hierarchy = build();
+    assertTrue(hierarchy.getCells().isEmpty());
+  }
+
+}
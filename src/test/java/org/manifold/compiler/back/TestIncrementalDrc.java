@@ -0,0 +1,167 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.Check;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.IncrementalDrc;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.NoMultipleDriversCheck;
+import org.manifold.compiler.back.digital.NoUnconnectedInputsCheck;
+import org.manifold.compiler.back.digital.SchematicDelta;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestIncrementalDrc {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  private static final IncrementalDrc.CheckFactory CHECKS =
+      (netlist) -> Arrays.<Check>asList(
+          new NoMultipleDriversCheck(netlist),
+          new NoUnconnectedInputsCheck(netlist,
+              UtilSchematicConstruction.digitalInPortType));
+
+  private NodeValue in0, not0, and0, out0, out1;
+  private Map<String, ConnectionValue> connections;
+  private Netlist netlist;
+
+  // |in0> --- [not0] --- <out0|
+  // plus an AND gate and an output pin that are not connected
+  @Before
+  public void setup() throws SchematicException {
+    in0 = UtilSchematicConstruction.instantiateInputPin();
+    not0 = UtilSchematicConstruction.instantiateNot();
+    and0 = UtilSchematicConstruction.instantiateAnd();
+    out0 = UtilSchematicConstruction.instantiateOutputPin();
+    out1 = UtilSchematicConstruction.instantiateOutputPin();
+    connections = new LinkedHashMap<>();
+    connections.put("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), not0.getPort("in")));
+    connections.put("c", UtilSchematicConstruction.instantiateWire(
+        not0.getPort("out"), out0.getPort("in")));
+    netlist = new Netlist(buildSchematic());
+  }
+
+  private Schematic buildSchematic() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    sch.addNode("in0", in0);
+    sch.addNode("not0", not0);
+    sch.addNode("and0", and0);
+    sch.addNode("out0", out0);
+    sch.addNode("out1", out1);
+    for (Map.Entry<String, ConnectionValue> conn : connections.entrySet()) {
+      sch.addConnection(conn.getKey(), conn.getValue());
+    }
+    return sch;
+  }
+
+  // Apply `delta` to the netlist and incrementally re-verify it; the
+  // results must match those of a full run over the edited design.
+  private Map<String, Boolean> edit(IncrementalDrc drc, SchematicDelta delta)
+      throws SchematicException {
+    CompactNetlist before = new CompactNetlist(buildSchematic(), netlist);
+    for (String name : delta.getRemovedConnections()) {
+      connections.remove(name);
+    }
+    connections.putAll(delta.getAddedConnections());
+    Set<String> changedNets = netlist.applyDelta(delta);
+    CompactNetlist compact = before.applyDelta(netlist, delta, changedNets);
+    Map<String, Boolean> results = drc.verify(compact, changedNets,
+        IncrementalDrc.changedNodes(delta));
+    assertEquals(new IncrementalDrc(CHECKS).verify(compact), results);
+    return results;
+  }
+
+  private void connect(SchematicDelta delta, String name,
+      NodeValue from, String fromPort, NodeValue to, String toPort)
+      throws SchematicException {
+    delta.addConnection(name, UtilSchematicConstruction.instantiateWire(
+        from.getPort(fromPort), to.getPort(toPort)));
+  }
+
+  @Test
+  public void testVerify_inputsConnectedAndDisconnected()
+      throws SchematicException {
+    IncrementalDrc drc = new IncrementalDrc(CHECKS);
+    Map<String, Boolean> results = drc.verify(
+        new CompactNetlist(buildSchematic(), netlist));
+    assertTrue(results.get("no multiple drivers"));
+    assertFalse(results.get("no unconnected inputs"));
+    // and0.in0, and0.in1, out1.in
+    assertEquals(3, drc.getViolationCount("no unconnected inputs"));
+
+    SchematicDelta hookUp = new SchematicDelta();
+    connect(hookUp, "d", in0, "out", and0, "in0");
+    connect(hookUp, "e", in0, "out", and0, "in1");
+    connect(hookUp, "f", and0, "out", out1, "in");
+    results = edit(drc, hookUp);
+    assertTrue(results.get("no unconnected inputs"));
+    assertEquals(0, drc.getViolationCount("no unconnected inputs"));
+
+    SchematicDelta unhook = new SchematicDelta();
+    unhook.removeConnection("c");
+    results = edit(drc, unhook);
+    assertFalse(results.get("no unconnected inputs"));
+    assertEquals(1, drc.getViolationCount("no unconnected inputs"));
+  }
+
+  @Test
+  public void testVerify_driversAddedAndRemoved() throws SchematicException {
+    IncrementalDrc drc = new IncrementalDrc(CHECKS);
+    drc.verify(new CompactNetlist(buildSchematic(), netlist));
+
+    SchematicDelta shortOut = new SchematicDelta();
+    connect(shortOut, "d", in0, "out", and0, "in0");
+    connect(shortOut, "e", and0, "out", out0, "in");
+    Map<String, Boolean> results = edit(drc, shortOut);
+    // not0.out and and0.out both drive out0.in
+    assertFalse(results.get("no multiple drivers"));
+
+    SchematicDelta fix = new SchematicDelta();
+    fix.removeConnection("e");
+    results = edit(drc, fix);
+    assertTrue(results.get("no multiple drivers"));
+  }
+
+  @Test
+  public void testVerify_withoutChangesReusesResults()
+      throws SchematicException {
+    IncrementalDrc drc = new IncrementalDrc(CHECKS);
+    CompactNetlist compact = new CompactNetlist(buildSchematic(), netlist);
+    Map<String, Boolean> full = drc.verify(compact);
+    Set<String> none = Collections.emptySet();
+    assertEquals(full, drc.verify(compact, none, none));
+    assertEquals(3, drc.getViolationCount("no unconnected inputs"));
+  }
+
+  @Test
+  public void testVerify_firstRunIsFull() throws SchematicException {
+    IncrementalDrc drc = new IncrementalDrc(CHECKS);
+    Set<String> none = Collections.emptySet();
+    Map<String, Boolean> results = drc.verify(
+        new CompactNetlist(buildSchematic(), netlist), none, none);
+    List<String> names = Arrays.asList(
+        "no multiple drivers", "no unconnected inputs");
+    assertEquals(names, Arrays.asList(results.keySet().toArray()));
+    assertFalse(results.get("no unconnected inputs"));
+  }
+
+}
@@ -0,0 +1,213 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.LogicOptimizer;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestLogicOptimizer {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  private Schematic sch;
+  private NodeValue a, b, clk, rst;
+  private LogicOptimizer optimizer;
+  private CompactNetlist optimized;
+
+  @Before
+  public void setup() throws SchematicException {
+    sch = UtilSchematicConstruction.instantiateSchematic("optimize");
+    a = UtilSchematicConstruction.addInputPin(sch, "a");
+    b = UtilSchematicConstruction.addInputPin(sch, "b");
+    clk = UtilSchematicConstruction.addInputPin(sch, "clk");
+    rst = UtilSchematicConstruction.addInputPin(sch, "rst");
+  }
+
+  private NodeValue and(String name, PortValue in0, PortValue in1)
+      throws SchematicException {
+    NodeValue gate = UtilSchematicConstruction.addNode(sch, name,
+        UtilSchematicConstruction.instantiateAnd());
+    UtilSchematicConstruction.connect(sch, in0, gate.getPort("in0"));
+    UtilSchematicConstruction.connect(sch, in1, gate.getPort("in1"));
+    return gate;
+  }
+
+  private NodeValue not(String name, PortValue in)
+      throws SchematicException {
+    NodeValue gate = UtilSchematicConstruction.addNode(sch, name,
+        UtilSchematicConstruction.instantiateNot());
+    UtilSchematicConstruction.connect(sch, in, gate.getPort("in"));
+    return gate;
+  }
+
+  // a register clocked and reset by clk and rst, loading `in` if it is not
+  // null (the caller connects it otherwise)
+  private NodeValue register(String name, boolean initialValue, PortValue in)
+      throws SchematicException {
+    NodeValue reg = UtilSchematicConstruction.addRegister(sch, name,
+        initialValue, true, clk.getPort("out"), rst.getPort("out"));
+    if (in != null) {
+      UtilSchematicConstruction.connect(sch, in, reg.getPort("in"));
+    }
+    return reg;
+  }
+
+  private void optimize() throws SchematicException {
+    CompactNetlist netlist = new CompactNetlist(sch, new Netlist(sch));
+    optimizer = new LogicOptimizer(netlist,
+        new PrimitiveTypeTable(sch).classifyNodes(netlist));
+    optimized = optimizer.getNetlist();
+  }
+
+  private int removedBy(String pass) {
+    return optimizer.getRemovedCounts().get(pass);
+  }
+
+  // The net that an output pin reads, as the name of the net's driver.
+  private String drivenBy(String pinName) {
+    int net = optimized.getPortNet(optimized.getPort(
+        optimized.getNodeId(pinName), "in"));
+    return optimized.getNodeName(optimized.getNetDriverNode(net));
+  }
+
+  @Test
+  public void testDeadLogicIsRemoved() throws SchematicException {
+    NodeValue used = and("used", a.getPort("out"), b.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q", used.getPort("out"));
+    NodeValue unused = not("unused", a.getPort("out"));
+    register("unusedReg", false, unused.getPort("out"));
+    optimize();
+    assertEquals(2, removedBy(LogicOptimizer.DEAD_LOGIC));
+    assertEquals(2, optimizer.getRemovedCount());
+    assertEquals("used", drivenBy("q"));
+    assertEquals(-1, optimized.getNodeId("unused"));
+    assertEquals(-1, optimized.getNodeId("unusedReg"));
+    // input pins stay, even when nothing reads them any more
+    assertEquals(6, optimized.getNodeCount());
+  }
+
+  @Test
+  public void testDoubleInversionIsRemoved() throws SchematicException {
+    NodeValue not0 = not("not0", a.getPort("out"));
+    NodeValue not1 = not("not1", not0.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q", not1.getPort("out"));
+    // the inner inverter is still needed here
+    UtilSchematicConstruction.addOutputPin(sch, "nq", not0.getPort("out"));
+    optimize();
+    assertEquals(1, removedBy(LogicOptimizer.DOUBLE_INVERSION));
+    assertEquals("a", drivenBy("q"));
+    assertEquals("not0", drivenBy("nq"));
+  }
+
+  @Test
+  public void testConstantRegisterPropagates() throws SchematicException {
+    // a register that loads itself only ever holds its initial value, 0
+    NodeValue zero = register("zero", false, null);
+    UtilSchematicConstruction.connect(sch, zero.getPort("out"),
+        zero.getPort("in"));
+    NodeValue one = not("one", zero.getPort("out"));
+    // a AND 1 = a; b AND 0 = 0
+    NodeValue passA = and("passA", a.getPort("out"), one.getPort("out"));
+    NodeValue killB = and("killB", b.getPort("out"), zero.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q0", passA.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q1", killB.getPort("out"));
+    // a register that loads a constant equal to its initial value also
+    // holds it for good, and only one of the two is kept
+    NodeValue alsoZero = register("alsoZero", false, killB.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q2", alsoZero.getPort("out"));
+    optimize();
+    assertEquals("a", drivenBy("q0"));
+    assertEquals(drivenBy("q1"), drivenBy("q2"));
+    assertTrue(drivenBy("q1").endsWith("ero"));
+    // one, passA, killB and one of the registers
+    assertEquals(4, removedBy(LogicOptimizer.CONSTANT_PROPAGATION));
+  }
+
+  @Test
+  public void testComplementaryInputsAreConstant() throws SchematicException {
+    // with a constant register to read it from, a AND NOT a becomes 0
+    NodeValue zero = register("zero", false, null);
+    UtilSchematicConstruction.connect(sch, zero.getPort("out"),
+        zero.getPort("in"));
+    UtilSchematicConstruction.addOutputPin(sch, "qz", zero.getPort("out"));
+    NodeValue na = not("na", a.getPort("out"));
+    NodeValue never = and("never", a.getPort("out"), na.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q", never.getPort("out"));
+    // a AND a = a
+    NodeValue same = and("same", b.getPort("out"), b.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "qb", same.getPort("out"));
+    optimize();
+    assertEquals("zero", drivenBy("q"));
+    assertEquals("b", drivenBy("qb"));
+    assertEquals(3, removedBy(LogicOptimizer.CONSTANT_PROPAGATION));
+  }
+
+  @Test
+  public void testConstantWithoutRegisterKeepsItsGate()
+      throws SchematicException {
+    NodeValue na = not("na", a.getPort("out"));
+    NodeValue never = and("never", a.getPort("out"), na.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q", never.getPort("out"));
+    optimize();
+    // there is nothing else to drive the pin with
+    assertEquals(0, optimizer.getRemovedCount());
+    assertEquals("never", drivenBy("q"));
+  }
+
+  @Test
+  public void testCommonSubexpressionsAreMerged() throws SchematicException {
+    NodeValue and0 = and("and0", a.getPort("out"), b.getPort("out"));
+    // the same inputs, the other way around
+    NodeValue and1 = and("and1", b.getPort("out"), a.getPort("out"));
+    // and so these become the same too
+    NodeValue not0 = not("not0", and0.getPort("out"));
+    NodeValue not1 = not("not1", and1.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q0", not0.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q1", not1.getPort("out"));
+    optimize();
+    assertEquals(2, removedBy(LogicOptimizer.COMMON_SUBEXPRESSIONS));
+    assertEquals("not0", drivenBy("q0"));
+    assertEquals("not0", drivenBy("q1"));
+    assertEquals(-1, optimized.getNodeId("and1"));
+  }
+
+  @Test
+  public void testRegistersAreNotMerged() throws SchematicException {
+    NodeValue reg0 = register("reg0", false, a.getPort("out"));
+    NodeValue reg1 = register("reg1", false, a.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q0", reg0.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q1", reg1.getPort("out"));
+    optimize();
+    assertEquals(0, optimizer.getRemovedCount());
+    assertNotEquals(drivenBy("q0"), drivenBy("q1"));
+  }
+
+  @Test
+  public void testNetsAreRenumbered() throws SchematicException {
+    NodeValue not0 = not("not0", a.getPort("out"));
+    NodeValue not1 = not("not1", not0.getPort("out"));
+    UtilSchematicConstruction.addOutputPin(sch, "q", not1.getPort("out"));
+    optimize();
+    // a, clk, rst are unconnected pins; only the net from a to q is left
+    assertEquals(1, optimized.getNetCount());
+    assertEquals(0, optimized.getPortNet(optimized.getPort(
+        optimized.getNodeId("a"), "out")));
+    assertEquals(optimized.getNodeId("a"), optimized.getNetDriverNode(0));
+    assertEquals(1, optimized.getNetSinkCount(0));
+  }
+
+}
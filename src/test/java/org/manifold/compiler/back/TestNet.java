@@ -1,6 +1,9 @@
 package org.manifold.compiler.back;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -47,5 +50,30 @@ public class TestNet {
     n.addPort(p);
     assertTrue(n.getConnectedPorts().contains(p));
   }
-  
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testGetConnectedPorts_readOnly() {
+    Net n = new Net("asdf");
+    assertSame(n.getConnectedPorts(), n.getConnectedPorts());
+    n.getConnectedPorts().clear();
+  }
+
+  @Test
+  public void testDriversAndSinks() throws SchematicException {
+    Net n = new Net("asdf");
+    assertNull(n.getDriver());
+    assertNull(n.getDriverNode());
+    NodeValue in = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+    n.addDriver(in.getPort("out"));
+    n.addSink(out.getPort("in"));
+    assertEquals(in.getPort("out"), n.getDriver());
+    assertEquals(in, n.getDriverNode());
+    assertTrue(n.isDriver(in.getPort("out")));
+    assertFalse(n.isDriver(out.getPort("in")));
+    assertEquals(1, n.getSinks().size());
+    assertEquals(out.getPort("in"), n.getSinks().get(0));
+    assertEquals(2, n.getConnectedPorts().size());
+  }
+
 }
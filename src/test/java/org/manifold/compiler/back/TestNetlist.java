@@ -1,17 +1,26 @@
 package org.manifold.compiler.back;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.manifold.compiler.ConnectionValue;
 import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.UndefinedBehaviourError;
 import org.manifold.compiler.back.digital.Net;
 import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.SchematicDelta;
 import org.manifold.compiler.middle.Schematic;
 import org.manifold.compiler.middle.SchematicException;
 
@@ -58,6 +67,43 @@ public class TestNetlist {
     Net nInToOut = (Net) nets.values().toArray()[0];
     assertTrue(nInToOut.getConnectedPorts().contains(in.getPort("out")));
     assertTrue(nInToOut.getConnectedPorts().contains(out.getPort("in")));
+    // with `in` as the driver and `out` as the only sink
+    assertEquals(in.getPort("out"), nInToOut.getDriver());
+    assertEquals(in, nInToOut.getDriverNode());
+    assertEquals(1, nInToOut.getSinks().size());
+    assertEquals(out.getPort("in"), nInToOut.getSinks().get(0));
+  }
+
+  @Test
+  public void testGetNets_sharedReadOnlyView() throws SchematicException {
+    // [digitalIn] -> [digitalOut]
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    NodeValue in = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+    ConnectionValue inToOut = UtilSchematicConstruction.instantiateWire(
+        in.getPort("out"), out.getPort("in"));
+    sch.addNode("in", in);
+    sch.addNode("out", out);
+    sch.addConnection("in_to_out", inToOut);
+
+    Netlist netlist = new Netlist(sch);
+
+    // no copy is made per call
+    assertSame(netlist.getNets(), netlist.getNets());
+    try {
+      netlist.getNets().clear();
+      fail("netlist nets should not be modifiable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    // nets owned by a netlist can't be changed behind its back
+    Net net = netlist.getConnectedNet(in.getPort("out"));
+    try {
+      net.addPort(UtilSchematicConstruction.instantiateAnd().getPort("in0"));
+      fail("netlist nets should be frozen");
+    } catch (UndefinedBehaviourError e) {
+      // expected
+    }
   }
 
   @Test
@@ -82,4 +128,167 @@ public class TestNetlist {
     assertEquals(nIn, nOut);
   }
 
+  @Test
+  public void testNetsMergedAcrossConnections() throws SchematicException {
+    // [in0] -> [out0], [in1] -> [out1], [in0] -> [out1]
+    // the third connection joins two otherwise separate nets,
+    // regardless of the order in which connections are visited
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case1");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue in1 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    NodeValue out1 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("in1", in1);
+    sch.addNode("out0", out0);
+    sch.addNode("out1", out1);
+    sch.addConnection("in0_to_out0", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out0.getPort("in")));
+    sch.addConnection("in1_to_out1", UtilSchematicConstruction.instantiateWire(
+        in1.getPort("out"), out1.getPort("in")));
+    sch.addConnection("in0_to_out1", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out1.getPort("in")));
+
+    Netlist netlist = new Netlist(sch);
+
+    Map<String, Net> nets = netlist.getNets();
+    assertEquals(1, nets.size());
+    Net net = netlist.getConnectedNet(in0.getPort("out"));
+    assertEquals(4, net.getConnectedPorts().size());
+    assertEquals(net, netlist.getConnectedNet(in1.getPort("out")));
+    assertEquals(net, netlist.getConnectedNet(out0.getPort("in")));
+    assertEquals(net, netlist.getConnectedNet(out1.getPort("in")));
+  }
+
+  @Test
+  public void testParallelConstructionMatchesSerial()
+      throws SchematicException {
+    // a long chain of inverters, with every stage also driving an output,
+    // is big enough to be split across several workers
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case2");
+    NodeValue in = UtilSchematicConstruction.instantiateInputPin();
+    sch.addNode("in", in);
+    PortValue previous = in.getPort("out");
+    for (int i = 0; i < 3000; ++i) {
+      NodeValue not = UtilSchematicConstruction.instantiateNot();
+      NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+      sch.addNode("not" + i, not);
+      sch.addNode("out" + i, out);
+      sch.addConnection("c" + i, UtilSchematicConstruction.instantiateWire(
+          previous, not.getPort("in")));
+      sch.addConnection("d" + i, UtilSchematicConstruction.instantiateWire(
+          previous, out.getPort("in")));
+      previous = not.getPort("out");
+    }
+    NodeValue last = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("last", last);
+    sch.addConnection("e", UtilSchematicConstruction.instantiateWire(
+        previous, last.getPort("in")));
+
+    Netlist serial = new Netlist(sch);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Netlist parallel;
+    try {
+      parallel = new Netlist(sch, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(3001, serial.getNets().size());
+    assertEquals(serial.getNets().keySet(), parallel.getNets().keySet());
+    for (NodeValue node : sch.getNodes().values()) {
+      for (PortValue port : node.getPorts().values()) {
+        assertEquals(serial.getConnectedNet(port).getName(),
+            parallel.getConnectedNet(port).getName());
+      }
+    }
+  }
+
+  @Test
+  public void testParallelConstructionOrdersPortsLikeSerial()
+      throws SchematicException {
+    // one net with many drivers and many sinks, so that the ports are
+    // first seen by different workers
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case3");
+    NodeValue hub = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("hub", hub);
+    NodeValue first = UtilSchematicConstruction.instantiateInputPin();
+    sch.addNode("first", first);
+    for (int i = 0; i < 2000; ++i) {
+      NodeValue in = UtilSchematicConstruction.instantiateInputPin();
+      NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+      sch.addNode("in" + i, in);
+      sch.addNode("out" + i, out);
+      sch.addConnection("c" + i, UtilSchematicConstruction.instantiateWire(
+          in.getPort("out"), hub.getPort("in")));
+      sch.addConnection("d" + i, UtilSchematicConstruction.instantiateWire(
+          first.getPort("out"), out.getPort("in")));
+    }
+    sch.addConnection("e", UtilSchematicConstruction.instantiateWire(
+        first.getPort("out"), hub.getPort("in")));
+
+    Net serial = new Netlist(sch).getConnectedNet(hub.getPort("in"));
+    for (int threads : new int[] {2, 4, 8}) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        Net parallel = new Netlist(sch, pool).getConnectedNet(
+            hub.getPort("in"));
+        assertEquals(serial.getDrivers(), parallel.getDrivers());
+        assertEquals(serial.getSinks(), parallel.getSinks());
+        assertEquals(serial.getDriver(), parallel.getDriver());
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void testApplyDelta() throws SchematicException {
+    // [in0] -> [out0], [in1] -> [out1]
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case3");
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue in1 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    NodeValue out1 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("in1", in1);
+    sch.addNode("out0", out0);
+    sch.addNode("out1", out1);
+    sch.addConnection("c0", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out0.getPort("in")));
+    sch.addConnection("c1", UtilSchematicConstruction.instantiateWire(
+        in1.getPort("out"), out1.getPort("in")));
+    Netlist netlist = new Netlist(sch);
+    assertEquals(2, netlist.getNets().size());
+
+    // joining the two nets merges them
+    SchematicDelta join = new SchematicDelta();
+    join.addConnection("c2", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out1.getPort("in")));
+    Set<String> touched = netlist.applyDelta(join);
+    assertEquals(1, netlist.getNets().size());
+    assertTrue(touched.contains("n_c0"));
+    assertTrue(touched.contains("n_c1"));
+    Net merged = netlist.getConnectedNet(in0.getPort("out"));
+    assertEquals(4, merged.getConnectedPorts().size());
+
+    // removing the join splits them again
+    SchematicDelta split = new SchematicDelta();
+    split.removeConnection("c2");
+    netlist.applyDelta(split);
+    assertEquals(2, netlist.getNets().size());
+    assertEquals("n_c0", netlist.getConnectedNet(in0.getPort("out")).getName());
+    assertEquals("n_c0", netlist.getConnectedNet(out0.getPort("in")).getName());
+    assertEquals("n_c1", netlist.getConnectedNet(in1.getPort("out")).getName());
+    assertEquals("n_c1", netlist.getConnectedNet(out1.getPort("in")).getName());
+
+    // removing a node drops its connections, and with them the net
+    SchematicDelta removeNode = new SchematicDelta();
+    removeNode.removeNode("out0", out0);
+    touched = netlist.applyDelta(removeNode);
+    assertEquals(Collections.singleton("n_c0"), touched);
+    assertEquals(1, netlist.getNets().size());
+    assertFalse(netlist.getNets().containsKey("n_c0"));
+  }
+
 }
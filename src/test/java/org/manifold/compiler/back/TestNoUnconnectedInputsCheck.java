@@ -3,16 +3,23 @@ package org.manifold.compiler.back;
 import static org.junit.Assert.assertEquals;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
+import org.manifold.compiler.BooleanTypeValue;
 import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeTypeValue;
 import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortTypeValue;
+import org.manifold.compiler.TypeValue;
+import org.manifold.compiler.Value;
 import org.manifold.compiler.back.digital.Check;
 import org.manifold.compiler.back.digital.Netlist;
 import org.manifold.compiler.back.digital.NoUnconnectedInputsCheck;
@@ -88,6 +95,37 @@ public class TestNoUnconnectedInputsCheck {
       testData.add(case2Data);
     }
     // END CASE 2
+
+    // BEGIN CASE 3
+    // |in0> --- <out0|
+    // [probe] with an unconnected port that is not a digitalIn
+    // no unconnected inputs: TRUE
+    {
+      Schematic case3 = UtilSchematicConstruction.instantiateSchematic("case3");
+      NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+      case3.addNode("in0", in0);
+      NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+      case3.addNode("out0", out0);
+      case3.addConnection("in0_to_out0", UtilSchematicConstruction
+          .instantiateWire(in0.getPort("out"), out0.getPort("in")));
+      PortTypeValue probePortType = new PortTypeValue(
+          BooleanTypeValue.getInstance(), new HashMap<String, TypeValue>());
+      case3.addPortType("probeIn", probePortType);
+      Map<String, PortTypeValue> probePorts = new HashMap<>();
+      probePorts.put("in", probePortType);
+      NodeTypeValue probeType = new NodeTypeValue(
+          new HashMap<String, TypeValue>(), probePorts);
+      case3.addNodeType("probe", probeType);
+      Map<String, Map<String, Value>> probePortAttrs = new HashMap<>();
+      probePortAttrs.put("in", new HashMap<String, Value>());
+      case3.addNode("probe0", new NodeValue(probeType,
+          new HashMap<String, Value>(), probePortAttrs));
+
+      Netlist netlistCase3 = new Netlist(case3);
+      Object[] case3Data = new Object[] { case3, netlistCase3, true };
+      testData.add(case3Data);
+    }
+    // END CASE 3
     return testData;
   }
 
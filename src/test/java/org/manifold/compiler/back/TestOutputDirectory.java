@@ -0,0 +1,126 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.manifold.compiler.back.digital.OutputDirectory;
+
+public class TestOutputDirectory {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path dir;
+
+  @Before
+  public void setup() {
+    dir = folder.getRoot().toPath();
+  }
+
+  // Write `text` to "out.txt" through a fresh OutputDirectory, as a
+  // separate run of the generator would.
+  private boolean write(String text) throws IOException {
+    OutputDirectory output = new OutputDirectory(dir);
+    boolean written = output.write("out.txt", StandardCharsets.US_ASCII,
+        out -> out.write(text));
+    output.saveManifest();
+    return written;
+  }
+
+  private String read() throws IOException {
+    return new String(Files.readAllBytes(dir.resolve("out.txt")),
+        StandardCharsets.US_ASCII);
+  }
+
+  // Set the modification time of a file far into the past, so that a
+  // rewrite is bound to change it.
+  private FileTime age(String filename) throws IOException {
+    FileTime old = FileTime.fromMillis(1000000000000L);
+    Files.setLastModifiedTime(dir.resolve(filename), old);
+    return old;
+  }
+
+  @Test
+  public void testFirstWriteCreatesFileAndManifest() throws IOException {
+    assertTrue(write("abc"));
+    assertEquals("abc", read());
+    List<String> manifest = Files.readAllLines(
+        dir.resolve(OutputDirectory.MANIFEST_NAME), StandardCharsets.UTF_8);
+    assertEquals(2, manifest.size());
+    assertTrue(manifest.get(1).endsWith(" 3 "
+        + Long.toString(Files.getLastModifiedTime(dir.resolve("out.txt"))
+            .toMillis()) + " out.txt"));
+  }
+
+  @Test
+  public void testUnchangedContentIsNotWritten() throws IOException {
+    assertTrue(write("abc"));
+    // record the old times in the manifest, then check nothing is touched
+    FileTime fileTime = age("out.txt");
+    OutputDirectory output = new OutputDirectory(dir);
+    assertFalse(output.write("out.txt", StandardCharsets.US_ASCII,
+        out -> out.write("abc")));
+    output.saveManifest();
+    FileTime manifestTime = age(OutputDirectory.MANIFEST_NAME);
+
+    assertFalse(write("abc"));
+    assertEquals(fileTime, Files.getLastModifiedTime(dir.resolve("out.txt")));
+    assertEquals(manifestTime, Files.getLastModifiedTime(
+        dir.resolve(OutputDirectory.MANIFEST_NAME)));
+  }
+
+  @Test
+  public void testChangedContentIsWritten() throws IOException {
+    assertTrue(write("abc"));
+    assertTrue(write("abd"));
+    assertEquals("abd", read());
+    assertFalse(write("abd"));
+  }
+
+  @Test
+  public void testFileEditedBehindTheManifestIsRewritten()
+      throws IOException {
+    assertTrue(write("abc"));
+    // same size, different content, new timestamp
+    Files.write(dir.resolve("out.txt"), "xyz".getBytes(
+        StandardCharsets.US_ASCII));
+    age("out.txt");
+    assertTrue(write("abc"));
+    assertEquals("abc", read());
+  }
+
+  @Test
+  public void testExistingFileWithoutManifestIsKept() throws IOException {
+    Files.write(dir.resolve("out.txt"), "abc".getBytes(
+        StandardCharsets.US_ASCII));
+    FileTime fileTime = age("out.txt");
+    assertFalse(write("abc"));
+    assertEquals(fileTime, Files.getLastModifiedTime(dir.resolve("out.txt")));
+    // the file is now known, so the manifest was written
+    assertTrue(Files.exists(dir.resolve(OutputDirectory.MANIFEST_NAME)));
+  }
+
+  @Test
+  public void testCorruptManifestIsIgnored() throws IOException {
+    assertTrue(write("abc"));
+    Files.write(dir.resolve(OutputDirectory.MANIFEST_NAME), Arrays.asList(
+        "manifold-outputs 1", "not a manifest entry"),
+        StandardCharsets.UTF_8);
+    assertFalse(write("abc"));
+    assertTrue(write("abcd"));
+  }
+
+}
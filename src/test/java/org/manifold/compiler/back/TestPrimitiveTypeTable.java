@@ -0,0 +1,66 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeTypeValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortTypeValue;
+import org.manifold.compiler.TypeValue;
+import org.manifold.compiler.Value;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.PrimitiveKind;
+import org.manifold.compiler.back.digital.PrimitiveTypeTable;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestPrimitiveTypeTable {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  @Test
+  public void testClassifyNodes() throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    sch.addNode("a_in", UtilSchematicConstruction.instantiateInputPin());
+    sch.addNode("b_out", UtilSchematicConstruction.instantiateOutputPin());
+    sch.addNode("c_reg", UtilSchematicConstruction.instantiateRegister(
+        false, true, false, true));
+    sch.addNode("d_and", UtilSchematicConstruction.instantiateAnd());
+    sch.addNode("e_or", UtilSchematicConstruction.instantiateOr());
+    sch.addNode("f_not", UtilSchematicConstruction.instantiateNot());
+    sch.addNode("g_not", UtilSchematicConstruction.instantiateNot());
+    // a node type the backend doesn't know about
+    Map<String, PortTypeValue> bufferPorts = new HashMap<>();
+    bufferPorts.put("in", UtilSchematicConstruction.digitalInPortType);
+    bufferPorts.put("out", UtilSchematicConstruction.digitalOutPortType);
+    NodeTypeValue bufferType = new NodeTypeValue(
+        new HashMap<String, TypeValue>(), bufferPorts);
+    Map<String, Map<String, Value>> bufferPortAttrs = new HashMap<>();
+    bufferPortAttrs.put("in", new HashMap<String, Value>());
+    bufferPortAttrs.put("out", new HashMap<String, Value>());
+    sch.addNode("h_buf", new NodeValue(bufferType,
+        new HashMap<String, Value>(), bufferPortAttrs));
+
+    PrimitiveTypeTable typeTable = new PrimitiveTypeTable(sch);
+    CompactNetlist netlist = new CompactNetlist(sch, new Netlist(sch));
+    byte[] kinds = typeTable.classifyNodes(netlist);
+    PrimitiveKind[] expected = {
+      PrimitiveKind.INPUT_PIN, PrimitiveKind.OUTPUT_PIN,
+      PrimitiveKind.REGISTER, PrimitiveKind.AND, PrimitiveKind.OR,
+      PrimitiveKind.NOT, PrimitiveKind.NOT, PrimitiveKind.UNKNOWN
+    };
+    assertEquals(expected.length, kinds.length);
+    for (int n = 0; n < kinds.length; ++n) {
+      assertEquals(expected[n], PrimitiveKind.fromCode(kinds[n]));
+    }
+  }
+
+}
@@ -0,0 +1,198 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+
+import org.junit.Test;
+import org.manifold.compiler.BooleanValue;
+import org.manifold.compiler.TypeMismatchException;
+import org.manifold.compiler.UndeclaredIdentifierException;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.StreamingSchematicReader;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+import org.manifold.compiler.middle.serialization.SchematicDeserializer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.gson.JsonParser;
+
+public class TestStreamingSchematicReader {
+
+  private static final String TYPES =
+      "\"portTypes\": {"
+      + " \"digitalIn\": {\"signalType\": \"Bool\", \"attributes\": {}},"
+      + " \"digitalOut\": {\"signalType\": \"Bool\", \"attributes\": {}}},"
+      + "\"nodeTypes\": {"
+      + " \"inputPin\": {\"attributes\": {}, \"ports\": {\"out\": "
+      + "\"digitalOut\"}},"
+      + " \"outputPin\": {\"attributes\": {}, \"ports\": {\"in\": "
+      + "\"digitalIn\"}},"
+      + " \"and\": {\"attributes\": {}, \"ports\": {\"in0\": \"digitalIn\","
+      + " \"in1\": \"digitalIn\", \"out\": \"digitalOut\"}},"
+      + " \"or\": {\"attributes\": {}, \"ports\": {\"in0\": \"digitalIn\","
+      + " \"in1\": \"digitalIn\", \"out\": \"digitalOut\"}},"
+      + " \"not\": {\"attributes\": {}, \"ports\": {\"in\": \"digitalIn\","
+      + " \"out\": \"digitalOut\"}},"
+      + " \"register\": {\"attributes\": {\"initialValue\": \"Bool\","
+      + " \"resetActiveHigh\": \"Bool\", \"resetAsynchronous\": \"Bool\","
+      + " \"clockActiveHigh\": \"Bool\"}, \"ports\": {\"clock\": "
+      + "\"digitalIn\", \"reset\": \"digitalIn\", \"in\": \"digitalIn\","
+      + " \"out\": \"digitalOut\"}}},";
+
+  private static String node(String name, String type) {
+    return "\"" + name + "\": {\"type\": \"" + type + "\", "
+        + "\"attributes\": {}, \"portAttrs\": {}}";
+  }
+
+  private static String wire(String name, String from, String to) {
+    return "\"" + name + "\": {\"type\": \"digitalWire\", "
+        + "\"attributes\": {}, \"from\": \"" + from + "\", "
+        + "\"to\": \"" + to + "\"}";
+  }
+
+  private static CompactNetlist read(String json)
+      throws IOException, SchematicException {
+    StreamingSchematicReader reader =
+        new StreamingSchematicReader(new StringReader(json));
+    reader.read();
+    return reader.getNetlist();
+  }
+
+  @Test
+  public void testRead_InToOut() throws IOException, SchematicException {
+    URL url = Resources.getResource(
+        "org/manifold/compiler/back/data/schematic-InToOut.json");
+    CompactNetlist netlist = read(Resources.toString(url, Charsets.UTF_8));
+    assertEquals("InToOut", netlist.getName());
+    assertEquals(2, netlist.getNodeCount());
+    assertEquals("i0", netlist.getNodeName(0));
+    assertEquals("o0", netlist.getNodeName(1));
+    assertEquals(1, netlist.getNetCount());
+    assertEquals("n_i0_o0", netlist.getNetName(0));
+    int out = netlist.getPort(0, "out");
+    int in = netlist.getPort(1, "in");
+    assertTrue(netlist.isOutputPort(out));
+    assertFalse(netlist.isOutputPort(in));
+    assertEquals(0, netlist.getPortNet(out));
+    assertEquals(0, netlist.getPortNet(in));
+    assertEquals(0, netlist.getNetDriverNode(0));
+    assertEquals(1, netlist.getNetSinkCount(0));
+  }
+
+  @Test
+  public void testRead_netsMerged() throws IOException, SchematicException {
+    // in0 fans out to two gates, which are joined by a later connection;
+    // the nets are named after their smallest connection name, as Netlist
+    // names them, not after the first connection listed in the file
+    String json = "{\"name\": \"fanout\", " + TYPES
+        + "\"nodes\": {" + node("in0", "inputPin") + ", "
+        + node("not0", "not") + ", " + node("and0", "and") + ", "
+        + node("out0", "outputPin") + "},"
+        + "\"connections\": {"
+        + wire("z", "in0:out", "not0:in") + ", "
+        + wire("y", "in0:out", "and0:in0") + ", "
+        + wire("x", "not0:out", "and0:in1") + "}}";
+    CompactNetlist netlist = read(json);
+    assertEquals(2, netlist.getNetCount());
+    int and0 = netlist.getNodeId("and0");
+    int net = netlist.getPortNet(netlist.getPort(and0, "in0"));
+    assertEquals("n_y", netlist.getNetName(net));
+    assertEquals(3, netlist.getNetPortCount(net));
+    assertEquals(netlist.getNodeId("in0"), netlist.getNetDriverNode(net));
+    assertEquals("n_x", netlist.getNetName(
+        netlist.getPortNet(netlist.getPort(and0, "in1"))));
+    // nothing drives and0:out or out0:in
+    assertEquals(CompactNetlist.NOT_CONNECTED,
+        netlist.getPortNet(netlist.getPort(and0, "out")));
+  }
+
+  @Test
+  public void testRead_netNamesMatchNetlist() throws Exception {
+    // the file lists connections out of name order; both ways of reading
+    // it must still name every net the same
+    String json = "{\"name\": \"fanout\", " + TYPES
+        + "\"nodes\": {" + node("in0", "inputPin") + ", "
+        + node("not0", "not") + ", " + node("and0", "and") + ", "
+        + node("out0", "outputPin") + "},"
+        + "\"connections\": {"
+        + wire("z", "in0:out", "not0:in") + ", "
+        + wire("y", "and0:out", "out0:in") + ", "
+        + wire("b", "not0:out", "and0:in1") + ", "
+        + wire("a", "in0:out", "and0:in0") + "}}";
+    CompactNetlist streamed = read(json);
+    Schematic sch = new SchematicDeserializer().deserialize(
+        new JsonParser().parse(json).getAsJsonObject());
+    CompactNetlist built = new CompactNetlist(sch, new Netlist(sch));
+    assertEquals(built.getNetCount(), streamed.getNetCount());
+    for (int node = 0; node < built.getNodeCount(); ++node) {
+      String nodeName = built.getNodeName(node);
+      int streamedNode = streamed.getNodeId(nodeName);
+      for (String port : new String[] {"in", "in0", "in1", "out"}) {
+        if (built.getPort(node, port) < 0) {
+          continue;
+        }
+        int builtNet = built.getPortNet(built.getPort(node, port));
+        int streamedNet = streamed.getPortNet(
+            streamed.getPort(streamedNode, port));
+        assertEquals(nodeName + ":" + port, built.getNetName(builtNet),
+            streamed.getNetName(streamedNet));
+      }
+    }
+    assertEquals("n_a", streamed.getNetName(streamed.getPortNet(
+        streamed.getPort(streamed.getNodeId("not0"), "in"))));
+  }
+
+  @Test
+  public void testRead_registerAttributes()
+      throws IOException, SchematicException {
+    String json = "{\"name\": \"reg\", " + TYPES
+        + "\"nodes\": {\"r0\": {\"type\": \"register\", \"attributes\": {"
+        + "\"initialValue\": \"true\", \"resetActiveHigh\": \"false\","
+        + "\"resetAsynchronous\": false, \"clockActiveHigh\": true}}},"
+        + "\"connections\": {}}";
+    CompactNetlist netlist = read(json);
+    BooleanValue initialValue = (BooleanValue) netlist.getNode(0)
+        .getAttribute("initialValue");
+    assertTrue(initialValue.toBoolean());
+    BooleanValue resetAsynchronous = (BooleanValue) netlist.getNode(0)
+        .getAttribute("resetAsynchronous");
+    assertFalse(resetAsynchronous.toBoolean());
+  }
+
+  @Test(expected = TypeMismatchException.class)
+  public void testRead_connectionFromInput()
+      throws IOException, SchematicException {
+    String json = "{\"name\": \"bad\", " + TYPES
+        + "\"nodes\": {" + node("in0", "inputPin") + ", "
+        + node("out0", "outputPin") + "},"
+        + "\"connections\": {" + wire("a", "out0:in", "in0:out") + "}}";
+    read(json);
+  }
+
+  @Test(expected = UndeclaredIdentifierException.class)
+  public void testRead_undeclaredNode()
+      throws IOException, SchematicException {
+    String json = "{\"name\": \"bad\", " + TYPES
+        + "\"nodes\": {" + node("in0", "inputPin") + "},"
+        + "\"connections\": {" + wire("a", "in0:out", "out0:in") + "}}";
+    read(json);
+  }
+
+  @Test(expected = IOException.class)
+  public void testRead_connectionsBeforeNodes()
+      throws IOException, SchematicException {
+    String json = "{\"name\": \"bad\", " + TYPES
+        + "\"connections\": {" + wire("a", "in0:out", "out0:in") + "},"
+        + "\"nodes\": {" + node("in0", "inputPin") + ", "
+        + node("out0", "outputPin") + "}}";
+    read(json);
+  }
+
+}
@@ -1,5 +1,6 @@
 package org.manifold.compiler.back;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -13,7 +14,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -363,6 +366,230 @@ public class TestVHDLCodeGenerator {
         lineResetStmt < lineClockStmt);
   }
   
+  @Test
+  public void testRegisterProcessGenerationSynchronousReset()
+      throws SchematicException, IOException {
+    // A register with an active-low synchronous reset that is clocked on
+    // the falling edge; check the whole process statement.
+    Schematic schematic = UtilSchematicConstruction
+        .instantiateSchematic("test");
+    NodeValue clock = UtilSchematicConstruction.instantiateInputPin();
+    schematic.addNode("clock", clock);
+    NodeValue reset = UtilSchematicConstruction.instantiateInputPin();
+    schematic.addNode("reset", reset);
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    schematic.addNode("in0", in0);
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    schematic.addNode("out0", out0);
+    NodeValue reg0 = UtilSchematicConstruction.instantiateRegister(
+        true, false, false, false);
+    schematic.addNode("reg0", reg0);
+    schematic.addConnection("nClock", UtilSchematicConstruction
+        .instantiateWire(clock.getPort("out"), reg0.getPort("clock")));
+    schematic.addConnection("nReset", UtilSchematicConstruction
+        .instantiateWire(reset.getPort("out"), reg0.getPort("reset")));
+    schematic.addConnection("nIn0", UtilSchematicConstruction
+        .instantiateWire(in0.getPort("out"), reg0.getPort("in")));
+    schematic.addConnection("nOut0", UtilSchematicConstruction
+        .instantiateWire(reg0.getPort("out"), out0.getPort("in")));
+
+    List<String> testLines = schematicToVHDL(schematic);
+    List<String> expected = Arrays.asList(
+        "\\register_reg0\\: process (\\n_nClock\\,\\n_nReset\\,"
+            + "\\n_nIn0\\)",
+        "begin",
+        "if falling_edge(\\n_nClock\\) then",
+        "if (\\n_nReset\\ = '0') then",
+        "\\n_nOut0\\ <= '1';",
+        "else",
+        "\\n_nOut0\\ <= \\n_nIn0\\;",
+        "end if;",
+        "end if;",
+        "end process \\register_reg0\\;");
+    int start = testLines.indexOf(expected.get(0));
+    assertTrue("no process statement found", start >= 0);
+    assertEquals(expected,
+        testLines.subList(start, start + expected.size()));
+  }
+
+  // Generate VHDL for `schematic`, with the given pool (or serially if
+  // it is null), and return the contents of the output file.
+  private byte[] generateWithPool(Schematic schematic, ForkJoinPool pool,
+      int chunkSize) throws IOException, SchematicException {
+    VHDLCodeGenerator codegen = new VHDLCodeGenerator(schematic,
+        new Netlist(schematic), new PrimitiveTypeTable(schematic));
+    File outdir = folder.newFolder();
+    codegen.setOutputDirectory(outdir.getAbsolutePath());
+    codegen.setPool(pool);
+    codegen.setChunkSize(chunkSize);
+    codegen.generateOutputProducts();
+    return Files.readAllBytes(Paths.get(outdir.getAbsolutePath(),
+        schematic.getName() + ".vhd"));
+  }
+
+  // Many slices of |in> --- [not] --- [reg] --- <out|, with registers
+  // that all differ from their neighbours if `varyRegisters` is set.
+  private Schematic buildSlices(int nSlices, boolean varyRegisters)
+      throws SchematicException {
+    Schematic schematic = UtilSchematicConstruction
+        .instantiateSchematic("test");
+    NodeValue clock = UtilSchematicConstruction.instantiateInputPin();
+    schematic.addNode("clock", clock);
+    NodeValue reset = UtilSchematicConstruction.instantiateInputPin();
+    schematic.addNode("reset", reset);
+    for (int i = 0; i < nSlices; ++i) {
+      String suffix = Integer.toString(i);
+      NodeValue in = UtilSchematicConstruction.instantiateInputPin();
+      NodeValue not = UtilSchematicConstruction.instantiateNot();
+      NodeValue reg = UtilSchematicConstruction.instantiateRegister(
+          varyRegisters && i % 2 == 0, true,
+          varyRegisters && i % 3 == 0, true);
+      NodeValue out = UtilSchematicConstruction.instantiateOutputPin();
+      schematic.addNode("in" + suffix, in);
+      schematic.addNode("not" + suffix, not);
+      schematic.addNode("reg" + suffix, reg);
+      schematic.addNode("out" + suffix, out);
+      schematic.addConnection("a" + suffix, UtilSchematicConstruction
+          .instantiateWire(in.getPort("out"), not.getPort("in")));
+      schematic.addConnection("b" + suffix, UtilSchematicConstruction
+          .instantiateWire(not.getPort("out"), reg.getPort("in")));
+      schematic.addConnection("c" + suffix, UtilSchematicConstruction
+          .instantiateWire(reg.getPort("out"), out.getPort("in")));
+      schematic.addConnection("clk" + suffix, UtilSchematicConstruction
+          .instantiateWire(clock.getPort("out"), reg.getPort("clock")));
+      schematic.addConnection("rst" + suffix, UtilSchematicConstruction
+          .instantiateWire(reset.getPort("out"), reg.getPort("reset")));
+    }
+    return schematic;
+  }
+
+  @Test
+  public void testParallelGenerationIsDeterministic()
+      throws SchematicException, IOException {
+    Schematic schematic = buildSlices(100, true);
+
+    byte[] serial = generateWithPool(schematic, null, 4096);
+    for (int threads : new int[] {1, 3, 8}) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        // small chunks, so that there are many of them
+        assertArrayEquals(serial, generateWithPool(schematic, pool, 7));
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void testRepeatedSubcircuitsBecomeComponents()
+      throws SchematicException, IOException {
+    Schematic schematic = buildSlices(4, false);
+    VHDLCodeGenerator codegen = new VHDLCodeGenerator(schematic,
+        new Netlist(schematic), new PrimitiveTypeTable(schematic));
+    codegen.setOutputDirectory(folder.getRoot().getAbsolutePath());
+    codegen.setHierarchical(true);
+    codegen.generateOutputProducts();
+    List<String> top = Files.readAllLines(Paths.get(
+        folder.getRoot().getAbsolutePath(), "test.vhd"));
+    Path cellPath = Paths.get(folder.getRoot().getAbsolutePath(),
+        "test_cell0.vhd");
+    assertTrue("no entity generated for the repeated slice",
+        Files.exists(cellPath));
+    List<String> cell = Files.readAllLines(cellPath);
+    assertTrue(cell.contains("entity \\test_cell0\\ is"));
+    // the cell holds one slice; the top level only instantiates it
+    assertEquals(1, countMatches(cell, "process \\("));
+    assertEquals(0, countMatches(top, "process \\("));
+    assertTrue(top.contains("component \\test_cell0\\ is"));
+    assertEquals(4, countMatches(top, "^\\\\cell_.* : "
+        + "\\\\test_cell0\\\\ port map \\("));
+  }
+
+  @Test
+  public void testFlatGenerationHasNoComponents()
+      throws SchematicException, IOException {
+    Schematic schematic = buildSlices(4, false);
+    VHDLCodeGenerator codegen = new VHDLCodeGenerator(schematic,
+        new Netlist(schematic), new PrimitiveTypeTable(schematic));
+    File outdir = folder.newFolder();
+    codegen.setOutputDirectory(outdir.getAbsolutePath());
+    // flat is the default
+    codegen.generateOutputProducts();
+    assertArrayEquals(new String[] {"test.vhd"},
+        outdir.list((dir, name) -> name.endsWith(".vhd")));
+    List<String> top = Files.readAllLines(Paths.get(
+        outdir.getAbsolutePath(), "test.vhd"));
+    assertEquals(4, countMatches(top, "process \\("));
+  }
+
+  @Test
+  public void testParallelGatesAreBundledIntoBuses()
+      throws SchematicException, IOException {
+    Schematic schematic = buildSlices(4, false);
+    VHDLCodeGenerator codegen = new VHDLCodeGenerator(schematic,
+        new Netlist(schematic), new PrimitiveTypeTable(schematic));
+    File outdir = folder.newFolder();
+    codegen.setOutputDirectory(outdir.getAbsolutePath());
+    codegen.setHierarchical(false);
+    codegen.setBusBundling(true);
+    codegen.generateOutputProducts();
+    List<String> top = Files.readAllLines(Paths.get(
+        outdir.getAbsolutePath(), "test.vhd"));
+    // the inputs and outputs of the four NOT gates
+    assertEquals(2, countMatches(top, "^signal \\\\bus_.*\\\\ : "
+        + "std_logic_vector\\(3 downto 0\\)"));
+    // one statement for all four gates
+    assertEquals(1, countMatches(top, "^\\\\bus_.*\\\\ <= "
+        + "\\(NOT \\\\bus_.*\\\\\\);"));
+    assertEquals(0, countMatches(top, "^\\\\n_b.*\\\\ <= "));
+    // registers and pins still read and drive single bits
+    assertEquals(4, countMatches(top, "process \\("));
+    assertEquals(4, countMatches(top, "<= \\\\bus_.*\\\\\\([0-3]\\);"));
+  }
+
+  @Test
+  public void testRegistersShareClockedProcesses()
+      throws SchematicException, IOException {
+    // slices 0 and 3 have an asynchronous reset, the others a synchronous
+    // one; initial values alternate
+    Schematic schematic = buildSlices(6, true);
+    VHDLCodeGenerator codegen = new VHDLCodeGenerator(schematic,
+        new Netlist(schematic), new PrimitiveTypeTable(schematic));
+    File outdir = folder.newFolder();
+    codegen.setOutputDirectory(outdir.getAbsolutePath());
+    codegen.setHierarchical(false);
+    codegen.setProcessGrouping(true);
+    codegen.generateOutputProducts();
+    List<String> top = Files.readAllLines(Paths.get(
+        outdir.getAbsolutePath(), "test.vhd"));
+    assertEquals(2, countMatches(top, "process \\("));
+    // only the clock and reset wake a process up
+    assertEquals(2, countMatches(top, "^\\\\register_reg[01]\\\\: "
+        + "process \\(\\\\n_\\w+\\\\,\\\\n_\\w+\\\\\\)$"));
+    assertEquals(2, countMatches(top, "rising_edge"));
+    int start = top.indexOf("\\register_reg1\\: process "
+        + "(\\n_clk0\\,\\n_rst0\\)");
+    List<String> expected = Arrays.asList(
+        "begin",
+        "if rising_edge(\\n_clk0\\) then",
+        "if (\\n_rst0\\ = '1') then",
+        "\\n_c1\\ <= '0';",
+        "\\n_c2\\ <= '1';",
+        "\\n_c4\\ <= '1';",
+        "\\n_c5\\ <= '0';",
+        "else",
+        "\\n_c1\\ <= \\n_b1\\;",
+        "\\n_c2\\ <= \\n_b2\\;",
+        "\\n_c4\\ <= \\n_b4\\;",
+        "\\n_c5\\ <= \\n_b5\\;",
+        "end if;",
+        "end if;",
+        "end process \\register_reg1\\;");
+    assertTrue("no process statement found", start >= 0);
+    assertEquals(expected,
+        top.subList(start + 1, start + 1 + expected.size()));
+  }
+
   @Test
   public void testANDSignalGeneration() throws SchematicException, IOException {
     // Connect two inputs through an AND gate to an output.
@@ -460,4 +687,90 @@ public class TestVHDLCodeGenerator {
         1, notAssigns);
   }
 
+
+  // |in0> -+- [and0] - [and1] -+- [and2] --- <out0|
+  // |in1> -+           |       |
+  // |in2> -------------+       |
+  // |in3> ---------------------+
+  // and, if `tapped`, <out1| on the output of and0 as well
+  private Schematic buildAndTree(boolean tapped) throws SchematicException {
+    Schematic schematic = UtilSchematicConstruction
+        .instantiateSchematic("test");
+    NodeValue[] in = new NodeValue[4];
+    for (int i = 0; i < in.length; ++i) {
+      in[i] = UtilSchematicConstruction.instantiateInputPin();
+      schematic.addNode("in" + Integer.toString(i), in[i]);
+    }
+    NodeValue[] and = new NodeValue[3];
+    for (int i = 0; i < and.length; ++i) {
+      and[i] = UtilSchematicConstruction.instantiateAnd();
+      schematic.addNode("and" + Integer.toString(i), and[i]);
+    }
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    schematic.addNode("out0", out0);
+    schematic.addConnection("a0", UtilSchematicConstruction.instantiateWire(
+        in[0].getPort("out"), and[0].getPort("in0")));
+    schematic.addConnection("a1", UtilSchematicConstruction.instantiateWire(
+        in[1].getPort("out"), and[0].getPort("in1")));
+    schematic.addConnection("a2", UtilSchematicConstruction.instantiateWire(
+        in[2].getPort("out"), and[1].getPort("in1")));
+    schematic.addConnection("a3", UtilSchematicConstruction.instantiateWire(
+        in[3].getPort("out"), and[2].getPort("in0")));
+    schematic.addConnection("b0", UtilSchematicConstruction.instantiateWire(
+        and[0].getPort("out"), and[1].getPort("in0")));
+    schematic.addConnection("b1", UtilSchematicConstruction.instantiateWire(
+        and[1].getPort("out"), and[2].getPort("in1")));
+    schematic.addConnection("b2", UtilSchematicConstruction.instantiateWire(
+        and[2].getPort("out"), out0.getPort("in")));
+    if (tapped) {
+      NodeValue out1 = UtilSchematicConstruction.instantiateOutputPin();
+      schematic.addNode("out1", out1);
+      schematic.addConnection("b3", UtilSchematicConstruction.instantiateWire(
+          and[0].getPort("out"), out1.getPort("in")));
+    }
+    return schematic;
+  }
+
+  private List<String> generateWithFusion(Schematic schematic,
+      boolean gateFusion) throws SchematicException, IOException {
+    VHDLCodeGenerator codegen = new VHDLCodeGenerator(schematic,
+        new Netlist(schematic), new PrimitiveTypeTable(schematic));
+    File outdir = folder.newFolder();
+    codegen.setOutputDirectory(outdir.getAbsolutePath());
+    codegen.setGateFusion(gateFusion);
+    codegen.generateOutputProducts();
+    return Files.readAllLines(Paths.get(outdir.getAbsolutePath(),
+        "test.vhd"));
+  }
+
+  @Test
+  public void testGateTreeIsFused() throws SchematicException, IOException {
+    List<String> lines = generateWithFusion(buildAndTree(false), true);
+    assertEquals(1, countMatches(lines, "(?i)<=.*and"));
+    assertTrue(lines.contains(
+        "\\n_b2\\ <= \\n_a3\\ AND \\n_a0\\ AND \\n_a1\\ AND \\n_a2\\;"));
+    // the nets inside the tree are gone
+    assertEquals(0, countMatches(lines, "^signal \\\\n_b[01]\\\\"));
+
+    lines = generateWithFusion(buildAndTree(false), false);
+    assertEquals(3, countMatches(lines, "(?i)<=.*and"));
+    assertEquals(2, countMatches(lines, "^signal \\\\n_b[01]\\\\"));
+
+    // every net keeps its signal unless fusion is asked for
+    lines = schematicToVHDL(buildAndTree(false));
+    assertEquals(3, countMatches(lines, "(?i)<=.*and"));
+  }
+
+  @Test
+  public void testGateWithFanoutIsNotFused()
+      throws SchematicException, IOException {
+    List<String> lines = generateWithFusion(buildAndTree(true), true);
+    // and0 also drives an output, so only and1 is fused into and2
+    assertEquals(2, countMatches(lines, "(?i)<=.*and"));
+    assertEquals(1, countMatches(lines,
+        "<= \\\\n_a0\\\\ AND \\\\n_a1\\\\;$"));
+    assertEquals(1, countMatches(lines, "^\\\\n_b2\\\\ <= "
+        + "\\\\n_a3\\\\ AND \\\\n_\\w+\\\\ AND \\\\n_a2\\\\;$"));
+  }
+
 }
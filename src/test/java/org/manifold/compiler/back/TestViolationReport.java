@@ -0,0 +1,138 @@
+package org.manifold.compiler.back;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.digital.Check;
+import org.manifold.compiler.back.digital.CompactNetlist;
+import org.manifold.compiler.back.digital.Netlist;
+import org.manifold.compiler.back.digital.NoMultipleDriversCheck;
+import org.manifold.compiler.back.digital.NoUnconnectedInputsCheck;
+import org.manifold.compiler.back.digital.Violation;
+import org.manifold.compiler.back.digital.ViolationReport;
+import org.manifold.compiler.back.digital.ViolationSink;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestViolationReport {
+
+  @BeforeClass
+  public static void setupClass() {
+    UtilSchematicConstruction.setupIntermediateTypes();
+  }
+
+  // `n` AND gates with nothing connected, plus two inputs driving one
+  // output
+  private CompactNetlist buildNetlist(int n) throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("case0");
+    for (int i = 0; i < n; ++i) {
+      sch.addNode("and" + i, UtilSchematicConstruction.instantiateAnd());
+    }
+    NodeValue in0 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue in1 = UtilSchematicConstruction.instantiateInputPin();
+    NodeValue out0 = UtilSchematicConstruction.instantiateOutputPin();
+    sch.addNode("in0", in0);
+    sch.addNode("in1", in1);
+    sch.addNode("out0", out0);
+    sch.addConnection("a", UtilSchematicConstruction.instantiateWire(
+        in0.getPort("out"), out0.getPort("in")));
+    sch.addConnection("b", UtilSchematicConstruction.instantiateWire(
+        in1.getPort("out"), out0.getPort("in")));
+    return new CompactNetlist(sch, new Netlist(sch));
+  }
+
+  private static class CollectingSink implements ViolationSink {
+    private List<Violation> violations = new ArrayList<>();
+
+    @Override
+    public synchronized void report(Check check, Violation violation) {
+      violations.add(violation);
+    }
+  }
+
+  @Test
+  public void testMultipleDrivers_violationDetails()
+      throws SchematicException {
+    CompactNetlist netlist = buildNetlist(0);
+    NoMultipleDriversCheck check = new NoMultipleDriversCheck(netlist);
+    CollectingSink sink = new CollectingSink();
+    check.setViolationSink(sink);
+    assertFalse(check.run());
+    assertEquals(1, check.getViolationCount());
+    Violation violation = sink.violations.get(0);
+    assertEquals(1, violation.getNets().size());
+    assertEquals(2, violation.getPorts().size());
+    assertTrue(violation.getPorts().contains("in0:out"));
+    assertTrue(violation.getNodes().contains("in1"));
+  }
+
+  @Test
+  public void testUnconnectedInputs_cappedButCounted()
+      throws SchematicException {
+    CompactNetlist netlist = buildNetlist(10);
+    NoUnconnectedInputsCheck check = new NoUnconnectedInputsCheck(netlist,
+        UtilSchematicConstruction.digitalInPortType);
+    CollectingSink sink = new CollectingSink();
+    check.setViolationSink(sink);
+    check.setViolationLimit(5, false);
+    assertFalse(check.run());
+    // two unconnected inputs per AND gate
+    assertEquals(20, check.getViolationCount());
+    assertEquals(5, check.getReportedViolationCount());
+    assertEquals(5, sink.violations.size());
+    assertEquals("and0:in0", sink.violations.get(0).getPorts().get(0));
+  }
+
+  @Test
+  public void testUnconnectedInputs_firstViolationsOnly()
+      throws SchematicException {
+    CompactNetlist netlist = buildNetlist(10);
+    NoUnconnectedInputsCheck check = new NoUnconnectedInputsCheck(netlist,
+        UtilSchematicConstruction.digitalInPortType);
+    CollectingSink sink = new CollectingSink();
+    check.setViolationSink(sink);
+    check.setViolationLimit(3, true);
+    assertFalse(check.run());
+    // the check stops at the end of the node where it hit the limit
+    assertEquals(3, sink.violations.size());
+    assertTrue(check.getViolationCount() < 20);
+  }
+
+  @Test
+  public void testReport_jsonLines() throws SchematicException, IOException {
+    CompactNetlist netlist = buildNetlist(1);
+    NoUnconnectedInputsCheck check = new NoUnconnectedInputsCheck(netlist,
+        UtilSchematicConstruction.digitalInPortType);
+    StringWriter out = new StringWriter();
+    ViolationReport report = new ViolationReport(out);
+    check.setViolationSink(report);
+    boolean passed = check.run();
+    report.summarize(check, passed);
+    report.close();
+
+    String[] lines = out.toString().split("\n");
+    assertEquals(3, lines.length);
+    JsonObject first = new JsonParser().parse(lines[0]).getAsJsonObject();
+    assertEquals("no unconnected inputs", first.get("check").getAsString());
+    assertEquals("and0:in0",
+        first.getAsJsonArray("ports").get(0).getAsString());
+    assertEquals("and0", first.getAsJsonArray("nodes").get(0).getAsString());
+    JsonObject summary = new JsonParser().parse(lines[2]).getAsJsonObject();
+    assertFalse(summary.get("passed").getAsBoolean());
+    assertEquals(2, summary.get("violations").getAsInt());
+    assertEquals(2, summary.get("reported").getAsInt());
+  }
+
+}
@@ -203,4 +203,45 @@ public class UtilSchematicConstruction {
     ConnectionValue wire = new ConnectionValue(from, to, noAttributes);
     return wire;
   }
+
+  // The helpers below add to a schematic as they go, for tests that build
+  // designs node by node.
+
+  public static NodeValue addNode(Schematic s, String name, NodeValue node)
+      throws SchematicException {
+    s.addNode(name, node);
+    return node;
+  }
+
+  // Wire `from` to `to`, naming the connection "c0", "c1", ... in the order
+  // connections are added to `s`.
+  public static void connect(Schematic s, PortValue from, PortValue to)
+      throws SchematicException {
+    s.addConnection("c" + Integer.toString(s.getConnections().size()),
+        instantiateWire(from, to));
+  }
+
+  public static NodeValue addInputPin(Schematic s, String name)
+      throws SchematicException {
+    return addNode(s, name, instantiateInputPin());
+  }
+
+  public static NodeValue addOutputPin(Schematic s, String name,
+      PortValue from) throws SchematicException {
+    NodeValue pin = addNode(s, name, instantiateOutputPin());
+    connect(s, from, pin.getPort("in"));
+    return pin;
+  }
+
+  // Add a register with an active-high synchronous reset, wiring up its
+  // clock and reset but not its input.
+  public static NodeValue addRegister(Schematic s, String name,
+      boolean initialValue, boolean clockActiveHigh, PortValue clock,
+      PortValue reset) throws SchematicException {
+    NodeValue reg = addNode(s, name, instantiateRegister(initialValue, true,
+        false, clockActiveHigh));
+    connect(s, clock, reg.getPort("clock"));
+    connect(s, reset, reg.getPort("reset"));
+    return reg;
+  }
 }